@@ -0,0 +1,289 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class binds the Linux system calls behind NativeEpoll: epoll, eventfd and the
+ | socket calls, through the Foreign Function & Memory API of the jdk.incubator.foreign module in
+ | Java 17. It is the only class that uses that module and lives in its own source root,
+ | src-epoll, compiled on top of src with javac --add-modules jdk.incubator.foreign, so the rest
+ | of the server builds and runs without the flag. NativeEpoll finds it by name when the epoll
+ | transport is first asked for. Each call returns what the system call does, -1 on failure,
+ | with the cause in errno(). Creating one fails with a LinkageError when the module is not added
+ | (--add-modules jdk.incubator.foreign) and with an IllegalCallerException when native access is
+ | not allowed(--enable-native-access=ALL-UNNAMED)
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Moved out of NativeEpoll into src-epoll, the only source root that needs the incubator module
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+
+final class ForeignEpoll implements NativeEpoll.Calls {
+
+    private static final MethodHandle EPOLL_CREATE1;
+    private static final MethodHandle EPOLL_CTL;
+    private static final MethodHandle EPOLL_WAIT;
+    private static final MethodHandle EVENTFD;
+    private static final MethodHandle SOCKET;
+    private static final MethodHandle SETSOCKOPT;
+    private static final MethodHandle BIND;
+    private static final MethodHandle LISTEN;
+    private static final MethodHandle ACCEPT4;
+    private static final MethodHandle GETSOCKNAME;
+    private static final MethodHandle READ;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle ERRNO_LOCATION;
+
+    static {
+        MethodType intInt = MethodType.methodType(int.class, int.class);
+        MethodType intIntInt = MethodType.methodType(int.class, int.class, int.class);
+        MethodType intIntIntInt = MethodType.methodType(int.class, int.class, int.class, int.class);
+        MethodType intIntAddressInt = MethodType.methodType(int.class, int.class, MemoryAddress.class, int.class);
+        MethodType intIntAddressAddress = MethodType.methodType(int.class, int.class, MemoryAddress.class,
+                MemoryAddress.class);
+        MethodType longIntAddressLong = MethodType.methodType(long.class, int.class, MemoryAddress.class, long.class);
+
+        FunctionDescriptor cIntInt = FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT);
+        FunctionDescriptor cIntIntInt = FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_INT);
+        FunctionDescriptor cIntIntIntInt = FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_INT,
+                CLinker.C_INT);
+        FunctionDescriptor cIntIntPointerInt = FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER,
+                CLinker.C_INT);
+        FunctionDescriptor cIntIntPointerPointer = FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT,
+                CLinker.C_POINTER, CLinker.C_POINTER);
+        FunctionDescriptor cLongIntPointerLong = FunctionDescriptor.of(CLinker.C_LONG, CLinker.C_INT,
+                CLinker.C_POINTER, CLinker.C_LONG);
+
+        EPOLL_CREATE1 = downcall("epoll_create1", intInt, cIntInt);
+        EPOLL_CTL = downcall("epoll_ctl", MethodType.methodType(int.class, int.class, int.class, int.class,
+                MemoryAddress.class), FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_INT, CLinker.C_INT,
+                CLinker.C_POINTER));
+        EPOLL_WAIT = downcall("epoll_wait", MethodType.methodType(int.class, int.class, MemoryAddress.class, int.class,
+                int.class), FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT,
+                CLinker.C_INT));
+        EVENTFD = downcall("eventfd", intIntInt, cIntIntInt);
+        SOCKET = downcall("socket", intIntIntInt, cIntIntIntInt);
+        SETSOCKOPT = downcall("setsockopt", MethodType.methodType(int.class, int.class, int.class, int.class,
+                MemoryAddress.class, int.class), FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_INT,
+                CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT));
+        BIND = downcall("bind", intIntAddressInt, cIntIntPointerInt);
+        LISTEN = downcall("listen", intIntInt, cIntIntInt);
+        ACCEPT4 = downcall("accept4", MethodType.methodType(int.class, int.class, MemoryAddress.class,
+                MemoryAddress.class, int.class), FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER,
+                CLinker.C_POINTER, CLinker.C_INT));
+        GETSOCKNAME = downcall("getsockname", intIntAddressAddress, cIntIntPointerPointer);
+        READ = downcall("read", longIntAddressLong, cLongIntPointerLong);
+        WRITE = downcall("write", longIntAddressLong, cLongIntPointerLong);
+        CLOSE = downcall("close", intInt, cIntInt);
+        ERRNO_LOCATION = downcall("__errno_location", MethodType.methodType(MemoryAddress.class),
+                FunctionDescriptor.of(CLinker.C_POINTER));
+    }
+
+    ForeignEpoll(){
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: downcall
+     |Abstract: Looks a C library function up by name and binds it to a MethodHandle of the Java type given
+     |Return: MethodHandle, calls the function
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static MethodHandle downcall(String name, MethodType type, FunctionDescriptor descriptor){
+        Optional<MemoryAddress> symbol = CLinker.systemLookup().lookup(name);
+
+        if (!symbol.isPresent()) {
+            throw new UnsupportedOperationException("The C library has no " + name);
+        }
+        return CLinker.getInstance().downcallHandle(symbol.get(), type, descriptor);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: address
+     |Abstract: Native address of the first byte of a direct buffer, whatever its position. The buffer must stay
+     |          reachable for as long as the address is used
+     |Return: long, the address
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long address(ByteBuffer direct){
+        return MemorySegment.ofByteBuffer(direct.duplicate().clear()).address().toRawLongValue();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: errno
+     |Abstract: The error of the last call that failed on this thread. Read straight after the failed call; the
+     |          JVM may make system calls of its own in between, so a rare wrong errno is possible
+     |Return: int, errno
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int errno(){
+        try {
+            MemoryAddress location = (MemoryAddress) ERRNO_LOCATION.invokeExact();
+            return MemoryAccess.getInt(location.asSegment(4, ResourceScope.globalScope()));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int epollCreate(){
+        try {
+            return (int) EPOLL_CREATE1.invokeExact(NativeEpoll.O_CLOEXEC);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: epollCtl
+     |Abstract: Adds(EPOLL_CTL_ADD) or removes(EPOLL_CTL_DEL) a file descriptor, with the events and 64 bits of
+     |          data written into the epoll_event at eventAddress, from the interest list of an epoll instance
+     |Return: int, 0 or -1
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int epollCtl(int epfd, int op, int fd, long eventAddress){
+        try {
+            return (int) EPOLL_CTL.invokeExact(epfd, op, fd, MemoryAddress.ofLong(eventAddress));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: epollWait
+     |Abstract: Waits up to timeout ms(0 returns at once, -1 waits for ever) for events, and writes up to
+     |          maxEvents of them as epoll_events from eventsAddress
+     |Return: int, events written, or -1
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int epollWait(int epfd, long eventsAddress, int maxEvents, int timeout){
+        try {
+            return (int) EPOLL_WAIT.invokeExact(epfd, MemoryAddress.ofLong(eventsAddress), maxEvents, timeout);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int eventfd(){
+        try {
+            return (int) EVENTFD.invokeExact(0, NativeEpoll.O_NONBLOCK | NativeEpoll.O_CLOEXEC);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int socket(){
+        try {
+            return (int) SOCKET.invokeExact(NativeEpoll.AF_INET, NativeEpoll.SOCK_STREAM | NativeEpoll.O_NONBLOCK |
+                    NativeEpoll.O_CLOEXEC, 0);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int setsockopt(int fd, int level, int option, long valueAddress, int valueLength){
+        try {
+            return (int) SETSOCKOPT.invokeExact(fd, level, option, MemoryAddress.ofLong(valueAddress), valueLength);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int bind(int fd, long socketAddress, int length){
+        try {
+            return (int) BIND.invokeExact(fd, MemoryAddress.ofLong(socketAddress), length);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int listen(int fd, int backlog){
+        try {
+            return (int) LISTEN.invokeExact(fd, backlog);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: accept4
+     |Abstract: Accepts a pending connection as a non-blocking socket, writing the client's sockaddr at
+     |          socketAddress and its length at lengthAddress(which holds the room there on entry)
+     |Return: int, the new socket, or -1
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int accept4(int fd, long socketAddress, long lengthAddress){
+        try {
+            return (int) ACCEPT4.invokeExact(fd, MemoryAddress.ofLong(socketAddress),
+                    MemoryAddress.ofLong(lengthAddress), NativeEpoll.O_NONBLOCK | NativeEpoll.O_CLOEXEC);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int getsockname(int fd, long socketAddress, long lengthAddress){
+        try {
+            return (int) GETSOCKNAME.invokeExact(fd, MemoryAddress.ofLong(socketAddress),
+                    MemoryAddress.ofLong(lengthAddress));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public long read(int fd, long address, long length){
+        try {
+            return (long) READ.invokeExact(fd, MemoryAddress.ofLong(address), length);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public long write(int fd, long address, long length){
+        try {
+            return (long) WRITE.invokeExact(fd, MemoryAddress.ofLong(address), length);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public int close(int fd){
+        try {
+            return (int) CLOSE.invokeExact(fd);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: rethrow
+     |Abstract: invokeExact() is declared to throw Throwable, but a downcall only fails with an unchecked error
+     |Return: RuntimeException, never, the error is thrown
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static RuntimeException rethrow(Throwable t){
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+}
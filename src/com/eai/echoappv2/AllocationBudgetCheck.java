@@ -0,0 +1,179 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class checks that the request path of the Echo Server allocates nothing once it
+ | is warmed up. A quiet server runs in this process and a client over TCP pipelines NOTHING,
+ | ECHO, PRINT, PUT and GET requests at it, each type in turn: first enough to warm the path up,
+ | then the measured run. Until C2 has compiled the path, the interpreted and C1 code allocate
+ | objects C2 scalar replaces, so the warm-up goes on for up to WARM_UP_ROUNDS more rounds,
+ | until a round is within the budget. The bytes the server thread allocated during the measured
+ | run, read with com.sun.management.ThreadMXBean, are divided by the requests it answered, and
+ | each type must stay within the budget, which covers the read, sentMessageValidator(),
+ | messageHandling() and the write of the response together. Exits with status 1 if any type is
+ | over budget, so a build can run it as a check. PRINT output goes to a null stream while it runs
+ |
+ | Usage: AllocationBudgetCheck [requests] [budgetBytesPerRequest] [payloadBytes] [pipelineDepth]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - PUT and GET requests to the key-value store, the same key over and over
+ 1.2  - 10192026 - Extra warm-up rounds until one is within the budget, so C2 has compiled the path
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+
+public class AllocationBudgetCheck {
+
+    private static final int[] TYPES = {MessageFormatter.TYPE_NOTHING, MessageFormatter.TYPE_ECHO,
+            MessageFormatter.TYPE_PRINT, MessageFormatter.TYPE_PUT, MessageFormatter.TYPE_GET};
+    private static final byte[] KEY = "allocation-budget-check".getBytes();
+    private static final int WARM_UP_ROUNDS = 10;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of AllocationBudgetCheck class. Measures each request type against the
+     |          budget and exits with status 1 if any is over it
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        double budget = (args.length > 1) ? Double.parseDouble(args[1]) : 1.0;
+        int payloadBytes = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        int depth = (args.length > 3) ? Integer.parseInt(args[3]) : 32;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));//PRINT requests and the server's status lines
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        EchoServer server = new EchoServer(loopback, 0);
+        server.setVerbose(false);
+        server.getOverloadController().setEnabled(false);//Every request is handled, none shed with a BUSY response
+        server.serveKeyValues(16 * 1024 * 1024);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        boolean passed = true;
+
+        console.println("requests=" + requests + " payload=" + payloadBytes + "B depth=" + depth + " budget=" + budget +
+                " bytes/request");
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(loopback, server.getPort()))) {
+            channel.socket().setTcpNoDelay(true);
+
+            for (int type : TYPES) {
+                //A PUT stores the PAYLOAD under the key, a GET reads it back
+                byte[] request = MessageFormatter.encodeFrame(type, (type == MessageFormatter.TYPE_PUT) ?
+                        MessageFormatter.encodeKeyValue(KEY, payload) : (type == MessageFormatter.TYPE_GET) ?
+                        MessageFormatter.encodeKeyValue(KEY, null) : payload);
+
+                run(channel, request, 2 * requests, depth);//Warm up, until the JIT has compiled the path
+                for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+                    long warmUpBefore = threads.getThreadAllocatedBytes(serverThread.getId());
+                    run(channel, request, requests, depth);
+                    if (threads.getThreadAllocatedBytes(serverThread.getId()) - warmUpBefore <= budget * requests) {
+                        break;//C2 has the path, the measured run starts from here
+                    }
+                }
+
+                long responsesBefore = server.getResponseCount();
+                long allocatedBefore = threads.getThreadAllocatedBytes(serverThread.getId());
+                run(channel, request, requests, depth);
+                long allocated = threads.getThreadAllocatedBytes(serverThread.getId()) - allocatedBefore;
+                long answered = server.getResponseCount() - responsesBefore;
+
+                double perRequest = (double) allocated / answered;
+                boolean within = (perRequest <= budget);
+                passed &= within;
+
+                console.println(String.format("type %d  %,d bytes allocated for %,d requests  %.2f bytes/request  %s",
+                        type, allocated, answered, perRequest, within ? "OK" : "OVER BUDGET"));
+            }
+        } finally {
+            serverThread.interrupt();
+            serverThread.join();
+            System.setOut(console);
+        }
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Sends the request the number of times given, keeping depth of them in flight, and
+     |          reads the responses. Frames are counted only, the client's own allocations do not
+     |          matter here
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    private static void run(SocketChannel channel, byte[] request, int count, int depth) throws IOException{
+        ByteBuffer batch = ByteBuffer.allocate(request.length * depth);
+        ByteBuffer inbound = ByteBuffer.allocate(2 * MessageFormatter.MAX_FRAME_LENGTH * depth);
+        int sent = 0;
+
+        while (sent < count) {
+            int frames = Math.min(depth, count - sent);
+
+            batch.clear();
+            for (int i = 0; i < frames; i++) {
+                batch.put(request);
+            }
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            sent += frames;
+
+            int received = 0;
+            while (received < frames) {
+                if (channel.read(inbound) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+                inbound.flip();
+
+                int frameLength = MessageFormatter.frameLength(inbound);
+                while ((frameLength != -1) && (frameLength <= inbound.remaining())) {
+                    int type = inbound.getShort(inbound.position()) & 0xFFFF;
+                    if ((type == MessageFormatter.TYPE_ERROR) || (type == MessageFormatter.TYPE_BUSY) ||
+                            (type == MessageFormatter.TYPE_MISSING)) {
+                        throw new IOException("Server answered " + type + " to a valid request");
+                    }
+                    inbound.position(inbound.position() + frameLength);
+                    received++;
+                    frameLength = MessageFormatter.frameLength(inbound);
+                }
+                inbound.compact();
+            }
+        }
+    }
+}
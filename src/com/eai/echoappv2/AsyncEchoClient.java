@@ -0,0 +1,684 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is a non-interactive client library for the Echo App. Any number of caller
+ | threads hand it requests through send() and get a CompletableFuture of the server's response.
+ | Requests are spread over a pool of connections to one or more Echo Servers and pipelined on
+ | each connection. A single I/O thread runs the same Selector based connect/read/write cycle as
+ | the EchoClient and batches all frames queued for a connection into one write per wake up.
+ | Servers are reached over TCP, optionally with TLS, or, on the same host, over a Unix domain socket
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - TLS connections
+ 1.2  - 10192026 - Broadcasts pushed by the server handed to a delivery listener instead of completing a request
+ 1.3  - 10192026 - BLOB requests refused, their raw file bytes would be read as frames
+ 1.4  - 10192026 - A connection whose oldest request timed out is failed instead of pipelining more onto it
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+
+public class AsyncEchoClient implements Runnable, Closeable {
+
+    public static final int DEFAULT_CONNECTIONS_PER_SERVER = 2;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 10000;//Same as the interactive client's Selector TIMEOUT
+    public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+
+    private final int MAX_TIMEOUT_CHECK = 100;//Longest time in ms the I/O thread blocks before checking deadlines
+
+    private final Charset charset = Charset.forName("UTF-8");
+    private final Selector selector;
+    private final ClientConnection[] connections;
+    private final ArrayList<ClientConnection> dirtyConnections = new ArrayList<ClientConnection>();
+    private final ConcurrentLinkedQueue<PendingRequest> submissions = new ConcurrentLinkedQueue<PendingRequest>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final long requestTimeoutNanos;
+    private final long timeoutCheck;
+    private final SSLContext sslContext;//Null for plain connections
+    private BufferPool tlsNetPool;
+    private BufferPool tlsAppPool;
+    private final Thread ioThread;
+    private volatile boolean closed;
+    private volatile Consumer<EchoResponse> deliveryListener;//Given broadcasts from other clients, null to drop them
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: AsyncEchoClient
+     |Abstract: Constructor for an AsyncEchoClient talking to a single Echo Server with the default pool size, request
+     |          timeout and batch size
+     |Return: object AsyncEchoClient
+     \----------------------------------------------------------------------------------------------------------------*/
+    public AsyncEchoClient(SocketAddress serverAddress) throws IOException{
+        this(Collections.singletonList(serverAddress), DEFAULT_CONNECTIONS_PER_SERVER,
+                DEFAULT_REQUEST_TIMEOUT_MS, DEFAULT_BATCH_BYTES);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: AsyncEchoClient
+     |Abstract: Constructor for AsyncEchoClient object. Opens connectionsPerServer non-blocking connections to every
+     |          server in the list(an InetSocketAddress or a UnixDomainSocketAddress), registers them with a new
+     |          Selector and starts the I/O thread. Requests sent before a connection completes are held and written as
+     |          soon as it does.
+     |          requestTimeoutMs - time after which a request's future fails with a TimeoutException
+     |          batchBytes       - size of the per connection buffer frames are batched into before each write
+     |Return: object AsyncEchoClient
+     \----------------------------------------------------------------------------------------------------------------*/
+    public AsyncEchoClient(List<? extends SocketAddress> serverAddresses, int connectionsPerServer, long requestTimeoutMs,
+                           int batchBytes) throws IOException{
+        this(serverAddresses, connectionsPerServer, requestTimeoutMs, batchBytes, null);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: AsyncEchoClient
+     |Abstract: Constructor for an AsyncEchoClient whose connections use TLS 1.3 with the given context, e.g. one from
+     |          TlsChannel.createContext() trusting the server's certificate. A null context gives plain connections.
+     |          Requests sent before a handshake finishes are held and written as soon as it does. Reusing the same
+     |          context for a later client lets it resume the TLS sessions of this one
+     |Return: object AsyncEchoClient
+     \----------------------------------------------------------------------------------------------------------------*/
+    public AsyncEchoClient(List<? extends SocketAddress> serverAddresses, int connectionsPerServer, long requestTimeoutMs,
+                           int batchBytes, SSLContext sslContext) throws IOException{
+        if (serverAddresses.isEmpty() || (connectionsPerServer < 1) || (requestTimeoutMs < 1)){
+            throw new IllegalArgumentException("At least one server, one connection and a positive timeout are required");
+        }
+        if (batchBytes < MessageFormatter.MAX_FRAME_LENGTH){
+            throw new IllegalArgumentException("The batch must hold at least one frame of " +
+                    MessageFormatter.MAX_FRAME_LENGTH + " bytes");
+        }
+
+        requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(requestTimeoutMs);
+        timeoutCheck = Math.min(requestTimeoutMs, MAX_TIMEOUT_CHECK);
+        this.sslContext = sslContext;
+
+        if (sslContext != null) {
+            BufferPool[] pools = TlsChannel.createPools(sslContext, 0);//Connections live as long as the client
+            tlsNetPool = pools[0];
+            tlsAppPool = pools[1];
+        }
+
+        //Creates a new selector using the system's default provider to do so
+        selector = SelectorProvider.provider().openSelector();
+
+        connections = new ClientConnection[serverAddresses.size() * connectionsPerServer];
+
+        int i = 0;
+        try {
+            for (SocketAddress serverAddress : serverAddresses) {
+                for (int j = 0; j < connectionsPerServer; j++) {
+                    connections[i] = initConnection(serverAddress, batchBytes);
+                    i++;
+                }
+            }
+        }catch (IOException ioe){
+            //Do not leak the connections that were opened before the failure
+            for (int j = 0; j < i; j++) {
+                connections[j].getSocketChannel().close();
+            }
+            selector.close();
+            throw ioe;
+        }
+
+        ioThread = new Thread(this, "AsyncEchoClient-IO");
+        ioThread.setDaemon(true);//Never keep the embedding application alive
+        ioThread.start();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: initConnection
+     |Abstract: Creates a new non-blocking socket channel, starts connecting it to the Echo Server and registers it with
+     |          the Selector with an interest in connecting
+     |Return: ClientConnection, the new pooled connection
+     \----------------------------------------------------------------------------------------------------------------*/
+    private ClientConnection initConnection(SocketAddress serverAddress, int batchBytes) throws IOException{
+        SocketChannel socketChannel;
+
+        if (serverAddress instanceof UnixDomainSocketAddress) {
+            socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        else {
+            socketChannel = SocketChannel.open();
+            socketChannel.socket().setTcpNoDelay(true);//Batching is done here, Nagle would only add latency
+        }
+        socketChannel.configureBlocking(false);
+
+        TlsChannel tlsChannel = null;
+        if (sslContext != null) {
+            tlsChannel = openTlsChannel(serverAddress, socketChannel);
+        }
+
+        ClientConnection conn = new ClientConnection(serverAddress, socketChannel, tlsChannel, batchBytes);
+
+        //Connect may finish straight away on a local address, otherwise the Selector reports when it can be finished
+        if (socketChannel.connect(serverAddress)) {
+            conn.setConnected(true);
+            conn.setKey(socketChannel.register(selector, SelectionKey.OP_READ, conn));
+        }
+        else {
+            conn.setKey(socketChannel.register(selector, SelectionKey.OP_CONNECT, conn));
+        }
+        return conn;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: openTlsChannel
+     |Abstract: Wraps a socket in a client mode TLS 1.3 channel. The engine is told the server's host and port so the
+     |          context can offer a cached session for resumption. Handshake tasks run on the I/O thread, which has
+     |          nothing else to do for a connection that is still handshaking
+     |Return: TlsChannel, channel requests are written through
+     \----------------------------------------------------------------------------------------------------------------*/
+    private TlsChannel openTlsChannel(SocketAddress serverAddress, SocketChannel socketChannel) throws IOException{
+        SSLEngine engine;
+
+        if (serverAddress instanceof InetSocketAddress) {
+            InetSocketAddress inetAddress = (InetSocketAddress) serverAddress;
+            engine = sslContext.createSSLEngine(inetAddress.getHostString(), inetAddress.getPort());
+        }
+        else {
+            engine = sslContext.createSSLEngine();
+        }
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(new String[] {TlsChannel.PROTOCOL});
+
+        return new TlsChannel(socketChannel, engine, null, tlsNetPool, tlsAppPool);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setDeliveryListener
+     |Abstract: Sets what is given the DELIVERY frames the server pushes when another client broadcasts. They answer no
+     |          request, so they never complete a future. The listener runs on the I/O thread and must not block it.
+     |          Null, the default, drops them
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setDeliveryListener(Consumer<EchoResponse> listener){
+        this.deliveryListener = listener;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: send
+     |Abstract: Sends a request with the given message type and text, encoded with the same charset as the EchoClient
+     |Return: CompletableFuture, completed with the server's response
+     \----------------------------------------------------------------------------------------------------------------*/
+    public CompletableFuture<EchoResponse> send(int messageType, String text){
+        byte[] payload = text.getBytes(charset);
+        return send(messageType, payload, 0, payload.length);
+    }
+
+    public CompletableFuture<EchoResponse> send(int messageType, byte[] payload){
+        return send(messageType, payload, 0, payload.length);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: send
+     |Abstract: Safe to call from any thread. Packs the payload into a frame on the calling thread, so the CRC32 work is
+     |          spread over the callers, picks a connection from the pool in turn and hands the request to the I/O
+     |          thread. The Selector is woken at most once for any number of requests queued while it was busy, and all
+     |          requests for a connection found on the queue are written together. The future is completed on the I/O
+     |          thread, so long running dependent actions should use the *Async variants of CompletableFuture
+     |Return: CompletableFuture, completed with the server's response, or exceptionally with a TimeoutException or an
+     |        IOException if the connection fails or the client is closed. BLOB requests are completed exceptionally
+     |        with an IllegalArgumentException and never sent: the file bytes following the response are not framed
+     |        and would fail every request pipelined on the same connection. Use BlobFetch
+     \----------------------------------------------------------------------------------------------------------------*/
+    public CompletableFuture<EchoResponse> send(int messageType, byte[] payload, int offset, int length){
+        CompletableFuture<EchoResponse> future = new CompletableFuture<EchoResponse>();
+
+        if (messageType == MessageFormatter.TYPE_BLOB) {
+            future.completeExceptionally(new IllegalArgumentException("BLOB requests are not supported"));
+            return future;
+        }
+
+        if (closed) {
+            future.completeExceptionally(new IOException("The AsyncEchoClient has been closed"));
+            return future;
+        }
+
+        ClientConnection conn = nextOpenConnection();
+        if (conn == null) {
+            future.completeExceptionally(new IOException("No connection to an Echo Server is open"));
+            return future;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(MessageFormatter.HEADER_LENGTH + length + MessageFormatter.CRC_LENGTH);
+        MessageFormatter.encodeFrame(messageType, payload, offset, length, frame);
+
+        submissions.offer(new PendingRequest(conn, frame.array(), System.nanoTime() + requestTimeoutNanos, future));
+
+        if (closed) {
+            failSubmissions(new IOException("The AsyncEchoClient has been closed"));//Lost the race with close()
+        }
+        else if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();//Only the first request queued while the I/O thread is busy pays for a wake up
+        }
+        return future;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: nextOpenConnection
+     |Abstract: Picks the connections of the pool in turn, skipping any that have failed
+     |Return: ClientConnection, an open connection or null if none is left
+     \----------------------------------------------------------------------------------------------------------------*/
+    private ClientConnection nextOpenConnection(){
+        for (int tries = 0; tries < connections.length; tries++) {
+            int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+
+            if (!connections[index].isClosed()) {
+                return connections[index];
+            }
+        }
+        return null;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Stops the I/O thread, closes every pooled connection and fails all requests still waiting for a response
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void close(){
+        closed = true;
+        selector.wakeup();
+
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            }catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Method run by the I/O thread. Each time the Selector wakes up, handles ready keys the same way as the
+     |          EchoClient(connect, read, write), moves newly submitted requests to their connections, writes every
+     |          connection that received requests once, and fails requests whose deadline has passed
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void run(){
+        try {
+            while (!closed) {
+                wakeupPending.set(false);//Requests submitted from here on wake the Selector again
+
+                if (submissions.isEmpty()) {
+                    selector.select(timeoutCheck);
+                }
+                else {
+                    selector.selectNow();//Requests already waiting, do not block
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();//Removes the current key so it is not processed again
+
+                    ClientConnection conn = (ClientConnection) key.attachment();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        connect(conn);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(conn);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(conn);
+                    }
+                }
+
+                drainSubmissions();
+                expireRequests(System.nanoTime());
+            }
+        }catch (IOException ioe){
+            ioe.printStackTrace();
+        }catch (ClosedSelectorException cse){
+            //Closed underneath us, nothing left to do but clean up
+        }finally {
+            closed = true;
+            shutdown();
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: connect
+     |Abstract: Finishes a pending connection. Once connected, asks for READ operations and writes any requests that
+     |          were sent while the connection was still being established(over TLS, starts the handshake instead)
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void connect(ClientConnection conn){
+        try {
+            if (conn.getSocketChannel().finishConnect()) {
+                conn.setConnected(true);
+                conn.getKey().interestOps(SelectionKey.OP_READ);
+                write(conn);
+            }
+        }catch (IOException ioe){
+            failConnection(conn, ioe);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Reads whatever the socket has into the connection's buffer. Each complete response frame is verified and
+     |          completes the oldest request in flight on that connection, since the Echo Server answers in order. A TLS
+     |          channel may hold more decrypted data than the buffer took, so it is read until it has none; a read that
+     |          finishes its handshake lets the requests waiting for it be written
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void read(ClientConnection conn){
+        TlsChannel tlsChannel = conn.getTlsChannel();
+
+        do {
+            if (!readFrames(conn)) {
+                return;
+            }
+        } while ((tlsChannel != null) && tlsChannel.hasBufferedInput());
+
+        if ((tlsChannel != null) && conn.needsWriteInterest()) {
+            write(conn);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: readFrames
+     |Abstract: One read from the channel into the connection's buffer, completing a request for every whole frame
+     |Return: boolean, false if the connection failed
+     \----------------------------------------------------------------------------------------------------------------*/
+    private boolean readFrames(ClientConnection conn){
+        ByteBuffer inbound = conn.getInbound();
+
+        try {
+            if (conn.getChannel().read(inbound) == -1) {
+                failConnection(conn, new IOException("Echo Server " + conn.getServerAddress() + " closed the connection"));
+                return false;
+            }
+        }catch (IOException ioe){
+            failConnection(conn, ioe);
+            return false;
+        }
+
+        inbound.flip();
+
+        int frameLength = MessageFormatter.frameLength(inbound);
+
+        while ((frameLength != -1) && (frameLength <= inbound.remaining())) {
+            int start = inbound.position();
+
+            if (frameLength > MessageFormatter.MAX_FRAME_LENGTH) {
+                failConnection(conn, new IOException("Response of " + frameLength + " bytes exceeds the ICD maximum"));
+                return false;
+            }
+            if (!MessageFormatter.isFrameValid(inbound, start, frameLength)) {
+                failConnection(conn, new IOException("Response from " + conn.getServerAddress() +
+                        " failed CRC32 checking"));
+                return false;
+            }
+
+            int messageType = inbound.getShort(start) & 0xFFFF;
+            byte[] payload = new byte[frameLength - MessageFormatter.HEADER_LENGTH - MessageFormatter.CRC_LENGTH];
+            inbound.position(start + MessageFormatter.HEADER_LENGTH);
+            inbound.get(payload);
+            inbound.position(start + frameLength);
+
+            if (messageType == MessageFormatter.TYPE_DELIVERY) {
+                Consumer<EchoResponse> listener = deliveryListener;
+                if (listener != null) {
+                    listener.accept(new EchoResponse(messageType, payload));
+                }
+                frameLength = MessageFormatter.frameLength(inbound);
+                continue;//Pushed by the server, not an answer to a request in flight
+            }
+
+            PendingRequest request = conn.getInFlight().pollFirst();
+            if (request == null) {
+                failConnection(conn, new IOException("Unexpected response from " + conn.getServerAddress()));
+                return false;
+            }
+            request.future.complete(new EchoResponse(messageType, payload));//No effect if it already timed out
+
+            frameLength = MessageFormatter.frameLength(inbound);
+        }
+
+        if ((frameLength > MessageFormatter.MAX_FRAME_LENGTH)) {
+            failConnection(conn, new IOException("Response of " + frameLength + " bytes exceeds the ICD maximum"));
+            return false;
+        }
+
+        inbound.compact();
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: drainSubmissions
+     |Abstract: Moves every request handed over by caller threads to the unsent queue of its connection, then writes
+     |          each connection that got new requests once, so requests queued together share a single write
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void drainSubmissions(){
+        PendingRequest request;
+
+        while ((request = submissions.poll()) != null) {
+            ClientConnection conn = request.connection;
+
+            if (conn.isClosed()) {
+                request.future.completeExceptionally(new IOException("Connection to " + conn.getServerAddress() +
+                        " is closed"));
+                continue;
+            }
+
+            conn.getUnsent().addLast(request);
+
+            if (!conn.isDirty()) {
+                conn.setDirty(true);
+                dirtyConnections.add(conn);
+            }
+        }
+
+        for (int i = 0; i < dirtyConnections.size(); i++) {
+            ClientConnection conn = dirtyConnections.get(i);
+            conn.setDirty(false);
+            write(conn);
+        }
+        dirtyConnections.clear();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Batches as many unsent frames as fit into the connection's buffer, moving each request to the in flight
+     |          queue, and writes the buffer with a single call. Anything the socket would not take stays buffered and
+     |          interest in WRITE operations is registered until it is gone
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void write(ClientConnection conn){
+        if (!conn.isConnected() || conn.isClosed()) {
+            return;//Written when the connection completes
+        }
+
+        ByteBuffer outbound = conn.getOutbound();
+
+        PendingRequest request = conn.getUnsent().peekFirst();
+        while ((request != null) && (request.frame.length <= outbound.remaining())) {
+            conn.getUnsent().pollFirst();
+
+            if (!request.future.isDone()) {
+                outbound.put(request.frame);
+                conn.getInFlight().addLast(request);
+            }
+            request = conn.getUnsent().peekFirst();
+        }
+
+        outbound.flip();
+        try {
+            conn.getChannel().write(outbound);
+        }catch (IOException ioe){
+            outbound.compact();
+            failConnection(conn, ioe);
+            return;
+        }
+        outbound.compact();
+
+        if (conn.needsWriteInterest()) {
+            conn.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        else {
+            conn.getKey().interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: expireRequests
+     |Abstract: Fails requests whose deadline has passed. Unsent ones are dropped. Once the oldest request written to a
+     |          connection has timed out, the server is not answering it, and anything pipelined behind would only
+     |          wait out its own timeout: the expired requests fail with a TimeoutException, the connection is closed
+     |          and the rest queued on it fail with an IOException. Later requests use the remaining connections.
+     |          Every request gets the same timeout, so both queues are ordered by deadline and only their heads need
+     |          checking. Requests the caller already completed or cancelled are skipped
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void expireRequests(long now){
+        for (ClientConnection conn : connections) {
+            PendingRequest request;
+
+            while (((request = conn.getUnsent().peekFirst()) != null) && (request.deadline - now <= 0)) {
+                conn.getUnsent().pollFirst();
+                if (!request.future.isDone()) {
+                    request.expire();
+                }
+            }
+
+            request = conn.getInFlight().peekFirst();
+            if ((request == null) || (request.deadline - now > 0)) {
+                continue;
+            }
+
+            for (PendingRequest inFlight : conn.getInFlight()) {
+                if (inFlight.deadline - now > 0) {
+                    break;
+                }
+                if (!inFlight.future.isDone()) {
+                    inFlight.expire();
+                }
+            }
+            failConnection(conn, new IOException("Connection to " + conn.getServerAddress() +
+                    " closed after a request timed out"));
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: failConnection
+     |Abstract: Closes a pooled connection and fails every request queued on it with the given cause. Later requests
+     |          are sent over the remaining connections
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void failConnection(ClientConnection conn, IOException cause){
+        conn.setClosed();
+        conn.getKey().cancel();
+
+        try {
+            conn.getChannel().close();
+        }catch (IOException ioe){
+            //Already failing, nothing more to report
+        }
+
+        PendingRequest request;
+        while ((request = conn.getInFlight().pollFirst()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+        while ((request = conn.getUnsent().pollFirst()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: shutdown
+     |Abstract: Run by the I/O thread on the way out. Closes every connection and the Selector
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void shutdown(){
+        IOException cause = new IOException("The AsyncEchoClient has been closed");
+
+        for (ClientConnection conn : connections) {
+            failConnection(conn, cause);
+        }
+        failSubmissions(cause);
+
+        try {
+            selector.close();
+        }catch (IOException ioe){
+            ioe.printStackTrace();
+        }
+    }
+
+    private void failSubmissions(IOException cause){
+        PendingRequest request;
+
+        while ((request = submissions.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Class: PendingRequest
+     |Abstract: One encoded request, the connection it was assigned to and the future waiting for its response
+     \----------------------------------------------------------------------------------------------------------------*/
+    static final class PendingRequest {
+        final ClientConnection connection;
+        final byte[] frame;
+        final long deadline;
+        final CompletableFuture<EchoResponse> future;
+
+        PendingRequest(ClientConnection connection, byte[] frame, long deadline, CompletableFuture<EchoResponse> future){
+            this.connection = connection;
+            this.frame = frame;
+            this.deadline = deadline;
+            this.future = future;
+        }
+
+        void expire(){
+            future.completeExceptionally(new TimeoutException("No response from " + connection.getServerAddress() +
+                    " within the request timeout"));
+        }
+    }
+}
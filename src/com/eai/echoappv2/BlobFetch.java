@@ -0,0 +1,180 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class fetches one blob from an Echo Server serving a directory(see
+ | EchoServer.serveBlobs()). It sends a BLOB request, checks the BLOB response, then reads the
+ | file's bytes that follow it through a direct buffer, computing their CRC32 as they arrive and
+ | writing them to a file if one is given. The transfer rate is printed, and whether the CRC32
+ | matches the one the server sent. Exits with status 1 if the blob could not be fetched intact
+ |
+ | Usage: BlobFetch <host> <port> <name> [outputFile]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+
+public class BlobFetch {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of BlobFetch class. Fetches the blob named and prints the result
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        if (args.length < 3) {
+            System.out.println("Usage: BlobFetch <host> <port> <name> [outputFile]");
+            return;
+        }
+
+        FileChannel output = (args.length > 3) ? FileChannel.open(Paths.get(args[3]), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) : null;
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(args[0], Integer.parseInt(args[1])))) {
+            boolean intact = fetch(channel, args[2], output);
+            if (!intact) {
+                System.exit(1);
+            }
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: fetch
+     |Abstract: Requests the blob over the connection given and reads it to the end, into the file
+     |          given if not null. DELIVERY frames pushed ahead of the response are skipped
+     |Return: boolean, true if the blob arrived whole with a matching CRC32
+     \------------------------------------------------------------------------------------------------*/
+    static boolean fetch(SocketChannel channel, String name, FileChannel output) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.limit(0);//Read mode, empty
+        ByteBuffer request = ByteBuffer.wrap(MessageFormatter.encodeFrame(MessageFormatter.TYPE_BLOB,
+                name.getBytes(Charset.forName("UTF-8"))));
+        long start = System.nanoTime();
+
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+
+        //Read up to the response frame, skipping broadcasts
+        int frameLength;
+        int type;
+        while (true) {
+            frameLength = MessageFormatter.frameLength(readAtLeast(channel, buffer, MessageFormatter.HEADER_LENGTH));
+            if (frameLength > MessageFormatter.MAX_FRAME_LENGTH) {
+                throw new IOException("Response of " + frameLength + " bytes exceeds the ICD maximum");
+            }
+            readAtLeast(channel, buffer, frameLength);
+
+            if (!MessageFormatter.isFrameValid(buffer, buffer.position(), frameLength)) {
+                throw new IOException("Response failed its CRC32 check");
+            }
+            type = buffer.getShort(buffer.position()) & 0xFFFF;
+            if (type != MessageFormatter.TYPE_DELIVERY) {
+                break;
+            }
+            buffer.position(buffer.position() + frameLength);
+        }
+
+        byte[] payload = new byte[frameLength - MessageFormatter.HEADER_LENGTH - MessageFormatter.CRC_LENGTH];
+        buffer.position(buffer.position() + MessageFormatter.HEADER_LENGTH);
+        buffer.get(payload);
+        buffer.position(buffer.position() + MessageFormatter.CRC_LENGTH);
+
+        if (type != MessageFormatter.TYPE_BLOB) {
+            System.out.println("Server answered " + type + ": " + new String(payload, Charset.forName("UTF-8")));
+            return false;
+        }
+
+        long size = MessageFormatter.blobSize(payload);
+        int expectedCrc = MessageFormatter.blobCrc(payload);
+        CRC32 crc32 = new CRC32();
+        long received = 0;
+
+        //The bytes after the frame are the start of the file
+        while (received < size) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed after " + received + " of " + size + " bytes");
+                }
+                buffer.flip();
+            }
+
+            int end = buffer.limit();
+            buffer.limit((int) Math.min(end, buffer.position() + (size - received)));//Nothing past the file
+            int chunk = buffer.remaining();
+
+            if (output != null) {
+                int mark = buffer.position();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.position(mark);
+            }
+            crc32.update(buffer);
+
+            received += chunk;
+            buffer.limit(end);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        boolean intact = ((int) crc32.getValue() == expectedCrc);
+
+        System.out.println(String.format("%s: %,d bytes in %.3f s, %.1f MB/s, CRC32 %08x %s", name, size, seconds,
+                size / seconds / 1e6, expectedCrc, intact ? "matches" : "MISMATCH"));
+        return intact;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: readAtLeast
+     |Abstract: Reads until the buffer, in read mode, holds at least the number of bytes given from its
+     |          position, compacting it first if they would not fit
+     |Return: ByteBuffer, the buffer given, in read mode
+     \------------------------------------------------------------------------------------------------*/
+    private static ByteBuffer readAtLeast(SocketChannel channel, ByteBuffer buffer, int bytes) throws IOException{
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed mid frame");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,264 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class serves the files of one directory as named blobs. A blob is sent as a BLOB
+ | frame holding the file's length and its CRC32, followed by the file's bytes, which are moved
+ | from the file to the socket by FileChannel.transferTo()(sendfile on Linux) and never copied
+ | into the Java heap. The CRC32 of a file is computed once, through a direct buffer, and kept
+ | until the file's size, modification time or identity changes. Names are single file names in
+ | the directory; paths, symbolic links and anything other than regular files are refused. Used
+ | by the event loop thread only
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - A transfer tells whether it stopped at its share or at a full channel
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+
+class BlobStore {
+
+    private static final int CRC_BUFFER_SIZE = 1024 * 1024;//Direct buffer the CRC32 of a file is computed through
+    private static final long MAX_SEND_BYTES = 8L * 1024 * 1024;//Per call, so one large file never holds up the loop
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     | CRC32 of one version of a file
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static final class Version {
+        final long size;
+        final long modified;//Nanoseconds since the epoch, as precise as the file system keeps it
+        final Object fileKey;//Inode and device on Linux, so a file replaced by a rename is a new version
+        final int crc;
+
+        Version(BasicFileAttributes attributes, int crc){
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().to(java.util.concurrent.TimeUnit.NANOSECONDS);
+            this.fileKey = attributes.fileKey();
+            this.crc = crc;
+        }
+
+        boolean matches(BasicFileAttributes attributes){
+            return (size == attributes.size()) &&
+                    (modified == attributes.lastModifiedTime().to(java.util.concurrent.TimeUnit.NANOSECONDS)) &&
+                    Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     | An open blob queued to a connection, sent after the BLOB frame that describes it. Remembers how far it got, so a
+     | socket that takes only part of it is resumed where it stopped once it is writable again
+     \----------------------------------------------------------------------------------------------------------------*/
+    static final class Transfer {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+        private boolean shareUsed;//The last sendTo() stopped at MAX_SEND_BYTES, not at a full channel
+
+        Transfer(FileChannel file, long size){
+            this.file = file;
+            this.end = size;
+        }
+
+        /**-------------------------------------------------------------------------------------------------------------
+         |Method: sendTo
+         |Abstract: Moves as much of the rest of the file into the channel as it takes, up to MAX_SEND_BYTES. A plain
+         |          socket gets the bytes straight from the page cache; other channels get them through a temporary
+         |          direct buffer
+         |Return: boolean, true once the whole file has been sent and closed, false if the channel is full or the
+         |        call's share is used up
+         \------------------------------------------------------------------------------------------------------------*/
+        boolean sendTo(WritableByteChannel channel) throws IOException{
+            long budget = MAX_SEND_BYTES;
+
+            shareUsed = false;
+            while (position < end) {
+                if (budget == 0) {
+                    shareUsed = true;
+                    return false;//The rest goes on the next pass, after the other connections had their turn
+                }
+
+                long sent = file.transferTo(position, Math.min(end - position, budget), channel);
+
+                if (sent == 0) {
+                    if (file.size() < end) {
+                        throw new IOException("Blob was truncated while it was being sent");
+                    }
+                    return false;
+                }
+                position += sent;
+                budget -= sent;
+            }
+            close();
+            return true;
+        }
+
+        /**-------------------------------------------------------------------------------------------------------------
+         |Method: isShareUsed
+         |Abstract: Whether the last sendTo() stopped because its share was used up while the channel could still take
+         |          more. Nothing will report such a channel writable again, so the caller must resume it itself
+         |Return: boolean, true if the share stopped it
+         \------------------------------------------------------------------------------------------------------------*/
+        boolean isShareUsed(){
+            return shareUsed;
+        }
+
+        void close(){
+            try {
+                file.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private final Path directory;
+    private final HashMap<String, Version> versions = new HashMap<String, Version>();
+    private ByteBuffer crcBuffer;//Allocated the first time a CRC32 is computed
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: BlobStore
+     |Abstract: Constructor for BlobStore object. Serves the regular files in the directory given
+     |Return: object BlobStore
+     \----------------------------------------------------------------------------------------------------------------*/
+    BlobStore(Path directory) throws IOException{
+        if (!Files.isDirectory(directory)) {
+            throw new IOException(directory + " is not a directory");
+        }
+        this.directory = directory.toRealPath();
+    }
+
+    Path getDirectory(){
+        return directory;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: scan
+     |Abstract: Computes the CRC32 of every file in the directory now, so no request waits for it. Files added or
+     |          changed later get theirs computed on their first request
+     |Return: int, number of files scanned
+     \----------------------------------------------------------------------------------------------------------------*/
+    int scan() throws IOException{
+        int files = 0;
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                Blob blob = open(entry.getFileName().toString());
+
+                if (blob != null) {
+                    blob.transfer.close();
+                    files++;
+                }
+            }
+        }
+        return files;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     | A blob opened for one request: its length and CRC32, for the BLOB frame, and the transfer of its bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    static final class Blob {
+        final long size;
+        final int crc;
+        final Transfer transfer;
+
+        Blob(long size, int crc, Transfer transfer){
+            this.size = size;
+            this.crc = crc;
+            this.transfer = transfer;
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: open
+     |Abstract: Opens the named blob and looks up the CRC32 of its current version, computing it if the file is new or
+     |          has changed since. The caller sends or closes the transfer
+     |Return: Blob, null if the name is not a plain file name or no such regular file exists
+     \----------------------------------------------------------------------------------------------------------------*/
+    Blob open(String name) throws IOException{
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || (name.indexOf('/') >= 0) ||
+                (name.indexOf('\\') >= 0) || (name.indexOf('\0') >= 0)) {
+            return null;
+        }
+
+        Path file = directory.resolve(name);
+        FileChannel channel;
+        BasicFileAttributes attributes;
+
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException ioe) {
+            return null;//Missing, a symbolic link or unreadable
+        }
+
+        if (!attributes.isRegularFile()) {
+            channel.close();
+            return null;
+        }
+
+        Version version = versions.get(name);
+        if ((version == null) || !version.matches(attributes)) {
+            version = new Version(attributes, crc(channel, attributes.size()));
+            versions.put(name, version);
+        }
+
+        return new Blob(version.size, version.crc, new Transfer(channel, version.size));
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: crc
+     |Abstract: CRC32 of the first size bytes of the file, read through a direct buffer so the bytes stay off the heap
+     |Return: int, CRC32 value
+     \----------------------------------------------------------------------------------------------------------------*/
+    private int crc(FileChannel channel, long size) throws IOException{
+        if (crcBuffer == null) {
+            crcBuffer = ByteBuffer.allocateDirect(CRC_BUFFER_SIZE);
+        }
+
+        CRC32 crc32 = new CRC32();
+        long position = 0;
+
+        while (position < size) {
+            crcBuffer.clear();
+            crcBuffer.limit((int) Math.min(crcBuffer.capacity(), size - position));
+
+            int bytesRead = channel.read(crcBuffer, position);
+            if (bytesRead < 0) {
+                throw new IOException("Blob was truncated while its CRC32 was computed");
+            }
+
+            crcBuffer.flip();
+            crc32.update(crcBuffer);
+            position += bytesRead;
+        }
+        return (int) crc32.getValue();
+    }
+}
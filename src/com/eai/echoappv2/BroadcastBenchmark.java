@@ -0,0 +1,168 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures broadcast fan-out. A quiet Echo Server in this process gets many
+ | recipients over in-process loopback connections, so ten thousand of them need no file
+ | descriptors, and a sender over TCP keeps a window of BROADCAST requests to every client in
+ | flight. One thread reads every recipient as fast as it can, except a share of slow recipients
+ | that never read. The broadcast and delivery rates are printed along with how many deliveries
+ | to the slow recipients were dropped, and the run checks that every other recipient got every
+ | broadcast
+ |
+ | Usage: BroadcastBenchmark [recipients] [broadcasts] [payloadBytes] [percentSlow] [maxPushBacklog]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+
+public class BroadcastBenchmark {
+
+    private static final int RING_CAPACITY = 8192;//Bytes each way per loopback connection
+    private static final int WINDOW = 32;//Broadcasts in flight
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of BroadcastBenchmark class. Connects the recipients, runs the broadcasts
+     |          and prints the rates
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int recipients = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int broadcasts = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int payloadBytes = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        int percentSlow = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+        int maxPushBacklog = (args.length > 4) ? Integer.parseInt(args[4]) : 64 * 1024;
+
+        byte[] message = new byte[payloadBytes];
+        Arrays.fill(message, (byte) 'x');
+        byte[] payload = MessageFormatter.encodeBroadcast("", message);
+        int frameLength = MessageFormatter.HEADER_LENGTH + payload.length + MessageFormatter.CRC_LENGTH;
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        EchoServer server = new EchoServer(loopback, 0);
+        server.setVerbose(false);
+        server.setMaxPushBacklog(maxPushBacklog);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        final LoopbackChannel[] fast = new LoopbackChannel[recipients - recipients * percentSlow / 100];
+        LoopbackChannel[] slow = new LoopbackChannel[recipients - fast.length];
+        for (int i = 0; i < recipients; i++) {
+            LoopbackChannel channel = server.openLoopbackConnection(RING_CAPACITY);
+
+            if (i < fast.length) {
+                fast[i] = channel;
+            }
+            else {
+                slow[i - fast.length] = channel;
+            }
+        }
+
+        AsyncEchoClient sender = new AsyncEchoClient(Collections.singletonList(new InetSocketAddress(loopback,
+                server.getPort())), 1, AsyncEchoClient.DEFAULT_REQUEST_TIMEOUT_MS, AsyncEchoClient.DEFAULT_BATCH_BYTES);
+        sender.send(MessageFormatter.TYPE_NOTHING, "connect").get();
+        while (server.getConnectionCount() < recipients + 1) {
+            Thread.sleep(10);//Loopback connections join the table on the loop's next pass
+        }
+
+        final long expected = (long) broadcasts * frameLength;
+        final long[] received = new long[fast.length];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                drain(fast, received, expected);
+            }
+        }, "Recipients");
+
+        System.out.println("recipients=" + recipients + " slow=" + slow.length + " broadcasts=" + broadcasts +
+                " payload=" + payloadBytes + "B maxPushBacklog=" + maxPushBacklog);
+
+        long start = System.nanoTime();
+        reader.start();
+
+        ArrayDeque<CompletableFuture<EchoResponse>> window = new ArrayDeque<CompletableFuture<EchoResponse>>();
+        for (int i = 0; i < broadcasts; i++) {
+            if (window.size() == WINDOW) {
+                window.pollFirst().get();
+            }
+            window.addLast(sender.send(MessageFormatter.TYPE_BROADCAST, payload));
+        }
+        while (!window.isEmpty()) {
+            window.pollFirst().get();
+        }
+        reader.join(60000);//Gives up on recipients that lost a broadcast
+        reader.interrupt();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int complete = 0;
+        for (long bytes : received) {
+            if (bytes == expected) {
+                complete++;
+            }
+        }
+
+        System.out.println(String.format("%.0f broadcasts/s  %,.0f deliveries/s  %,d dropped for slow recipients",
+                broadcasts / seconds, server.getDeliveryCount() / seconds, server.getDroppedDeliveryCount()));
+        System.out.println(String.format("%d of %d reading recipients got every broadcast", complete, fast.length));
+
+        sender.close();
+        serverThread.interrupt();
+        serverThread.join();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: drain
+     |Abstract: Reads every channel in turn, counting the bytes each has received, until each has
+     |          received the number of bytes expected
+     |Return: void, fills the received array
+     \------------------------------------------------------------------------------------------------*/
+    private static void drain(LoopbackChannel[] channels, long[] received, long expected){
+        ByteBuffer buffer = ByteBuffer.allocate(RING_CAPACITY);
+        int done = 0;
+
+        try {
+            while (done < channels.length) {
+                for (int i = 0; i < channels.length; i++) {
+                    if ((received[i] < expected) && (channels[i].available() > 0)) {
+                        buffer.clear();
+                        received[i] += channels[i].read(buffer);
+
+                        if (received[i] == expected) {
+                            done++;
+                        }
+                    }
+                }
+                Thread.yield();
+                if (Thread.interrupted()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class keeps a bounded number of same sized ByteBuffers for reuse, so short lived
+ | connections do not allocate(and the collector does not have to free) a set of large buffers
+ | each. Buffers past the bound are simply dropped. Safe to use from any thread
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+class BufferPool {
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: BufferPool
+     |Abstract: Constructor for BufferPool object. Buffers are allocated on demand; at most maxPooled released buffers
+     |          are kept
+     |Return: object BufferPool
+     \----------------------------------------------------------------------------------------------------------------*/
+    BufferPool(int bufferSize, boolean direct, int maxPooled){
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize(){
+        return bufferSize;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: acquire
+     |Abstract: Takes a buffer from the pool, or allocates a new one if the pool is empty
+     |Return: ByteBuffer, a cleared buffer of bufferSize bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: release
+     |Abstract: Returns a buffer taken from this pool. The caller must not use it afterwards
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void release(ByteBuffer buffer){
+        if ((buffer == null) || (buffer.capacity() != bufferSize) || (buffer.isDirect() != direct)) {
+            return;//Not one of ours
+        }
+
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        }
+        else {
+            pooled.decrementAndGet();//Pool is full, let the collector have it
+        }
+    }
+}
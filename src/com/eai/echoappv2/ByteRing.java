@@ -0,0 +1,140 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is a fixed size ring buffer of bytes for exactly one writing thread and
+ | one reading thread. Neither side ever blocks or locks: a write takes as many bytes as there is
+ | room for and a read returns as many as are available, like a non-blocking channel
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Writes from a byte array
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+class ByteRing {
+
+    private final byte[] data;
+    private final int mask;//Capacity is a power of two so positions wrap with a mask instead of a division
+    private final AtomicLong head = new AtomicLong();//Total bytes ever read. Written by the reader only
+    private final AtomicLong tail = new AtomicLong();//Total bytes ever written. Written by the writer only
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: ByteRing
+     |Abstract: Constructor for ByteRing object. The capacity is rounded up to the next power of two
+     |Return: object ByteRing
+     \----------------------------------------------------------------------------------------------------------------*/
+    ByteRing(int capacity){
+        if ((capacity < 1) || (capacity > (1 << 30))){
+            throw new IllegalArgumentException("Ring capacity must be between 1 and 2^30 bytes");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity){
+            size <<= 1;
+        }
+        data = new byte[size];
+        mask = size - 1;
+    }
+
+    int capacity(){
+        return data.length;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: available
+     |Abstract: Number of bytes written and not yet read. Exact on the reading thread, a lower bound elsewhere
+     |Return: int, readable bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    int available(){
+        return (int) (tail.get() - head.get());
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Copies as many bytes from the source buffer as there is room for, in at most two pieces when the copy
+     |          wraps around the end of the array, then publishes them to the reader
+     |Return: int, bytes copied, 0 if the ring is full
+     \----------------------------------------------------------------------------------------------------------------*/
+    int write(ByteBuffer src){
+        long t = tail.get();
+        int free = data.length - (int) (t - head.get());
+        int n = Math.min(free, src.remaining());
+
+        if (n == 0){
+            return 0;
+        }
+
+        int index = (int) t & mask;
+        int first = Math.min(n, data.length - index);//Bytes up to the end of the array
+
+        src.get(data, index, first);
+        src.get(data, 0, n - first);
+
+        tail.lazySet(t + n);//Ordered store: the bytes above are visible before the new tail
+        return n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Same as write(ByteBuffer) for a byte array, without wrapping it in a buffer first
+     |Return: int, bytes copied, 0 if the ring is full
+     \----------------------------------------------------------------------------------------------------------------*/
+    int write(byte[] src, int offset, int length){
+        long t = tail.get();
+        int free = data.length - (int) (t - head.get());
+        int n = Math.min(free, length);
+
+        if (n == 0){
+            return 0;
+        }
+
+        int index = (int) t & mask;
+        int first = Math.min(n, data.length - index);
+
+        System.arraycopy(src, offset, data, index, first);
+        System.arraycopy(src, offset + first, data, 0, n - first);
+
+        tail.lazySet(t + n);
+        return n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Copies as many available bytes as fit into the destination buffer, then releases the space to the writer
+     |Return: int, bytes copied, 0 if the ring is empty
+     \----------------------------------------------------------------------------------------------------------------*/
+    int read(ByteBuffer dst){
+        long h = head.get();
+        int n = Math.min((int) (tail.get() - h), dst.remaining());
+
+        if (n == 0){
+            return 0;
+        }
+
+        int index = (int) h & mask;
+        int first = Math.min(n, data.length - index);
+
+        dst.put(data, index, first);
+        dst.put(data, 0, n - first);
+
+        head.lazySet(h + n);
+        return n;
+    }
+}
@@ -0,0 +1,395 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class sends a capture made by TrafficCapture to an Echo Server again, so the
+ | same traffic can be run against different builds and the results compared. Each connection in
+ | the capture gets its own connection, and its frames are sent exactly as they were received, in
+ | the same order. The pace can be the original one, the original scaled by a factor, or as fast
+ | as the server answers. Latency is measured from when each frame was due to be sent, not when it
+ | was actually sent, so a server that falls behind is not hidden by the replay slowing down with
+ | it. The results can be saved and compared against the results of an earlier run
+ |
+ | Usage: CaptureReplay <capture> <host> <port> [original|max|speedFactor] [results] [baseline]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class CaptureReplay {
+
+    private static final int MAX_SPEED_WINDOW = 64;//Requests in flight per connection when replaying at max speed
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(10);//Gives up after this long without progress
+    private static final long SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);//Closer than this, wait without select()
+
+    private static final String[] RESULT_KEYS = {"mean", "p50", "p90", "p99", "p99.9", "max"};
+
+    //The capture, one entry per frame in the order they were received
+    private final long[] times;
+    private final long[] connectionIds;
+    private final byte[][] frames;
+
+    private final HashMap<Long, ReplayConnection> connections = new HashMap<Long, ReplayConnection>();
+    private final LatencyRecorder recorder;
+    private int responses;
+    private int errors;//ERROR and BUSY responses
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Class: ReplayConnection
+     |Abstract: One captured connection being replayed: its socket, what is waiting to be sent and, for each request sent
+     |          and not yet answered, the time its latency is measured from
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static class ReplayConnection {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer outbound = ByteBuffer.allocate(BUFFER_SIZE);//Write mode
+        ByteBuffer inbound = ByteBuffer.allocate(BUFFER_SIZE);//Write mode
+        ArrayDeque<Long> pending = new ArrayDeque<Long>();
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of CaptureReplay class. Replays the capture, prints the latency distribution,
+     |          saves it if a results file is given and compares it with a baseline results file if one
+     |          is given. A speed factor of 2 replays twice as fast as the capture was recorded
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        if (args.length < 3) {
+            System.out.println("Usage: CaptureReplay <capture> <host> <port> [original|max|speedFactor] [results] " +
+                    "[baseline]");
+            return;
+        }
+
+        String mode = (args.length > 3) ? args[3] : "original";
+        double speed = mode.equals("max") ? 0 : mode.equals("original") ? 1 : Double.parseDouble(mode);
+
+        if (speed < 0) {
+            throw new IllegalArgumentException("The speed factor must be positive");
+        }
+
+        CaptureReplay replay = load(Paths.get(args[0]));
+        System.out.println("Replaying " + replay.frames.length + " frames on " + replay.countConnections() +
+                " connections, speed " + mode);
+
+        LatencyRecorder result = replay.run(new InetSocketAddress(args[1], Integer.parseInt(args[2])), speed);
+
+        System.out.println("replay " + result.summary());
+        if (replay.errors > 0) {
+            System.out.println(replay.errors + " requests were answered with ERROR or BUSY");
+        }
+
+        Properties properties = toProperties(result, mode);
+        if (args.length > 4) {
+            OutputStream out = Files.newOutputStream(Paths.get(args[4]));
+            try {
+                properties.store(out, "CaptureReplay results for " + args[0] + ", latencies in ns");
+            } finally {
+                out.close();
+            }
+        }
+        if (args.length > 5) {
+            compare(loadProperties(Paths.get(args[5])), properties);
+        }
+    }
+
+    private CaptureReplay(long[] times, long[] connectionIds, byte[][] frames){
+        this.times = times;
+        this.connectionIds = connectionIds;
+        this.frames = frames;
+        recorder = new LatencyRecorder(frames.length);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: load
+     |Abstract: Reads a whole capture file into memory. A record cut short at the end of the file(the
+     |          server stopped while writing it) is ignored
+     |Return: CaptureReplay, ready to run
+     \------------------------------------------------------------------------------------------------*/
+    static CaptureReplay load(Path file) throws IOException{
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+
+        if ((buffer.remaining() < TrafficCapture.FILE_HEADER_LENGTH) || (buffer.getLong() != TrafficCapture.MAGIC)) {
+            throw new IOException(file + " is not an Echo App capture file");
+        }
+        buffer.getLong();//Start time, for people reading the file
+
+        ArrayList<long[]> records = new ArrayList<long[]>();
+        ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+        while (buffer.remaining() >= TrafficCapture.RECORD_HEADER_LENGTH) {
+            long time = buffer.getLong();
+            long connectionId = buffer.getLong();
+            int length = buffer.getShort() & 0xFFFF;
+
+            if (buffer.remaining() < length) {
+                break;
+            }
+
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+
+            records.add(new long[] {time, connectionId});
+            frames.add(frame);
+        }
+
+        long[] times = new long[records.size()];
+        long[] connectionIds = new long[records.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = records.get(i)[0];
+            connectionIds[i] = records.get(i)[1];
+        }
+        return new CaptureReplay(times, connectionIds, frames.toArray(new byte[frames.size()][]));
+    }
+
+    private int countConnections(){
+        HashMap<Long, Boolean> seen = new HashMap<Long, Boolean>();
+
+        for (int i = 0; i < connectionIds.length; i++) {
+            seen.put(connectionIds[i], Boolean.TRUE);
+        }
+        return seen.size();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Connects once per captured connection and replays every frame from a single thread.
+     |          With a speed above 0, frame i is due speed times sooner than in the capture and its
+     |          latency runs from when it was due. With a speed of 0 each connection sends as soon as
+     |          it has fewer than MAX_SPEED_WINDOW requests unanswered, the next frame in capture order
+     |          waiting for its own connection if needed, and latency runs from when a frame was queued
+     |Return: LatencyRecorder, one sample per response
+     \------------------------------------------------------------------------------------------------*/
+    LatencyRecorder run(InetSocketAddress address, double speed) throws IOException{
+        Selector selector = Selector.open();
+
+        try {
+            for (int i = 0; i < connectionIds.length; i++) {
+                if (!connections.containsKey(connectionIds[i])) {
+                    ReplayConnection conn = new ReplayConnection();
+                    conn.channel = SocketChannel.open(address);
+                    conn.channel.socket().setTcpNoDelay(true);
+                    conn.channel.configureBlocking(false);
+                    conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                    connections.put(connectionIds[i], conn);
+                }
+            }
+
+            int next = 0;//Next frame to queue
+            long start = System.nanoTime();
+            long lastProgress = start;
+
+            while (responses < frames.length) {
+                long now = System.nanoTime();
+
+                //Queue every frame that is due and fits
+                while (next < frames.length) {
+                    ReplayConnection conn = connections.get(connectionIds[next]);
+                    long due = (speed > 0) ? start + (long) (times[next] / speed) : now;
+
+                    if ((due > now) || (conn.outbound.remaining() < frames[next].length) ||
+                            ((speed == 0) && (conn.pending.size() >= MAX_SPEED_WINDOW))) {
+                        break;
+                    }
+
+                    conn.outbound.put(frames[next]);
+                    conn.pending.addLast(due);
+                    next++;
+                    send(conn);
+                    lastProgress = now;
+                }
+
+                //Wait for responses, but not past the next frame's due time
+                long wait = STALL_NANOS;
+                if ((next < frames.length) && (speed > 0)) {
+                    wait = start + (long) (times[next] / speed) - System.nanoTime();
+                }
+
+                int ready;
+                if (wait <= SPIN_NANOS) {
+                    ready = selector.selectNow();
+                    if ((ready == 0) && (wait > 0)) {
+                        LockSupport.parkNanos(Math.min(wait, 50000));
+                    }
+                }
+                else {
+                    ready = selector.select(TimeUnit.NANOSECONDS.toMillis(wait - SPIN_NANOS) + 1);
+                }
+
+                if (ready > 0) {
+                    lastProgress = System.nanoTime();
+                }
+                else if ((wait <= 0) || (next == frames.length) || (speed == 0)) {
+                    if (System.nanoTime() - lastProgress >= STALL_NANOS) {
+                        break;//Waiting on the server, not on a gap in the capture, and it has stopped answering
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ReplayConnection conn = (ReplayConnection) key.attachment();
+
+                    if (key.isWritable()) {
+                        send(conn);
+                    }
+                    if (key.isReadable()) {
+                        receive(conn);
+                    }
+                }
+            }
+
+            if (responses < frames.length) {
+                System.out.println("Stopped after " + TimeUnit.NANOSECONDS.toSeconds(STALL_NANOS) +
+                        "s without a response, " + (frames.length - responses) + " requests unanswered");
+            }
+        } finally {
+            for (ReplayConnection conn : connections.values()) {
+                conn.channel.close();
+            }
+            selector.close();
+        }
+        return recorder;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: send
+     |Abstract: Writes as much of the connection's queued bytes as the socket takes and asks for
+     |          OP_WRITE only while some are left
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    private void send(ReplayConnection conn) throws IOException{
+        conn.outbound.flip();
+        conn.channel.write(conn.outbound);
+        conn.outbound.compact();
+
+        conn.key.interestOps((conn.outbound.position() > 0) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: receive
+     |Abstract: Reads what the server sent and matches each complete response, in order, to the oldest
+     |          request unanswered on the connection
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    private void receive(ReplayConnection conn) throws IOException{
+        if (conn.channel.read(conn.inbound) < 0) {
+            throw new IOException("The Echo Server closed a connection with " + conn.pending.size() +
+                    " requests unanswered");
+        }
+
+        long now = System.nanoTime();
+        conn.inbound.flip();
+
+        while (conn.inbound.remaining() >= MessageFormatter.HEADER_LENGTH) {
+            int position = conn.inbound.position();
+            int type = conn.inbound.getShort(position) & 0xFFFF;
+            int frameLength = MessageFormatter.HEADER_LENGTH + (conn.inbound.getShort(position + 2) & 0xFFFF) +
+                    MessageFormatter.CRC_LENGTH;
+
+            if (conn.inbound.remaining() < frameLength) {
+                break;
+            }
+            conn.inbound.position(position + frameLength);
+
+            Long due = conn.pending.pollFirst();
+            if (due != null) {
+                recorder.record(now - due);
+            }
+            if ((type == MessageFormatter.TYPE_ERROR) || (type == MessageFormatter.TYPE_BUSY)) {
+                errors++;
+            }
+            responses++;
+        }
+        conn.inbound.compact();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: toProperties
+     |Abstract: The results of a run in the form saved to a results file
+     |Return: Properties, the mode, the sample count and the RESULT_KEYS latencies in ns
+     \------------------------------------------------------------------------------------------------*/
+    static Properties toProperties(LatencyRecorder result, String mode){
+        Properties properties = new Properties();
+
+        properties.setProperty("mode", mode);
+        properties.setProperty("n", Integer.toString(result.count()));
+        properties.setProperty("mean", Long.toString((long) result.mean()));
+        properties.setProperty("p50", Long.toString(result.percentile(50)));
+        properties.setProperty("p90", Long.toString(result.percentile(90)));
+        properties.setProperty("p99", Long.toString(result.percentile(99)));
+        properties.setProperty("p99.9", Long.toString(result.percentile(99.9)));
+        properties.setProperty("max", Long.toString(result.percentile(100)));
+        return properties;
+    }
+
+    private static Properties loadProperties(Path file) throws IOException{
+        Properties properties = new Properties();
+        InputStream in = Files.newInputStream(file);
+
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: compare
+     |Abstract: Prints each latency of the baseline run next to this run's and the change in percent.
+     |          Runs replayed at different speeds are compared anyway but a warning is printed
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    static void compare(Properties baseline, Properties current){
+        if (!current.getProperty("mode").equals(baseline.getProperty("mode"))) {
+            System.out.println("Warning: the baseline was replayed at speed " + baseline.getProperty("mode"));
+        }
+
+        System.out.println(String.format("%-6s %12s %12s %8s", "", "baseline us", "this run us", "change"));
+        for (String key : RESULT_KEYS) {
+            long before = Long.parseLong(baseline.getProperty(key, "0"));
+            long after = Long.parseLong(current.getProperty(key, "0"));
+            String change = (before == 0) ? "n/a" : String.format("%+.1f%%", 100.0 * (after - before) / before);
+
+            System.out.println(String.format("%-6s %12.2f %12.2f %8s", key, before / 1e3, after / 1e3, change));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class holds the state the AsyncEchoClient keeps for one pooled connection to an
+ | Echo Server. Requests move from the unsent queue into the outbound buffer and from there into
+ | the in flight queue, which is matched in order against the responses read back. Over TLS the
+ | requests and responses pass through a TlsChannel wrapping the socket
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - TLS connections
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+
+class ClientConnection {
+
+    private final SocketAddress serverAddress;
+    private final SocketChannel socketChannel;
+    private final TlsChannel tlsChannel;//Null for a plain connection
+    private SelectionKey key;
+    private final ByteBuffer outbound;//Frames batched for the next write, kept in write mode
+    private final ByteBuffer inbound;//Responses read so far, kept in write mode
+    private final ArrayDeque<AsyncEchoClient.PendingRequest> unsent = new ArrayDeque<AsyncEchoClient.PendingRequest>();
+    private final ArrayDeque<AsyncEchoClient.PendingRequest> inFlight = new ArrayDeque<AsyncEchoClient.PendingRequest>();
+    private boolean connected;
+    private boolean dirty;//Has unsent requests added during the current loop iteration
+    private volatile boolean closed;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: ClientConnection
+     |Abstract: Constructor for ClientConnection object. The socket channel must already be non-blocking. The TLS
+     |          channel wrapping it is null unless the server is reached over TLS
+     |Return: object ClientConnection
+     \----------------------------------------------------------------------------------------------------------------*/
+    ClientConnection(SocketAddress serverAddress, SocketChannel socketChannel, TlsChannel tlsChannel, int batchBytes){
+        this.serverAddress = serverAddress;
+        this.socketChannel = socketChannel;
+        this.tlsChannel = tlsChannel;
+        outbound = ByteBuffer.allocateDirect(batchBytes);
+        inbound = ByteBuffer.allocateDirect(2 * MessageFormatter.MAX_FRAME_LENGTH);
+    }
+
+    SocketAddress getServerAddress(){
+        return serverAddress;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getChannel
+     |Abstract: Channel requests are written to and responses read from: the TLS channel if there is one, otherwise the
+     |          socket itself
+     |Return: ByteChannel, the connection's data channel
+     \----------------------------------------------------------------------------------------------------------------*/
+    ByteChannel getChannel(){
+        return (tlsChannel != null) ? tlsChannel : socketChannel;
+    }
+
+    SocketChannel getSocketChannel(){
+        return socketChannel;
+    }
+
+    TlsChannel getTlsChannel(){
+        return tlsChannel;
+    }
+
+    SelectionKey getKey(){
+        return key;
+    }
+
+    void setKey(SelectionKey key){
+        this.key = key;
+    }
+
+    ByteBuffer getOutbound(){
+        return outbound;
+    }
+
+    ByteBuffer getInbound(){
+        return inbound;
+    }
+
+    ArrayDeque<AsyncEchoClient.PendingRequest> getUnsent(){
+        return unsent;
+    }
+
+    ArrayDeque<AsyncEchoClient.PendingRequest> getInFlight(){
+        return inFlight;
+    }
+
+    boolean isConnected(){
+        return connected;
+    }
+
+    void setConnected(boolean connected){
+        this.connected = connected;
+    }
+
+    boolean isDirty(){
+        return dirty;
+    }
+
+    void setDirty(boolean dirty){
+        this.dirty = dirty;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isClosed
+     |Abstract: Read by caller threads choosing a connection from the pool, written only by the I/O thread
+     |Return: boolean, true once the connection failed or the client was closed
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean isClosed(){
+        return closed;
+    }
+
+    void setClosed(){
+        closed = true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: hasPendingWrites
+     |Abstract: Checks for requests not yet handed to the socket, either still queued or batched in the buffer
+     |Return: boolean, true if anything is left to write
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean hasPendingWrites(){
+        return (outbound.position() > 0) || !unsent.isEmpty();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: needsWriteInterest
+     |Abstract: Checks whether the I/O thread must wait for the socket to become writable. While a TLS handshake is
+     |          running requests cannot be written at all, so they wait for the handshake to finish on a read instead
+     |Return: boolean, true if the key should include OP_WRITE
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean needsWriteInterest(){
+        if (tlsChannel != null) {
+            return tlsChannel.hasPendingOutput() || (hasPendingWrites() && tlsChannel.isHandshakeComplete());
+        }
+        return hasPendingWrites();
+    }
+}
@@ -0,0 +1,623 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class holds the state the Echo Server keeps for one connected client. It is
+ | attached to the client's SelectionKey so that partially received frames and responses that
+ | could not be written in one go survive between Selector wake ups. The channel is a SocketChannel,
+ | a TlsChannel wrapping one, or the server end of an in-process LoopbackChannel, a
+ | SharedMemoryChannel or an EpollChannel, which have no key
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - TLS connections
+ 1.2  - 10192026 - Connection IDs
+ 1.3  - 10192026 - Queued responses written together in gathering writes
+ 1.4  - 10192026 - Receive buffer borrowed from a pool, sized from recent reads and returned while idle
+ 1.5  - 10192026 - Broadcast group membership
+ 1.6  - 10192026 - Responses owed by relayed requests, kept in request order
+ 1.7  - 10192026 - Blobs sent from their files after the frames that describe them
+ 1.8  - 10192026 - Responses encoded into one borrowed buffer instead of a new buffer each
+ 1.9  - 10192026 - Frames left in the receive buffer once the read budget of a pass is used up
+ 1.10 - 10192026 - Protocol version, checksum and largest PAYLOAD negotiated with a HELLO
+ 1.11 - 10192026 - Responses encoded from a PAYLOAD held in a buffer, e.g. a value of the key-value store
+ 1.12 - 10192026 - Queued state readable by the event loop, so a queued connection is not read twice in a pass
+ 1.13 - 10192026 - Epoll sockets not emptied by a read are read again without an event
+ 1.14 - 10192026 - Writes that stopped at a blob's share, not at a full channel, are told apart
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+class Connection {
+
+    private static final int SHRINK_AFTER = 16;//Small reads in a row before the next buffer is a size class smaller
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);//Loopback connections are created on client threads
+
+    private final long id = NEXT_ID.getAndIncrement();
+    private final ByteChannel channel;
+    private final SelectionKey key;
+    private final String description;
+    private final AtomicBoolean ready = new AtomicBoolean();//Queued for the next pass of the loop outside the Selector
+
+    //Settings agreed with a HELLO, version 1 of the ICD until then
+    private int protocolVersion = 1;
+    private boolean crc32c;//Frames in both directions carry a CRC32C in place of the CRC32
+    private int maxPayload = MessageFormatter.MAX_PAYLOAD_LENGTH;//Largest PAYLOAD the client takes
+
+    //Receive buffer, borrowed from the event loop's ReceiveBufferPool only while a partial frame is kept in it
+    private ByteBuffer inbound;
+    private int inboundClass;//Size class of the next buffer borrowed, adapted to the reads seen
+    private int smallReads;//Reads in a row that used under a quarter of the buffer
+    private boolean framesDeferred;//Whole frames left in the buffer for the next pass, see EchoServer.setReadBudget()
+
+    //Responses waiting to be sent, oldest at outboundHead, in a circular array so they can be handed to one gathering
+    // write without copying them into another array
+    private ByteBuffer[] outbound = new ByteBuffer[16];
+    private int outboundHead;
+    private int outboundCount;
+    private int outboundBytes;//Bytes left to send in the queued responses
+    private ByteBuffer responses;//Borrowed while responses encoded into it wait in the queue, see queueResponse()
+    private ReceiveBufferPool responsePool;//Pool responses was borrowed from
+    private BlobStore.Transfer[] transfers = new BlobStore.Transfer[16];//Blob sent after the response at each index
+    private int transferCount;//Blobs queued or being sent
+    private boolean writeShareUsed;//The last writeOutbound() stopped at a blob's share with the channel still writable
+    private boolean flushQueued;//On the event loop's list of connections to flush at the end of the pass
+
+    private String group;//Broadcast group joined, null for none
+    private int groupIndex;//Index of this connection in its group's member list
+
+    //Responses owed to the client, oldest first, while any of them waits for a backend server(relay mode only)
+    private ArrayDeque<RelayUpstream.Slot> relaySlots;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: Connection
+     |Abstract: Constructor for Connection object. Binds the state to the client's channel, its key(null for a loopback
+     |          channel) and a description of the client for status messages
+     |Return: object Connection
+     \----------------------------------------------------------------------------------------------------------------*/
+    Connection(ByteChannel channel, SelectionKey key, String description){
+        this.channel = channel;
+        this.key = key;
+        this.description = description;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getId
+     |Abstract: Number identifying the connection for as long as the server runs, starting at 1. Used in captures and
+     |          diagnostics where the description alone may not be unique
+     |Return: long, connection ID
+     \----------------------------------------------------------------------------------------------------------------*/
+    long getId(){
+        return id;
+    }
+
+    ByteChannel getChannel(){
+        return channel;
+    }
+
+    String getDescription(){
+        return description;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: negotiate
+     |Abstract: Applies the settings the server answered a HELLO with to every frame after that answer
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void negotiate(int protocolVersion, boolean crc32c, int maxPayload){
+        this.protocolVersion = protocolVersion;
+        this.crc32c = crc32c;
+        this.maxPayload = maxPayload;
+    }
+
+    int getProtocolVersion(){
+        return protocolVersion;
+    }
+
+    boolean usesCrc32c(){
+        return crc32c;
+    }
+
+    int getMaxPayload(){
+        return maxPayload;
+    }
+
+    SelectionKey getKey(){
+        return key;
+    }
+
+    String getGroup(){
+        return group;
+    }
+
+    int getGroupIndex(){
+        return groupIndex;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: addRelaySlot
+     |Abstract: Reserves the client's next response. Responses the relay makes itself while a relayed one is still
+     |          outstanding are added already filled in, so the client gets them in the order of its requests
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void addRelaySlot(RelayUpstream.Slot slot){
+        if (relaySlots == null) {
+            relaySlots = new ArrayDeque<RelayUpstream.Slot>();
+        }
+        relaySlots.addLast(slot);
+    }
+
+    boolean hasRelaySlots(){
+        return (relaySlots != null) && !relaySlots.isEmpty();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: pollAnsweredSlot
+     |Abstract: Takes the oldest reserved response off the list if it has been filled in
+     |Return: RelayUpstream.Slot, null if there is none or the oldest is still waiting for its backend
+     \----------------------------------------------------------------------------------------------------------------*/
+    RelayUpstream.Slot pollAnsweredSlot(){
+        if (!hasRelaySlots() || (relaySlots.peekFirst().response == null)) {
+            return null;
+        }
+        return relaySlots.pollFirst();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setGroup
+     |Abstract: Records the broadcast group the connection is in and where it is in that group's member list. The event
+     |          loop keeps both up to date as members come and go
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void setGroup(String group, int groupIndex){
+        this.group = group;
+        this.groupIndex = groupIndex;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getInbound
+     |Abstract: Buffer the socket is read into, borrowed from the pool if the connection holds none. Left in write
+     |          mode(compacted) between reads so bytes of a frame that has not fully arrived are kept for the next read
+     |Return: ByteBuffer, the connection's receive buffer
+     \----------------------------------------------------------------------------------------------------------------*/
+    ByteBuffer getInbound(ReceiveBufferPool pool){
+        if (inbound == null) {
+            inbound = pool.acquire(inboundClass);
+        }
+        return inbound;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: growInbound
+     |Abstract: Called when a read filled the receive buffer, so the channel may hold more: moves what was read into a
+     |          buffer of the next size class, which later reads start with too
+     |Return: boolean, true if the buffer grew, false if it already is of the largest class
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean growInbound(ReceiveBufferPool pool){
+        int sizeClass = ReceiveBufferPool.classFor(inbound.capacity());
+
+        if (sizeClass == ReceiveBufferPool.LARGEST_CLASS) {
+            return false;
+        }
+
+        inboundClass = sizeClass + 1;
+        smallReads = 0;
+        inbound = pool.resize(inbound, inboundClass);
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: adaptInbound
+     |Abstract: Called after the frames of a read have been handled and the buffer compacted. SHRINK_AFTER reads in a
+     |          row using under a quarter of the buffer make the next one a size class smaller(reads that fill it grow
+     |          it straight away, see growInbound()); a partial frame too big for the buffer moves it to a class that
+     |          holds it. With no partial frame left the buffer goes back to the pool, otherwise it is kept, moved to
+     |          the new size if that holds what is left
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void adaptInbound(ReceiveBufferPool pool, int bytesRead, int partialFrameLength){
+        if (bytesRead >= inbound.capacity() / 4) {
+            smallReads = 0;
+        }
+        else if (++smallReads >= SHRINK_AFTER) {
+            inboundClass = Math.max(inboundClass - 1, 0);
+            smallReads = 0;
+        }
+
+        if (partialFrameLength > ReceiveBufferPool.SIZES[inboundClass]) {
+            inboundClass = ReceiveBufferPool.classFor(partialFrameLength);
+        }
+
+        if (inbound.position() == 0) {
+            releaseInbound(pool);//Idle until the next read
+        }
+        else if ((inbound.capacity() != ReceiveBufferPool.SIZES[inboundClass])
+                && (inbound.position() <= ReceiveBufferPool.SIZES[inboundClass])) {
+            inbound = pool.resize(inbound, inboundClass);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setFramesDeferred
+     |Abstract: Notes whether the last read stopped at the read budget with whole frames still in the receive buffer.
+     |          They are handled on the next pass even if the channel has nothing new to read
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void setFramesDeferred(boolean framesDeferred){
+        this.framesDeferred = framesDeferred;
+    }
+
+    boolean hasDeferredFrames(){
+        return framesDeferred;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: releaseInbound
+     |Abstract: Returns the receive buffer to the pool, dropping any partial frame in it, e.g. once the connection closes
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void releaseInbound(ReceiveBufferPool pool){
+        if (inbound != null) {
+            pool.release(inbound);
+            inbound = null;
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: queue
+     |Abstract: Adds an encoded response, ready to be written, behind any responses still waiting to be sent
+     |Return: void, modifies the outbound queue
+     \----------------------------------------------------------------------------------------------------------------*/
+    void queue(ByteBuffer frame){
+        queue(frame, null);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: queue
+     |Abstract: Adds an encoded response, ready to be written, behind any responses still waiting to be sent, with the
+     |          blob to send from its file once the response is sent, if any
+     |Return: void, modifies the outbound queue
+     \----------------------------------------------------------------------------------------------------------------*/
+    void queue(ByteBuffer frame, BlobStore.Transfer transfer){
+        if (outboundCount == outbound.length) {
+            //Full: unwrap into a twice as large array, oldest first
+            ByteBuffer[] larger = new ByteBuffer[outbound.length * 2];
+            BlobStore.Transfer[] largerTransfers = new BlobStore.Transfer[outbound.length * 2];
+            int first = outbound.length - outboundHead;
+
+            System.arraycopy(outbound, outboundHead, larger, 0, first);
+            System.arraycopy(outbound, 0, larger, first, outboundHead);
+            System.arraycopy(transfers, outboundHead, largerTransfers, 0, first);
+            System.arraycopy(transfers, 0, largerTransfers, first, outboundHead);
+            outbound = larger;
+            transfers = largerTransfers;
+            outboundHead = 0;
+        }
+
+        int tail = (outboundHead + outboundCount) & (outbound.length - 1);
+        outbound[tail] = frame;
+        transfers[tail] = transfer;
+        outboundCount++;
+        outboundBytes += frame.remaining();
+
+        if (transfer != null) {
+            transferCount++;
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: queueResponse
+     |Abstract: Encodes a response frame straight onto the end of the connection's response buffer, which is queued like
+     |          any frame and borrowed from the pool given while it has bytes to send, so a steady stream of responses
+     |          makes no new buffers. Appends only while the response buffer is the last thing queued, so responses
+     |          stay in order behind anything else queued, e.g. a broadcast
+     |Return: boolean, true if queued, false if the frame did not fit or the response buffer is not last in the queue,
+     |        for the caller to queue the frame in a buffer of its own
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean queueResponse(ReceiveBufferPool pool, int type, byte[] payload, int offset, int length){
+        int frameLength = MessageFormatter.HEADER_LENGTH + length + MessageFormatter.CRC_LENGTH;
+        boolean queued = (responses != null);
+        int start = reserveResponse(pool, frameLength);
+
+        if (start < 0) {
+            return false;
+        }
+        MessageFormatter.encodeFrame(type, payload, offset, length, responses, crc32c);
+        commitResponse(start, queued, frameLength);
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: queueResponse
+     |Abstract: Overload of queueResponse() taking the PAYLOAD from length bytes of a buffer at offset, copied straight
+     |          into the response buffer
+     |Return: boolean, true if queued, false for the caller to queue the frame in a buffer of its own
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean queueResponse(ReceiveBufferPool pool, int type, ByteBuffer payload, int offset, int length){
+        int frameLength = MessageFormatter.HEADER_LENGTH + length + MessageFormatter.CRC_LENGTH;
+        boolean queued = (responses != null);
+        int start = reserveResponse(pool, frameLength);
+
+        if (start < 0) {
+            return false;
+        }
+        MessageFormatter.encodeFrame(type, payload, offset, length, responses, crc32c);
+        commitResponse(start, queued, frameLength);
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: reserveResponse
+     |Abstract: Makes room for a frame at the end of the response buffer, borrowing it if none is queued, and leaves the
+     |          buffer positioned for the frame to be encoded after the bytes still to send
+     |Return: int, position of the first byte still to send, -1 if the frame cannot be appended
+     \----------------------------------------------------------------------------------------------------------------*/
+    private int reserveResponse(ReceiveBufferPool pool, int frameLength){
+        if (responses == null) {
+            responses = pool.acquire(ReceiveBufferPool.LARGEST_CLASS);//Holds any frame, and a few small ones
+            responsePool = pool;
+            responses.limit(0);//Read mode, nothing to send yet
+        }
+        else if (outbound[(outboundHead + outboundCount - 1) & (outbound.length - 1)] != responses) {
+            return -1;
+        }
+        else if (responses.capacity() - responses.limit() < frameLength) {
+            responses.compact();//Drop what was already sent
+            responses.flip();
+
+            if (responses.capacity() - responses.limit() < frameLength) {
+                return -1;
+            }
+        }
+
+        //Encode after the bytes still to send
+        int start = responses.position();
+        int end = responses.limit();
+        responses.limit(responses.capacity());
+        responses.position(end);
+        return start;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: commitResponse
+     |Abstract: Takes the frame just encoded into the bytes to send, queueing the response buffer if it was not already
+     |Return: void, modifies the outbound queue
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void commitResponse(int start, boolean queued, int frameLength){
+        responses.limit(responses.position());
+        responses.position(start);
+
+        if (queued) {
+            outboundBytes += frameLength;
+        }
+        else {
+            queue(responses);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: writeOutbound
+     |Abstract: Writes the queued responses to the channel, as many at a time as one gathering write takes(two writes if
+     |          the queue wraps around the end of its array), until all are sent or the channel takes no more. Fully
+     |          sent responses leave the queue. A gathering write stops at a response with a blob, whose file is then
+     |          transferred to the channel, resumed where it stopped on later calls, before the responses behind it.
+     |          See isWriteShareUsed() for a transfer that stopped with the channel still writable
+     |Return: int, number of gathering writes and transfers made
+     \----------------------------------------------------------------------------------------------------------------*/
+    int writeOutbound() throws IOException{
+        GatheringByteChannel gathering = (GatheringByteChannel) channel;//Every channel type the server uses gathers
+        int writes = 0;
+
+        writeShareUsed = false;
+
+        while (outboundCount > 0) {
+            if (!outbound[outboundHead].hasRemaining()) {
+                //Response sent, its blob not yet
+                boolean sent = transfers[outboundHead].sendTo(channel);
+                writes++;
+
+                if (!sent) {
+                    //Send buffer is full, the rest of the file waits until the channel is writable, or the call's
+                    // share is used up and the rest waits for the next pass
+                    writeShareUsed = transfers[outboundHead].isShareUsed();
+                    break;
+                }
+                transfers[outboundHead] = null;
+                transferCount--;
+                popOutbound();
+                continue;
+            }
+
+            int run = Math.min(outboundCount, outbound.length - outboundHead);//Contiguous part of the queue
+            if (transferCount > 0) {
+                for (int i = 0; i < run; i++) {
+                    if (transfers[outboundHead + i] != null) {
+                        run = i + 1;//Up to the first response with a blob, which must go out before the blob
+                        break;
+                    }
+                }
+            }
+
+            outboundBytes -= (int) gathering.write(outbound, outboundHead, run);
+            writes++;
+
+            int sent = 0;
+            while ((sent < run) && !outbound[outboundHead].hasRemaining() && (transfers[outboundHead] == null)) {
+                popOutbound();
+                sent++;
+            }
+
+            if ((sent < run) && outbound[outboundHead].hasRemaining()) {
+                break;//Send buffer is full, the rest waits until the channel is writable
+            }
+        }
+        return writes;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: popOutbound
+     |Abstract: Takes the fully sent frame at the head of the queue off it, giving the response buffer back to its pool
+     |          if that was it
+     |Return: void, modifies the outbound queue
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void popOutbound(){
+        if (outbound[outboundHead] == responses) {
+            responsePool.release(responses);
+            responses = null;
+            responsePool = null;
+        }
+        outbound[outboundHead] = null;
+        outboundHead = (outboundHead + 1) & (outbound.length - 1);
+        outboundCount--;
+    }
+
+    boolean hasPendingWrites(){
+        return outboundCount > 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isWriteShareUsed
+     |Abstract: Whether the last writeOutbound() stopped because a blob used up its share of the call while the channel
+     |          could still take more. A Selector keeps reporting such a key writable; a channel without a key, such as
+     |          an edge triggered epoll socket that never filled up, is not reported again and must be queued
+     |Return: boolean, true if the rest waits for the next pass rather than for room in the channel
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean isWriteShareUsed(){
+        return writeShareUsed;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getOutboundBytes
+     |Abstract: Bytes of queued responses not sent yet, compared against the cork threshold. Blobs, sent from their
+     |          files, are not counted
+     |Return: int, unsent bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    int getOutboundBytes(){
+        return outboundBytes;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: markFlushQueued
+     |Abstract: Flags the connection as listed for a flush at the end of the event loop's pass. Event loop only
+     |Return: boolean, true if it was not listed yet and must be listed now
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean markFlushQueued(){
+        if (flushQueued) {
+            return false;
+        }
+        flushQueued = true;
+        return true;
+    }
+
+    void clearFlushQueued(){
+        flushQueued = false;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: clearOutbound
+     |Abstract: Drops every queued response and closes the files of blobs not fully sent, e.g. once the connection is
+     |          closed
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void clearOutbound(){
+        if (transferCount > 0) {
+            for (int i = 0; i < transfers.length; i++) {
+                if (transfers[i] != null) {
+                    transfers[i].close();
+                    transfers[i] = null;
+                }
+            }
+            transferCount = 0;
+        }
+        if (responses != null) {
+            responsePool.release(responses);
+            responses = null;
+            responsePool = null;
+        }
+        Arrays.fill(outbound, null);
+        outboundHead = 0;
+        outboundCount = 0;
+        outboundBytes = 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: needsWriteInterest
+     |Abstract: Checks whether the event loop must wait for the socket to become writable. A TLS channel can hold
+     |          encrypted bytes of its own, and while its handshake is running it takes no responses at all, so waiting
+     |          for writability then would only spin
+     |Return: boolean, true if the key should include OP_WRITE
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean needsWriteInterest(){
+        if (channel instanceof TlsChannel) {
+            TlsChannel tls = (TlsChannel) channel;
+            return tls.hasPendingOutput() || (hasPendingWrites() && tls.isHandshakeComplete());
+        }
+        return hasPendingWrites();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: hasBufferedInput
+     |Abstract: Checks for received data the Selector will not report: bytes left in a loopback ring, which has no key,
+     |          records a TLS channel has already taken off the socket, or bytes an epoll socket still holds after a
+     |          read that filled the buffer, which its edge triggered transport does not report again
+     |Return: boolean, true if the connection must be read again without waiting for the Selector
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean hasBufferedInput(){
+        if (channel instanceof LoopbackChannel) {
+            return ((LoopbackChannel) channel).available() > 0;
+        }
+        if (channel instanceof TlsChannel) {
+            return ((TlsChannel) channel).hasBufferedInput();
+        }
+        if (channel instanceof EpollChannel) {
+            return !((EpollChannel) channel).isDrained();
+        }
+        return false;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: markReady
+     |Abstract: Flags a connection as queued for the event loop outside the Selector. Called from any thread
+     |Return: boolean, true if the connection was not already queued and must be queued now
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean markReady(){
+        return ready.compareAndSet(false, true);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: clearReady
+     |Abstract: Called by the event loop before servicing a queued connection, so activity from then on queues it again
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void clearReady(){
+        ready.set(false);
+    }
+
+    boolean isReady(){
+        return ready.get();
+    }
+}
@@ -0,0 +1,199 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures how fast an Echo Server takes on new connections. For an accept
+ | batch of one, the old behaviour, and for the default batch, a quiet server is started in this
+ | process and put through two runs over TCP on localhost. In the churn run client threads
+ | connect, send one NOTHING request, wait for its response and close, over and over, for a fixed
+ | time. In the storm run one thread opens a burst of connections at once, as clients reconnecting
+ | after a deploy would, then sends a request on each and waits for every response. Accepts per
+ | second, accepts per OP_ACCEPT wakeup and the connect to response latency are printed for each
+ |
+ | Usage: ConnectionChurnBenchmark [clientThreads] [seconds] [stormConnections] [backlog]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class ConnectionChurnBenchmark {
+
+    private static final byte[] REQUEST = MessageFormatter.encodeFrame(MessageFormatter.TYPE_NOTHING,
+            "churn".getBytes());
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of ConnectionChurnBenchmark class. Runs the churn and the storm against a
+     |          server accepting one connection per wakeup, then against one accepting a batch
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int clientThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int stormConnections = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+        int backlog = (args.length > 3) ? Integer.parseInt(args[3]) : EchoServer.DEFAULT_BACKLOG;
+
+        System.out.println("clientThreads=" + clientThreads + " seconds=" + seconds + " stormConnections=" +
+                stormConnections + " backlog=" + backlog);
+
+        for (int batch : new int[] {1, EchoServer.DEFAULT_ACCEPT_BATCH}) {
+            EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0, backlog);
+            server.setVerbose(false);
+            server.setAcceptBatch(batch);
+
+            Thread serverThread = new Thread(server, "EchoServer");
+            serverThread.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+            churn(address, clientThreads, 1);//Warm up
+            System.out.println(String.format("batch=%-3d churn  %s", batch, measure(server, address, clientThreads,
+                    seconds, 0)));
+            System.out.println(String.format("batch=%-3d storm  %s", batch, measure(server, address, 0, 0,
+                    stormConnections)));
+
+            serverThread.interrupt();
+            serverThread.join();
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: Runs the churn if client threads are given, otherwise the storm, and reads the server's
+     |          accept counters around it
+     |Return: String, accepts per second and per wakeup and the latency summary
+     \------------------------------------------------------------------------------------------------*/
+    private static String measure(EchoServer server, InetSocketAddress address, int clientThreads, int seconds,
+            int stormConnections) throws Exception{
+        long acceptsBefore = server.getAcceptCount();
+        long wakeupsBefore = server.getAcceptWakeups();
+        long start = System.nanoTime();
+
+        LatencyRecorder recorder = (clientThreads > 0) ? churn(address, clientThreads, seconds)
+                : storm(address, stormConnections);
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long accepts = server.getAcceptCount() - acceptsBefore;
+        long wakeups = server.getAcceptWakeups() - wakeupsBefore;
+
+        return String.format("%8.0f accepts/s  %5.1f accepts/wakeup  connect to response %s", accepts / elapsed,
+                (double) accepts / Math.max(1, wakeups), recorder.summary());
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: churn
+     |Abstract: Client threads connect, make one request and close, over and over, for the time given
+     |Return: LatencyRecorder, time from the start of each connect to its response
+     \------------------------------------------------------------------------------------------------*/
+    private static LatencyRecorder churn(final InetSocketAddress address, int clientThreads, int seconds)
+            throws Exception{
+        final LatencyRecorder recorder = new LatencyRecorder(1 << 20);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong failures = new AtomicLong();
+        Thread[] threads = new Thread[clientThreads];
+
+        for (int i = 0; i < clientThreads; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    ByteBuffer response = ByteBuffer.allocate(MessageFormatter.MAX_FRAME_LENGTH);
+
+                    while (System.nanoTime() < deadline) {
+                        long begin = System.nanoTime();
+
+                        try (SocketChannel channel = SocketChannel.open(address)) {
+                            channel.write(ByteBuffer.wrap(REQUEST));
+                            readFrame(channel, response);
+                        } catch (IOException ioe) {
+                            failures.incrementAndGet();
+                            continue;
+                        }
+
+                        synchronized (recorder) {
+                            recorder.record(System.nanoTime() - begin);
+                        }
+                    }
+                }
+            }, "Churn-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " connections failed");
+        }
+        return recorder;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: storm
+     |Abstract: Opens the number of connections given one after the other without waiting for the
+     |          server, then makes one request on each, then reads every response and closes them
+     |Return: LatencyRecorder, time from the start of each connect to its response
+     \------------------------------------------------------------------------------------------------*/
+    private static LatencyRecorder storm(InetSocketAddress address, int connections) throws IOException{
+        LatencyRecorder recorder = new LatencyRecorder(connections);
+        SocketChannel[] channels = new SocketChannel[connections];
+        long[] begins = new long[connections];
+        ByteBuffer response = ByteBuffer.allocate(MessageFormatter.MAX_FRAME_LENGTH);
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                begins[i] = System.nanoTime();
+                channels[i] = SocketChannel.open(address);//Completes in the kernel once the server's queue has room
+            }
+            for (int i = 0; i < connections; i++) {
+                channels[i].write(ByteBuffer.wrap(REQUEST));
+            }
+            for (int i = 0; i < connections; i++) {
+                readFrame(channels[i], response);
+                recorder.record(System.nanoTime() - begins[i]);
+            }
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        return recorder;
+    }
+
+    private static void readFrame(SocketChannel channel, ByteBuffer buffer) throws IOException{
+        buffer.clear();
+        int frameLength = -1;
+
+        while ((frameLength == -1) || (buffer.position() < frameLength)) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            buffer.flip();
+            frameLength = MessageFormatter.frameLength(buffer);
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures the memory an Echo Server spends on mostly idle connections. A
+ | quiet Echo Server in this process is sent one echo request on each of many connections, and
+ | a small share of the connections is then left in the middle of a frame, as a slow client
+ | would. The receive buffer bytes the connections hold are reported per connection, next to what
+ | a fixed buffer of two maximum sized frames per connection would take, along with the growth
+ | of the heap per connection. The client sockets live in the same heap, so that last figure is
+ | an upper bound for the server. Each connection takes two file descriptors in this process, so
+ | the open file limit(ulimit -n) caps the count
+ |
+ | Usage: ConnectionFootprintBenchmark [connections] [percentMidFrame]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+
+public class ConnectionFootprintBenchmark {
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of ConnectionFootprintBenchmark class. Opens the connections, sends the
+     |          requests and prints the footprint per connection
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int percentMidFrame = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        EchoServer server = new EchoServer(loopback, 0);
+        server.setVerbose(false);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        InetSocketAddress address = new InetSocketAddress(loopback, server.getPort());
+        byte[] request = MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, "footprint".getBytes("UTF-8"));
+        byte[] partial = new byte[MessageFormatter.HEADER_LENGTH + 100];//Header promising more than is sent
+        System.arraycopy(MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, new byte[1000]), 0, partial, 0,
+                partial.length);
+
+        long heapBefore = usedHeap();
+        ArrayList<SocketChannel> clients = new ArrayList<SocketChannel>(connections);
+        ByteBuffer response = ByteBuffer.allocate(MessageFormatter.MAX_FRAME_LENGTH);
+
+        for (int i = 0; i < connections; i++) {
+            SocketChannel client = SocketChannel.open(address);
+            clients.add(client);
+
+            client.write(ByteBuffer.wrap(request));
+            response.clear();
+            while (response.position() < request.length) {
+                client.read(response);//Echo responses are as long as the request
+            }
+
+            if (i % 100 < percentMidFrame) {
+                client.write(ByteBuffer.wrap(partial));
+            }
+        }
+
+        Thread.sleep(500);//Lets the server read the partial frames
+        long heapAfter = usedHeap();
+
+        long held = server.getReceiveBufferBytes();
+        System.out.println("connections=" + connections + " midFrame=" + percentMidFrame + "%");
+        System.out.println(String.format("receive buffers held  %,d bytes, %.1f bytes/connection", held,
+                (double) held / connections));
+        System.out.println(String.format("fixed buffers would   %,d bytes, %d bytes/connection",
+                (long) connections * 2 * MessageFormatter.MAX_FRAME_LENGTH, 2 * MessageFormatter.MAX_FRAME_LENGTH));
+        System.out.println(String.format("receive buffers pooled %,d bytes, %d allocated in all",
+                server.getPooledReceiveBufferBytes(), server.getReceiveBufferAllocations()));
+        System.out.println(String.format("heap growth           %.0f bytes/connection(client and server)",
+                (double) (heapAfter - heapBefore) / connections));
+
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        serverThread.interrupt();
+        serverThread.join();
+    }
+
+    private static long usedHeap() throws InterruptedException{
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
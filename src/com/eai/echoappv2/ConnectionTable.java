@@ -0,0 +1,281 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class keeps the connections of one event loop by connection ID. IDs are kept
+ | as plain longs in an open addressing table with linear probing, so a lookup is a multiply and
+ | a few array reads, and no Long or map entry object is made per connection. The table slots only
+ | point into a dense array of the connections, which is what iteration walks, so iterating costs
+ | the number of connections and not the size of the table. Removing a connection moves the last
+ | one into its place and closes the gap in the probe sequence, so there are no tombstones. Only
+ | the event loop changes the table and it reads it without locking; other threads read a copy
+ | through snapshot()
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+
+class ConnectionTable {
+
+    private static final int MIN_CAPACITY = 16;//Table slots, always a power of 2
+    private static final long EMPTY = 0;//Connection IDs start at 1
+    private static final long PHI = 0x9E3779B97F4A7C15L;//2^64 divided by the golden ratio, spreads sequential IDs
+
+    private long[] keys;//Connection ID in each slot, EMPTY if free
+    private int[] positions;//Index in connections of the connection in each slot
+    private Connection[] connections;//Dense, the first size entries are in use
+    private int shift;//64 less log2 of the table size, the hash keeps the top bits
+    private volatile int size;
+
+    private final StampedLock lock = new StampedLock();//Held by the loop while it changes the table
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    ConnectionTable(){
+        this(MIN_CAPACITY);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: ConnectionTable
+     |Abstract: Constructor for ConnectionTable object. Sized for the number of connections given without growing
+     |Return: object ConnectionTable
+     \----------------------------------------------------------------------------------------------------------------*/
+    ConnectionTable(int expected){
+        int capacity = MIN_CAPACITY;
+
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+
+        keys = new long[capacity];
+        positions = new int[capacity];
+        connections = new Connection[Math.max(expected, MIN_CAPACITY)];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: add
+     |Abstract: Adds a connection under its ID, replacing any connection with the same ID. Event loop only
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void add(Connection conn){
+        long id = conn.getId();
+        long stamp = lock.writeLock();
+
+        try {
+            int slot = find(id);
+
+            if (slot >= 0) {
+                connections[positions[slot]] = conn;
+                return;
+            }
+
+            if ((size + 1) > keys.length * 3 / 4) {
+                rehash(keys.length << 1);
+            }
+            if (size == connections.length) {
+                connections = Arrays.copyOf(connections, connections.length + (connections.length >> 1));
+            }
+
+            slot = home(id);
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+
+            keys[slot] = id;
+            positions[slot] = size;
+            connections[size] = conn;
+            size = size + 1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: remove
+     |Abstract: Removes the connection with the ID given. The last connection of the dense array takes its place, and
+     |          the slots after it in the probe sequence are shifted back over the freed slot. Event loop only
+     |Return: Connection, the connection removed, null if there was none
+     \----------------------------------------------------------------------------------------------------------------*/
+    Connection remove(long id){
+        int slot = find(id);
+
+        if (slot < 0) {
+            return null;
+        }
+
+        long stamp = lock.writeLock();
+
+        try {
+            int position = positions[slot];
+            Connection removed = connections[position];
+            int last = size - 1;
+
+            //Fill the hole in the dense array with the last connection and point its slot at the new place
+            if (position != last) {
+                Connection moved = connections[last];
+                connections[position] = moved;
+                positions[find(moved.getId())] = position;
+            }
+            connections[last] = null;
+            size = last;
+
+            //Backward shift: move later entries of the same probe run into the gap so lookups never stop early
+            int mask = keys.length - 1;
+            int gap = slot;
+            int next = (gap + 1) & mask;
+
+            while (keys[next] != EMPTY) {
+                int home = home(keys[next]);
+
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    positions[gap] = positions[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[gap] = EMPTY;
+
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: get
+     |Abstract: Connection with the ID given. Event loop only
+     |Return: Connection, null if there is none
+     \----------------------------------------------------------------------------------------------------------------*/
+    Connection get(long id){
+        int slot = find(id);
+        return (slot < 0) ? null : connections[positions[slot]];
+    }
+
+    boolean contains(long id){
+        return find(id) >= 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: get
+     |Abstract: Connection at the index given, for iterating from 0 to size() - 1 without an iterator. Removing a
+     |          connection moves the last one to its index, so a loop that removes should walk backwards. Event loop
+     |          only
+     |Return: Connection, the connection at that index
+     \----------------------------------------------------------------------------------------------------------------*/
+    Connection get(int index){
+        return connections[index];
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: size
+     |Abstract: Number of connections in the table. Safe to call from any thread
+     |Return: int, connection count
+     \----------------------------------------------------------------------------------------------------------------*/
+    int size(){
+        return size;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: snapshot
+     |Abstract: Copy of the connections in the table, for threads other than the event loop. Copies without locking and
+     |          keeps the copy if the loop did not change the table meanwhile, otherwise copies again holding the lock
+     |          the loop takes to change it
+     |Return: Connection[], the connections at one moment, in no particular order
+     \----------------------------------------------------------------------------------------------------------------*/
+    Connection[] snapshot(){
+        long stamp = lock.tryOptimisticRead();
+
+        if (stamp != 0) {
+            Connection[] current = connections;
+            Connection[] copy = Arrays.copyOf(current, Math.min(size, current.length));
+
+            if (lock.validate(stamp)) {
+                return copy;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return Arrays.copyOf(connections, size);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: find
+     |Abstract: Slot holding the ID given, following its probe run from its home slot up to the first free slot
+     |Return: int, the slot, -1 if the ID is not in the table
+     \----------------------------------------------------------------------------------------------------------------*/
+    private int find(long id){
+        int mask = keys.length - 1;
+        int slot = home(id);
+        long key;
+
+        while ((key = keys[slot]) != EMPTY) {
+            if (key == id) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int home(long id){
+        return (int) ((id * PHI) >>> shift);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: rehash
+     |Abstract: Moves every ID into a table of the capacity given. The dense array is left as it is
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void rehash(int capacity){
+        long[] oldKeys = keys;
+        int[] oldPositions = positions;
+
+        keys = new long[capacity];
+        positions = new int[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = home(oldKeys[i]);
+
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                positions[slot] = oldPositions[i];
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getTableBytes
+     |Abstract: Bytes of the arrays the table is made of, not counting the connections themselves
+     |Return: long, array bytes, assuming 4 byte references
+     \----------------------------------------------------------------------------------------------------------------*/
+    long getTableBytes(){
+        return (long) keys.length * (Long.BYTES + Integer.BYTES) + (long) connections.length * Integer.BYTES;
+    }
+}
@@ -0,0 +1,139 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class compares the ConnectionTable the event loop keeps its connections in with
+ | a HashMap<Long, Connection>. The same connection objects(without channels) are put in each,
+ | and the heap each takes per entry is printed, not counting the connections themselves, with
+ | the time of a lookup by ID and of a step of iteration over all of them. A million entries needs
+ | a heap of about 1GB for the connections and both containers(-Xmx1g or more)
+ |
+ | Usage: ConnectionTableBenchmark [connections]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+public class ConnectionTableBenchmark {
+
+    private static final int LOOKUP_ROUNDS = 5;
+    private static long sink;//Keeps the timed loops from being optimized away
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of ConnectionTableBenchmark class. Fills each container with the same
+     |          connections and prints its footprint, lookup and iteration cost
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        Connection[] conns = new Connection[count];
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            conns[i] = new Connection(null, null, "benchmark");
+            ids[i] = conns[i].getId();
+        }
+        shuffle(ids);//Look up in an order unrelated to insertion
+
+        System.out.println("connections=" + count);
+
+        long heapBefore = usedHeap();
+        ConnectionTable table = new ConnectionTable();
+        for (int i = 0; i < count; i++) {
+            table.add(conns[i]);
+        }
+        long tableBytes = usedHeap() - heapBefore;
+
+        heapBefore = usedHeap();
+        HashMap<Long, Connection> map = new HashMap<Long, Connection>();
+        for (int i = 0; i < count; i++) {
+            map.put(conns[i].getId(), conns[i]);
+        }
+        long mapBytes = usedHeap() - heapBefore;
+
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {//The last round is printed, the others warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sink += table.get(ids[i]).getId();
+            }
+            long tableLookup = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < table.size(); i++) {
+                sink += table.get(i).getId();
+            }
+            long tableIteration = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sink += map.get(ids[i]).getId();
+            }
+            long mapLookup = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Map.Entry<Long, Connection> entry : map.entrySet()) {
+                sink += entry.getValue().getId();
+            }
+            long mapIteration = System.nanoTime() - start;
+
+            if (round == LOOKUP_ROUNDS - 1) {
+                print("ConnectionTable", tableBytes, count, tableLookup, tableIteration);
+                print("HashMap<Long,Connection>", mapBytes, count, mapLookup, mapIteration);
+            }
+        }
+
+        //Both containers must still be reachable while the heap is measured
+        System.out.println(String.format("(table arrays %,d bytes, checksum %d, %d entries)", table.getTableBytes(),
+                sink, map.size()));
+    }
+
+    private static void print(String name, long bytes, int count, long lookupNanos, long iterationNanos){
+        System.out.println(String.format("%-26s %6.1f bytes/entry  lookup %5.1f ns  iteration %5.2f ns/entry", name,
+                (double) bytes / count, (double) lookupNanos / count, (double) iterationNanos / count));
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: shuffle
+     |Abstract: Fisher-Yates shuffle with a fixed seed, so every run looks up in the same order
+     |Return: void, modifies the array given
+     \------------------------------------------------------------------------------------------------*/
+    private static void shuffle(long[] values){
+        Random random = new Random(42);
+
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException{
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,145 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class picks a backend for a key by consistent hashing. Each backend is placed
+ | on a ring of 64 bit hashes at many points(virtual nodes), and a key belongs to the first point
+ | at or after its own hash. Removing a backend only moves the keys of its points, to the points
+ | after them, so the keys of every other backend stay where they were. The points are kept as
+ | sorted parallel arrays, so a lookup is a binary search with no objects made
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.util.Arrays;
+
+
+class ConsistentHashRing {
+
+    static final int DEFAULT_VIRTUAL_NODES = 160;//Points per backend, keeps the share of each within a few percent
+
+    private final int virtualNodes;
+    private long[] points = new long[0];//Sorted hashes of every point
+    private int[] owners = new int[0];//Backend of each point
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    ConsistentHashRing(){
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    ConsistentHashRing(int virtualNodes){
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: add
+     |Abstract: Places the backend numbered given on the ring. Its points are hashes of the point's index added to a
+     |          hash of the backend number, so a backend keeps the same points whenever it is added and no point lands
+     |          where a small key hashes
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    void add(int backend){
+        long[] newPoints = Arrays.copyOf(points, points.length + virtualNodes);
+        int[] newOwners = Arrays.copyOf(owners, owners.length + virtualNodes);
+
+        for (int i = 0; i < virtualNodes; i++) {
+            newPoints[points.length + i] = mix(mix(backend + 1) + i);//mix(0) is 0
+            newOwners[points.length + i] = backend;
+        }
+        sort(newPoints, newOwners);
+
+        points = newPoints;
+        owners = newOwners;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: remove
+     |Abstract: Takes every point of the backend numbered given off the ring
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    void remove(int backend){
+        int kept = 0;
+
+        for (int i = 0; i < points.length; i++) {
+            if (owners[i] != backend) {
+                points[kept] = points[i];
+                owners[kept] = owners[i];
+                kept++;
+            }
+        }
+        points = Arrays.copyOf(points, kept);
+        owners = Arrays.copyOf(owners, kept);
+    }
+
+    boolean isEmpty(){
+        return points.length == 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: get
+     |Abstract: Backend owning the key given: the owner of the first point at or after the key's hash, wrapping around
+     |          to the first point
+     |Return: int, backend number, -1 if the ring is empty
+     \----------------------------------------------------------------------------------------------------------------*/
+    int get(long key){
+        if (points.length == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(points, mix(key));
+        if (index < 0) {
+            index = -index - 1;//Insertion point, the first point after the hash
+        }
+        return owners[(index == points.length) ? 0 : index];
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: mix
+     |Abstract: 64 bit finalizer of MurmurHash3. Spreads keys that differ in a few low bits, such as connection IDs,
+     |          over the whole ring
+     |Return: long, the hash
+     \----------------------------------------------------------------------------------------------------------------*/
+    static long mix(long key){
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: sort
+     |Abstract: Insertion sort of the points, carrying their owners along. Only run when backends are added
+     |Return: void, modifies the arrays given
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static void sort(long[] keys, int[] values){
+        for (int i = 1; i < keys.length; i++) {
+            long key = keys[i];
+            int value = values[i];
+            int j = i - 1;
+
+            while ((j >= 0) && (keys[j] > key)) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+}
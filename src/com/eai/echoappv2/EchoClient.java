@@ -15,14 +15,16 @@
 /**---------------------------------------------------------------------------------------------
  VERSION HISTORY:
  1.0  - 02102015 - Initial Creation
+ 1.1  - 10192026 - Framed responses. Optional Unix domain socket connection for same host servers
+ 1.2  - 10192026 - Configurable Selector wait strategy: blocking, busy spin or adaptive
+ 1.3  - 10192026 - Broadcasts pushed by the server are printed and skipped while waiting for a response
+ 1.4  - 10192026 - HELLO handshake after connecting, falling back to version 1 if the server does not know it
+ 1.5  - 10192026 - Ingest mode streaming the records of a memory mapped file over pipelined connections
 
  \---------------------------------------------------------------------------------------------**/
 
 package com.eai.echoappv2;
 
-import sun.plugin2.message.Message;
-import sun.text.normalizer.UTF16;
-
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
@@ -31,22 +33,35 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 
 public class EchoClient implements Runnable {
 
     private InetAddress serverAddress;
+    private SocketAddress serverSocketAddress;//Either IP and port or the path of a Unix domain socket
     private SocketChannel socketChannel;
     private Selector selector;
     private Charset charset = Charset.forName("UTF-8");
     private Scanner scannerOBJ;
-    private final int PDU_LENGTH = 8192;
+    private final int PDU_LENGTH = MessageFormatter.MAX_FRAME_LENGTH;//Largest frame allowed by the ICD
     private byte[] packetBytes= new byte[PDU_LENGTH];
+    private ByteBuffer readBuffer = ByteBuffer.allocate(PDU_LENGTH);//Holds a response until the whole frame arrived
     private byte[] message;
     private int port;
     private String serverIP = "";
     private final int TIMEOUT = 10000;//Max time a selector will block for channel to become ready in ms(10 seconds)
+    private volatile SelectorWait selectorWait = new SelectorWait(SelectorWait.Strategy.BLOCKING);
+
+    //Settings agreed with the server by the HELLO sent before the first request, version 1 of the ICD until then
+    private volatile boolean handshake = true;//false skips the HELLO and talks version 1, as older clients do
+    private boolean negotiated;//The HELLO was answered, or is not sent
+    private int protocolVersion = 1;
+    private boolean crc32c;//Frames in both directions carry a CRC32C in place of the CRC32
+    private int maxPayload = MessageFormatter.MAX_PAYLOAD_LENGTH;//Largest PAYLOAD the server takes
+    private int pipelineDepth = 1;//Requests the server suggests keeping in flight
 
     /*=============================================================================================================
                                             Method Definitions
@@ -54,15 +69,33 @@ public class EchoClient implements Runnable {
 
     /**------------------------------------------------------------------------------------------------
      |Method: main
-     |Abstract: Main method of EchoClient class. Creates a new Thread and instantiates a new EchoClient
+     |Abstract: Main method of EchoClient class. Creates a new Thread and instantiates a new EchoClient. If the path of
+     |          a Unix domain socket is given as the only argument, connects to a server on the same host through it
+     |          instead of asking for an IP address and port. The echoapp.wait system property picks the Selector wait
+     |          strategy: blocking(default), spin or adaptive. echoapp.hello=false skips the HELLO handshake. If
+     |          echoapp.ingest names a file, runs in ingest mode instead(see ingest())
      |Return: void, Main method
      \-------------------------------------------------------------------------------------------------*/
     public static void main(String args[]) {
         System.out.println("Hello and welcome to EAI Design's Echo application"); //Status message for user
 
         try {
+            String ingestFile = System.getProperty("echoapp.ingest");
+            if (ingestFile != null) {
+                ingest(Paths.get(ingestFile), args);
+                return;
+            }
+
             //Starts a new thread which launches a new EchoClient object
-            new Thread(new EchoClient()).start();
+            EchoClient client = (args.length > 0) ? new EchoClient(Paths.get(args[0])) : new EchoClient();
+
+            String waitStrategy = System.getProperty("echoapp.wait");
+            if (waitStrategy != null) {
+                client.setWaitStrategy(SelectorWait.Strategy.parse(waitStrategy));
+            }
+            client.setHandshake(Boolean.parseBoolean(System.getProperty("echoapp.hello", "true")));
+
+            new Thread(client).start();
         } catch (IOException ie) {
             ie.printStackTrace();
         } catch (Exception e) {
@@ -70,6 +103,39 @@ public class EchoClient implements Runnable {
         }
     }
 
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: ingest
+     |Abstract: Ingest mode. Sends every record of the file to the server given as the argument, host:port or the path
+     |          of a Unix domain socket, and prints the throughput once every record is answered(see FileIngest). No
+     |          String is made of any record. echoapp.ingest.format is lines(default, one PAYLOAD per line) or prefixed
+     |          (a 2 byte length before each PAYLOAD), echoapp.ingest.type the request: echo(default), nothing or print,
+     |          echoapp.ingest.connections the connections streamed over(1 by default) and echoapp.ingest.window the
+     |          requests in flight on each(by default the depth the server answers the HELLO with)
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    static void ingest(Path file, String args[]) throws IOException{
+        if (args.length < 1) {
+            System.out.println("Usage: java -Dechoapp.ingest=<file> EchoClient <host:port|unixSocketPath>");
+            return;
+        }
+
+        int colon = args[0].lastIndexOf(':');
+        SocketAddress address = (colon > 0) ? new InetSocketAddress(args[0].substring(0, colon),
+                Integer.parseInt(args[0].substring(colon + 1))) : UnixDomainSocketAddress.of(args[0]);
+
+        String typeName = System.getProperty("echoapp.ingest.type", "echo");
+        int type = typeName.equals("nothing") ? MessageFormatter.TYPE_NOTHING : typeName.equals("print") ?
+                MessageFormatter.TYPE_PRINT : MessageFormatter.TYPE_ECHO;
+
+        FileIngest ingest = new FileIngest(file,
+                FileIngest.Format.valueOf(System.getProperty("echoapp.ingest.format", "lines").toUpperCase()), type,
+                Integer.getInteger("echoapp.ingest.connections", 1), Integer.getInteger("echoapp.ingest.window", 0),
+                Boolean.parseBoolean(System.getProperty("echoapp.hello", "true")));
+
+        System.out.println("Ingesting " + file + " into " + address + "...");//Status message for user
+        System.out.println(ingest.run(address));
+    }
+
     /**-----------------------------------------------------------------------------------------------------------------
      |Method: EchoClient
      |Abstract: Constructor for EchoClient object. Calls serverIPAddress() and getServerPort() methods to get and verify
@@ -87,6 +153,23 @@ public class EchoClient implements Runnable {
         //Initializes class variables with local validated ones
         serverAddress = tempServerAddress;
         port = tempPort;
+        serverSocketAddress = new InetSocketAddress(serverAddress, port);
+
+        //Creates a new Selector object and initializes it with class variables
+        selector = initSelector();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: EchoClient
+     |Abstract: Constructor for an EchoClient connecting to an Echo Server on the same host through the Unix domain socket
+     |          at the given path, which skips the TCP/IP stack. Calls initSelector() method to start multiplexing
+     |Return: object EchoClient, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public EchoClient(Path unixSocketPath) throws Exception{
+        System.out.println("Using Unix domain socket: " + unixSocketPath);
+
+        scannerOBJ = new Scanner(System.in);//Still needed for the continue prompt
+        serverSocketAddress = UnixDomainSocketAddress.of(unixSocketPath);
 
         //Creates a new Selector object and initializes it with class variables
         selector = initSelector();
@@ -265,18 +348,22 @@ public class EchoClient implements Runnable {
         //Creates a new selector using the system's default provider to do so
         Selector socketSelector = SelectorProvider.provider().openSelector();
 
-        //Creates a new non-blocking socket channel
-        socketChannel = SocketChannel.open();
+        //Creates a new non-blocking socket channel of the family matching the server's address
+        if (serverSocketAddress instanceof UnixDomainSocketAddress) {
+            socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        else {
+            socketChannel = SocketChannel.open();
+        }
         socketChannel.configureBlocking(false);
 
         System.out.println("Echo Client initialized...");//Status message to console
 
-         try {
-             //Creates a Socket Address object to the user specified and validated Server IP and port of the Echo Server
-             InetSocketAddress clientSocketAddress = new InetSocketAddress(serverAddress, port);
+        boolean connected = false;//Unix domain sockets usually connect straight away
 
-             //Connect the Socket channel to the supplied client socket Address
-             socketChannel.connect(clientSocketAddress);
+         try {
+             //Connect the Socket channel to the user specified and validated Server IP and port(or socket path)
+             connected = socketChannel.connect(serverSocketAddress);
          }catch(IOException ioe){
             ioe.printStackTrace();
          }
@@ -284,12 +371,38 @@ public class EchoClient implements Runnable {
         //Status message to console with current IP information of the Echo Server
         System.out.println("Will attempt to connect to the Echo Server");
 
-        //Registers this client socket channel with the Selector and advises an interest in connecting to the
-        //Echo Server. NOTE: Still no guarantee of connection. Server maybe un-connectable
-        socketChannel.register(socketSelector, SelectionKey.OP_CONNECT);
+        if (connected) {
+            //Nothing left to finish, so the Selector would never report the key connectable. Request WRITE operation
+            socketChannel.register(socketSelector, SelectionKey.OP_WRITE);
+        }
+        else {
+            //Registers this client socket channel with the Selector and advises an interest in connecting to the
+            //Echo Server. NOTE: Still no guarantee of connection. Server maybe un-connectable
+            socketChannel.register(socketSelector, SelectionKey.OP_CONNECT);
+        }
         return socketSelector;//Returns new non-blocking, connected Selector object
     }
 
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setWaitStrategy
+     |Abstract: Sets how run() waits for its Selector, see SelectorWait. Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setWaitStrategy(SelectorWait.Strategy strategy){
+        selectorWait = new SelectorWait(strategy);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setHandshake
+     |Abstract: Sets whether the client sends a HELLO before its first request(the default) to agree on the protocol
+     |          version and capabilities with the server, or talks version 1 of the ICD straight away. Call before
+     |          run() starts
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setHandshake(boolean handshake){
+        this.handshake = handshake;
+    }
+
     /**-----------------------------------------------------------------------------------------------------------------
      |Method: run
      |Abstract: Method to run the single thread of the application. Uses an infinite while loop to cycle through keys
@@ -306,7 +419,10 @@ public class EchoClient implements Runnable {
             //While the thread has not been severed by some return code(most likely -1)
             while (!Thread.interrupted()) {
 
-                selector.select(TIMEOUT);//Wait TIMEOUT amount of time in milliseconds
+                //Wait up to TIMEOUT amount of time in milliseconds, or spin, as the wait strategy says
+                if (selectorWait.select(selector, TIMEOUT) == 0) {
+                    continue;//Nothing ready, a spinning strategy comes back here often
+                }
 
                 //Creates a key iterator object to cycle and binds it to the key queue
                 Iterator selectedKeys = selector.selectedKeys().iterator();
@@ -369,7 +485,7 @@ public class EchoClient implements Runnable {
         SocketChannel socketChannel = (SocketChannel) key.channel();
 
         //Prints to console a status message of a connection
-        System.out.println("Connecting to Server @: " + serverAddress.toString() + " and port: " + port);
+        System.out.println("Connecting to Server @: " + serverSocketAddress);
 
         try {
             //Verifies a connection request was not already in progress
@@ -386,11 +502,9 @@ public class EchoClient implements Runnable {
             //Registers the socket channel with the Selector and requests WRITE operation
             socketChannel.register(selector, SelectionKey.OP_WRITE);
 
-            System.out.println("Now connected to Server on: " + socketChannel.socket().getRemoteSocketAddress()
-                    .toString());//Prints a connection message to console
+            System.out.println("Now connected to Server on: " + serverSocketAddress);//Prints a connection message to console
         }catch(IOException ioe){
-            System.out.println("Unable to connect to Echo Server @ IP: " + serverAddress.toString() + " and port:"
-                    + port);//Prints a status update to the console
+            System.out.println("Unable to connect to Echo Server @ " + serverSocketAddress);//Prints a status update
 
             ioe.printStackTrace();
 
@@ -404,36 +518,46 @@ public class EchoClient implements Runnable {
      |Abstract: This method accepts the a key from the Selector. Opens up a new socket with the information on the key,
      |          and attempts to write to it. Creates a new Message Formatter object, calls the methods getEchoMessage()
      |          and formatMessage to get the user defined payload and pack it to the class Byte array object passed in.
-     |          Once packed, calls the method printMessage() to verify data and wraps the Byte array in a ByteBuffer and
-     |          begins writing the information to the Echo Server for processing. After completion, registers a READ op
-     |          request with the Selector to read the response from the Echo Server
+     |          Once packed, calls the method printMessage() to verify data and wraps the frame, and only the frame, in a
+     |          ByteBuffer and begins writing the information to the Echo Server for processing. After completion,
+     |          registers a READ op request with the Selector to read the response from the Echo Server
      |Return: void, modifies local variables using class variables and a SocketChannel object
      \--------------------------------------------------------------------------------------------------------------*/
     private void write(SelectionKey key){
 
+        if (!negotiated) {
+            if (handshake) {
+                hello(key);//Agree on the settings first, the user is asked for a message once it is answered
+                return;
+            }
+            negotiated = true;//Version 1, nothing to agree on
+        }
+
         MessageFormatter msgOBJ = new MessageFormatter();//New MessageFormatter object
+        msgOBJ.setCrc32c(crc32c);//The checksum agreed with the server
 
         //Calls the MessageFormatter object getEchoMessage() method to get user information for the Echo Server
         msgOBJ.getEchoMessage();
 
-        msgOBJ.formatMessage(packetBytes);//Pass the packetBytes array to be formatted with the request user data
+        //Pass the packetBytes array to be formatted with the request user data. Returns how much of it is used
+        int frameLength = msgOBJ.formatMessage(packetBytes);
 
         //Open a new Socket Channel and cast the key's channel() method return data as a Socket Channel
         SocketChannel socketChannel = (SocketChannel) key.channel();
 
-        msgOBJ.printMessage(packetBytes, PDU_LENGTH);//Print the contents of the entered information
-
-        //Wrap the entire Byte array, packetBytes, in a ByteBuffer
-        ByteBuffer writeBuffer = ByteBuffer.wrap(new byte[packetBytes.length]);
+        msgOBJ.printMessage(packetBytes, frameLength);//Print the contents of the entered information
 
-        writeBuffer.put(packetBytes);//Putting data in array in ByteBuffer
-
-        writeBuffer.flip();//Flip the ByteBuffer so that position isn't equal to limit
+        //Wrap the used part of the Byte array, packetBytes, in a ByteBuffer. The server reads frames back to back, so
+        // unused bytes after the frame must not be sent
+        ByteBuffer writeBuffer = ByteBuffer.wrap(packetBytes, 0, frameLength);
 
         int bytesWritten = 0;
 
         try {
-            bytesWritten = socketChannel.write(writeBuffer);//Send to the channel
+            //Send to the channel. A frame is small, so any short write is retried straight away
+            while (writeBuffer.hasRemaining()) {
+                bytesWritten += socketChannel.write(writeBuffer);
+            }
         }catch(IOException ioe){
             ioe.printStackTrace();
         }
@@ -444,27 +568,74 @@ public class EchoClient implements Runnable {
         key.interestOps(SelectionKey.OP_READ);
     }
 
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: hello
+     |Abstract: This method accepts the a key from the Selector. Sends a HELLO offering the highest protocol version
+     |          this client speaks, CRC32C and the largest PAYLOAD it takes, then registers a READ op request for the
+     |          answer(see helloAnswered())
+     |Return: void, modifies local variables using class variables and a SocketChannel object
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void hello(SelectionKey key){
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+
+        ByteBuffer writeBuffer = ByteBuffer.wrap(MessageFormatter.encodeFrame(MessageFormatter.TYPE_HELLO,
+                MessageFormatter.encodeHello(MessageFormatter.PROTOCOL_VERSION, MessageFormatter.CAPABILITY_CRC32C,
+                        MessageFormatter.MAX_PAYLOAD_LENGTH, pipelineDepth)));
+
+        try {
+            while (writeBuffer.hasRemaining()) {
+                socketChannel.write(writeBuffer);
+            }
+        }catch(IOException ioe){
+            ioe.printStackTrace();
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: helloAnswered
+     |Abstract: Takes the settings from the server's answer to the HELLO, held in message. A server that does not know
+     |          HELLO answers it with an ERROR, and the client carries on with version 1 of the ICD
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void helloAnswered(int responseType){
+        if ((responseType == MessageFormatter.TYPE_HELLO) && (message.length >= MessageFormatter.HELLO_LENGTH)) {
+            protocolVersion = MessageFormatter.helloVersion(message, 0);
+            crc32c = (MessageFormatter.helloCapabilities(message, 0) & MessageFormatter.CAPABILITY_CRC32C) != 0;
+            maxPayload = MessageFormatter.helloMaxPayload(message, 0);
+            pipelineDepth = Math.max(1, MessageFormatter.helloPipelineDepth(message, 0));
+        }
+        negotiated = true;
+
+        System.out.println("Protocol version " + protocolVersion + ", " + (crc32c ? "CRC32C" : "CRC32") +
+                ", PAYLOAD up to " + maxPayload + " bytes");//Status update
+    }
+
     /**---------------------------------------------------------------------------------------------------------------
      |Method: read
      |Abstract: This method accepts the a key from the Selector. Opens up a new socket with the information on the key.
-     |          It then reads the incoming bytes from the socket channel, parses those bytes to a byte array and calls
-     |          the messageHandling() method for processing of said bytes
+     |          It then reads the incoming bytes from the socket channel. The Echo Server answers with a frame laid out
+     |          per the same ICD as the request, so once the whole frame has arrived its CRC32 is verified, the PAYLOAD
+     |          is parsed to a byte array and the messageHandling() method is called for processing of said bytes, or
+     |          helloAnswered() for the answer to the HELLO. Broadcasts from other clients(DELIVERY frames) may arrive
+     |          ahead of the response; they are printed and the wait for the response goes on
      |Return: void, modifies local variables using class variables and a objects
      \--------------------------------------------------------------------------------------------------------------*/
     private void read(SelectionKey key){
         SocketChannel socketChannel = (SocketChannel) key.channel();
 
-        ByteBuffer readBuffer = ByteBuffer.allocate(8192);//Per custom protocol, max message is 8kb, so size is set
-
         int bytesRead = 0;//An int type variable to hold how many bytes are read from the socket Channel
 
         try {
             System.out.println("Reading from the Buffer...");//Status update to the user
             bytesRead = socketChannel.read(readBuffer);
 
-            //If there is nothing in the ByteBuffer, continue to the end of method.
+            //If the server closed the connection there will never be a response
             if (bytesRead == -1) {
-                System.out.println("Nothing received from server");
+                System.out.println("Nothing received from server. Closing application.");
+                socketChannel.close();
+                System.exit(-1);
             }
             else {
                 //Do nothing
@@ -483,9 +654,47 @@ public class EchoClient implements Runnable {
 
         readBuffer.flip(); //Prepare the readBuffer for reading from itself
 
-        //Create a new byte array and fill it with the received bytes from the server
-        message = new byte[readBuffer.remaining()];//Set the size of byte array to size of data in ByteBuffer
+        int frameLength = MessageFormatter.frameLength(readBuffer);
+
+        //Print and skip broadcasts until the response itself is at the front of the buffer
+        while ((frameLength != -1) && (frameLength <= readBuffer.remaining()) &&
+                ((readBuffer.getShort(readBuffer.position()) & 0xFFFF) == MessageFormatter.TYPE_DELIVERY)) {
+            byte[] delivery = new byte[frameLength - MessageFormatter.HEADER_LENGTH - MessageFormatter.CRC_LENGTH];
+            readBuffer.position(readBuffer.position() + MessageFormatter.HEADER_LENGTH);//Skip the HEADER
+            readBuffer.get(delivery);
+            readBuffer.position(readBuffer.position() + MessageFormatter.CRC_LENGTH);//Skip the CRC32
+
+            int offset = MessageFormatter.broadcastMessageOffset(delivery);
+            System.out.println("Broadcast to " + (offset == 1 ? "everyone" : MessageFormatter.broadcastGroup(delivery)) +
+                    ": " + new String(delivery, offset, delivery.length - offset, charset));
+
+            frameLength = MessageFormatter.frameLength(readBuffer);
+        }
+
+        //Wait for the rest of the frame if the server's response was split across reads
+        if ((frameLength == -1) || (frameLength > readBuffer.remaining())) {
+            readBuffer.compact();
+            return;
+        }
+
+        if (!MessageFormatter.isFrameValid(readBuffer, readBuffer.position(), frameLength, crc32c)) {
+            System.out.println("The response from the server failed CRC32 checking.");
+        }
+        int responseType = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+
+        //Create a new byte array and fill it with the PAYLOAD of the response from the server
+        message = new byte[frameLength - MessageFormatter.HEADER_LENGTH - MessageFormatter.CRC_LENGTH];
+        readBuffer.position(readBuffer.position() + MessageFormatter.HEADER_LENGTH);//Skip the HEADER
         readBuffer.get(message);//Reading bytes and get the bytes therein
+        readBuffer.position(readBuffer.position() + MessageFormatter.CRC_LENGTH);//Skip the CRC32
+
+        readBuffer.compact();//Ready for the next response
+
+        if (!negotiated) {
+            helloAnswered(responseType);
+            write(key);//Now ask the user for the first message
+            return;
+        }
 
         messageHandling(key);//Call the messageHandler() method to manage received data
     }
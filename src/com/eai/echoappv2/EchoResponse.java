@@ -0,0 +1,82 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class holds one response frame received from the Echo Server by the
+ | AsyncEchoClient. The frame has already been verified against its CRC32
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - BUSY responses
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.nio.charset.Charset;
+
+
+public class EchoResponse {
+
+    private static final Charset charset = Charset.forName("UTF-8");
+
+    private final int messageType;
+    private final byte[] payload;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    public EchoResponse(int messageType, byte[] payload){
+        this.messageType = messageType;
+        this.payload = payload;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getMessageType
+     |Abstract: Message type of the response. Matches the request type, or MessageFormatter.TYPE_ERROR if the server
+     |          rejected the request, or MessageFormatter.TYPE_BUSY if it was overloaded and shed the request
+     |Return: int, message type field of the response HEADER
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int getMessageType(){
+        return messageType;
+    }
+
+    public boolean isError(){
+        return messageType == MessageFormatter.TYPE_ERROR;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isBusy
+     |Abstract: The server shed the request without handling it. It may be sent again later
+     |Return: boolean, true for a BUSY response
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean isBusy(){
+        return messageType == MessageFormatter.TYPE_BUSY;
+    }
+
+    public byte[] getPayload(){
+        return payload;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getText
+     |Abstract: Decodes the PAYLOAD using the same charset the Echo Server encodes with
+     |Return: String, the PAYLOAD as text
+     \----------------------------------------------------------------------------------------------------------------*/
+    public String getText(){
+        return new String(payload, charset);
+    }
+
+    @Override
+    public String toString(){
+        return "EchoResponse[type=" + messageType + ", length=" + payload.length + "]";
+    }
+}
@@ -15,19 +15,50 @@
 /**---------------------------------------------------------------------------------------------
  VERSION HISTORY:
  1.0  - 02102015 - Initial Creation
+ 1.1  - 10192026 - Framed, pipelined responses. In-process loopback connections and quiet mode
+ 1.2  - 10192026 - Optional Unix domain socket listener for same host clients
+ 1.3  - 10192026 - Optional TLS 1.3 listener
+ 1.4  - 10192026 - Optional shared memory connections for clients in other processes on the same host
+ 1.5  - 10192026 - Optional UDP listener for fire and forget requests
+ 1.6  - 10192026 - Overload control, low priority requests are shed with a BUSY response
+ 1.7  - 10192026 - Optional capture of received frames for replay
+ 1.8  - 10192026 - JFR events for the read, CRC validation, dispatch and write stages of sampled requests
+ 1.9  - 10192026 - Configurable Selector wait strategy: blocking, busy spin or adaptive
+ 1.10 - 10192026 - Ready keys handed straight to handleKey() instead of iterating the selected-key set
+ 1.11 - 10192026 - Responses of a pass are flushed together in gathering writes, with a cork threshold
+ 1.12 - 10192026 - Adaptive receive buffers borrowed from a pool, none held by idle connections
+ 1.13 - 10192026 - Open connections kept in a primitive long keyed table, by connection ID
+ 1.14 - 10192026 - BROADCAST to every client or a group joined with JOIN, one shared frame for all recipients
+ 1.15 - 10192026 - Optional relay mode forwarding requests to backend servers chosen by consistent hashing
+ 1.16 - 10192026 - Optional BLOB fetches of the files in a directory, sent from the page cache by transferTo()
+ 1.17 - 10192026 - Optional native epoll transport for TCP clients, edge triggered, see useEpoll()
+ 1.18 - 10192026 - NOTHING, ECHO and PRINT requests handled without allocating, see AllocationBudgetCheck
+ 1.19 - 10192026 - Pending connections accepted in batches, configurable listen backlog and accepted socket options
+ 1.20 - 10192026 - Per connection read budget of frames per pass, the rest handled on the next pass
+ 1.21 - 10192026 - HELLO handshake agreeing on protocol version, checksum, largest PAYLOAD and pipelining depth
+ 1.22 - 10192026 - Text PAYLOADs(PRINT, JOIN, BLOB) that are not valid UTF-8 refused before they are handled
+ 1.23 - 10192026 - Optional off-heap key-value store answering PUT, GET and DELETE requests
+ 1.24 - 10192026 - A connection is read once per pass, queued connections are taken when the pass starts
+ 1.25 - 10192026 - A blob stopped at its share on a connection without a key is resumed on the next pass
+ 1.26 - 10192026 - Frames left in a connection closed mid pass are neither handled nor answered
 
  \---------------------------------------------------------------------------------------------**/
 
 package com.eai.echoappv2;
 
-import sun.text.normalizer.UTF16;
-
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -36,28 +67,163 @@ import java.nio.channels.spi.SelectorProvider;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
-import java.util.Iterator;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.lang.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 
 public class EchoServer implements Runnable{
 
     private InetAddress hostAddress;
     private ServerSocketChannel serverChannel;
+    private ServerSocketChannel unixServerChannel;//Optional second listener for clients on the same host
+    private Path unixSocketPath;
+    private ServerSocketChannel tlsServerChannel;//Optional listener for clients that need an encrypted connection
+    private SSLContext sslContext;
+    private ExecutorService tlsTaskExecutor;//Runs the slow parts of TLS handshakes off the event loop
+    private BufferPool tlsNetPool;//Encrypted record buffers shared by all TLS connections
+    private BufferPool tlsAppPool;//Decrypted record buffers shared by all TLS connections
     private Selector selector;
     private ByteBuffer readBuffer;
     private ByteBuffer writeBuffer;
     private int port;
     private int bytesRead;
     private final int BUFFERSIZE = 8192;
+    private final ReceiveBufferPool receiveBuffers = new ReceiveBufferPool();//Lends each read its buffer
+    private final ReceiveBufferPool responseBuffers = new ReceiveBufferPool();//Lends connections their response buffer
+    private final ConnectionTable connections = new ConnectionTable();//Open connections by ID, changed by the loop only
     private Charset charset = Charset.forName("UTF-8");
-    private byte[] packetBytes;
+    private final byte[] packetBytes = new byte[MessageFormatter.MAX_FRAME_LENGTH];//Frame being handled, reused
+    private int packetLength;//Bytes of packetBytes the frame fills
     private byte[] msgByteArray;
     private String message = "";
+    private String encodedMessage;//The message msgByteArray holds, so status messages are encoded only once
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(Charset.forName("UTF-8"));
     private MessageFormatter msgOBJ = new MessageFormatter();
     private final int TIMEOUT = 10000;//Max time a selector will block for channel to become ready in ms(10 seconds)
+    private boolean verbose = true;//Status messages to the console for every key and message
+    private final int TLS_SESSION_CACHE_SIZE = 10000;//Sessions kept for resumption by returning TLS clients
+    private final int TLS_SESSION_TIMEOUT = 3600;//Seconds a TLS session can be resumed for(1 hour)
+    private final int TLS_POOLED_BUFFERS = 256;//Record buffers of each kind kept for new TLS connections
+    private final int SHARED_MEMORY_SELECT_INTERVAL = 256;//Spinning passes between looks at the Selector
+
+    //Shared memory connections cannot wake the Selector, so while there are any the loop checks them itself
+    private final ArrayList<Connection> sharedMemoryConnections = new ArrayList<Connection>();
+    private SharedMemoryChannel.WaitStrategy sharedMemoryWait = SharedMemoryChannel.WaitStrategy.PARK;
+    private int sharedMemoryPasses;//Passes since the Selector was last looked at
+
+    private DatagramChannel datagramChannel;//Optional UDP listener, also registered with the Selector
+    private ByteBuffer datagramBuffer;//One received datagram
+    private ByteBuffer datagramReplyBuffer;//Echo replies to the frames of one datagram
+    private final int MAX_DATAGRAM_LENGTH = 65507;//Largest UDP payload over IPv4
+    private final int DATAGRAM_BATCH = 256;//Datagrams received per wake up before other keys get a turn
+
+    //Overload control. The loop cannot see when a frame arrived, so its wait is estimated from the pass timing
+    private final OverloadController overload = new OverloadController();
+    private long passStart;//When the current pass of the loop started handling keys
+    private long passBacklog;//Estimated wait, before passStart, of the oldest bytes handled in this pass
+    private long lastPassWork;//Time the previous pass spent handling keys
+    private long selectStart;//When the current pass started waiting for the Selector
+    private boolean passStarted;//The current pass has set passStart
+    private int lastOverloadLevel = OverloadController.LEVEL_NONE;
+
+    private volatile TrafficCapture capture;//Records received frames while not null
+    private boolean tracing;//The stages of the request in packetBytes are recorded as JFR events, see RequestEvents
+
+    private volatile SelectorWait selectorWait = new SelectorWait(SelectorWait.Strategy.BLOCKING);
+
+    //Responses are queued during a pass and each connection is flushed once at its end, so pipelined requests handled
+    // together are answered by one gathering write instead of one write each
+    public static final int DEFAULT_CORK_BYTES = 64 * 1024;
+    private final ArrayList<Connection> pendingFlushes = new ArrayList<Connection>();
+    private volatile int corkBytes = DEFAULT_CORK_BYTES;//Queued bytes that make a connection flush straight away
+    private volatile long responseCount;//Written by the event loop only
+    private volatile long writeCount;//Written by the event loop only
+
+    //A broadcast is encoded once; every recipient queues a read-only view of that one frame. A recipient that does
+    // not read is never waited for: once it has this many bytes queued, broadcasts to it are dropped
+    public static final int DEFAULT_MAX_PUSH_BACKLOG = 1024 * 1024;
+    private final HashMap<String, ArrayList<Connection>> groups = new HashMap<String, ArrayList<Connection>>();
+    private volatile int maxPushBacklog = DEFAULT_MAX_PUSH_BACKLOG;
+    private volatile long deliveryCount;//Written by the event loop only
+    private volatile long droppedDeliveryCount;//Written by the event loop only
+
+    //Relay mode: requests are forwarded to backend servers instead of handled here, see relayTo()
+    public enum RelayKey { CONNECTION, PAYLOAD }
+    public static final int DEFAULT_RELAY_CONNECTIONS = 2;//Connections to each backend
+    private RelayUpstream[][] relayPools;//Pipelined connections to each backend, null unless relaying
+    private ConsistentHashRing relayRing;//Backends still reachable
+    private RelayKey relayKey = RelayKey.CONNECTION;
+    private final ArrayList<RelayUpstream.Slot> relayAnswered = new ArrayList<RelayUpstream.Slot>();
+    private volatile long relayedCount;//Written by the event loop only
+
+    //Connection storms: each OP_ACCEPT wakeup drains up to acceptBatch pending connections from a listen queue of
+    // backlog connections, and every accepted socket gets the same options
+    public static final int DEFAULT_BACKLOG = 1024;//The kernel caps it, at net.core.somaxconn on Linux
+    public static final int DEFAULT_ACCEPT_BATCH = 64;
+    private final int backlog;
+    private volatile int acceptBatch = DEFAULT_ACCEPT_BATCH;
+    private volatile boolean tcpNoDelay = true;//Responses are coalesced per pass already, see setCorkBytes()
+    private volatile int socketSendBufferSize;//0 for the system default
+    private volatile int socketReceiveBufferSize;//0 for the system default
+    private volatile long acceptCount;//Written by the event loop only
+    private volatile long acceptWakeups;//Written by the event loop only
+
+    //Fairness: one read handles at most readBudget frames; whole frames beyond it stay in the receive buffer and the
+    // connection is queued for the next pass, after every other ready connection had its turn
+    public static final int DEFAULT_READ_BUDGET = 64;
+    private volatile int readBudget = DEFAULT_READ_BUDGET;
+    private volatile long readBudgetExhaustedCount;//Written by the event loop only
+
+    //Files served to BLOB requests, see serveBlobs()
+    private BlobStore blobStore;//null unless serving blobs
+    private volatile long blobCount;//Written by the event loop only
+    private volatile long blobBytes;//Written by the event loop only
+
+    //Values stored by PUT requests, see serveKeyValues()
+    private OffHeapStore keyValues;//null unless serving key-values
+
+    //Optional native TCP transport, see useEpoll(). The Selector keeps every other channel
+    private EpollTransport epoll;//null while the Selector serves TCP clients
+    private boolean epollAcceptPending;//The last accept stopped at acceptBatch, the listen queue may hold more
+    private final int EPOLL_TIMEOUT = 100;//Longest wait in epoll_wait in ms, which does not return on an interrupt
+    private final int EPOLL_SELECTOR_TIMEOUT = 1;//Longest wait in ms while channels on the Selector need a look too
+
+    //Created once and handed every ready key by the Selector, so a pass allocates no iterator and empties no HashSet
+    private final Consumer<SelectionKey> keyHandler = new Consumer<SelectionKey>() {
+        public void accept(SelectionKey key) {
+            try {
+                handleKey(key);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);//Carried out of the Selector, rethrown by poll()
+            }
+        }
+    };
+
+    //Connections with work the Selector will not report are queued here and serviced after the selected keys:
+    // loopback connections, which have no key, and TLS connections whose handshake tasks finished on another thread or
+    // that hold records already taken off the socket
+    private final ConcurrentLinkedQueue<Connection> readyConnections = new ConcurrentLinkedQueue<Connection>();
+    private final ArrayList<Connection> readyBatch = new ArrayList<Connection>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
 
     /*=============================================================================================================
                                             Method Definitions
@@ -65,7 +231,19 @@ public class EchoServer implements Runnable{
 
     /**------------------------------------------------------------------------------------------------
      |Method: main
-     |Abstract: Main method of EchoServer class. Creates a new Thread and instantiates a new EchoClient
+     |Abstract: Main method of EchoServer class. Creates a new Thread and instantiates a new EchoClient. If the path of
+     |          a Unix domain socket is given as the only argument, also listens on it for clients on the same host. If
+     |          the echoapp.tls.keystore system property names a PKCS12 key store(password in echoapp.tls.password),
+     |          also listens for TLS clients on port 10443. If echoapp.udp.port is set, also listens for UDP datagrams.
+     |          If echoapp.capture names a file, records every frame received into it for CaptureReplay. The
+     |          echoapp.wait system property picks the Selector wait strategy: blocking(default), spin or adaptive.
+     |          If echoapp.relay lists backend servers(host:port,host:port...), relays every request to them, routed
+     |          by echoapp.relay.key: connection(default) or payload. If echoapp.blobs names a directory, serves its
+     |          files to BLOB requests. If echoapp.store.mb is set, keeps a key-value store of that many MB for PUT,
+     |          GET and DELETE requests. echoapp.backlog sets the listen backlog and echoapp.accept.batch the connections
+     |          accepted per wakeup. echoapp.read.budget sets the frames one connection has handled per pass(0 for no
+     |          limit). -Dechoapp.transport=epoll serves TCP clients through the native epoll transport where the JVM
+     |          allows it(see useEpoll()), and through the Selector otherwise
      |Return: void, Main method
      \------------------------------------------------------------------------------------------------*/
     public static void main(String args[]){
@@ -73,8 +251,72 @@ public class EchoServer implements Runnable{
         System.out.println("Hello and welcome to EAI Design's Echo Server application");//Status message for user
 
         try{
-            //Starts a new thread which launches a new EchoServer object with a predetermined port number
-            new Thread(new EchoServer(null, 10000)).start();
+            //Creates a new EchoServer object with a predetermined port number
+            EchoServer server = new EchoServer(null, 10000, Integer.getInteger("echoapp.backlog", DEFAULT_BACKLOG));
+
+            if (args.length > 0) {
+                server.listenUnix(Paths.get(args[0]));
+            }
+
+            if ("epoll".equalsIgnoreCase(System.getProperty("echoapp.transport"))) {
+                server.useEpoll();
+            }
+
+            String waitStrategy = System.getProperty("echoapp.wait");
+            if (waitStrategy != null) {
+                server.setWaitStrategy(SelectorWait.Strategy.parse(waitStrategy));
+            }
+
+            String capturePath = System.getProperty("echoapp.capture");
+            if (capturePath != null) {
+                server.startCapture(Paths.get(capturePath));
+            }
+
+            String backends = System.getProperty("echoapp.relay");
+            if (backends != null) {
+                ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+                for (String backend : backends.split(",")) {
+                    int colon = backend.lastIndexOf(':');
+                    addresses.add(new InetSocketAddress(backend.substring(0, colon),
+                            Integer.parseInt(backend.substring(colon + 1))));
+                }
+                server.relayTo(addresses, DEFAULT_RELAY_CONNECTIONS,
+                        RelayKey.valueOf(System.getProperty("echoapp.relay.key", "connection").toUpperCase()));
+            }
+
+            String acceptBatch = System.getProperty("echoapp.accept.batch");
+            if (acceptBatch != null) {
+                server.setAcceptBatch(Integer.parseInt(acceptBatch));
+            }
+
+            String readBudget = System.getProperty("echoapp.read.budget");
+            if (readBudget != null) {
+                server.setReadBudget(Integer.parseInt(readBudget));
+            }
+
+            String blobDirectory = System.getProperty("echoapp.blobs");
+            if (blobDirectory != null) {
+                server.serveBlobs(Paths.get(blobDirectory));
+            }
+
+            String storeMegabytes = System.getProperty("echoapp.store.mb");
+            if (storeMegabytes != null) {
+                server.serveKeyValues(Long.parseLong(storeMegabytes) * 1024 * 1024);
+            }
+
+            String udpPort = System.getProperty("echoapp.udp.port");
+            if (udpPort != null) {
+                server.listenDatagram(Integer.parseInt(udpPort));
+            }
+
+            String keyStore = System.getProperty("echoapp.tls.keystore");
+            if (keyStore != null) {
+                char[] password = System.getProperty("echoapp.tls.password", "").toCharArray();
+                server.listenTls(10443, TlsChannel.createContext(Paths.get(keyStore), password));
+            }
+
+            //Starts a new thread which launches the EchoServer
+            new Thread(server).start();
         }catch(IOException ie) {
             ie.printStackTrace();
         }catch(Exception e){
@@ -89,10 +331,21 @@ public class EchoServer implements Runnable{
      |Return: object EchoServer, modifies class variables
      \----------------------------------------------------------------------------------------------------------------*/
     public EchoServer(InetAddress tempHostAddress, int tempPort )throws Exception{
+        this(tempHostAddress, tempPort, DEFAULT_BACKLOG);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: EchoServer
+     |Abstract: Constructor for EchoServer object with the length of the listen queue given: how many connections the
+     |          kernel holds for accept() before it refuses more, e.g. while thousands of clients reconnect at once
+     |Return: object EchoServer, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public EchoServer(InetAddress tempHostAddress, int tempPort, int tempBacklog)throws Exception{
 
         //Initializes class variables with local ones(scalable for possible future req i.e. user defined data)
         hostAddress = tempHostAddress;
         port = tempPort;
+        backlog = tempBacklog;
 
         //Creates a new Selector object and initializes it with class variables
         selector = initSelector();
@@ -114,8 +367,11 @@ public class EchoServer implements Runnable{
         serverChannel = ServerSocketChannel.open();
         serverChannel.configureBlocking(false);
 
-        //Sets class variable hostAddress to the IP Address specified using the getByName() method
-        hostAddress = InetAddress.getByName("168.168.1.155");
+        //Sets class variable hostAddress to the default IP Address using the getByName() method, unless the caller
+        // asked for a specific address
+        if (hostAddress == null) {
+            hostAddress = InetAddress.getByName("168.168.1.155");
+        }
 
         System.out.println("Echo Test Server initialized...");//Status message to console
 
@@ -124,320 +380,2135 @@ public class EchoServer implements Runnable{
             InetSocketAddress serverSocketAddress = new InetSocketAddress(hostAddress, port);
 
             //Connect the Socket channel to the supplied client socket Address
-            serverChannel.socket().bind(serverSocketAddress);
+            serverChannel.socket().bind(serverSocketAddress, backlog);
+
+            //Registers this server channel with the Selector and advises an interest in accepting new connections.
+            // An unbound channel is never registered: the Selector would report it ready and accept() would fail
+            serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
         }catch(IOException ioe){
             ioe.printStackTrace();
         }
 
-        //Registers this server channel with the Selector and advises an interest in accepting new connections
-        serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
-
         System.out.println("Waiting for connections...");//Status message to console
         return socketSelector;//Returns new non-blocking, connected Selector object
     }
 
     /**-----------------------------------------------------------------------------------------------------------------
-     |Method: run
-     |Abstract: Method to run the single thread of the application. Uses an infinite while loop to cycle through keys
-     |          from the selector. Inside of this while loop, the selector selection() method is on a timer(in ms) to
-     |          cycle through available keys. Another while loop inside of the original uses an Iterator object to cycle
-     |          through the key queue(as long as there is another key), remove the key from the queue, and match the
-     |          selected against known types. If a key is valid and is of a known type, the appropriate method is called
-     |          to handle processing and the key is passed to the called method like a baton in relay racing
-     |Return: void, Creates a Iterator object and manipulates local and class variables
+     |Method: listenUnix
+     |Abstract: Opens a second, non-blocking server socket channel bound to a Unix domain socket at the given path and
+     |          registers it with the same Selector as the TCP listener. Clients on the same host connecting through it
+     |          skip the TCP/IP stack but are handled by the same event loop, codec and handlers. A socket file left
+     |          by a server that did not shut down cleanly is replaced; any other existing file is an error. Must be
+     |          called before the server thread is started
+     |Return: void, modifies class variables
      \----------------------------------------------------------------------------------------------------------------*/
-    public void run() {
-        System.out.println("Waiting...");
+    public void listenUnix(Path socketPath) throws IOException{
+        if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+            BasicFileAttributes attributes = Files.readAttributes(socketPath, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
 
-        try {
-            //While the thread has not been severed by some return code(most likely -1)
-            while (!Thread.interrupted()) {
+            if (!attributes.isOther()) {
+                throw new IOException(socketPath + " already exists and is not a socket");
+            }
+            Files.delete(socketPath);//Stale socket file
+        }
 
-                selector.select(TIMEOUT);//Wait TIMEOUT amount of time in milliseconds
+        unixServerChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        unixServerChannel.configureBlocking(false);
+        unixServerChannel.bind(UnixDomainSocketAddress.of(socketPath), backlog);
+        unixSocketPath = socketPath;
 
-                //Creates a key iterator object to cycle and binds it to the key queue
-                Iterator selectedKeys = selector.selectedKeys().iterator();
+        //Registers the Unix server channel with the Selector and advises an interest in accepting new connections
+        unixServerChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-                System.out.println("Waiting for a new key from Selector");
+        System.out.println("Waiting for connections on " + socketPath + "...");//Status message to console
+    }
 
-                //Cycle through the queue of keys from the selector
-                while (selectedKeys.hasNext()) {
-                    SelectionKey key = (SelectionKey) selectedKeys.next();
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: listenTls
+     |Abstract: Opens another non-blocking server socket channel on the server's address and the given port(0 for any
+     |          free port) whose clients are served over TLS 1.3 using the given context. The listener shares the
+     |          Selector, codec and handlers with the plain one. Handshake work the SSLEngine delegates runs on a small
+     |          thread pool rather than the event loop, and the server's session cache lets returning clients resume
+     |          a session instead of doing a full handshake. Must be called before the server thread is started
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void listenTls(int tlsPort, SSLContext context) throws IOException{
+        sslContext = context;
+        sslContext.getServerSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sslContext.getServerSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+
+        BufferPool[] pools = TlsChannel.createPools(sslContext, TLS_POOLED_BUFFERS);
+        tlsNetPool = pools[0];
+        tlsAppPool = pools[1];
+
+        tlsTaskExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "EchoServer-TLS");
+                        thread.setDaemon(true);//Never keeps the application alive on its own
+                        return thread;
+                    }
+                });
 
-                    System.out.println("Cycling through keys...");
-                    selectedKeys.remove();//Removes the current key so it is not processed again
-                    System.out.println("Removed key...");
+        tlsServerChannel = ServerSocketChannel.open();
+        tlsServerChannel.configureBlocking(false);
+        tlsServerChannel.socket().bind(new InetSocketAddress(hostAddress, tlsPort), backlog);
 
-                    //Check the event type of the current key and use the appropriate method as long as key is valid
-                    if (!key.isValid()) {
-                        System.out.println("This key was not valid...");
-                    }
+        //Registers the TLS server channel with the Selector and advises an interest in accepting new connections
+        tlsServerChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-                    //Are we accepting?
-                    else if (key.isAcceptable()) {
-                        System.out.println("Checking if key is acceptable...");
-                        accept(key);//If the key is an acceptable type, passes key to accept() method
-                    }
+        System.out.println("Waiting for TLS connections on port " + getTlsPort() + "...");//Status message to console
+    }
 
-                    //Are we reading?
-                    else if (key.isReadable()) {
-                        System.out.println("Checking if key is readable...");
-                        read(key);//If the key is a readable type, passes key to read() method
-                    }
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: listenSharedMemory
+     |Abstract: Creates a shared memory file(e.g. under /dev/shm) with a ring buffer of the given capacity in each
+     |          direction, for one client in another process that opens it with SharedMemoryChannel.open(). Frames
+     |          from it go through the same read(), codec and handlers as frames from a socket. From then on the loop
+     |          never blocks in the Selector: with SPIN it checks the file continuously and the sockets every
+     |          SHARED_MEMORY_SELECT_INTERVAL passes, keeping a core busy; with PARK it sleeps briefly between passes
+     |          when nothing arrived. If any file asks for SPIN the loop spins. Call once per client, before the server
+     |          thread is started
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void listenSharedMemory(Path file, int capacity, SharedMemoryChannel.WaitStrategy wait) throws IOException{
+        SharedMemoryChannel channel = SharedMemoryChannel.create(file, capacity);
 
-                    //Are we writing
-                    else if (key.isWritable()){
-                        System.out.println("Checking if key is writable...");
-                        write(key);//If the key is a readable type, passes key to read() method
-                    }
+        Connection conn = new Connection(channel, null, "shm:" + file);
+        sharedMemoryConnections.add(conn);
+        connections.add(conn);//The loop is not running yet
 
-                    else{
-                        //Do nothing
-                    }
-                }
-            }
-        } catch (IOException ioe) {
-            System.out.println("Unable to process key because it was cancelled. Likely unable to connect");
-            ioe.printStackTrace();
-        } catch (Exception e) {
-            System.out.println("Process has been interrupted.");
-            e.printStackTrace();
+        if (wait == SharedMemoryChannel.WaitStrategy.SPIN) {
+            sharedMemoryWait = wait;
         }
+
+        System.out.println("Waiting for a shared memory client on " + file + "...");//Status message to console
     }
 
     /**-----------------------------------------------------------------------------------------------------------------
-     |Method: accept
-     |Abstract: This method accepts the a key from the Selector. Opens up a new server socket and a socket channel with
-     |          the information on the parameter key. Configures the socket channel to non-blocking, allows a connection
-     |          to the requesting client, and request a READ operation with the Selector for any incoming messages from
-     |          newly connected Echo Clients
-     |Return: void, modifies local variables using class variables
+     |Method: listenDatagram
+     |Abstract: Opens a non-blocking DatagramChannel on the server's address and the given port(0 for any free port) and
+     |          registers it with the same Selector. A datagram may carry several frames back to back; each is checked
+     |          with the same CRC32 logic as on TCP. There is no connection to answer on, so only echo requests(type 2)
+     |          get a reply: types 1 and 3 are fire and forget, and invalid or unsupported frames are dropped. Must be
+     |          called before the server thread is started
+     |Return: void, modifies class variables
      \----------------------------------------------------------------------------------------------------------------*/
-    private void accept(SelectionKey key)throws IOException{
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+    public void listenDatagram(int udpPort) throws IOException{
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.configureBlocking(false);
+        datagramChannel.bind(new InetSocketAddress(hostAddress, udpPort));
 
-        System.out.println("Connecting...");//Status update
+        datagramBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+        datagramReplyBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
 
-        try {
-            SocketChannel socketChannel = serverSocketChannel.accept();
+        //Registers the datagram channel with the Selector and advises an interest in reading datagrams
+        datagramChannel.register(selector, SelectionKey.OP_READ);
 
-            //Prints to console a status message of a connection
-            System.out.println("Received an incoming connection from" + socketChannel.socket().getRemoteSocketAddress());
+        System.out.println("Waiting for datagrams on port " + getDatagramPort() + "...");//Status message to console
+    }
 
-            //Configures new socket channel to non-blocking
-            socketChannel.configureBlocking(false);
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: relayTo
+     |Abstract: Turns the server into a relay in front of the backend Echo Servers given. Every valid request is then
+     |          forwarded, as received, over one of connectionsPerBackend pipelined connections to a backend picked by
+     |          consistent hashing, and the backend's response frame is sent back to the client as received. The key
+     |          hashed is the client's connection ID, so a client always talks to the same backend, or the request's
+     |          CRC32, which spreads one client's requests over every backend while identical requests still meet on
+     |          the same one; for a PUT, GET or DELETE it is the hash of the key, so one key lives on one backend. Each
+     |          client still gets its responses in the order of its requests. A backend whose connections all fail is
+     |          taken out of the ring, moving only its own keys to the others. Connects to every backend before
+     |          returning. Must be called before the server thread is started
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void relayTo(List<InetSocketAddress> backends, int connectionsPerBackend, RelayKey key) throws IOException{
+        relayPools = new RelayUpstream[backends.size()][connectionsPerBackend];
+        relayRing = new ConsistentHashRing();
+        relayKey = key;
+
+        for (int backend = 0; backend < backends.size(); backend++) {
+            for (int i = 0; i < connectionsPerBackend; i++) {
+                relayPools[backend][i] = new RelayUpstream(backend, backends.get(backend), selector);
+            }
+            relayRing.add(backend);
+        }
 
-            System.out.println("Connected to client: " + socketChannel.socket().getRemoteSocketAddress());
+        System.out.println("Relaying to " + backends + " by " + key.name().toLowerCase() + "...");//Status message
+    }
 
-            System.out.println("Registering to read with the Selector");
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: serveBlobs
+     |Abstract: Answers BLOB requests with the regular files in the directory given, named by the request's PAYLOAD. The
+     |          file follows its BLOB response straight from the page cache(see BlobStore), so a file of any size costs
+     |          the loop no heap and no copy, and a client that reads slowly only holds an open file. The CRC32 of
+     |          every file already there is computed now; a file added or changed later has its CRC32 computed on the
+     |          loop by the first request for it. Must be called before the server thread is started
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void serveBlobs(Path directory) throws IOException{
+        blobStore = new BlobStore(directory);
+        int files = blobStore.scan();
 
-            //Registers the channel with the Selector and sets a request for any READ operations
-            socketChannel.register(selector, SelectionKey.OP_READ);
+        System.out.println("Serving " + files + " blobs from " + blobStore.getDirectory() + "...");//Status message
+    }
 
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: serveKeyValues
+     |Abstract: Answers PUT, GET and DELETE requests from a store of keys and values kept off the heap(see
+     |          OffHeapStore), so the server can act as a small cache beside an application. Keys and values take up to
+     |          capacityBytes; beyond that the entries least recently used, as CLOCK tells, are evicted. Must be called
+     |          before the server thread is started
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void serveKeyValues(long capacityBytes){
+        keyValues = new OffHeapStore(capacityBytes);
 
-        }catch(ConnectException ce){
-            System.out.println("Unable to connect to Echo Client");//Prints a status update to the console
-            ce.printStackTrace();
-        }
+        //Status message to console
+        System.out.println("Serving key-values from up to " + (keyValues.getCapacity() >> 20) + " MB off the heap...");
     }
 
-    /**---------------------------------------------------------------------------------------------------------------
-     |Method: read
-     |Abstract: This method accepts the a key from the Selector. This method reads the information from the socket
-     |          channel by opening  up a new socket channel on the Echo Server's side of the Selector, allocating the
-     |          buffer to 8kb, and checking that data is being written from the socket. The method then calls on
-     |          getMessageDetails() method to decipher and verify the received data per custom protocol ICD.
-     |Return: void, modifies local variables using class variables and a objects
-     \--------------------------------------------------------------------------------------------------------------*/
-    private void read(SelectionKey key){
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getDatagramPort
+     |Abstract: Port the UDP listener is bound to
+     |Return: int, local UDP port, -1 if listenDatagram() was not called
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int getDatagramPort(){
+        return (datagramChannel == null) ? -1 : datagramChannel.socket().getLocalPort();
+    }
 
-        //A new ByteBuffer to read from the socket of predetermined size
-        readBuffer = ByteBuffer.allocate(BUFFERSIZE);
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getTlsPort
+     |Abstract: Port the TLS listener is bound to
+     |Return: int, local TLS port, -1 if listenTls() was not called
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int getTlsPort(){
+        return (tlsServerChannel == null) ? -1 : tlsServerChannel.socket().getLocalPort();
+    }
 
-        bytesRead = 0;//An int type variable to hold the bytes read from the socket channel
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getPort
+     |Abstract: Port the TCP listener is bound to. Differs from the constructor's port only if that was 0(any free port)
+     |Return: int, local TCP port
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int getPort(){
+        return (epoll != null) ? epoll.getPort() : serverChannel.socket().getLocalPort();
+    }
 
-        System.out.println("Reading from the Buffer...");//Status update message
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: useEpoll
+     |Abstract: Moves the TCP listener and every client it accepts from the Selector to EpollTransport: an edge
+     |          triggered epoll instance reached through the jdk.incubator.foreign module, which takes events into a
+     |          buffer allocated once and reads and writes the sockets with system calls of its own. The classes built
+     |          from src-epoll must be on the class path and the JVM must run with --add-modules jdk.incubator.foreign
+     |          and --enable-native-access=ALL-UNNAMED on Linux(x86_64 or aarch64); otherwise the transport cannot load
+     |          and the Selector keeps serving TCP. The listener is bound
+     |          again, on the same address and port, so call this before the server's thread starts. Unix domain, TLS,
+     |          UDP and relay channels stay on the Selector
+     |Return: boolean, true if the epoll transport now serves TCP, false if the Selector still does
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean useEpoll() throws IOException{
+        EpollTransport transport;
 
         try {
-            System.out.println("Reading from the Buffer...");//Status update to the user
+            transport = new EpollTransport();
+        } catch (LinkageError | UnsupportedOperationException e) {
+            Throwable reason = (e.getCause() != null) ? e.getCause() : e;
+            System.out.println("The epoll transport is not available, TCP stays on the Selector: " + reason);
+            return false;
+        }
 
-            bytesRead = socketChannel.read(readBuffer);//Reading from socket channel to ByteBuffer
+        int boundPort = serverChannel.socket().getLocalPort();
+        serverChannel.close();
+        selector.selectNow();//Deregisters the closed listener, which only then lets go of its port
+        selector.selectedKeys().clear();
 
-            //Checks if ByteBuffer reads a -1 which means no data or error sent
-            if (bytesRead == -1) {
-                //Status update
-                System.out.println("Nothing received from the client. Closing connection. Please try again. ");
-                key.cancel();//Cancel current key
-                socketChannel.close();//Close socket channel
-                key.interestOps(SelectionKey.OP_READ);//Registers with the Selector a READ operation request
-            }
-            else {
-                //Do nothing
-            }
+        try {
+            transport.listen(hostAddress, (boundPort > 0) ? boundPort : port, backlog);
         } catch (IOException ioe) {
-            System.out.println("Client closed connection unexpectedly. Force closing connection.");
+            transport.close();
+            throw ioe;
+        }
+        epoll = transport;
 
-            try {
-                key.cancel();//Cancel current key
-                socketChannel.close();//Close socket channel
-            } catch (IOException ioe2) {
-                ioe2.printStackTrace();
-            }
+        System.out.println("TCP clients served through the epoll transport on port " + epoll.getPort());//Status
+        return true;
+    }
 
-            return;
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isEpoll
+     |Abstract: Whether TCP clients are served through the epoll transport, see useEpoll()
+     |Return: boolean, true for epoll, false for the Selector
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean isEpoll(){
+        return epoll != null;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Method to run the single thread of the application. Uses an infinite while loop calling poll(), in
+     |          which the selector selection is on a timer(in ms) and hands every ready key to handleKey(). There it is
+     |          matched against known types. If a key is valid and is of a known type, the appropriate method is called
+     |          to handle processing and the key is passed to the called method like a baton in relay racing
+     |Return: void, manipulates local and class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void run() {
+        System.out.println("Waiting...");
+
+        try {
+            //While the thread has not been severed by some return code(most likely -1)
+            while (!Thread.interrupted()) {
+                poll(TIMEOUT);//Wait TIMEOUT amount of time in milliseconds
+            }
+        } catch (IOException ioe) {
+            System.out.println("Unable to process key because it was cancelled. Likely unable to connect");
+            ioe.printStackTrace();
+        } catch (Exception e) {
+            System.out.println("Process has been interrupted.");
+            e.printStackTrace();
+        } finally {
+            closeConnections();
+            closeOptionalListeners();
         }
-        getMessageDetails(key);//Calls getMessageDetails() method to parse the received bytes
     }
 
-    /**---------------------------------------------------------------------------------------------------------------
-     |Method: getMessageDetails
-     |Abstract: This method accepts the a key from the Selector. The method is used to parse the messages received from
-     |          the client. If the messages are deemed not valid by CRC32 checking, sends a message to the client by
-     |          calling the write() method. if the message is valid calls the messageHandling() method
-     |Return: void, modifies class variables and objects
-     \--------------------------------------------------------------------------------------------------------------*/
-    private void getMessageDetails(SelectionKey key){
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: closeConnections
+     |Abstract: Closes the TCP listener and every client connection in the connection table, so clients, and relays in
+     |          front of this server, see it go instead of waiting on sockets nobody reads
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void closeConnections(){
+        for (int i = connections.size() - 1; i >= 0; i--) {//Closing moves the last connection into the gap
+            closeConnection(connections.get(i));
+        }
 
-        //Set a byte array to the size of the amount of data read. This conserves memory as the byte array is only as
-        // big as the data received from the socket channel(from the client)
-        packetBytes = new byte[bytesRead];
+        try {
+            serverChannel.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
 
-        System.out.println("packetBytes is " + packetBytes.length + " long.");//Print the size of the array
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: closeOptionalListeners
+     |Abstract: Closes the Unix domain socket listener, if there is one, and removes its socket file so the next server
+     |          can bind the same path. Closes the TLS listener, if there is one, and stops its handshake threads.
+     |          Closes the shared memory connections, which removes their files, the connections to relay backends,
+     |          the UDP listener and the epoll transport. Finishes the traffic capture, if one is running
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void closeOptionalListeners(){
+        for (int i = 0; i < sharedMemoryConnections.size(); i++) {
+            closeConnection(sharedMemoryConnections.get(i));
+        }
+        sharedMemoryConnections.clear();
 
-        /**IMPORTANT**Switches ByteBuffer position back to zero and sets limit to where position was -- position now
-         * marks the reading position(beginning of the ByteBuffer) and limit marks how much data was written in the
-         * buffer(in this case, what was read from socketChannel i.e. the limit on how much data can be read)
-         */
-        readBuffer.flip();//Call the ByteBuffer's flip() method to prepare to read from the buffer
+        for (int backend = 0; (relayPools != null) && (backend < relayPools.length); backend++) {
+            for (RelayUpstream upstream : relayPools[backend]) {
+                upstream.close();
+            }
+        }
 
-        //Prints contents of the ByteBuffer 1 byte at a time casted as char type
-        while (readBuffer.hasRemaining()){
-            System.out.print((char) readBuffer.get());
+        try {
+            if (unixServerChannel != null) {
+                unixServerChannel.close();
+                Files.deleteIfExists(unixSocketPath);
+            }
+            if (tlsServerChannel != null) {
+                tlsServerChannel.close();
+                tlsTaskExecutor.shutdown();
+            }
+            if (datagramChannel != null) {
+                datagramChannel.close();
+            }
+            if (epoll != null) {
+                epoll.close();
+            }
+            stopCapture();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
         }
+    }
 
-        readBuffer.rewind();//Rewind the ByteBuffer's position so that it points to zero
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: poll
+     |Abstract: One pass of the event loop run by run(). Waits up to timeout ms for the Selector as the wait strategy
+     |          allows(or does not wait at all if timeout is 0 or connections are already queued as ready), handling
+     |          each ready key as the Selector finds it, then services the connections that have been queued as ready.
+     |          No iterator is created and no selected-key set is emptied, so a pass allocates nothing of its own. With
+     |          shared memory connections the pass checks those first and only looks at the Selector, without blocking,
+     |          every so many passes(see listenSharedMemory()). With the epoll transport the pass waits in epoll_wait
+     |          instead, see pollEpoll(). Tests and benchmarks call this directly to drive the server from their own
+     |          thread one step at a time
+     |Return: void, manipulates local and class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    void poll(long timeout) throws IOException {
+        wakeupPending.set(false);//Connections queued from here on wake the Selector again
+        takeReady();//Connections queued from here on wait for the next pass
 
-        //TODO Could possibly make this a while loop same as above to conserve processing time
-        readBuffer.get(packetBytes);//Pack the byte array, packetBytes, with the entire contents of the ByteBuffer
+        if (!sharedMemoryConnections.isEmpty() && (timeout > 0)) {
+            passStart = System.nanoTime();
+            passBacklog = 0;//Shared memory is checked continuously, nothing waits for a previous pass
 
-        //Calls the printMessage() method of the MessageFormatter object to parse and print the contents received bytes.
-        //Passes in the filled byte array and the amount of data that was read from the socket
-        msgOBJ.printMessage(packetBytes, bytesRead);
+            if (!pollSharedMemory()) {
+                sharedMemoryWait.idle();//Nothing arrived, spin or sleep briefly before checking again
+            }
+            flushPending();
+            if (++sharedMemoryPasses < ((sharedMemoryWait == SharedMemoryChannel.WaitStrategy.SPIN)
+                    ? SHARED_MEMORY_SELECT_INTERVAL : 1)) {
+                return;
+            }
+            sharedMemoryPasses = 0;
+            timeout = 0;//Look at the sockets, but never block on them
+        }
 
-        //Calls the sentMessageValidator() method to make sure the CRC32 received in the message from the client and the
-        // one created using the received bytes match exactly. If they do not, then the message is corrupt and must
-        // be discarded.
-        if (!msgOBJ.sentMessageValidator(packetBytes, bytesRead)) {
-            message = " ";//Empty the String
-            message = "The message was not valid. please try again.";//Status update message for client
-            write(key);//Calls the write() method to send status update to client
+        selectStart = System.nanoTime();
+        passStarted = false;
+
+        if (!readyBatch.isEmpty() || !readyConnections.isEmpty()) {
+            timeout = 0;//Queued connections are waiting, do not wait for the Selector
         }
-        else {
-            //If everything checks out calls the messageHandling() method to take client requested action with the
-            // message
-            messageHandling(key);
+        try {
+            if (epoll != null) {
+                pollEpoll(timeout);
+            }
+            else {
+                //Blocks, spins or a mix of both(see setWaitStrategy()), passing each ready key to handleKey()
+                selectorWait.select(selector, keyHandler, timeout);
+            }
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
         }
+
+        if (!passStarted) {
+            startPass();//No key was ready, the pass starts with the queued connections
+        }
+
+        pollReady();
+        flushPending();
+
+        lastPassWork = System.nanoTime() - passStart;
     }
 
-    /**---------------------------------------------------------------------------------------------------------------
-     |Method: messageHandling
-     |Abstract: This method accepts the a key from the Selector. The method is used to handle received bytes from
-     |          the server. To do this, it gets the message type, message length, and PDU using the MessageFormatter
-     |          class. Once all information is obtained, it uses a switch statement to determine the appropriate action
-     |          based on the message type and call the correct method. In any case a message is sent to the requesting
-     |          client as a confirmation of the action taken
-     |Return: void, modifies local variables using class variables and objects
-     \--------------------------------------------------------------------------------------------------------------*/
-    private void messageHandling(SelectionKey key){
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: pollEpoll
+     |Abstract: The epoll counterpart of the Selector wait in poll(). Waits up to timeout ms in epoll_wait, or not at
+     |          all with the BUSY_SPIN strategy, and at most EPOLL_TIMEOUT ms so an interrupt is seen. Takes the events
+     |          from the transport's buffer in place: the listener is accepted from, the eventfd reset, and each client
+     |          read on input, hang up or error and flushed when it has room again and responses are pending. A client
+     |          already queued as ready is left to pollReady(), so it is read once per pass. Channels still on the
+     |          Selector are then looked at without blocking, and while there are any epoll waits EPOLL_SELECTOR_TIMEOUT
+     |          ms at most
+     |Return: void, manipulates local and class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void pollEpoll(long timeout) throws IOException{
+        boolean selectorChannels = !selector.keys().isEmpty();//Unix domain, TLS, UDP or relay channels
+        int wait = (int) Math.min(timeout, selectorChannels ? EPOLL_SELECTOR_TIMEOUT : EPOLL_TIMEOUT);
 
-        int messageType, messageLength = 0;//Int type variables to hold type and length of received message
+        if (epollAcceptPending || (selectorWait.getStrategy() == SelectorWait.Strategy.BUSY_SPIN)) {
+            wait = 0;
+        }
 
-        //Use the getSentMessageType() method form the MessageFormatter object to set the received message's type
-        messageType = msgOBJ.getSentMessageType();
+        int ready = epoll.waitForEvents(Math.max(wait, 0));
 
-        //Use the getSentMessageLength() method form the MessageFormatter object to set the received message's length
-        messageLength = msgOBJ.getSentMessageLength();
+        if (epollAcceptPending) {
+            if (!passStarted) {
+                startPass();
+            }
+            acceptEpoll();//Connections left queued by the last batch
+        }
 
-        System.out.println("The message was " + messageLength + " bytes long");//Prints size of message
+        for (int i = 0; i < ready; i++) {
+            long id = epoll.eventData(i);
+            int flags = epoll.eventFlags(i);
 
-        //Use the getSentMessageText() method form the MessageFormatter object to get the PDU(payload i.e. text) of the
-        // received message
-        message = msgOBJ.getSentMessageText(packetBytes);//Passes the byte array set during the read from the ByteBuffer
+            if (!passStarted) {
+                startPass();
+            }
 
-        //Based on the message type, performs the requested operation on the PDU(payload) by the user
-        switch (messageType){
-            case 1: System.out.println("User has chosen to do nothing with the received message");//Status update
-                message = "The message has been processed, verified, and disregarded";//Status update to send to client
-                write(key);//Send status update message to client
-                break;
-            case 2: System.out.println("User has chosen to echo the received message.");//Status update
-                echoMessage(key);//Echo received message to client
-                break;
-            case 3: System.out.println("User has chosen to print the received message to the console.");//Status update
-                System.out.println(message);//Print message to Server console
-                message = "The message has been written to the Echo Server console";//Status update to send to client
-                write(key);//Send status update message to client
-                break;
-            default: System.out.println("The Message Type used is unsupported please try again");//Status update
-                break;
+            if (id == EpollTransport.LISTENER_ID) {
+                if (verbose) System.out.println("Checking if epoll listener is acceptable...");
+                acceptEpoll();
+                continue;
+            }
+            if (id == EpollTransport.WAKEUP_ID) {
+                epoll.drainWakeup();//Queued connections are taken by the next pass
+                continue;
+            }
+
+            Connection conn = connections.get(id);
+            if ((conn == null) || conn.isReady()) {
+                continue;//Closed earlier in this pass, or queued already and read by pollReady()
+            }
+            if ((flags & EpollTransport.READABLE) != 0) {
+                read(conn);
+            }
+            if (((flags & EpollTransport.WRITABLE) != 0) && conn.getChannel().isOpen() && conn.hasPendingWrites()) {
+                flush(conn);//Finish sending responses a previous write left behind
+            }
+        }
+
+        if (selectorChannels) {
+            selectorWait.select(selector, keyHandler, 0);
         }
     }
 
-    /**---------------------------------------------------------------------------------------------------------------
-     |Method: echoMessage
-     |Abstract: This method accepts the a key from the Selector. The method established a socket channel, creates a byte
-     |          array packed with the bytes of the PDU(payload) received from the client, and sends them back to client.
-     |          After it has completed the task, registers the key with Selector to listen for READ operations
-     |Return: void, modifies local variables using class variables and objects
-     \--------------------------------------------------------------------------------------------------------------*/
-    private void echoMessage (SelectionKey key){
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: startPass
+     |Abstract: Notes when the pass started handling work. Bytes that became ready while the previous pass was busy
+     |          waited up to its length, less any time spent waiting in the Selector since
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void startPass(){
+        passStarted = true;
+        passStart = System.nanoTime();
+        passBacklog = Math.max(0, lastPassWork - (passStart - selectStart));
+    }
 
-        msgByteArray = message.getBytes(charset); //Encode the bytes using the predefined charset
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: handleKey
+     |Abstract: Called by the Selector, through keyHandler, for every key that became ready during poll(). Matches the
+     |          key against known types and passes it, or the Connection attached to it, to the appropriate method
+     |Return: void, manipulates local and class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void handleKey(SelectionKey key) throws IOException{
+        if (!passStarted) {
+            startPass();
+        }
 
-        try {
-            writeBuffer = ByteBuffer.wrap(msgByteArray);//Wrap the byte array in a buffer to send
+        //Check the event type of the current key and use the appropriate method as long as key is valid
+        if (!key.isValid()) {
+            if (verbose) System.out.println("This key was not valid...");
+        }
 
-            System.out.println("Echoing bytes to: " + socketChannel.socket().getInetAddress());//Status update
+        //Are we accepting?
+        else if (key.isAcceptable()) {
+            if (verbose) System.out.println("Checking if key is acceptable...");
+            accept(key);//If the key is an acceptable type, passes key to accept() method
+        }
 
-            socketChannel.write(writeBuffer);//Sending to the client via socket channel
+        //Are we reading datagrams?
+        else if (key.channel() == datagramChannel) {
+            if (verbose) System.out.println("Checking if datagrams are readable...");
+            receiveDatagrams();//The UDP listener has no Connection, every datagram stands alone
+        }
 
-            System.out.println("Bytes sent.");//Completed operation status update
-        }catch (IOException ioe){
-            ioe.printStackTrace();
+        //Is a backend server answering or ready for more relayed requests?
+        else if (key.attachment() instanceof RelayUpstream) {
+            RelayUpstream upstream = (RelayUpstream) key.attachment();
+
+            if (key.isReadable()) {
+                readUpstream(upstream);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(upstream.getConnection());
+            }
         }
-        writeBuffer.clear();//Clear the write buffer to prepare to write again
 
-        key.interestOps(SelectionKey.OP_READ);//Notify the Selector Waiting for a read key
-    }
+        //Is the connection queued already? pollReady() reads and flushes it this pass or the next, once per pass
+        else if ((key.attachment() instanceof Connection) && ((Connection) key.attachment()).isReady()) {
+            if (verbose) System.out.println("Key's connection is queued, skipping...");
+        }
 
-    /**---------------------------------------------------------------------------------------------------------------
-     |Method: write
-     |Abstract: This method accepts the a key from the Selector. The method is used to write messages to the client.
-     |          After completion, registers with the Selector to listen for READ operations
-     |Return: void, modifies local variables using class variables and objects
-     \--------------------------------------------------------------------------------------------------------------*/
-    private void write(SelectionKey key){
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+        //Are we reading?
+        else if (key.isReadable()) {
+            if (verbose) System.out.println("Checking if key is readable...");
+            read((Connection) key.attachment());//If the key is a readable type, passes its Connection to read()
+        }
 
-        //Pack a byte array with the bytes of the message, encoded using the predefined charset
-        msgByteArray = message.getBytes(charset);
+        //Are we writing
+        else if (key.isWritable()){
+            if (verbose) System.out.println("Checking if key is writable...");
+            flush((Connection) key.attachment());//Finish sending responses a previous write left behind
+        }
 
-        int bytesWritten = 0;//An int type variable to hold how many bytes are read from the socket Channel
+        else{
+            //Do nothing
+        }
+    }
 
-        try {
-            //Wrap the entire byte array in a ByteBuffer. Doing it this way ensures no additional memory is used by the
-            // JVM as the ByteBuffer is only as big as the array to holds
-            writeBuffer = ByteBuffer.wrap(msgByteArray);
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: takeReady
+     |Abstract: Takes the connections queued as ready for this pass, the ones pollReady() services. Connections
+     |          queued while the pass runs, e.g. by a read that stopped at the read budget, wait for the next pass, so
+     |          no connection is read twice in one pass
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void takeReady(){
+        Connection conn;
 
-            bytesWritten = socketChannel.write(writeBuffer);//Send bytes to client
-        }catch (IOException ioe){
-            ioe.printStackTrace();
+        while ((conn = readyConnections.poll()) != null) {
+            readyBatch.add(conn);
         }
+    }
 
-        writeBuffer.clear();//Clear the buffer to reset position at zero
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: pollReady
+     |Abstract: Services every connection queued as ready when this pass started: reads and handles whatever frames
+     |          the client sent and writes any responses still pending. A connection whose channel still holds data
+     |          afterwards is queued again by read() for the next pass so one busy client cannot hold up the loop
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void pollReady(){
+        Connection conn;
 
-        key.interestOps(SelectionKey.OP_READ);//Notify the Selector Waiting for a read key
+        for (int i = 0; i < readyBatch.size(); i++) {
+            conn = readyBatch.get(i);
+            conn.clearReady();
+
+            if (!conn.getChannel().isOpen()) {
+                continue;
+            }
+            if (!connections.contains(conn.getId())) {
+                connections.add(conn);//A loopback connection, opened on another thread, is serviced the first time
+            }
+
+            read(conn);
+            flush(conn);
+        }
+        readyBatch.clear();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: pollSharedMemory
+     |Abstract: Reads and handles whatever frames shared memory clients have written and writes responses that did not
+     |          fit in their ring last time. Connections whose client has gone are dropped
+     |Return: boolean, true if any connection had work
+     \----------------------------------------------------------------------------------------------------------------*/
+    private boolean pollSharedMemory(){
+        boolean busy = false;
+
+        for (int i = 0; i < sharedMemoryConnections.size(); i++) {
+            Connection conn = sharedMemoryConnections.get(i);
+            SharedMemoryChannel channel = (SharedMemoryChannel) conn.getChannel();
+
+            if (!channel.isOpen()) {
+                sharedMemoryConnections.remove(i--);
+                continue;
+            }
+
+            if ((channel.available() > 0) || channel.isPeerClosed() || conn.hasDeferredFrames()) {
+                read(conn);//Reads -1 and closes once a closed client's last frames are handled
+                busy = true;
+            }
+            if (conn.hasPendingWrites()) {
+                flush(conn);
+                busy = true;
+            }
+        }
+        return busy;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: openLoopbackConnection
+     |Abstract: Creates an in-process connection to this server that never touches the kernel. The returned channel is
+     |          the client's end: frames written to it are handled by the same read(), getMessageDetails(),
+     |          messageHandling() and write path as frames from a socket, and the framed responses can be read back
+     |          from it. Each direction is a ring buffer of the given capacity in bytes
+     |Return: LoopbackChannel, the client end of the new connection
+     \----------------------------------------------------------------------------------------------------------------*/
+    public LoopbackChannel openLoopbackConnection(int capacity){
+        LoopbackChannel clientEnd = new LoopbackChannel(capacity);
+        LoopbackChannel serverEnd = clientEnd.getPeer();
+
+        final Connection conn = new Connection(serverEnd, null, "loopback");
+
+        //The client writing a frame or reading a response may let the server make progress on this connection
+        serverEnd.setListener(new Runnable() {
+            public void run() {
+                markReady(conn);
+            }
+        });
+        markReady(conn);//The loop adds it to its connection table
+
+
+        return clientEnd;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: markReady
+     |Abstract: Queues a connection for the next pass of the loop, once, and wakes the Selector at most once
+     |          for any number of connections queued while the loop is busy. Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void markReady(Connection conn){
+        if (conn.markReady()) {
+            readyConnections.offer(conn);
+
+            if (wakeupPending.compareAndSet(false, true)) {
+                if (epoll != null) {
+                    epoll.wakeup();//The loop waits in epoll_wait, not in the Selector
+                }
+                else {
+                    selector.wakeup();
+                }
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: startCapture
+     |Abstract: Starts recording every frame received on a connection(with its arrival time and connection ID) into a
+     |          capture file that CaptureReplay can send to a server again. The file is written by a background thread.
+     |          Datagrams are not recorded. Safe to call from any thread; replaces any capture already running
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void startCapture(Path file) throws IOException{
+        TrafficCapture previous = capture;
+
+        capture = new TrafficCapture(file);
+        if (previous != null) {
+            previous.stop();
+        }
+
+        System.out.println("Capturing received frames to " + file);//Status message to console
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: stopCapture
+     |Abstract: Stops recording and waits until everything recorded is in the file. Safe to call from any thread
+     |Return: TrafficCapture, the stopped capture for its counts, or null if none was running
+     \----------------------------------------------------------------------------------------------------------------*/
+    public TrafficCapture stopCapture() throws IOException{
+        TrafficCapture stopped = capture;
+
+        if (stopped != null) {
+            capture = null;
+            stopped.stop();
+
+            System.out.println("Captured " + stopped.getRecordedCount() + " frames to " + stopped.getPath() + ", " +
+                    stopped.getDroppedCount() + " dropped");//Status message to console
+        }
+        return stopped;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getOverloadController
+     |Abstract: The controller deciding which requests are shed under overload, for changing its target and interval
+     |          and reading its level and shed counts
+     |Return: OverloadController, this server's controller
+     \----------------------------------------------------------------------------------------------------------------*/
+    public OverloadController getOverloadController(){
+        return overload;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setWaitStrategy
+     |Abstract: Sets how the event loop waits for its Selector. BUSY_SPIN and ADAPTIVE keep a core busy while clients are
+     |          active for lower latency, see SelectorWait. Safe to call from any thread; takes effect on the next pass
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setWaitStrategy(SelectorWait.Strategy strategy){
+        selectorWait = new SelectorWait(strategy);
+    }
+
+    public SelectorWait.Strategy getWaitStrategy(){
+        return selectorWait.getStrategy();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setCorkBytes
+     |Abstract: Sets how many bytes of responses a connection may queue before they are written without waiting for the
+     |          end of the pass. 0 writes every response as soon as it is made, one write per response. Safe to call
+     |          from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setCorkBytes(int corkBytes){
+        this.corkBytes = corkBytes;
+    }
+
+    public int getCorkBytes(){
+        return corkBytes;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getReceiveBufferBytes
+     |Abstract: Bytes of receive buffer held by connections right now. Only connections with part of a frame waiting
+     |          hold one, so divided by the number of connections this is the receive footprint per connection
+     |Return: long, bytes lent out
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long getReceiveBufferBytes(){
+        return receiveBuffers.getLentBytes();
+    }
+
+    public long getPooledReceiveBufferBytes(){
+        return receiveBuffers.getPooledBytes();
+    }
+
+    public long getReceiveBufferAllocations(){
+        return receiveBuffers.getAllocations();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getConnectionCount
+     |Abstract: Number of open connections of every kind. Safe to call from any thread
+     |Return: int, connection count
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int getConnectionCount(){
+        return connections.size();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getConnectionIds
+     |Abstract: IDs of the open connections, as used in captures and JFR events, from a copy of the connection table
+     |          taken without stopping the loop. Safe to call from any thread
+     |Return: long[], connection IDs in no particular order
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long[] getConnectionIds(){
+        Connection[] open = connections.snapshot();
+        long[] ids = new long[open.length];
+
+        for (int i = 0; i < open.length; i++) {
+            ids[i] = open[i].getId();
+        }
+        return ids;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setMaxPushBacklog
+     |Abstract: Sets how many bytes may wait to be sent to a client before broadcasts to it are dropped, so a client that
+     |          stops reading costs at most this much memory and never slows the broadcast to the others. Safe to call
+     |          from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setMaxPushBacklog(int maxPushBacklog){
+        this.maxPushBacklog = maxPushBacklog;
+    }
+
+    public int getMaxPushBacklog(){
+        return maxPushBacklog;
+    }
+
+    public long getDeliveryCount(){
+        return deliveryCount;
+    }
+
+    public long getDroppedDeliveryCount(){
+        return droppedDeliveryCount;
+    }
+
+    public long getRelayedCount(){
+        return relayedCount;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setAcceptBatch
+     |Abstract: Sets how many pending connections one OP_ACCEPT wakeup accepts at most before the loop moves on to the
+     |          other ready keys. Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setAcceptBatch(int acceptBatch){
+        this.acceptBatch = Math.max(1, acceptBatch);
+    }
+
+    public int getAcceptBatch(){
+        return acceptBatch;
+    }
+
+    public int getBacklog(){
+        return backlog;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setReadBudget
+     |Abstract: Sets how many frames one connection has handled per pass of the event loop at most, so a client
+     |          pipelining thousands of requests cannot make the others wait for all of them. Frames beyond the budget
+     |          wait in the connection's receive buffer for the next pass. 0 for no limit. Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setReadBudget(int readBudget){
+        this.readBudget = (readBudget > 0) ? readBudget : Integer.MAX_VALUE;
+    }
+
+    public int getReadBudget(){
+        return readBudget;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getReadBudgetExhaustedCount
+     |Abstract: Number of reads that stopped at the read budget and left frames for the next pass
+     |Return: long, count since the server started
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long getReadBudgetExhaustedCount(){
+        return readBudgetExhaustedCount;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setSocketOptions
+     |Abstract: Sets the options every TCP connection accepted from now on gets: TCP_NODELAY(on by default, since
+     |          responses are coalesced before they are written) and the socket send and receive buffer sizes, 0 to
+     |          keep the system defaults. Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setSocketOptions(boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize){
+        this.tcpNoDelay = tcpNoDelay;
+        this.socketSendBufferSize = sendBufferSize;
+        this.socketReceiveBufferSize = receiveBufferSize;
+    }
+
+    public long getAcceptCount(){
+        return acceptCount;
+    }
+
+    public long getAcceptWakeups(){
+        return acceptWakeups;
+    }
+
+    public long getBlobCount(){
+        return blobCount;
+    }
+
+    public long getBlobBytes(){
+        return blobBytes;
+    }
+
+    public long getResponseCount(){
+        return responseCount;
+    }
+
+    public int getKeyValueCount(){
+        return (keyValues == null) ? 0 : keyValues.getEntryCount();
+    }
+
+    public long getKeyValueEvictions(){
+        return (keyValues == null) ? 0 : keyValues.getEvictionCount();
+    }
+
+    public long getKeyValueBytes(){
+        return (keyValues == null) ? 0 : keyValues.getAllocatedBytes() + keyValues.getIndexBytes();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getWriteCount
+     |Abstract: Number of writes made to client channels so far, one system call each for a socket. Divided by
+     |          getResponseCount() it shows how well responses are coalesced
+     |Return: long, writes made
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long getWriteCount(){
+        return writeCount;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setVerbose
+     |Abstract: Turns the per key and per message status messages on the console on or off. They are on by default;
+     |          turning them off leaves only the cost of the request path itself, e.g. for benchmarks
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setVerbose(boolean verbose){
+        this.verbose = verbose;
+        msgOBJ.setVerbose(verbose);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: accept
+     |Abstract: This method accepts the a key from the Selector. Accepts the pending connections of the key's server
+     |          socket channel, up to the accept batch(see setAcceptBatch()), so a storm of connections is taken off the
+     |          listen queue in a few wakeups instead of one wakeup each. Each socket channel gets the socket options
+     |          set with setSocketOptions(), is configured non-blocking, and requests a READ operation with the Selector
+     |          for any incoming messages from newly connected Echo Clients
+     |Return: void, modifies local variables using class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void accept(SelectionKey key)throws IOException{
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+        boolean tcp = (serverSocketChannel != unixServerChannel);//Unix domain sockets have no TCP options
+        int batch = acceptBatch;
+        int accepted = 0;
+
+        acceptWakeups++;
+
+        while (accepted < batch) {
+            SocketChannel socketChannel;
+
+            try {
+                socketChannel = serverSocketChannel.accept();
+            }catch(IOException ioe){
+                //E.g. out of file descriptors. The rest stay queued, the Selector reports them again
+                ioe.printStackTrace();
+                break;
+            }
+
+            if (socketChannel == null) {
+                break;//Listen queue drained
+            }
+            accepted++;
+
+            try {
+                //Unix domain socket clients are unnamed, so they are described by the path they connected through
+                String description = !tcp ? "unix:" + unixSocketPath
+                        : (serverSocketChannel == tlsServerChannel) ? "tls:" + socketChannel.getRemoteAddress()
+                        : String.valueOf(socketChannel.getRemoteAddress());
+
+                //Prints to console a status message of a connection
+                if (verbose) System.out.println("Connected to client: " + description);
+
+                if (tcp) {
+                    applySocketOptions(socketChannel);
+                }
+
+                //Configures new socket channel to non-blocking
+                socketChannel.configureBlocking(false);
+
+                //Registers the channel with the Selector and sets a request for any READ operations
+                SelectionKey clientKey = socketChannel.register(selector, SelectionKey.OP_READ);
+
+                //Clients of the TLS listener are read and written through an SSLEngine; the rest of the path is the
+                // same
+                ByteChannel channel = socketChannel;
+                if (serverSocketChannel == tlsServerChannel) {
+                    channel = openTlsChannel(socketChannel);
+                }
+
+                //Attaches the per client state so partial frames and pending responses follow the key
+                final Connection conn = new Connection(channel, clientKey, description);
+                clientKey.attach(conn);
+                connections.add(conn);
+
+                if (channel instanceof TlsChannel) {
+                    //Handshake tasks finish on another thread; the loop then carries on with the handshake
+                    ((TlsChannel) channel).setTaskListener(new Runnable() {
+                        public void run() {
+                            markReady(conn);
+                        }
+                    });
+                }
+            }catch(IOException ioe){
+                //The client went away before it was registered, e.g. reset while queued
+                if (verbose) System.out.println("Unable to connect to Echo Client");//Prints a status update to the console
+                socketChannel.close();
+            }
+        }
+
+        acceptCount += accepted;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: acceptEpoll
+     |Abstract: The epoll counterpart of accept(). Accepts up to acceptBatch pending connections from the native
+     |          listener, applies the socket options and registers each with the transport under its connection ID.
+     |          Being edge triggered, the listener is not reported again for connections left in the queue, so a
+     |          batch that fills up makes the next pass accept again without waiting
+     |Return: void, modifies class variables
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void acceptEpoll(){
+        int batch = Math.max(1, acceptBatch);
+        int accepted = 0;
+
+        acceptWakeups++;
+        epollAcceptPending = false;
+
+        while (accepted < batch) {
+            int fd;
+
+            try {
+                fd = epoll.accept();
+            }catch(IOException ioe){
+                //E.g. out of file descriptors. The rest stay queued until the next connection is reported
+                ioe.printStackTrace();
+                break;
+            }
+
+            if (fd < 0) {
+                break;//Listen queue drained
+            }
+            accepted++;
+
+            String description = epoll.getAcceptedPeer();
+            if (verbose) System.out.println("Connected to client: " + description);//Status message of a connection
+
+            EpollChannel channel = new EpollChannel(epoll, fd);
+            try {
+                epoll.configure(fd, tcpNoDelay, socketSendBufferSize, socketReceiveBufferSize);
+
+                Connection conn = new Connection(channel, null, description);
+                epoll.register(fd, conn.getId());
+                connections.add(conn);
+            }catch(IOException ioe){
+                //The client went away before it was registered, e.g. reset while queued
+                if (verbose) System.out.println("Unable to connect to Echo Client");//Status update to the console
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    closeFailure.printStackTrace();
+                }
+            }
+        }
+
+        epollAcceptPending = (accepted == batch);
+        acceptCount += accepted;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: applySocketOptions
+     |Abstract: Applies the options set with setSocketOptions() to a newly accepted TCP socket
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void applySocketOptions(SocketChannel socketChannel) throws IOException{
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+
+        if (socketSendBufferSize > 0) {
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, socketSendBufferSize);
+        }
+        if (socketReceiveBufferSize > 0) {
+            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, socketReceiveBufferSize);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: openTlsChannel
+     |Abstract: Wraps an accepted socket in a server mode TLS 1.3 channel using the listener's context, thread pool and
+     |          buffer pools
+     |Return: TlsChannel, channel the new client is read and written through
+     \--------------------------------------------------------------------------------------------------------------*/
+    private TlsChannel openTlsChannel(SocketChannel socketChannel) throws IOException{
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(new String[] {TlsChannel.PROTOCOL});
+
+        return new TlsChannel(socketChannel, engine, tlsTaskExecutor, tlsNetPool, tlsAppPool);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: This method accepts the client's Connection. This method reads the information from the connection's
+     |          channel(a socket or a loopback channel) into its receive buffer and checking that data is being
+     |          written from the client. Clients may pipeline several frames in one write and TCP may split a frame
+     |          across reads, so every complete frame in the buffer is cut out and passed to getMessageDetails() to
+     |          decipher and verify per custom protocol ICD. Bytes of an incomplete frame stay in the buffer for the
+     |          next read. At most readBudget frames are handled per call; whole frames past it stay in the buffer too
+     |          and the connection is queued for the next pass, where they are handled before anything new is read
+     |          behind them. The buffer is borrowed from a pool for the read and returned once no such bytes are left,
+     |          its size following the sizes of recent reads(see Connection.adaptInbound())
+     |Return: void, modifies local variables using class variables and a objects
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void read(Connection conn){
+        ByteChannel channel = conn.getChannel();
+
+        //The connection's ByteBuffer, which may already hold the start of a frame from the previous read
+        readBuffer = conn.getInbound(receiveBuffers);
+
+        bytesRead = 0;//An int type variable to hold the bytes read from the socket channel
+
+        if (verbose) System.out.println("Reading from the Buffer...");//Status update message
+
+        RequestEvents.FrameRead readEvent = RequestEvents.beginRead();//Null unless a JFR recording wants it
+
+        try {
+            bytesRead = channel.read(readBuffer);//Reading from the channel to ByteBuffer
+
+            //A read that filled the buffer may have left more behind; grow it and carry on rather than wait a pass
+            while ((bytesRead > 0) && !readBuffer.hasRemaining() && conn.growInbound(receiveBuffers)) {
+                readBuffer = conn.getInbound(receiveBuffers);
+
+                int more = channel.read(readBuffer);
+                if (more <= 0) {
+                    break;//A closed channel reads -1 again next time, after the frames already here are handled
+                }
+                bytesRead += more;
+            }
+
+            //Checks if ByteBuffer reads a -1 which means no data or error sent
+            if (bytesRead == -1) {
+                //Status update
+                if (verbose) System.out.println("Nothing received from the client. Closing connection. " +
+                        "Please try again. ");
+                closeConnection(conn);
+                return;
+            }
+            else {
+                //Do nothing
+            }
+        } catch (IOException ioe) {
+            System.out.println("Client closed connection unexpectedly. Force closing connection.");
+
+            closeConnection(conn);
+
+            return;
+        }
+
+        readBuffer.flip();//Prepare the ByteBuffer to be read from the beginning of the oldest unprocessed frame
+
+        int frameLength = MessageFormatter.frameLength(readBuffer);
+        int budget = readBudget;
+        int frames = 0;
+
+        //Cut out and process every complete frame currently held in the buffer, up to the budget
+        while ((frameLength != -1) && (frameLength <= MessageFormatter.MAX_FRAME_LENGTH)
+                && (frameLength <= readBuffer.remaining()) && (frames++ < budget)) {
+            if (!channel.isOpen()) {
+                break;//A failed flush closed it and gave readBuffer back to the pool, the frames left go with it
+            }
+
+            readBuffer.get(packetBytes, 0, frameLength);
+            packetLength = frameLength;
+
+            TrafficCapture currentCapture = capture;
+            if (currentCapture != null) {
+                currentCapture.record(conn.getId(), packetBytes, frameLength);//Copied, handed to the capture thread
+            }
+
+            tracing = RequestEvents.trace();
+            if (tracing && (readEvent != null)) {
+                readEvent.finish(conn.getId(), RequestEvents.messageType(packetBytes),
+                        RequestEvents.payloadLength(packetBytes));
+            }
+
+            getMessageDetails(conn);//Calls getMessageDetails() method to parse the received bytes
+
+            if (readEvent != null) {
+                readEvent = RequestEvents.beginRead();//The next frame in the buffer is read from here on
+            }
+            frameLength = MessageFormatter.frameLength(readBuffer);
+        }
+        tracing = false;
+
+        if (!channel.isOpen()) {
+            return;//A failed write closed it and returned the buffer
+        }
+
+        //The loop stopped at the budget with a whole frame, at least, still to handle
+        boolean deferred = (frames > budget);
+
+        readBuffer.compact();//Keep the deferred frames or the start of an incomplete one and get ready for the next read
+
+        //A frame longer than the ICD allows can never fit in the buffer, so the stream cannot be resynchronized
+        if (frameLength > MessageFormatter.MAX_FRAME_LENGTH) {
+            if (verbose) System.out.println("Frame of " + frameLength + " bytes exceeds the ICD maximum. " +
+                    "Closing connection.");
+            message = "The message was too long. Closing connection.";
+            write(conn, MessageFormatter.TYPE_ERROR);
+            flush(conn);//Send it before the connection goes
+            closeConnection(conn);
+            return;
+        }
+
+        //Deferred frames keep a buffer large enough to hold them
+        conn.adaptInbound(receiveBuffers, bytesRead, deferred ? readBuffer.position() : Math.max(frameLength, 0));
+        conn.setFramesDeferred(deferred);
+
+        //Data already taken off the channel, e.g. a TLS record behind the one just read, is never reported by the
+        // Selector, and neither are deferred frames, so the connection is queued for the next pass instead. Shared
+        // memory connections are looked at every pass anyway(see pollSharedMemory())
+        if (deferred) {
+            readBudgetExhaustedCount++;
+            if (!(channel instanceof SharedMemoryChannel)) {
+                markReady(conn);
+            }
+        }
+        else if (conn.hasBufferedInput()) {
+            markReady(conn);
+        }
+
+        //TLS handshake records the socket could not take yet wait for writability like responses do. Queued
+        // responses wait for the end of the pass
+        if (!conn.hasPendingWrites() && conn.needsWriteInterest()) {
+            flush(conn);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: receiveDatagrams
+     |Abstract: Drains the UDP listener: receives datagrams until none is left or DATAGRAM_BATCH have been handled, the
+     |          nearest Java gets to a batched recvmmsg(). Every complete frame in a datagram is cut out into packetBytes
+     |          and passed to handleDatagramFrame(); a frame cut short by the end of the datagram is dropped. The echo
+     |          replies to one datagram go back to its sender together in a single datagram
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void receiveDatagrams(){
+        try {
+            for (int received = 0; received < DATAGRAM_BATCH; received++) {
+                datagramBuffer.clear();
+                SocketAddress sender = datagramChannel.receive(datagramBuffer);
+
+                if (sender == null) {
+                    break;//Drained
+                }
+
+                datagramBuffer.flip();
+                datagramReplyBuffer.clear();
+
+                int frameLength = MessageFormatter.frameLength(datagramBuffer);
+
+                //Cut out and process every complete frame in the datagram
+                while ((frameLength != -1) && (frameLength <= MessageFormatter.MAX_FRAME_LENGTH)
+                        && (frameLength <= datagramBuffer.remaining())) {
+                    datagramBuffer.get(packetBytes, 0, frameLength);
+                    packetLength = frameLength;
+
+                    handleDatagramFrame(sender);
+
+                    frameLength = MessageFormatter.frameLength(datagramBuffer);
+                }
+
+                if (datagramBuffer.hasRemaining()) {
+                    if (verbose) System.out.println("Dropped an incomplete frame from " + sender);
+                }
+
+                sendDatagramReplies(sender);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();//A bad datagram or sender must not stop the listener
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: handleDatagramFrame
+     |Abstract: Checks one frame received over UDP with the same CRC32 logic as getMessageDetails() and performs the
+     |          requested operation. Only an echo request produces a reply, added to the reply datagram for the sender
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void handleDatagramFrame(SocketAddress sender) throws IOException{
+        msgOBJ.setCrc32c(false);//Datagrams have no connection to negotiate anything on
+        if (!msgOBJ.sentMessageValidator(packetBytes, packetLength)) {
+            if (verbose) System.out.println("Dropped a datagram frame from " + sender + " that failed CRC32 checking");
+            return;
+        }
+
+        switch (msgOBJ.getSentMessageType()){
+            case MessageFormatter.TYPE_NOTHING:
+                if (verbose) System.out.println("Datagram frame processed, verified, and disregarded");
+                break;
+            case MessageFormatter.TYPE_ECHO: if (verbose) System.out.println("Echoing datagram frame to: " + sender);
+                int length = msgOBJ.getSentMessageLength();
+
+                //The reply datagram is full, send it and start the next one
+                if (datagramReplyBuffer.remaining()
+                        < MessageFormatter.HEADER_LENGTH + length + MessageFormatter.CRC_LENGTH) {
+                    sendDatagramReplies(sender);
+                }
+                MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, packetBytes, MessageFormatter.HEADER_LENGTH,
+                        length, datagramReplyBuffer);
+                break;
+            case MessageFormatter.TYPE_PRINT:
+                if (msgOBJ.isSentMessageTextValid(packetBytes)) {
+                    printPayload();//Print message to Server console
+                }
+                else {
+                    if (verbose) System.out.println("Dropped a datagram frame from " + sender + " that is not valid UTF-8");
+                }
+                break;
+            default: if (verbose) System.out.println("Dropped a datagram frame of an unsupported Message Type");
+                break;
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: sendDatagramReplies
+     |Abstract: Sends the echo replies gathered for a sender as one datagram, if there are any. Like any UDP datagram it
+     |          may be dropped, here too if the socket send buffer is full
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void sendDatagramReplies(SocketAddress sender) throws IOException{
+        if (datagramReplyBuffer.position() == 0) {
+            return;
+        }
+
+        datagramReplyBuffer.flip();
+        if (datagramChannel.send(datagramReplyBuffer, sender) == 0) {
+            if (verbose) System.out.println("Send buffer full, dropped the echo reply to " + sender);
+        }
+        datagramReplyBuffer.clear();
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: getMessageDetails
+     |Abstract: This method accepts the client's Connection. The method is used to parse one frame received from the
+     |          client, already cut out of the stream into packetBytes by read(). If the message is deemed not valid by
+     |          CRC32 checking, sends a message to the client by calling the write() method. if the message is valid
+     |          and the overload controller admits it, calls the messageHandling() method; otherwise answers BUSY
+     |          straight away. Validation and dispatch of a traced request are timed as JFR events
+     |Return: void, modifies class variables and objects
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void getMessageDetails(Connection conn){
+
+        if (verbose) {
+            System.out.println("packetBytes is " + packetLength + " long.");//Print the size of the frame
+
+            //Prints contents of the frame 1 byte at a time casted as char type
+            for (int i = 0; i < packetLength; i++){
+                System.out.print((char) packetBytes[i]);
+            }
+
+            //Calls the printMessage() method of the MessageFormatter object to parse and print the contents received
+            // bytes. Passes in the filled byte array and the length of the frame
+            msgOBJ.printMessage(packetBytes, packetLength);
+        }
+
+        //Calls the sentMessageValidator() method to make sure the CRC32 received in the message from the client and the
+        // one created using the received bytes match exactly. If they do not, then the message is corrupt and must
+        // be discarded.
+        RequestEvents.RequestEvent event = tracing ? RequestEvents.begin(new RequestEvents.FrameValidate()) : null;
+        msgOBJ.setCrc32c(conn.usesCrc32c());//The checksum agreed with a HELLO, CRC32 without one
+        boolean valid = msgOBJ.sentMessageValidator(packetBytes, packetLength);
+
+        if (event != null) {
+            event.finish(conn.getId(), RequestEvents.messageType(packetBytes), RequestEvents.payloadLength(packetBytes));
+        }
+
+        if (!valid) {
+            message = " ";//Empty the String
+            message = "The message was not valid. please try again.";//Status update message for client
+            write(conn, MessageFormatter.TYPE_ERROR);//Calls the write() method to send status update to client
+        }
+        else if (!admit()) {
+            message = "The Echo Server is busy. Please try again later.";//Status update message for client
+            write(conn, MessageFormatter.TYPE_BUSY);//Shed without doing the requested work
+        }
+        else {
+            //If everything checks out calls the messageHandling() method to take client requested action with the
+            // message
+            event = tracing ? RequestEvents.begin(new RequestEvents.FrameDispatch()) : null;
+
+            messageHandling(conn);
+
+            if (event != null) {
+                event.finish(conn.getId(), msgOBJ.getSentMessageType(), msgOBJ.getSentMessageLength());
+            }
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: admit
+     |Abstract: Asks the overload controller whether to handle the validated frame in packetBytes, given how long it has
+     |          waited: the backlog the pass started with plus the time the pass has spent so far
+     |Return: boolean, true to handle the request, false to shed it
+     \--------------------------------------------------------------------------------------------------------------*/
+    private boolean admit(){
+        long now = System.nanoTime();
+        boolean admitted = overload.admit(msgOBJ.getSentMessageType(), passBacklog + (now - passStart), now);
+
+        if (overload.getLevel() != lastOverloadLevel) {
+            lastOverloadLevel = overload.getLevel();
+            if (verbose) System.out.println("Overload level is now " + lastOverloadLevel + ": " + overload);//Status update
+        }
+        return admitted;
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: messageHandling
+     |Abstract: This method accepts the client's Connection. The method is used to handle received bytes from
+     |          the server. To do this, it gets the message type, message length, and PDU using the MessageFormatter
+     |          class. Once all information is obtained, it uses a switch statement to determine the appropriate action
+     |          based on the message type and call the correct method. In any case exactly one message is sent to the
+     |          requesting client as a confirmation of the action taken, so clients can pipeline requests and match
+     |          responses to them in order. A PRINT, JOIN or BLOB whose text is not valid UTF-8 is answered with an
+     |          ERROR. In relay mode the request is passed on to a backend server instead, all but a HELLO, which is
+     |          about this connection
+     |Return: void, modifies local variables using class variables and objects
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void messageHandling(Connection conn){
+
+        int messageType, messageLength = 0;//Int type variables to hold type and length of received message
+
+        if (msgOBJ.getSentMessageType() == MessageFormatter.TYPE_HELLO) {
+            if (verbose) System.out.println("Client " + conn.getDescription() + " sent a HELLO");//Status update
+            hello(conn);
+            return;
+        }
+
+        if (relayPools != null) {
+            relay(conn);//A relay handles nothing itself, a backend answers
+            return;
+        }
+
+        //Use the getSentMessageType() method form the MessageFormatter object to set the received message's type
+        messageType = msgOBJ.getSentMessageType();
+
+        //Use the getSentMessageLength() method form the MessageFormatter object to set the received message's length
+        messageLength = msgOBJ.getSentMessageLength();
+
+        if (verbose) System.out.println("The message was " + messageLength + " bytes long");//Prints size of message
+
+        //Text that is not well formed UTF-8 is refused before anything is done with it
+        if (MessageFormatter.isTextType(messageType) && !msgOBJ.isSentMessageTextValid(packetBytes)) {
+            if (verbose) System.out.println("The message is not valid UTF-8");//Status update
+            message = "The message is not valid UTF-8, please try again";//Status update to send to client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        //The PDU(payload) is decoded into a String only for the types that need the text, with the
+        // getSentMessageText() method of the MessageFormatter object; the others use the bytes in packetBytes as sent
+        //Based on the message type, performs the requested operation on the PDU(payload) by the user
+        switch (messageType){
+            case MessageFormatter.TYPE_NOTHING:
+                //Status update
+                if (verbose) System.out.println("User has chosen to do nothing with the received message");
+                message = "The message has been processed, verified, and disregarded";//Status update to send to client
+                write(conn, messageType);//Send status update message to client
+                break;
+            case MessageFormatter.TYPE_ECHO:
+                if (verbose) System.out.println("User has chosen to echo the received message.");//Status update
+                echoMessage(conn);//Echo received message to client
+                break;
+            case MessageFormatter.TYPE_PRINT:
+                //Status update
+                if (verbose) System.out.println("User has chosen to print the received message to the console.");
+                printPayload();//Print message to Server console
+                message = "The message has been written to the Echo Server console";//Status update to send to client
+                write(conn, messageType);//Send status update message to client
+                break;
+            case MessageFormatter.TYPE_BROADCAST:
+                if (verbose) System.out.println("User has chosen to broadcast the received message.");//Status update
+                broadcast(conn, messageLength);//Push the message to the other clients, then confirm to the sender
+                break;
+            case MessageFormatter.TYPE_JOIN: message = msgOBJ.getSentMessageText(packetBytes);
+                if (verbose) System.out.println("User has chosen to join the group " + message);//Status update
+                joinGroup(conn, message);
+                write(conn, messageType);//Send status update message to client
+                break;
+            case MessageFormatter.TYPE_BLOB: message = msgOBJ.getSentMessageText(packetBytes);
+                if (verbose) System.out.println("User has chosen to fetch the blob " + message);//Status update
+                sendBlob(conn, message);
+                break;
+            case MessageFormatter.TYPE_PUT:
+            case MessageFormatter.TYPE_GET:
+            case MessageFormatter.TYPE_DELETE:
+                if (verbose) System.out.println("User has chosen to use the key-value store.");//Status update
+                keyValue(conn, messageType, messageLength);
+                break;
+            default:
+                if (verbose) System.out.println("The Message Type used is unsupported please try again");//Status update
+                message = "The Message Type used is unsupported please try again";//Status update to send to client
+                write(conn, MessageFormatter.TYPE_ERROR);//Every request gets a response, even an unsupported one
+                break;
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: hello
+     |Abstract: This method accepts the client's Connection. Answers the HELLO in packetBytes with the settings the
+     |          connection uses from now on: the lower of the two protocol versions, the capabilities both sides
+     |          support, the smaller largest PAYLOAD and the client's pipelining depth capped at the read budget(see
+     |          setReadBudget()). The answer still carries the checksum the HELLO arrived with. A relay offers no
+     |          capabilities, since it forwards frames to backends that check them with a CRC32
+     |Return: void, modifies the Connection's settings and outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void hello(Connection conn){
+        int offset = MessageFormatter.HEADER_LENGTH;
+
+        if (msgOBJ.getSentMessageLength() < MessageFormatter.HELLO_LENGTH) {
+            message = "The HELLO is too short, please try again";//Status update message for client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        int version = Math.max(1, Math.min(MessageFormatter.helloVersion(packetBytes, offset),
+                MessageFormatter.PROTOCOL_VERSION));
+        int capabilities = (version < 2) ? 0 : MessageFormatter.helloCapabilities(packetBytes, offset) &
+                ((relayPools == null) ? MessageFormatter.CAPABILITY_CRC32C : 0);
+        int maxPayload = MessageFormatter.helloMaxPayload(packetBytes, offset);
+        maxPayload = (maxPayload == 0) ? MessageFormatter.MAX_PAYLOAD_LENGTH
+                : Math.min(maxPayload, MessageFormatter.MAX_PAYLOAD_LENGTH);
+        int depth = MessageFormatter.helloPipelineDepth(packetBytes, offset);
+        int budget = Math.min(readBudget, 0xFFFF);
+        depth = (depth == 0) ? budget : Math.min(depth, budget);
+
+        byte[] answer = MessageFormatter.encodeHello(version, capabilities, maxPayload, depth);
+        sendFrame(conn, MessageFormatter.TYPE_HELLO, answer, 0, answer.length);//Encoded before the settings change
+
+        conn.negotiate(version, (capabilities & MessageFormatter.CAPABILITY_CRC32C) != 0, maxPayload);
+        if (verbose) System.out.println("Negotiated version " + version + ", capabilities 0x" +
+                Integer.toHexString(capabilities) + ", PAYLOAD up to " + maxPayload + " bytes, depth " + depth);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: printPayload
+     |Abstract: Prints the PDU(payload) in packetBytes to the Server console as a line. The bytes are written as sent,
+     |          UTF-8, without decoding them into a String first, and the line ends with bytes of its own because
+     |          println() allocates on every call
+     |Return: void
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void printPayload(){
+        System.out.write(packetBytes, MessageFormatter.HEADER_LENGTH, msgOBJ.getSentMessageLength());
+        System.out.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: echoMessage
+     |Abstract: This method accepts the client's Connection. The method sends the bytes of the PDU(payload) received
+     |          from the client, exactly as received in packetBytes, back to client in a frame of the same type through
+     |          the sendFrame() method
+     |Return: void, modifies local variables using class variables and objects
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void echoMessage (Connection conn){
+
+        if (verbose) System.out.println("Echoing bytes to: " + conn.getDescription());//Status update
+
+        //Sending to the client via socket channel
+        sendFrame(conn, MessageFormatter.TYPE_ECHO, packetBytes, MessageFormatter.HEADER_LENGTH,
+                msgOBJ.getSentMessageLength());
+
+        if (verbose) System.out.println("Bytes sent.");//Completed operation status update
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: relay
+     |Abstract: This method accepts the client's Connection. Reserves the client's next response and queues the frame in
+     |          packetBytes, untouched, on a connection to the backend that owns the request's key(see relayTo()). The
+     |          backend connection is flushed with the rest of the pass, so requests relayed together share a write.
+     |          With no backend left the client is answered with an ERROR straight away
+     |Return: void, modifies the client's and the backend connection's queues
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void relay(Connection conn){
+        if (msgOBJ.getSentMessageType() == MessageFormatter.TYPE_BLOB) {
+            //A blob is not a frame, the backend connection could not tell where it ends
+            message = "BLOB requests are not relayed";//Status update message for client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        long key = (relayKey == RelayKey.CONNECTION) ? conn.getId()
+                : ByteBuffer.wrap(packetBytes).getInt(packetLength - MessageFormatter.CRC_LENGTH) & 0xFFFFFFFFL;
+
+        //By payload, every PUT, GET and DELETE of one key goes to the same backend, whatever the value
+        int messageLength = msgOBJ.getSentMessageLength();
+        if ((relayKey == RelayKey.PAYLOAD) && MessageFormatter.isKeyValueType(msgOBJ.getSentMessageType()) &&
+                (messageLength > 0)) {
+            int keyLength = Math.min(packetBytes[MessageFormatter.HEADER_LENGTH] & 0xFF, messageLength - 1);
+            key = OffHeapStore.hash(packetBytes, MessageFormatter.HEADER_LENGTH + 1, keyLength) & 0xFFFFFFFFL;
+        }
+        RelayUpstream upstream = pickUpstream(key);
+
+        if (upstream == null) {
+            message = "No backend server is available. Please try again later.";//Status update message for client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        RelayUpstream.Slot slot = new RelayUpstream.Slot(conn, null);
+        conn.addRelaySlot(slot);
+        upstream.forward(Arrays.copyOf(packetBytes, packetLength), slot);//packetBytes is reused for the next frame
+        responseCount++;
+        relayedCount++;
+
+        Connection backend = upstream.getConnection();
+        if (backend.getOutboundBytes() >= corkBytes) {
+            flush(backend);
+        }
+        else if (backend.markFlushQueued()) {
+            pendingFlushes.add(backend);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: pickUpstream
+     |Abstract: Connection to the backend owning the key on the consistent hash ring. The key also picks one of the
+     |          backend's connections, so with connection keys a client's requests stay on one socket. A closed
+     |          connection passes the request to the backend's next one
+     |Return: RelayUpstream, null if every backend is gone
+     \--------------------------------------------------------------------------------------------------------------*/
+    private RelayUpstream pickUpstream(long key){
+        int backend = relayRing.get(key);
+
+        if (backend < 0) {
+            return null;
+        }
+
+        RelayUpstream[] pool = relayPools[backend];
+        int first = (int) ((ConsistentHashRing.mix(~key) >>> 1) % pool.length);
+
+        for (int i = 0; i < pool.length; i++) {
+            RelayUpstream upstream = pool[(first + i) % pool.length];
+            if (upstream.isOpen()) {
+                return upstream;
+            }
+        }
+        return null;//failUpstream() takes a backend off the ring when its last connection goes
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: readUpstream
+     |Abstract: Reads responses from a backend, fills in the clients' reserved responses and sends each client every
+     |          response that is now next in line
+     |Return: void
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void readUpstream(RelayUpstream upstream){
+        int bytesRead;
+
+        try {
+            bytesRead = upstream.receive(relayAnswered);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            bytesRead = -1;
+        }
+
+        for (int i = 0; i < relayAnswered.size(); i++) {
+            sendAnswered(relayAnswered.get(i).client);
+        }
+        relayAnswered.clear();
+
+        if (bytesRead == -1) {
+            failUpstream(upstream);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: sendAnswered
+     |Abstract: Queues the client's reserved responses that have been filled in, oldest first, up to the first one still
+     |          waiting for its backend
+     |Return: void, modifies the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void sendAnswered(Connection conn){
+        RelayUpstream.Slot slot;
+
+        while (conn.getChannel().isOpen() && ((slot = conn.pollAnsweredSlot()) != null)) {
+            queueOutbound(conn, slot.response);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: failUpstream
+     |Abstract: Closes a connection to a backend that failed and answers every request waiting on it with an ERROR. Once
+     |          all of a backend's connections are gone it is taken off the ring, so its keys move to the others
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void failUpstream(RelayUpstream upstream){
+        if (verbose) System.out.println("Lost " + upstream.getConnection().getDescription());//Status update
+
+        byte[] text = "The backend server closed the connection. Please try again.".getBytes(charset);
+
+        for (RelayUpstream.Slot slot : upstream.close()) {
+            slot.response = ByteBuffer.allocate(MessageFormatter.HEADER_LENGTH + text.length +
+                    MessageFormatter.CRC_LENGTH);
+            MessageFormatter.encodeFrame(MessageFormatter.TYPE_ERROR, text, 0, text.length, slot.response);
+            slot.response.flip();
+            sendAnswered(slot.client);
+        }
+
+        for (RelayUpstream other : relayPools[upstream.getBackend()]) {
+            if (other.isOpen()) {
+                return;
+            }
+        }
+        relayRing.remove(upstream.getBackend());
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: broadcast
+     |Abstract: This method accepts the client's Connection and the length of the PAYLOAD in packetBytes, a group name
+     |          and a message(see MessageFormatter.encodeBroadcast()). Encodes the PAYLOAD once in a DELIVERY frame(once
+     |          per checksum in use) and queues a read-only duplicate of it, which only has its own position, to every
+     |          other client in the group, or every other client for an empty group name. Recipients are flushed with
+     |          the rest of the pass, so a slow one never holds up the others; one with maxPushBacklog bytes already
+     |          queued misses it. The sender is answered with how many clients the broadcast reached
+     |Return: void, modifies the recipients' outbound queues
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void broadcast(Connection conn, int length){
+        int nameLength = (length > 0) ? (packetBytes[MessageFormatter.HEADER_LENGTH] & 0xFF) : -1;
+
+        if ((nameLength < 0) || (1 + nameLength > length)) {
+            message = "The broadcast is missing its group name, please try again";//Status update to send to client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        //One frame per checksum in use, encoded when the first recipient using it is found
+        ByteBuffer[] shared = new ByteBuffer[2];
+
+        int delivered = 0;
+        int dropped = 0;
+
+        if (nameLength == 0) {
+            for (int i = 0; i < connections.size(); i++) {//Every connection, without an iterator
+                Connection recipient = connections.get(i);
+
+                if (recipient != conn) {
+                    if (deliver(recipient, shared, length)) delivered++; else dropped++;
+                }
+            }
+        }
+        else {
+            ArrayList<Connection> members = groups.get(new String(packetBytes, MessageFormatter.HEADER_LENGTH + 1,
+                    nameLength, charset));
+
+            for (int i = 0; (members != null) && (i < members.size()); i++) {
+                Connection recipient = members.get(i);
+
+                if (recipient != conn) {
+                    if (deliver(recipient, shared, length)) delivered++; else dropped++;
+                }
+            }
+        }
+
+        deliveryCount += delivered;
+        droppedDeliveryCount += dropped;
+
+        message = "The message has been broadcast to " + delivered + " clients" +
+                ((dropped > 0) ? ", " + dropped + " too far behind or taking smaller PAYLOADs missed it"
+                        : "");//Status update to send to client
+        write(conn, MessageFormatter.TYPE_BROADCAST);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: deliver
+     |Abstract: Queues a duplicate of the shared broadcast frame, with the checksum the recipient uses, to the recipient
+     |          and lists it to be flushed at the end of the pass, unless it has maxPushBacklog bytes or more still
+     |          waiting to be sent or negotiated a largest PAYLOAD smaller than the broadcast. The frame for each
+     |          checksum is encoded from packetBytes the first time it is needed
+     |Return: boolean, true if the frame was queued
+     \--------------------------------------------------------------------------------------------------------------*/
+    private boolean deliver(Connection recipient, ByteBuffer[] shared, int length){
+        if (!recipient.getChannel().isOpen() || (recipient.getOutboundBytes() >= maxPushBacklog) ||
+                (length > recipient.getMaxPayload())) {
+            return false;
+        }
+
+        int checksum = recipient.usesCrc32c() ? 1 : 0;
+        if (shared[checksum] == null) {
+            ByteBuffer frame = ByteBuffer.allocate(MessageFormatter.HEADER_LENGTH + length +
+                    MessageFormatter.CRC_LENGTH);
+            MessageFormatter.encodeFrame(MessageFormatter.TYPE_DELIVERY, packetBytes, MessageFormatter.HEADER_LENGTH,
+                    length, frame, recipient.usesCrc32c());
+            frame.flip();
+            shared[checksum] = frame.asReadOnlyBuffer();//Recipients can move their own duplicate's position only
+        }
+
+        recipient.queue(shared[checksum].duplicate());
+        if (recipient.markFlushQueued()) {
+            pendingFlushes.add(recipient);
+        }
+        return true;
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: joinGroup
+     |Abstract: Moves the connection out of its broadcast group, if it is in one, and into the group named, unless the
+     |          name is empty. Members are kept in a list per group and each connection knows its index, so leaving
+     |          moves the last member into the gap instead of searching the list. Sets the status message for the client
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void joinGroup(Connection conn, String name){
+        leaveGroup(conn);
+
+        if (name.isEmpty()) {
+            message = "You have left your broadcast group";
+            return;
+        }
+        if (name.getBytes(charset).length > 255) {
+            message = "Group names are at most 255 bytes long, no group was joined";
+            return;
+        }
+
+        ArrayList<Connection> members = groups.get(name);
+        if (members == null) {
+            members = new ArrayList<Connection>();
+            groups.put(name, members);
+        }
+
+        conn.setGroup(name, members.size());
+        members.add(conn);
+        message = "You have joined the broadcast group " + name + " with " + (members.size() - 1) + " other clients";
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: leaveGroup
+     |Abstract: Takes the connection out of its broadcast group, if it is in one. An empty group is forgotten
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void leaveGroup(Connection conn){
+        if (conn.getGroup() == null) {
+            return;
+        }
+
+        ArrayList<Connection> members = groups.get(conn.getGroup());
+        Connection last = members.remove(members.size() - 1);
+
+        if (last != conn) {
+            members.set(conn.getGroupIndex(), last);
+            last.setGroup(last.getGroup(), conn.getGroupIndex());
+        }
+        if (members.isEmpty()) {
+            groups.remove(conn.getGroup());
+        }
+        conn.setGroup(null, 0);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: sendBlob
+     |Abstract: This method accepts the client's Connection and the name of a blob. Queues a BLOB response holding the
+     |          file's length and CRC32, with the open file behind it, and flushes the connection straight away: the
+     |          response goes out in a write of its own and the file follows by transferTo(), resumed each time the
+     |          socket is writable until all of it is sent. Responses to later requests wait behind the file. An
+     |          unknown name, or a server not serving blobs, gets an ERROR
+     |Return: void, modifies the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void sendBlob(Connection conn, String name){
+        BlobStore.Blob blob = null;
+
+        try {
+            blob = (blobStore == null) ? null : blobStore.open(name);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+
+        if (blob == null) {
+            message = "No blob named " + name + " is available";//Status update message for client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        byte[] descriptor = MessageFormatter.encodeBlobDescriptor(blob.size, blob.crc);
+        writeBuffer = ByteBuffer.allocate(MessageFormatter.HEADER_LENGTH + descriptor.length +
+                MessageFormatter.CRC_LENGTH);
+        MessageFormatter.encodeFrame(MessageFormatter.TYPE_BLOB, descriptor, 0, descriptor.length, writeBuffer,
+                conn.usesCrc32c());
+        writeBuffer.flip();
+
+        responseCount++;
+        blobCount++;
+        blobBytes += blob.size;
+
+        conn.queue(writeBuffer, blob.transfer);
+        flush(conn);//A file is always worth a write of its own
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: keyValue
+     |Abstract: This method accepts the client's Connection and the type and length of a PUT, GET or DELETE in
+     |          packetBytes. A PUT stores the value and is answered with an empty PUT, a DELETE removes the key and is
+     |          answered with an empty DELETE, and a GET is answered with the value, copied from the store straight
+     |          into the response. A key with nothing stored under it gets a MISSING; a malformed request, a value
+     |          larger than the PAYLOAD agreed with a HELLO or a server with no store gets an ERROR
+     |Return: void, modifies the store and the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void keyValue(Connection conn, int messageType, int messageLength){
+        int keyOffset = MessageFormatter.HEADER_LENGTH + 1;
+        int keyLength = (messageLength > 0) ? packetBytes[MessageFormatter.HEADER_LENGTH] & 0xFF : 0;
+        int valueLength = messageLength - 1 - keyLength;
+
+        if (keyValues == null) {
+            message = "No key-value store is available";//Status update message for client
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+        if ((keyLength == 0) || (valueLength < 0) || ((messageType != MessageFormatter.TYPE_PUT) && (valueLength > 0))) {
+            message = "The key is missing or does not match the message length, please try again";//Status update
+            write(conn, MessageFormatter.TYPE_ERROR);
+            return;
+        }
+
+        if (messageType == MessageFormatter.TYPE_PUT) {
+            keyValues.put(packetBytes, keyOffset, keyLength, keyOffset + keyLength, valueLength);
+            sendFrame(conn, messageType, packetBytes, 0, 0);
+        }
+        else if (messageType == MessageFormatter.TYPE_DELETE) {
+            sendFrame(conn, keyValues.delete(packetBytes, keyOffset, keyLength) ? messageType
+                    : MessageFormatter.TYPE_MISSING, packetBytes, 0, 0);
+        }
+        else {
+            valueLength = keyValues.get(packetBytes, keyOffset, keyLength);
+
+            if (valueLength < 0) {
+                sendFrame(conn, MessageFormatter.TYPE_MISSING, packetBytes, 0, 0);
+            }
+            else if (valueLength > conn.getMaxPayload()) {
+                message = "The value is larger than the PAYLOAD agreed with the HELLO";//Status update message for client
+                write(conn, MessageFormatter.TYPE_ERROR);
+            }
+            else {
+                sendValue(conn, keyValues.valuePage(), keyValues.valueOffset(), valueLength);
+            }
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: sendValue
+     |Abstract: Queues a GET response whose PAYLOAD is length bytes of a page of the key-value store from offset. The
+     |          value is copied once, from the page into the connection's response buffer(see
+     |          Connection.queueResponse()), and sent from there, so a later PUT, DELETE or eviction can reuse the
+     |          chunk while a slow client still has the response queued
+     |Return: void, modifies the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void sendValue(Connection conn, ByteBuffer page, int offset, int length){
+        RequestEvents.RequestEvent event = tracing ? RequestEvents.begin(new RequestEvents.FrameWrite()) : null;
+
+        responseCount++;
+
+        if (!conn.queueResponse(responseBuffers, MessageFormatter.TYPE_GET, page, offset, length)) {
+            //Wrap the frame in a ByteBuffer that is only as big as the frame
+            writeBuffer = ByteBuffer.allocate(MessageFormatter.HEADER_LENGTH + length + MessageFormatter.CRC_LENGTH);
+            MessageFormatter.encodeFrame(MessageFormatter.TYPE_GET, page, offset, length, writeBuffer,
+                    conn.usesCrc32c());
+            writeBuffer.flip();
+            queueOutbound(conn, writeBuffer);
+        }
+        else {
+            scheduleFlush(conn);
+        }
+
+        if (event != null) {
+            event.finish(conn.getId(), MessageFormatter.TYPE_GET, length);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: This method accepts the client's Connection and the message type of the response. The method is used to
+     |          write the status message held in the class variable message to the client as a framed response
+     |Return: void, modifies local variables using class variables and objects
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void write(Connection conn, int responseType){
+
+        //Pack a byte array with the bytes of the message, encoded using the predefined charset, unless it still holds
+        // them: status messages are constants and the same one is sent again and again
+        if (message != encodedMessage) {
+            msgByteArray = message.getBytes(charset);
+            encodedMessage = message;
+        }
+
+        sendFrame(conn, responseType, msgByteArray, 0, msgByteArray.length);//Send bytes to client
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: sendFrame
+     |Abstract: Packs length bytes of the payload from offset in a response frame using the same ICD as the
+     |          client(HEADER, PAYLOAD, CRC32) and queues it behind any response that is still waiting to be sent,
+     |          normally by encoding it into the connection's response buffer(see Connection.queueResponse()). The
+     |          queue is sent by flushPending() at the end of the pass, or by flush() straight away once it holds the
+     |          cork threshold(see setCorkBytes()). Timed as a JFR event for a traced request. Dropped if a failed
+     |          write has closed the connection
+     |Return: void, modifies the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void sendFrame(Connection conn, int responseType, byte[] payload, int offset, int length){
+        if (!conn.getChannel().isOpen()) {
+            return;//Closed by a failed write earlier in the pass; a response buffer borrowed now would never go back
+        }
+
+        length = Math.min(length, MessageFormatter.MAX_PAYLOAD_LENGTH);//Status messages always fit
+        RequestEvents.RequestEvent event = tracing ? RequestEvents.begin(new RequestEvents.FrameWrite()) : null;
+
+        responseCount++;
+
+        if (conn.hasRelaySlots() || !conn.queueResponse(responseBuffers, responseType, payload, offset, length)) {
+            //Wrap the frame in a ByteBuffer that is only as big as the frame
+            writeBuffer = ByteBuffer.allocate(MessageFormatter.HEADER_LENGTH + length + MessageFormatter.CRC_LENGTH);
+            MessageFormatter.encodeFrame(responseType, payload, offset, length, writeBuffer, conn.usesCrc32c());
+            writeBuffer.flip();
+
+            if (conn.hasRelaySlots()) {
+                conn.addRelaySlot(new RelayUpstream.Slot(conn, writeBuffer));//Sent once the relayed ones before it are
+            }
+            else {
+                queueOutbound(conn, writeBuffer);
+            }
+        }
+        else {
+            scheduleFlush(conn);
+        }
+
+        if (event != null) {
+            event.finish(conn.getId(), responseType, length);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: queueOutbound
+     |Abstract: Queues a complete frame to be sent to the connection and flushes it straight away once its queue holds
+     |          the cork threshold, otherwise lists it to be flushed at the end of the pass
+     |Return: void, modifies the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void queueOutbound(Connection conn, ByteBuffer frame){
+        conn.queue(frame);
+        scheduleFlush(conn);
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: scheduleFlush
+     |Abstract: Flushes a connection that has just had a frame queued straight away once its queue holds the cork
+     |          threshold, otherwise lists it to be flushed at the end of the pass
+     |Return: void, modifies the Connection's outbound queue
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void scheduleFlush(Connection conn){
+        if (conn.getOutboundBytes() >= corkBytes) {
+            flush(conn);//Enough to fill packets, or coalescing is off
+        }
+        else if (conn.markFlushQueued()) {
+            pendingFlushes.add(conn);
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: flush
+     |Abstract: Writes queued responses to the client in order, in as few gathering writes as possible, until the
+     |          queue is empty or the socket send buffer is full. If anything is left, registers interest in WRITE
+     |          operations so the Selector calls back when the socket can take more; otherwise notifies the Selector it
+     |          is waiting for a read key only
+     |Return: void, modifies the Connection's outbound queue and the key's interest set
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void flush(Connection conn){
+        ByteChannel channel = conn.getChannel();
+
+        try {
+            //A TLS channel sends its own buffered records first, which may let its handshake carry on
+            if (channel instanceof TlsChannel) {
+                ((TlsChannel) channel).flush();
+            }
+
+            //Send bytes to client, every queued response in one gathering write unless the send buffer fills up
+            writeCount += conn.writeOutbound();
+        }catch (IOException ioe){
+            ioe.printStackTrace();
+            closeConnection(conn);
+            return;
+        }
+
+        //A blob that stopped at its share, not at a full channel, is resumed on the next pass: a channel without a
+        // key is never reported writable again before it fills up. Shared memory is checked every pass anyway
+        if ((conn.getKey() == null) && conn.isWriteShareUsed() && !(channel instanceof SharedMemoryChannel)) {
+            markReady(conn);
+        }
+
+        //Loopback connections have no key; their channel queues them again when the client reads
+        if ((conn.getKey() != null) && conn.getKey().isValid()) {
+            if (conn.needsWriteInterest()) {
+                conn.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            else {
+                conn.getKey().interestOps(SelectionKey.OP_READ);//Notify the Selector Waiting for a read key
+            }
+        }
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: flushPending
+     |Abstract: Flushes every connection that had responses queued during the pass, once each
+     |Return: void, modifies class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void flushPending(){
+        for (int i = 0; i < pendingFlushes.size(); i++) {
+            Connection conn = pendingFlushes.get(i);
+            conn.clearFlushQueued();
+
+            if (conn.getChannel().isOpen()) {
+                flush(conn);
+            }
+        }
+        pendingFlushes.clear();
+    }
+
+    /**---------------------------------------------------------------------------------------------------------------
+     |Method: closeConnection
+     |Abstract: Cancels the client's key, if it has one, and closes its channel
+     |Return: void
+     \--------------------------------------------------------------------------------------------------------------*/
+    private void closeConnection(Connection conn){
+        try {
+            if (conn.getKey() != null) {
+                conn.getKey().cancel();//Cancel current key
+            }
+            conn.getChannel().close();//Close the channel
+            conn.clearOutbound();//Nothing left can be sent
+            conn.releaseInbound(receiveBuffers);
+            connections.remove(conn.getId());
+            leaveGroup(conn);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+
+        //A write to a backend failed, its waiting clients are answered with errors
+        if ((conn.getKey() != null) && (conn.getKey().attachment() instanceof RelayUpstream)) {
+            failUpstream((RelayUpstream) conn.getKey().attachment());
+        }
     }
-}
\ No newline at end of file
+}
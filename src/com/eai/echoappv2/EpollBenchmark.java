@@ -0,0 +1,209 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class compares the two transports an Echo Server can serve TCP clients through:
+ | the JDK Selector and the native epoll transport(EchoServer.useEpoll()). For each, a quiet Echo
+ | Server is started in this process and measured twice: round trip latency of one client sending
+ | echo requests one at a time, and throughput of several clients each sending bursts of pipelined
+ | requests and waiting for the whole burst to be answered. The server thread's allocated bytes
+ | and CPU time per request are reported next to each. Run with the src-epoll classes on the
+ | class path, --add-modules jdk.incubator.foreign and --enable-native-access=ALL-UNNAMED, or
+ | only the Selector is measured
+ |
+ | Usage: EpollBenchmark [messages] [clients] [depth] [seconds] [payloadBytes]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class EpollBenchmark {
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of EpollBenchmark class. Measures the Selector, then the epoll transport
+     |          if it loads, and prints one latency and one throughput line for each
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int depth = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+        int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+        int payloadBytes = (args.length > 4) ? Integer.parseInt(args[4]) : 64;
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        byte[] request = MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, payload);
+
+        System.out.println("messages=" + messages + " clients=" + clients + " depth=" + depth + " seconds=" +
+                seconds + " payload=" + payloadBytes + "B processors=" + Runtime.getRuntime().availableProcessors());
+
+        for (boolean epoll : new boolean[] { false, true }) {
+            if (!run(epoll, request, messages, clients, depth, seconds)) {
+                System.out.println("epoll     not measured, the transport did not load");
+            }
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Starts a server on the transport given, warms it up, measures latency and throughput
+     |          and stops it
+     |Return: boolean, false if the epoll transport was asked for and did not load
+     \------------------------------------------------------------------------------------------------*/
+    static boolean run(boolean epoll, byte[] request, int messages, int clients, int depth, int seconds)
+            throws Exception{
+        EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        server.setVerbose(false);
+        server.getOverloadController().setEnabled(false);//Measure the transport, not the load shedding
+
+        if (epoll && !server.useEpoll()) {
+            return false;
+        }
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+        String name = epoll ? "epoll   " : "selector";
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getPort()));
+        channel.socket().setTcpNoDelay(true);
+
+        TransportLatencyBenchmark.measure(channel, request, messages / 10);//Warm up
+        long[] before = serverCost(serverThread);
+        LatencyRecorder latency = TransportLatencyBenchmark.measure(channel, request, messages);
+        System.out.println(name + "  latency     " + latency.summary() + perRequest(serverThread, before, messages));
+        channel.close();
+
+        throughput(server, request, clients, depth, 1);//Warm up
+        before = serverCost(serverThread);
+        long answered = throughput(server, request, clients, depth, seconds);
+        System.out.println(String.format("%s  throughput  %,d requests/s", name, answered / seconds) +
+                perRequest(serverThread, before, answered));
+
+        serverThread.interrupt();
+        serverThread.join();
+        return true;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: throughput
+     |Abstract: Runs the clients given for the seconds given. Each writes depth requests at once and
+     |          reads until all depth responses are in, over and over
+     |Return: long, requests answered in all
+     \------------------------------------------------------------------------------------------------*/
+    static long throughput(final EchoServer server, byte[] request, int clients, final int depth, int seconds)
+            throws Exception{
+        final byte[] burst = new byte[request.length * depth];
+        for (int i = 0; i < depth; i++) {
+            System.arraycopy(request, 0, burst, i * request.length, request.length);
+        }
+
+        final AtomicLong answered = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        Thread[] threads = new Thread[clients];
+
+        for (int c = 0; c < clients; c++) {
+            threads[c] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        answered.addAndGet(sendBursts(server.getPort(), burst, depth, end));
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                }
+            }, "Client" + c);
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return answered.get();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: sendBursts
+     |Abstract: One throughput client: sends the burst and counts response frames until all of it is
+     |          answered, until the end time
+     |Return: long, requests answered
+     \------------------------------------------------------------------------------------------------*/
+    static long sendBursts(int port, byte[] burst, int depth, long end) throws IOException{
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.socket().setTcpNoDelay(true);
+
+        ByteBuffer burstBuffer = ByteBuffer.wrap(burst);
+        ByteBuffer responses = ByteBuffer.allocateDirect(64 * 1024);
+        long answered = 0;
+
+        while (System.nanoTime() < end) {
+            burstBuffer.clear();
+            while (burstBuffer.hasRemaining()) {
+                channel.write(burstBuffer);
+            }
+
+            int pending = depth;
+            while (pending > 0) {
+                if (channel.read(responses) == -1) {
+                    throw new IOException("The Echo Server closed the connection");
+                }
+                responses.flip();
+
+                int frameLength;
+                while (((frameLength = MessageFormatter.frameLength(responses)) != -1) &&
+                        (frameLength <= responses.remaining())) {
+                    responses.position(responses.position() + frameLength);
+                    pending--;
+                }
+                responses.compact();
+            }
+            answered += depth;
+        }
+
+        channel.close();
+        return answered;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: serverCost
+     |Abstract: Bytes allocated and CPU time used so far by the server thread
+     |Return: long[], {bytes, nanoseconds}
+     \------------------------------------------------------------------------------------------------*/
+    static long[] serverCost(Thread serverThread){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        return new long[] { threads.getThreadAllocatedBytes(serverThread.getId()),
+                threads.getThreadCpuTime(serverThread.getId()) };
+    }
+
+    static String perRequest(Thread serverThread, long[] before, long requests){
+        long[] after = serverCost(serverThread);
+
+        return String.format("  server: %.1f B/request, %.2f us CPU/request", (after[0] - before[0]) /
+                (double) requests, (after[1] - before[1]) / 1000.0 / requests);
+    }
+}
@@ -0,0 +1,140 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class checks that a blob far larger than the 8 MB one pass sends of it arrives
+ | whole over both TCP transports. A quiet Echo Server serves a temporary directory holding one
+ | file of random bytes, first through the Selector and then through the epoll transport, whose
+ | edge triggered sockets are not reported writable again unless they fill up. Over each, the
+ | blob is fetched twice on one connection with BlobFetch and an ECHO sent after it must be
+ | answered. A watchdog fails the check if anything stalls. Run with the src-epoll classes on the
+ | class path, --add-modules jdk.incubator.foreign and --enable-native-access=ALL-UNNAMED, or only
+ | the Selector is checked. Exits with status 1 if anything is wrong
+ |
+ | Usage: EpollBlobCheck [megabytes]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class EpollBlobCheck {
+
+    private static final long WATCHDOG_MILLIS = 60000;//Far longer than a healthy run takes
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of EpollBlobCheck class. Writes the blob, checks each transport and exits
+     |          with status 1 if any check fails or stalls
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+
+        Path directory = Files.createTempDirectory("echoapp-blobs");
+        Path file = directory.resolve("large.bin");
+        byte[] bytes = new byte[megabytes * 1024 * 1024];
+        new Random(43).nextBytes(bytes);
+        Files.write(file, bytes);
+
+        Thread watchdog = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(WATCHDOG_MILLIS);
+                    System.out.println("Stalled for " + WATCHDOG_MILLIS / 1000 + " s");
+                    System.out.println("FAILED");
+                    System.exit(1);
+                } catch (InterruptedException ie) {
+                    //Finished in time
+                }
+            }
+        }, "Watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        boolean passed = true;
+        try {
+            for (boolean epoll : new boolean[] { false, true }) {
+                passed &= check(epoll, directory);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+
+        watchdog.interrupt();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: check
+     |Abstract: Starts a server on the transport given, fetches the blob twice over one connection,
+     |          then sends an ECHO and waits for its answer
+     |Return: boolean, true if both fetches were intact and the ECHO was answered
+     \------------------------------------------------------------------------------------------------*/
+    static boolean check(boolean epoll, Path directory) throws Exception{
+        EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        server.setVerbose(false);
+        server.getOverloadController().setEnabled(false);
+        server.serveBlobs(directory);
+
+        if (epoll && !server.useEpoll()) {
+            System.out.println("epoll     not checked, the transport did not load");
+            return true;
+        }
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+        System.out.println(epoll ? "epoll:" : "selector:");
+
+        boolean passed;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getPort()))) {
+            passed = BlobFetch.fetch(channel, "large.bin", null);
+            passed &= BlobFetch.fetch(channel, "large.bin", null);
+
+            byte[] payload = "after the blob".getBytes("UTF-8");
+            ByteBuffer request = ByteBuffer.wrap(MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, payload));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            ByteBuffer response = ByteBuffer.allocate(MessageFormatter.MAX_FRAME_LENGTH);
+            TransportLatencyBenchmark.readFrame(channel, response);
+
+            boolean echoed = Arrays.equals(response.array(), MessageFormatter.HEADER_LENGTH,
+                    MessageFormatter.HEADER_LENGTH + payload.length, payload, 0, payload.length);
+            if (!echoed) {
+                System.out.println("The ECHO after the blob was not answered with its PAYLOAD");
+            }
+            passed &= echoed;
+        }
+
+        serverThread.interrupt();
+        serverThread.join();
+        return passed;
+    }
+}
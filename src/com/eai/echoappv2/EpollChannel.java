@@ -0,0 +1,185 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is the server end of a TCP connection accepted by EpollTransport: a
+ | non-blocking socket read and written with read() and write() system calls. Like a
+ | non-blocking SocketChannel, reads and writes move only what the socket has or has room for
+ | and never wait. Bytes pass through the transport's direct scratch buffer, one copy each way,
+ | as they do through the JDK's temporary direct buffers for a heap buffer. Since the transport
+ | is edge triggered, the channel remembers whether its last read emptied the socket, so the
+ | server reads again without an event when it did not
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Writes go on past the scratch buffer until the socket is full, which edge triggering relies on
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+
+public class EpollChannel implements ByteChannel, GatheringByteChannel {
+
+    private final EpollTransport transport;
+    private final int fd;
+    private boolean open = true;
+    private boolean drained = true;//The last read left nothing in the socket, so the next edge reports new data
+    private final ByteBuffer[] single = new ByteBuffer[1];//write(ByteBuffer) as a gathering write of one buffer
+
+    EpollChannel(EpollTransport transport, int fd){
+        this.transport = transport;
+        this.fd = fd;
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Reads as many bytes as the socket holds and the buffer has room for. A read that fills the buffer may
+     |          have left more behind, see isDrained()
+     |Return: int, bytes read, 0 if the socket is empty, -1 once the client has closed its end
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int read(ByteBuffer dst) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+
+        int length = Math.min(dst.remaining(), EpollTransport.SCRATCH_SIZE);
+        if (length == 0) {
+            return 0;
+        }
+
+        long n;
+        do {
+            n = NativeEpoll.read(fd, transport.getScratchAddress(), length);
+        } while ((n < 0) && (NativeEpoll.errno() == NativeEpoll.EINTR));
+
+        if (n < 0) {
+            int errno = NativeEpoll.errno();
+            if (errno == NativeEpoll.EAGAIN) {
+                drained = true;
+                return 0;
+            }
+            throw new IOException("read failed, errno " + errno);
+        }
+        if (n == 0) {
+            drained = true;
+            return -1;
+        }
+
+        drained = (n < length);//A short read emptied the socket
+        dst.put(dst.position(), transport.getScratch(), 0, (int) n);
+        dst.position(dst.position() + (int) n);
+        return (int) n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isDrained
+     |Abstract: Whether the last read found the socket empty. An edge triggered socket that was not emptied reports no
+     |          more input until more arrives, so the server queues it to be read again
+     |Return: boolean, true if nothing was left behind
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean isDrained(){
+        return drained;
+    }
+
+    public int write(ByteBuffer src) throws IOException{
+        single[0] = src;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Gathering write. Copies the buffers in order into the scratch buffer, as much as fits, and writes them
+     |          with one system call, again for the rest while the socket takes all of each. Buffers are advanced by
+     |          what the socket took. Writing less than asked therefore means the socket is full, and the transport
+     |          reports it once it has room again
+     |Return: long, bytes written, 0 if the socket's send buffer is full
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+
+        ByteBuffer scratch = transport.getScratch();
+        long total = 0;
+
+        while (true) {
+            int gathered = 0;
+            for (int i = offset; (i < offset + length) && (gathered < EpollTransport.SCRATCH_SIZE); i++) {
+                int n = Math.min(srcs[i].remaining(), EpollTransport.SCRATCH_SIZE - gathered);
+                scratch.put(gathered, srcs[i], srcs[i].position(), n);
+                gathered += n;
+            }
+            if (gathered == 0) {
+                return total;
+            }
+
+            long written;
+            do {
+                written = NativeEpoll.write(fd, transport.getScratchAddress(), gathered);
+            } while ((written < 0) && (NativeEpoll.errno() == NativeEpoll.EINTR));
+
+            if (written < 0) {
+                int errno = NativeEpoll.errno();
+                if (errno == NativeEpoll.EAGAIN) {
+                    return total;
+                }
+                throw new IOException("write failed, errno " + errno);
+            }
+
+            long left = written;
+            for (int i = offset; (i < offset + length) && (left > 0); i++) {
+                int n = (int) Math.min(srcs[i].remaining(), left);
+                srcs[i].position(srcs[i].position() + n);
+                left -= n;
+            }
+            total += written;
+
+            if (written < gathered) {
+                return total;//Socket full
+            }
+        }
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException{
+        return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Closes the socket, which also takes it out of the epoll instance
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void close() throws IOException{
+        if (!open){
+            return;
+        }
+        open = false;
+        NativeEpoll.close(fd);
+    }
+}
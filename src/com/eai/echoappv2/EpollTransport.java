@@ -0,0 +1,312 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is the Echo Server's optional native TCP transport on Linux: one epoll
+ | instance, edge triggered, watching a listening socket, the accepted client sockets and an
+ | eventfd that other threads write to wake the loop. Ready events are written by epoll_wait()
+ | into one direct buffer allocated up front and read from there in place, so waiting for and
+ | taking events allocates nothing. Each client is registered once for input and output with its
+ | connection ID as the event data; being edge triggered, a socket is only reported again after
+ | new data arrives or room frees up, so a read must go on until the socket is empty(see
+ | EpollChannel). The system calls go through NativeEpoll, so opening fails with a LinkageError
+ | where that class cannot load, and the server then keeps its Selector. Used by the event loop
+ | thread only, except for wakeup()
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+class EpollTransport {
+
+    public static final long LISTENER_ID = 0;//Event data of the listening socket, connection IDs start at 1
+    public static final long WAKEUP_ID = -1;//Event data of the eventfd
+    public static final int MAX_EVENTS = 1024;//Events taken by one epoll_wait()
+    public static final int SCRATCH_SIZE = 256 * 1024;//Most bytes one read or write moves through native memory
+
+    //Events that make a client socket worth reading: data, the client's end closing, or an error to pick up
+    public static final int READABLE = NativeEpoll.EPOLLIN | NativeEpoll.EPOLLRDHUP | NativeEpoll.EPOLLHUP |
+            NativeEpoll.EPOLLERR;
+    public static final int WRITABLE = NativeEpoll.EPOLLOUT;
+
+    //Layout of the control buffer: one epoll_event for epoll_ctl(), a socket option, a sockaddr_in and its length
+    private static final int CONTROL_EVENT = 0;
+    private static final int CONTROL_OPTION = 16;
+    private static final int CONTROL_ADDRESS = 24;
+    private static final int CONTROL_ADDRESS_LENGTH = 40;
+    private static final int SOCKADDR_IN_LENGTH = 16;
+
+    private final int epfd;
+    private final int wakeFd;
+    private int listenFd = -1;
+    private int port = -1;
+    private final ByteBuffer events;
+    private final long eventsAddress;
+    private final ByteBuffer control;
+    private final long controlAddress;
+    private final ByteBuffer scratch;//Bytes on their way between a heap buffer and a socket
+    private final long scratchAddress;
+    private final ByteBuffer wakeValue;//The 1 added to the eventfd by wakeup(), never changed
+    private final long wakeValueAddress;
+    private String acceptedPeer;
+    private volatile boolean closed;//Read by wakeup() on other threads
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: EpollTransport
+     |Abstract: Constructor for EpollTransport object. Creates the epoll instance and the eventfd, and allocates the
+     |          native buffers. listen() binds the listening socket
+     |Return: object EpollTransport
+     \----------------------------------------------------------------------------------------------------------------*/
+    EpollTransport() throws IOException{
+        events = ByteBuffer.allocateDirect(MAX_EVENTS * NativeEpoll.EVENT_SIZE).order(ByteOrder.nativeOrder());
+        eventsAddress = NativeEpoll.address(events);
+        control = ByteBuffer.allocateDirect(64).order(ByteOrder.nativeOrder());
+        controlAddress = NativeEpoll.address(control);
+        scratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+        scratchAddress = NativeEpoll.address(scratch);
+        wakeValue = ByteBuffer.allocateDirect(8).order(ByteOrder.nativeOrder()).putLong(0, 1);
+        wakeValueAddress = NativeEpoll.address(wakeValue);
+
+        epfd = check(NativeEpoll.epollCreate(), "epoll_create1");
+        int fd = NativeEpoll.eventfd();
+        if (fd < 0) {
+            NativeEpoll.close(epfd);
+            throw failure("eventfd");
+        }
+        wakeFd = fd;
+
+        //Level triggered, so a wake up written while the loop is busy is still reported once it next waits
+        if (control(wakeFd, NativeEpoll.EPOLLIN, WAKEUP_ID) < 0) {
+            IOException ioe = failure("epoll_ctl");
+            close();
+            throw ioe;
+        }
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: listen
+     |Abstract: Binds a non-blocking listening socket to an IPv4 address and port(0 for any free port) with a listen
+     |          queue of backlog connections, and adds it to the epoll instance
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void listen(InetAddress address, int port, int backlog) throws IOException{
+        if (!(address instanceof Inet4Address)) {
+            throw new IOException("The epoll transport listens on IPv4 addresses only, not " + address);
+        }
+
+        listenFd = check(NativeEpoll.socket(), "socket");
+
+        control.putInt(CONTROL_OPTION, 1);
+        check(NativeEpoll.setsockopt(listenFd, NativeEpoll.SOL_SOCKET, NativeEpoll.SO_REUSEADDR,
+                controlAddress + CONTROL_OPTION, 4), "setsockopt");
+
+        //sockaddr_in: family in native order, then port and address in network order
+        byte[] host = address.getAddress();
+        control.putShort(CONTROL_ADDRESS, (short) NativeEpoll.AF_INET);
+        control.put(CONTROL_ADDRESS + 2, (byte) (port >>> 8));
+        control.put(CONTROL_ADDRESS + 3, (byte) port);
+        control.put(CONTROL_ADDRESS + 4, host, 0, 4);
+        control.putLong(CONTROL_ADDRESS + 8, 0);
+        check(NativeEpoll.bind(listenFd, controlAddress + CONTROL_ADDRESS, SOCKADDR_IN_LENGTH),
+                "bind " + address.getHostAddress() + ":" + port);
+        check(NativeEpoll.listen(listenFd, backlog), "listen");
+
+        control.putInt(CONTROL_ADDRESS_LENGTH, SOCKADDR_IN_LENGTH);
+        check(NativeEpoll.getsockname(listenFd, controlAddress + CONTROL_ADDRESS,
+                controlAddress + CONTROL_ADDRESS_LENGTH), "getsockname");
+        this.port = ((control.get(CONTROL_ADDRESS + 2) & 0xFF) << 8) | (control.get(CONTROL_ADDRESS + 3) & 0xFF);
+
+        check(control(listenFd, NativeEpoll.EPOLLIN | NativeEpoll.EPOLLET, LISTENER_ID), "epoll_ctl");
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getPort
+     |Abstract: Port the listening socket is bound to
+     |Return: int, local port, -1 before listen()
+     \----------------------------------------------------------------------------------------------------------------*/
+    int getPort(){
+        return port;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: waitForEvents
+     |Abstract: Waits up to timeout ms(0 returns at once) for ready sockets. The events are read with eventData() and
+     |          eventFlags() until the next call. A signal ending the wait early counts as no events
+     |Return: int, number of events
+     \----------------------------------------------------------------------------------------------------------------*/
+    int waitForEvents(int timeout) throws IOException{
+        int ready = NativeEpoll.epollWait(epfd, eventsAddress, MAX_EVENTS, timeout);
+
+        if (ready < 0) {
+            int errno = NativeEpoll.errno();
+            if (errno == NativeEpoll.EINTR) {
+                return 0;
+            }
+            throw new IOException("epoll_wait failed, errno " + errno);
+        }
+        return ready;
+    }
+
+    long eventData(int i){
+        return events.getLong(i * NativeEpoll.EVENT_SIZE + NativeEpoll.EVENT_DATA_OFFSET);
+    }
+
+    int eventFlags(int i){
+        return events.getInt(i * NativeEpoll.EVENT_SIZE);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: accept
+     |Abstract: Accepts one pending connection as a non-blocking socket. getAcceptedPeer() then describes the client
+     |Return: int, the client socket, -1 once the listen queue is empty
+     \----------------------------------------------------------------------------------------------------------------*/
+    int accept() throws IOException{
+        while (true) {
+            control.putInt(CONTROL_ADDRESS_LENGTH, SOCKADDR_IN_LENGTH);
+
+            int fd = NativeEpoll.accept4(listenFd, controlAddress + CONTROL_ADDRESS,
+                    controlAddress + CONTROL_ADDRESS_LENGTH);
+            if (fd >= 0) {
+                acceptedPeer = "/" + (control.get(CONTROL_ADDRESS + 4) & 0xFF) + "." +
+                        (control.get(CONTROL_ADDRESS + 5) & 0xFF) + "." + (control.get(CONTROL_ADDRESS + 6) & 0xFF) +
+                        "." + (control.get(CONTROL_ADDRESS + 7) & 0xFF) + ":" +
+                        (((control.get(CONTROL_ADDRESS + 2) & 0xFF) << 8) | (control.get(CONTROL_ADDRESS + 3) & 0xFF));
+                return fd;
+            }
+
+            int errno = NativeEpoll.errno();
+            if (errno == NativeEpoll.EAGAIN) {
+                return -1;
+            }
+            if (errno != NativeEpoll.EINTR) {
+                throw new IOException("accept4 failed, errno " + errno);
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getAcceptedPeer
+     |Abstract: Address and port of the client accept() returned last, written like an InetSocketAddress
+     |Return: String, e.g. /127.0.0.1:50000
+     \----------------------------------------------------------------------------------------------------------------*/
+    String getAcceptedPeer(){
+        return acceptedPeer;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: configure
+     |Abstract: Sets TCP_NODELAY and, when above 0, the send and receive buffer sizes of an accepted socket
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void configure(int fd, boolean noDelay, int sendBufferSize, int receiveBufferSize) throws IOException{
+        setOption(fd, NativeEpoll.IPPROTO_TCP, NativeEpoll.TCP_NODELAY, noDelay ? 1 : 0);
+
+        if (sendBufferSize > 0) {
+            setOption(fd, NativeEpoll.SOL_SOCKET, NativeEpoll.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            setOption(fd, NativeEpoll.SOL_SOCKET, NativeEpoll.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    private void setOption(int fd, int level, int option, int value) throws IOException{
+        control.putInt(CONTROL_OPTION, value);
+        check(NativeEpoll.setsockopt(fd, level, option, controlAddress + CONTROL_OPTION, 4), "setsockopt");
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: register
+     |Abstract: Adds an accepted socket to the epoll instance for input and output, edge triggered, with the ID of its
+     |          connection as the event data. A socket leaves the instance by itself when it is closed
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void register(int fd, long id) throws IOException{
+        check(control(fd, READABLE | WRITABLE | NativeEpoll.EPOLLET, id), "epoll_ctl");
+    }
+
+    private int control(int fd, int flags, long data){
+        control.putInt(CONTROL_EVENT, flags);
+        control.putLong(CONTROL_EVENT + NativeEpoll.EVENT_DATA_OFFSET, data);
+        return NativeEpoll.epollCtl(epfd, NativeEpoll.EPOLL_CTL_ADD, fd, controlAddress + CONTROL_EVENT);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: wakeup
+     |Abstract: Ends the current or next waitForEvents() early. Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void wakeup(){
+        if (closed) {
+            return;//The number may belong to another file by now
+        }
+        NativeEpoll.write(wakeFd, wakeValueAddress, 8);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: drainWakeup
+     |Abstract: Resets the eventfd once its wake up has been seen, so it is not reported again
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void drainWakeup(){
+        NativeEpoll.read(wakeFd, controlAddress + CONTROL_OPTION, 8);
+    }
+
+    ByteBuffer getScratch(){
+        return scratch;
+    }
+
+    long getScratchAddress(){
+        return scratchAddress;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Closes the listening socket, the eventfd and the epoll instance. Client sockets are closed by their
+     |          channels
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void close(){
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (listenFd >= 0) {
+            NativeEpoll.close(listenFd);
+        }
+        NativeEpoll.close(wakeFd);
+        NativeEpoll.close(epfd);
+    }
+
+    private static int check(int result, String call) throws IOException{
+        if (result < 0) {
+            throw failure(call);
+        }
+        return result;
+    }
+
+    static IOException failure(String call){
+        return new IOException(call + " failed, errno " + NativeEpoll.errno());
+    }
+}
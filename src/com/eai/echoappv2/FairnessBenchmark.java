@@ -0,0 +1,228 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures how much a heavy client slows down light ones sharing the same
+ | Echo Server. A quiet server is started in this process, once with no read budget and once with
+ | the default(see EchoServer.setReadBudget()). Heavy clients pipeline ECHO requests as fast as
+ | the server takes them, a writer and a reader thread each, while light clients send one ECHO
+ | request at a time and time its response, all over TCP on localhost. The light clients' latency
+ | distribution, the heavy clients' throughput and how often a read stopped at the budget are
+ | printed for each
+ |
+ | Usage: FairnessBenchmark [heavyClients] [lightClients] [seconds] [payloadBytes] [readBudget]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class FairnessBenchmark {
+
+    private static final int HEAVY_BATCH = 256;//Frames a heavy client writes at once
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of FairnessBenchmark class. Runs the mix against a server without a read
+     |          budget, then against one with the budget given
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int heavyClients = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+        int lightClients = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        int payloadBytes = (args.length > 3) ? Integer.parseInt(args[3]) : 64;
+        int readBudget = (args.length > 4) ? Integer.parseInt(args[4]) : EchoServer.DEFAULT_READ_BUDGET;
+
+        System.out.println("heavyClients=" + heavyClients + " lightClients=" + lightClients + " seconds=" + seconds +
+                " payload=" + payloadBytes + "B");
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        byte[] request = MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, payload);
+
+        for (int budget : new int[] {0, readBudget}) {
+            EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+            server.setVerbose(false);
+            server.setReadBudget(budget);
+
+            Thread serverThread = new Thread(server, "EchoServer");
+            serverThread.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+            run(server, address, request, heavyClients, lightClients, 1);//Warm up
+            String result = run(server, address, request, heavyClients, lightClients, seconds);
+            System.out.println(String.format("budget=%-5s %s", (budget > 0) ? Integer.toString(budget) : "none",
+                    result));
+
+            serverThread.interrupt();
+            serverThread.join();
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Runs the heavy and light clients together for the time given
+     |Return: String, light client latency summary, heavy client throughput and budget stops
+     \------------------------------------------------------------------------------------------------*/
+    private static String run(EchoServer server, final InetSocketAddress address, final byte[] request,
+            int heavyClients, int lightClients, int seconds) throws Exception{
+        final LatencyRecorder recorder = new LatencyRecorder(1 << 20);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong heavyResponses = new AtomicLong();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        ArrayList<SocketChannel> heavyChannels = new ArrayList<SocketChannel>();
+        long exhaustedBefore = server.getReadBudgetExhaustedCount();
+
+        for (int i = 0; i < heavyClients; i++) {
+            final SocketChannel channel = SocketChannel.open(address);
+            final AtomicLong sent = new AtomicLong();
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            heavyChannels.add(channel);
+
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    ByteBuffer batch = ByteBuffer.allocate(request.length * HEAVY_BATCH);
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            batch.clear();
+                            for (int frame = 0; frame < HEAVY_BATCH; frame++) {
+                                batch.put(request);
+                            }
+                            batch.flip();
+                            while (batch.hasRemaining()) {
+                                channel.write(batch);//Blocks once the server falls behind
+                            }
+                            sent.addAndGet(HEAVY_BATCH);
+                        }
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                    writing.set(false);
+                }
+            }, "HeavyWriter-" + i));
+
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    ByteBuffer inbound = ByteBuffer.allocate(64 * 1024);
+                    long received = 0;
+                    try {
+                        //Every response is read before the connection closes, so the server never writes to a reset
+                        while (writing.get() || (received < sent.get())) {
+                            if (channel.read(inbound) < 0) {
+                                break;
+                            }
+                            inbound.flip();
+                            int frames = skipFrames(inbound);
+                            inbound.compact();
+
+                            received += frames;
+                            if (System.nanoTime() < deadline) {
+                                heavyResponses.addAndGet(frames);
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                }
+            }, "HeavyReader-" + i));
+        }
+
+        for (int i = 0; i < lightClients; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    ByteBuffer response = ByteBuffer.allocate(MessageFormatter.MAX_FRAME_LENGTH);
+
+                    try (SocketChannel channel = SocketChannel.open(address)) {
+                        channel.socket().setTcpNoDelay(true);
+
+                        while (System.nanoTime() < deadline) {
+                            long begin = System.nanoTime();
+                            channel.write(ByteBuffer.wrap(request));
+                            readFrame(channel, response);
+
+                            synchronized (recorder) {
+                                recorder.record(System.nanoTime() - begin);
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                }
+            }, "Light-" + i));
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (deadline - start) / 1e9;
+
+        for (SocketChannel channel : heavyChannels) {
+            channel.close();
+        }
+
+        return String.format("light %s  heavy %,.0f responses/s  budget stops %,d", recorder.summary(),
+                heavyResponses.get() / elapsed, server.getReadBudgetExhaustedCount() - exhaustedBefore);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: skipFrames
+     |Abstract: Moves past every complete frame in the buffer, in read mode
+     |Return: int, number of frames skipped
+     \------------------------------------------------------------------------------------------------*/
+    private static int skipFrames(ByteBuffer buffer){
+        int frames = 0;
+        int frameLength = MessageFormatter.frameLength(buffer);
+
+        while ((frameLength != -1) && (frameLength <= buffer.remaining())) {
+            buffer.position(buffer.position() + frameLength);
+            frames++;
+            frameLength = MessageFormatter.frameLength(buffer);
+        }
+        return frames;
+    }
+
+    private static void readFrame(SocketChannel channel, ByteBuffer buffer) throws IOException{
+        buffer.clear();
+        int frameLength = -1;
+
+        while ((frameLength == -1) || (buffer.position() < frameLength)) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            buffer.flip();
+            frameLength = MessageFormatter.frameLength(buffer);
+            buffer.position(buffer.position() + buffer.remaining());
+            buffer.limit(buffer.capacity());
+        }
+    }
+}
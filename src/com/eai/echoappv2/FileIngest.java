@@ -0,0 +1,388 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class streams every record of a file to an Echo Server as requests, for
+ | EchoClient's ingest mode. A record is one line(LF or CRLF ended, empty lines skipped) or a
+ | 2 byte big endian length followed by that many bytes, the same length field as a frame HEADER.
+ | The file is memory mapped a region at a time and each record is framed straight from the
+ | mapped region into a connection's outbound buffer: no String, no byte array, no copy but the
+ | one into the frame. Lines are found eight bytes at a time, testing a long for a newline byte.
+ | Records are dealt to one or more connections, each keeping up to a window of requests in
+ | flight, all driven by one thread through a Selector. Each connection may start with a HELLO,
+ | taking the server's pipelining depth as its window unless one is given and CRC32C if offered
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+
+class FileIngest {
+
+    public enum Format { LINES, PREFIXED }
+
+    public static final int DEFAULT_WINDOW = 64;//Requests in flight per connection, without a HELLO or a window given
+
+    private static final long REGION_SIZE = 256L * 1024 * 1024;//Mapped at a time; a record is never split across two
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(10);//Gives up after this long without progress
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long NEWLINES = ONES * '\n';
+
+    private final FileChannel file;
+    private final long fileSize;
+    private final Format format;
+    private final int type;
+    private final int connectionCount;
+    private final int window;//0 for the depth the server answers a HELLO with
+    private final boolean handshake;
+
+    //The mapped region and the next record in it
+    private MappedByteBuffer region;
+    private long regionStart;
+    private int position;
+    private int recordOffset;
+    private int recordLength;
+
+    //Totals of the run
+    private long records;
+    private long payloadBytes;
+    private long errors;//ERROR and BUSY responses
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Class: IngestConnection
+     |Abstract: One connection streaming records: its socket, the frames waiting to be written, the responses read so
+     |          far and the settings its HELLO agreed on
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static class IngestConnection {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer outbound = ByteBuffer.allocateDirect(BUFFER_SIZE);//Write mode
+        ByteBuffer inbound = ByteBuffer.allocateDirect(BUFFER_SIZE);//Write mode
+        boolean negotiated;
+        boolean crc32c;
+        int window;
+        int inFlight;
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: FileIngest
+     |Abstract: Constructor for FileIngest object. Opens the file, to be sent as requests of the type given over the
+     |          number of connections given, window requests in flight on each(0 for the depth the server suggests),
+     |          with a HELLO first if handshake is set
+     |Return: object FileIngest
+     \----------------------------------------------------------------------------------------------------------------*/
+    FileIngest(Path path, Format format, int type, int connections, int window, boolean handshake) throws IOException{
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = file.size();
+        this.format = format;
+        this.type = type;
+        this.connectionCount = Math.max(1, connections);
+        this.window = Math.max(0, window);
+        this.handshake = handshake;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Connects to the server and streams every record, then waits for every response. Each connection is
+     |          topped up to its window whenever responses free it, and written as the socket takes it. Closes the file
+     |Return: String, totals and throughput of the run
+     \----------------------------------------------------------------------------------------------------------------*/
+    String run(SocketAddress address) throws IOException{
+        Selector selector = Selector.open();
+        IngestConnection[] connections = new IngestConnection[connectionCount];
+
+        try {
+            for (int i = 0; i < connectionCount; i++) {
+                IngestConnection conn = new IngestConnection();
+                conn.channel = SocketChannel.open(address);
+                conn.channel.configureBlocking(false);
+                conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.window = (window > 0) ? window : DEFAULT_WINDOW;
+                conn.negotiated = !handshake;
+
+                if (handshake) {
+                    byte[] hello = MessageFormatter.encodeHello(MessageFormatter.PROTOCOL_VERSION,
+                            MessageFormatter.CAPABILITY_CRC32C, 0, Math.min(window, 0xFFFF));
+                    MessageFormatter.encodeFrame(MessageFormatter.TYPE_HELLO, hello, 0, hello.length, conn.outbound);
+                    conn.inFlight = 1;
+                    send(conn);
+                }
+                connections[i] = conn;
+            }
+
+            long start = System.nanoTime();
+            boolean more = nextRecord();
+            long lastProgress = start;
+
+            while (more || inFlight(connections) > 0) {
+                //Top up every connection, so records are dealt out in the order of the file
+                for (int i = 0; (i < connectionCount) && more; i++) {
+                    IngestConnection conn = connections[i];
+                    boolean queued = false;
+
+                    while (more && conn.negotiated && (conn.inFlight < conn.window) &&
+                            (conn.outbound.remaining() >= MessageFormatter.HEADER_LENGTH + recordLength +
+                            MessageFormatter.CRC_LENGTH)) {
+                        MessageFormatter.encodeFrame(type, region, recordOffset, recordLength, conn.outbound,
+                                conn.crc32c);
+                        conn.inFlight++;
+                        records++;
+                        payloadBytes += recordLength;
+                        queued = true;
+                        more = nextRecord();
+                    }
+                    if (queued) {
+                        send(conn);
+                    }
+                }
+
+                if (selector.select(TimeUnit.NANOSECONDS.toMillis(STALL_NANOS)) > 0) {
+                    lastProgress = System.nanoTime();
+                }
+                else if (System.nanoTime() - lastProgress >= STALL_NANOS) {
+                    throw new IOException("No response for " + TimeUnit.NANOSECONDS.toSeconds(STALL_NANOS) + "s, " +
+                            inFlight(connections) + " requests unanswered");
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    IngestConnection conn = (IngestConnection) key.attachment();
+
+                    if (key.isWritable()) {
+                        send(conn);
+                    }
+                    if (key.isReadable()) {
+                        receive(conn);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            return String.format("%,d records(%,d PAYLOAD bytes) over %d connections in %.2fs: %,.0f records/s, " +
+                    "%.1f MB/s%s", records, payloadBytes, connectionCount, elapsed, records / elapsed,
+                    payloadBytes / elapsed / 1e6, (errors > 0) ? ", " + errors + " answered with ERROR or BUSY" : "");
+        } finally {
+            for (IngestConnection conn : connections) {
+                if (conn != null) {
+                    conn.channel.close();
+                }
+            }
+            selector.close();
+            file.close();
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: nextRecord
+     |Abstract: Finds the next record, mapping the next region of the file when the record does not lie whole in the
+     |          current one, and leaves its place in the region in recordOffset and recordLength
+     |Return: boolean, false at the end of the file
+     \----------------------------------------------------------------------------------------------------------------*/
+    private boolean nextRecord() throws IOException{
+        while (true) {
+            if ((region == null) || (regionStart + position >= fileSize)) {
+                if (region != null) {
+                    return false;
+                }
+                map(0);
+                if (fileSize == 0) {
+                    return false;
+                }
+            }
+
+            int limit = region.limit();
+            boolean lastRegion = (regionStart + limit == fileSize);
+
+            if (format == Format.PREFIXED) {
+                if (position + 2 > limit) {
+                    if (lastRegion) {
+                        throw new IOException("The record at byte " + (regionStart + position) + " is cut short");
+                    }
+                    map(regionStart + position);
+                    continue;
+                }
+
+                int length = ((region.get(position) & 0xFF) << 8) | (region.get(position + 1) & 0xFF);
+                if (length > MessageFormatter.MAX_PAYLOAD_LENGTH) {
+                    throw new IOException("The record at byte " + (regionStart + position) + " is " + length +
+                            " bytes, over the largest PAYLOAD");
+                }
+                if (position + 2 + length > limit) {
+                    if (lastRegion) {
+                        throw new IOException("The record at byte " + (regionStart + position) + " is cut short");
+                    }
+                    map(regionStart + position);
+                    continue;
+                }
+
+                recordOffset = position + 2;
+                recordLength = length;
+                position += 2 + length;
+                return true;
+            }
+
+            //A line may take the largest PAYLOAD and a CR, so the newline is looked for no further than that
+            int end = Math.min(limit, position + MessageFormatter.MAX_PAYLOAD_LENGTH + 2);
+            int newline = indexOfNewline(region, position, end);
+
+            if (newline < 0) {
+                if (end < limit) {
+                    throw new IOException("The line at byte " + (regionStart + position) + " is over the largest " +
+                            "PAYLOAD");
+                }
+                if (!lastRegion) {
+                    map(regionStart + position);
+                    continue;
+                }
+                newline = limit;//The last line has no newline
+            }
+
+            int length = newline - position;
+            if ((length > 0) && (region.get(newline - 1) == '\r')) {
+                length--;
+            }
+            if (length > MessageFormatter.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("The line at byte " + (regionStart + position) + " is over the largest PAYLOAD");
+            }
+
+            recordOffset = position;
+            recordLength = length;
+            position = Math.min(newline + 1, limit);
+
+            if (length > 0) {
+                return true;
+            }
+        }
+    }
+
+    private void map(long start) throws IOException{
+        regionStart = start;
+        region = file.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, fileSize - start));
+        region.order(ByteOrder.LITTLE_ENDIAN);//For indexOfNewline(), the first byte in the lowest bits
+        position = 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: indexOfNewline
+     |Abstract: Finds the first LF from index from up to end, eight bytes per step: XORed with eight LFs, a long has a
+     |          zero byte where there was a LF, which (x - 0x01...) & ~x & 0x80... flags. Only bytes above a flagged one
+     |          can be flagged wrongly, so the lowest flag is always right
+     |Return: int, index of the LF, -1 if there is none
+     \----------------------------------------------------------------------------------------------------------------*/
+    static int indexOfNewline(ByteBuffer buffer, int from, int end){
+        int i = from;
+
+        for (; i + 8 <= end; i += 8) {
+            long bytes = buffer.getLong(i) ^ NEWLINES;
+            long found = (bytes - ONES) & ~bytes & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: send
+     |Abstract: Writes as much of the connection's queued frames as the socket takes and asks for OP_WRITE only while
+     |          some are left
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void send(IngestConnection conn) throws IOException{
+        conn.outbound.flip();
+        conn.channel.write(conn.outbound);
+        conn.outbound.compact();
+
+        conn.key.interestOps((conn.outbound.position() > 0) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: receive
+     |Abstract: Reads what the server sent and counts each complete response, freeing its place in the window. The
+     |          first response of a connection that sent a HELLO is its answer: a HELLO sets the window, if none was
+     |          given, and the checksum, anything else leaves the connection on version 1
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void receive(IngestConnection conn) throws IOException{
+        if (conn.channel.read(conn.inbound) < 0) {
+            throw new IOException("The Echo Server closed a connection with " + conn.inFlight +
+                    " requests unanswered");
+        }
+
+        conn.inbound.flip();
+
+        int frameLength = MessageFormatter.frameLength(conn.inbound);
+        while ((frameLength != -1) && (frameLength <= conn.inbound.remaining())) {
+            int position = conn.inbound.position();
+            int responseType = conn.inbound.getShort(position) & 0xFFFF;
+
+            if (!conn.negotiated) {
+                if (responseType == MessageFormatter.TYPE_HELLO) {
+                    byte[] answer = new byte[MessageFormatter.HELLO_LENGTH];
+                    conn.inbound.get(position + MessageFormatter.HEADER_LENGTH, answer);
+                    conn.crc32c = (MessageFormatter.helloCapabilities(answer, 0) &
+                            MessageFormatter.CAPABILITY_CRC32C) != 0;
+                    if (window == 0) {
+                        conn.window = Math.max(1, MessageFormatter.helloPipelineDepth(answer, 0));
+                    }
+                }
+                conn.negotiated = true;
+                conn.inFlight--;
+            }
+            else if (responseType != MessageFormatter.TYPE_DELIVERY) {//A broadcast pushed to us is not a response
+                if ((responseType == MessageFormatter.TYPE_ERROR) || (responseType == MessageFormatter.TYPE_BUSY)) {
+                    errors++;
+                }
+                conn.inFlight--;
+            }
+
+            conn.inbound.position(position + frameLength);
+            frameLength = MessageFormatter.frameLength(conn.inbound);
+        }
+        conn.inbound.compact();
+    }
+
+    private static int inFlight(IngestConnection[] connections){
+        int inFlight = 0;
+        for (IngestConnection conn : connections) {
+            inFlight += conn.inFlight;
+        }
+        return inFlight;
+    }
+}
@@ -0,0 +1,117 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures what coalescing responses into one gathering write per
+ | connection and pass does for pipelined clients. A quiet Echo Server in this process is sent
+ | echo requests through an AsyncEchoClient keeping many in flight, once writing every response
+ | straight away(cork threshold 0) and once at each cork threshold given, and the throughput and
+ | socket writes per response of each run are printed
+ |
+ | Usage: FlushCoalescingBenchmark [messages] [payloadBytes] [pipelineDepth] [corkBytes...]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+
+public class FlushCoalescingBenchmark {
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of FlushCoalescingBenchmark class. Runs without coalescing and with each cork
+     |          threshold given(EchoServer.DEFAULT_CORK_BYTES if none), each warmed up first
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int payloadBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int depth = (args.length > 2) ? Integer.parseInt(args[2]) : 256;
+
+        int[] corks = new int[Math.max(1, args.length - 3) + 1];//0 first, for comparison
+        corks[1] = EchoServer.DEFAULT_CORK_BYTES;
+        for (int i = 3; i < args.length; i++) {
+            corks[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        EchoServer server = new EchoServer(loopback, 0);
+        server.setVerbose(false);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        InetSocketAddress address = new InetSocketAddress(loopback, server.getPort());
+
+        System.out.println("messages=" + messages + " payload=" + payloadBytes + "B depth=" + depth);
+
+        for (int cork : corks) {
+            server.setCorkBytes(cork);
+            run(address, payload, depth, messages / 10);//Warm up
+
+            long responses = server.getResponseCount();
+            long writes = server.getWriteCount();
+            long start = System.nanoTime();
+
+            run(address, payload, depth, messages);
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double writesPerResponse = (double) (server.getWriteCount() - writes) /
+                    (server.getResponseCount() - responses);
+
+            System.out.println(String.format("cork=%-7d %.0f msg/s writes/response=%.3f", cork, messages / seconds,
+                    writesPerResponse));
+        }
+
+        serverThread.interrupt();
+        serverThread.join();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Sends the number of echo requests given over one connection, keeping depth of them in
+     |          flight, and waits for every response
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    private static void run(InetSocketAddress address, byte[] payload, int depth, int messages) throws Exception{
+        AsyncEchoClient client = new AsyncEchoClient(Collections.singletonList(address), 1,
+                AsyncEchoClient.DEFAULT_REQUEST_TIMEOUT_MS, AsyncEchoClient.DEFAULT_BATCH_BYTES);
+        ArrayDeque<CompletableFuture<EchoResponse>> window = new ArrayDeque<CompletableFuture<EchoResponse>>();
+
+        for (int i = 0; i < messages; i++) {
+            if (window.size() == depth) {
+                window.pollFirst().get();
+            }
+            window.addLast(client.send(MessageFormatter.TYPE_ECHO, payload));
+        }
+        while (!window.isEmpty()) {
+            window.pollFirst().get();
+        }
+
+        client.close();
+    }
+}
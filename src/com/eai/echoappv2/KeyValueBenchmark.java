@@ -0,0 +1,327 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures the key-value store of the Echo Server. First the store itself:
+ | an OffHeapStore and, for comparison, a HashMap of byte arrays are each loaded with the same
+ | entries, then run a mix of nine GETs to one PUT of random keys for a fixed time. The heap left
+ | in use once loaded, the garbage collections during the mix and the operations per second are
+ | printed for each. Then the server: a quiet server in this process is loaded with the entries
+ | over TCP on localhost and client threads pipeline the same mix at it as PUT and GET requests;
+ | requests per second, hits and evictions are printed
+ |
+ | Usage: KeyValueBenchmark [entries] [valueBytes] [seconds] [clients] [pipelineDepth] [capacityMB]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class KeyValueBenchmark {
+
+    private static final int KEY_LENGTH = 16;//"key:" and twelve digits
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     | One of the stores being compared, driven through the same calls
+     \----------------------------------------------------------------------------------------------------------------*/
+    private interface Store {
+        void put(byte[] key, byte[] value, int valueLength);
+        int get(byte[] key);
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of KeyValueBenchmark class. Compares the stores, then measures the server
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        final int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int valueBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        int clients = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        int depth = (args.length > 4) ? Integer.parseInt(args[4]) : 32;
+        long capacity = ((args.length > 5) ? Long.parseLong(args[5]) : 512) * 1024 * 1024;
+
+        System.out.println("entries=" + entries + " value=" + valueBytes + "B seconds=" + seconds + " clients=" +
+                clients + " depth=" + depth + " capacity=" + (capacity >> 20) + "MB");
+
+        final OffHeapStore offHeap = new OffHeapStore(capacity);
+        Store offHeapStore = new Store() {
+            public void put(byte[] key, byte[] value, int valueLength) {
+                System.arraycopy(value, 0, key, KEY_LENGTH, valueLength);//The value follows the key, as in a request
+                offHeap.put(key, 0, KEY_LENGTH, KEY_LENGTH, valueLength);
+            }
+            public int get(byte[] key) {
+                return offHeap.get(key, 0, KEY_LENGTH);
+            }
+        };
+        System.out.println(String.format("%-12s %s  off heap %,d MB", "OffHeapStore", measure(offHeapStore, entries,
+                valueBytes, seconds), (offHeap.getAllocatedBytes() + offHeap.getIndexBytes()) >> 20));
+
+        final HashMap<ByteBuffer, byte[]> map = new HashMap<ByteBuffer, byte[]>();
+        Store heapStore = new Store() {
+            public void put(byte[] key, byte[] value, int valueLength) {
+                map.put(ByteBuffer.wrap(Arrays.copyOf(key, KEY_LENGTH)), Arrays.copyOf(value, valueLength));
+            }
+            public int get(byte[] key) {
+                byte[] value = map.get(ByteBuffer.wrap(key, 0, KEY_LENGTH));
+                return (value == null) ? -1 : value.length;
+            }
+        };
+        System.out.println(String.format("%-12s %s", "HashMap", measure(heapStore, entries, valueBytes, seconds)));
+        map.clear();
+
+        EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        server.setVerbose(false);
+        server.getOverloadController().setEnabled(false);//Every request is handled, none shed with a BUSY response
+        server.serveKeyValues(capacity);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+        try {
+            long start = System.nanoTime();
+            load(address, entries, valueBytes, depth * 8);
+            double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+            final long[] hits = new long[1];
+            long requests = serve(address, entries, valueBytes, seconds, clients, depth, hits);
+
+            System.out.println(String.format("%-12s loaded %,.0f PUTs/s  mix %,.0f requests/s  hits %.1f%%  " +
+                    "entries %,d  evictions %,d", "EchoServer", entries / loadSeconds, requests / (double) seconds,
+                    100.0 * hits[0] / Math.max(1, requests * 9 / 10), server.getKeyValueCount(),
+                    server.getKeyValueEvictions()));
+        } finally {
+            serverThread.interrupt();
+            serverThread.join();
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: Loads the entries into the store, then runs nine GETs to one PUT of random keys for
+     |          the time given, reading the collectors around it
+     |Return: String, heap in use once loaded, collections and their time during the mix, operations
+     |        per second
+     \------------------------------------------------------------------------------------------------*/
+    private static String measure(Store store, int entries, int valueBytes, int seconds){
+        byte[] key = new byte[KEY_LENGTH + valueBytes];
+        byte[] value = new byte[valueBytes];
+        Arrays.fill(value, (byte) 'v');
+
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            store.put(key(i, key), value, valueBytes);
+        }
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.gc();
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long collections = collections();
+        long collectionMillis = collectionMillis();
+
+        SplittableRandom random = new SplittableRandom(42);
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        long operations = 0;
+        long found = 0;
+
+        start = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1000; i++) {
+                key(random.nextInt(entries), key);
+                if (random.nextInt(10) == 0) {
+                    store.put(key, value, valueBytes);
+                }
+                else if (store.get(key) >= 0) {
+                    found++;
+                }
+            }
+            operations += 1000;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        return String.format("loaded %,9.0f/s  heap %,5d MB  mix %,10.0f ops/s  %,4d GCs %,6d ms  found %,d",
+                entries / loadSeconds, heapUsed >> 20, operations / elapsed, collections() - collections,
+                collectionMillis() - collectionMillis, found);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: load
+     |Abstract: PUTs every entry into the server over one connection, depth requests in flight
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    private static void load(InetSocketAddress address, int entries, int valueBytes, int depth) throws IOException{
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] value = new byte[valueBytes];
+        Arrays.fill(value, (byte) 'v');
+        ByteBuffer batch = ByteBuffer.allocate(depth * MessageFormatter.MAX_FRAME_LENGTH);
+        ByteBuffer inbound = ByteBuffer.allocate(2 * MessageFormatter.MAX_FRAME_LENGTH * depth);
+
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            for (int sent = 0; sent < entries; ) {
+                int frames = Math.min(depth, entries - sent);
+
+                batch.clear();
+                for (int i = 0; i < frames; i++) {
+                    byte[] payload = MessageFormatter.encodeKeyValue(key(sent + i, key), value);
+                    MessageFormatter.encodeFrame(MessageFormatter.TYPE_PUT, payload, 0, payload.length, batch);
+                }
+                exchange(channel, batch, inbound, frames, null);
+                sent += frames;
+            }
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: serve
+     |Abstract: Client threads pipeline nine GET requests to one PUT of random keys at the server for
+     |          the time given, depth requests in flight each
+     |Return: long, requests answered; hits[0] gets the GETs answered with a value
+     \------------------------------------------------------------------------------------------------*/
+    private static long serve(final InetSocketAddress address, final int entries, final int valueBytes, int seconds,
+            int clients, final int depth, long[] hits) throws Exception{
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong found = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+
+        for (int c = 0; c < clients; c++) {
+            final int seed = c;
+            threads[c] = new Thread(new Runnable() {
+                public void run() {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    byte[] key = new byte[KEY_LENGTH];
+                    byte[] value = new byte[valueBytes];
+                    Arrays.fill(value, (byte) 'w');
+                    ByteBuffer batch = ByteBuffer.allocate(depth * MessageFormatter.MAX_FRAME_LENGTH);
+                    ByteBuffer inbound = ByteBuffer.allocate(2 * MessageFormatter.MAX_FRAME_LENGTH * depth);
+                    long[] gets = new long[1];
+
+                    try (SocketChannel channel = SocketChannel.open(address)) {
+                        while (System.nanoTime() < deadline) {
+                            batch.clear();
+                            for (int i = 0; i < depth; i++) {
+                                key(random.nextInt(entries), key);
+                                boolean put = (random.nextInt(10) == 0);
+                                byte[] payload = MessageFormatter.encodeKeyValue(key, put ? value : null);
+                                MessageFormatter.encodeFrame(put ? MessageFormatter.TYPE_PUT : MessageFormatter.TYPE_GET,
+                                        payload, 0, payload.length, batch);
+                            }
+                            exchange(channel, batch, inbound, depth, gets);
+                            requests.addAndGet(depth);
+                        }
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                    found.addAndGet(gets[0]);
+                }
+            }, "KeyValueClient-" + c);
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        hits[0] = found.get();
+        return requests.get();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: exchange
+     |Abstract: Writes the batch of requests and reads the number of responses given, counting the GET
+     |          responses into gets if it is not null
+     |Return: void
+     \------------------------------------------------------------------------------------------------*/
+    private static void exchange(SocketChannel channel, ByteBuffer batch, ByteBuffer inbound, int frames, long[] gets)
+            throws IOException{
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+
+        int received = 0;
+        while (received < frames) {
+            if (channel.read(inbound) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            inbound.flip();
+
+            int frameLength = MessageFormatter.frameLength(inbound);
+            while ((frameLength != -1) && (frameLength <= inbound.remaining())) {
+                int type = inbound.getShort(inbound.position()) & 0xFFFF;
+                if ((type == MessageFormatter.TYPE_ERROR) || (type == MessageFormatter.TYPE_BUSY)) {
+                    throw new IOException("Server answered " + type + " to a valid request");
+                }
+                if ((gets != null) && (type == MessageFormatter.TYPE_GET)) {
+                    gets[0]++;
+                }
+                inbound.position(inbound.position() + frameLength);
+                received++;
+                frameLength = MessageFormatter.frameLength(inbound);
+            }
+            inbound.compact();
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: key
+     |Abstract: Writes the key of entry i into the first KEY_LENGTH bytes of the array, without making
+     |          a String
+     |Return: byte[], the array given
+     \------------------------------------------------------------------------------------------------*/
+    private static byte[] key(int i, byte[] key){
+        key[0] = 'k';
+        key[1] = 'e';
+        key[2] = 'y';
+        key[3] = ':';
+        for (int digit = KEY_LENGTH - 1; digit >= 4; digit--) {
+            key[digit] = (byte) ('0' + i % 10);
+            i /= 10;
+        }
+        return key;
+    }
+
+    private static long collections(){
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis(){
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,98 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class collects latency samples in nanoseconds for the Echo App's benchmarks and
+ | reports their distribution. Every sample is kept, so percentiles are exact
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.util.Arrays;
+
+
+public class LatencyRecorder {
+
+    private long[] samples;
+    private int count;
+    private boolean sorted;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: LatencyRecorder
+     |Abstract: Constructor for LatencyRecorder object. Room for the expected number of samples is allocated up front so
+     |          recording does not allocate while a benchmark is being measured
+     |Return: object LatencyRecorder
+     \----------------------------------------------------------------------------------------------------------------*/
+    public LatencyRecorder(int expectedSamples){
+        samples = new long[Math.max(16, expectedSamples)];
+    }
+
+    public void record(long nanos){
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    public int count(){
+        return count;
+    }
+
+    public void reset(){
+        count = 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: percentile
+     |Abstract: Nearest rank percentile of the samples recorded so far, e.g. 99.0 for the p99
+     |Return: long, latency in nanoseconds, 0 if nothing was recorded
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long percentile(double percent){
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+
+        int rank = (int) Math.ceil(percent / 100.0 * count);
+        return samples[Math.min(count, Math.max(1, rank)) - 1];
+    }
+
+    public double mean(){
+        double total = 0;
+
+        for (int i = 0; i < count; i++) {
+            total += samples[i];
+        }
+        return (count == 0) ? 0 : total / count;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: summary
+     |Abstract: One line report of the distribution in microseconds
+     |Return: String, count, mean and the p50, p90, p99, p99.9 and maximum latencies
+     \----------------------------------------------------------------------------------------------------------------*/
+    public String summary(){
+        return String.format("n=%d mean=%.2fus p50=%.2fus p90=%.2fus p99=%.2fus p99.9=%.2fus max=%.2fus", count,
+                mean() / 1e3, percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+                percentile(99.9) / 1e3, percentile(100) / 1e3);
+    }
+}
@@ -0,0 +1,166 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures the cost of the Echo App's request path without TCP. It first
+ | times the MessageFormatter codec on its own, then drives the full Echo Server path(read, CRC32
+ | validation, messageHandling(), write) over an in-process LoopbackChannel. Client and server
+ | run on the calling thread one step at a time, so every run does exactly the same work
+ |
+ | Usage: LoopbackBenchmark [messages] [payloadBytes] [pipelineDepth] [messageType]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+public class LoopbackBenchmark {
+
+    private static final int RING_CAPACITY = 1 << 20;
+    private static final int WARMUP_ROUNDS = 3;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of LoopbackBenchmark class. Parses the optional arguments, warms up, and
+     |          prints the codec and full path results
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int payloadBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int depth = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+        int messageType = (args.length > 3) ? Integer.parseInt(args[3]) : MessageFormatter.TYPE_ECHO;
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+
+        //An ephemeral port on the loopback address; the benchmark itself never uses TCP
+        EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        server.setVerbose(false);
+
+        System.out.println("messages=" + messages + " payload=" + payloadBytes + "B depth=" + depth +
+                " type=" + messageType);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runCodec(messages / 10, messageType, payload);
+            runServer(server, messages / 10, messageType, payload, depth);
+        }
+
+        report("codec ", messages, runCodec(messages, messageType, payload));
+        report("server", messages, runServer(server, messages, messageType, payload, depth));
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: runCodec
+     |Abstract: Encodes and validates the frame the number of times given, the way the client and the
+     |          server each do once per message, with no channel in between
+     |Return: long, elapsed time in nanoseconds
+     \------------------------------------------------------------------------------------------------*/
+    static long runCodec(int messages, int messageType, byte[] payload){
+        MessageFormatter msgOBJ = new MessageFormatter();
+        msgOBJ.setVerbose(false);
+
+        byte[] frame = new byte[MessageFormatter.HEADER_LENGTH + payload.length + MessageFormatter.CRC_LENGTH];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int valid = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            buffer.clear();
+            MessageFormatter.encodeFrame(messageType, payload, 0, payload.length, buffer);
+
+            if (msgOBJ.sentMessageValidator(frame, frame.length)) {
+                valid++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (valid != messages) {
+            throw new IllegalStateException("Only " + valid + " of " + messages + " frames were valid");
+        }
+        return elapsed;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: runServer
+     |Abstract: Writes the frames to a loopback connection depth at a time, lets the server take one
+     |          step at a time with poll(0) and reads the responses back until every frame of the batch
+     |          has been answered
+     |Return: long, elapsed time in nanoseconds
+     \------------------------------------------------------------------------------------------------*/
+    static long runServer(EchoServer server, int messages, int messageType, byte[] payload, int depth)
+            throws IOException{
+        LoopbackChannel client = server.openLoopbackConnection(RING_CAPACITY);
+
+        byte[] frame = MessageFormatter.encodeFrame(messageType, payload);
+        ByteBuffer batch = ByteBuffer.allocate(frame.length * depth);
+        for (int i = 0; i < depth; i++) {
+            batch.put(frame);
+        }
+
+        ByteBuffer responses = ByteBuffer.allocate(RING_CAPACITY);
+        long sent = 0;
+        long received = 0;
+
+        long start = System.nanoTime();
+        while (received < messages) {
+            int count = (int) Math.min(depth, messages - sent);
+
+            batch.clear();
+            batch.limit(frame.length * count);
+            while (batch.hasRemaining()) {
+                client.write(batch);
+                server.poll(0);
+            }
+            sent += count;
+
+            while (received < sent) {
+                server.poll(0);
+                client.read(responses);
+                responses.flip();
+
+                int frameLength = MessageFormatter.frameLength(responses);
+                while ((frameLength != -1) && (frameLength <= responses.remaining())) {
+                    if (responses.getShort(responses.position()) == MessageFormatter.TYPE_ERROR) {
+                        throw new IllegalStateException("The server rejected a benchmark frame");
+                    }
+                    responses.position(responses.position() + frameLength);
+                    received++;
+                    frameLength = MessageFormatter.frameLength(responses);
+                }
+                responses.compact();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        client.close();
+        server.poll(0);//Let the server see the close
+        return elapsed;
+    }
+
+    private static void report(String name, int messages, long elapsedNanos){
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println(String.format("%s  %,12.0f msg/s  %8.1f ns/msg", name, messages / seconds,
+                (double) elapsedNanos / messages));
+    }
+}
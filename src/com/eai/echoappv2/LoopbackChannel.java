@@ -0,0 +1,183 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is one end of an in-process, in-memory connection. Bytes written to one
+ | end are read from the other through a ByteRing in each direction, with no socket and no system
+ | call, so the Echo Server's codec and handlers can be measured without the cost of TCP. Like a
+ | non-blocking SocketChannel, reads and writes move only what is available and never wait
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+
+public class LoopbackChannel implements ByteChannel, GatheringByteChannel {
+
+    private final ByteRing inbound;//Bytes written by the peer, read by this end
+    private final ByteRing outbound;//Bytes written by this end, read by the peer
+    private final LoopbackChannel peer;
+    private volatile Runnable listener;
+    private volatile boolean open = true;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: LoopbackChannel
+     |Abstract: Constructor for LoopbackChannel object. Creates both ends of the connection; the other end is returned by
+     |          getPeer(). Each direction buffers up to capacity bytes(rounded up to a power of two)
+     |Return: object LoopbackChannel
+     \----------------------------------------------------------------------------------------------------------------*/
+    public LoopbackChannel(int capacity){
+        inbound = new ByteRing(capacity);
+        outbound = new ByteRing(capacity);
+        peer = new LoopbackChannel(this);
+    }
+
+    private LoopbackChannel(LoopbackChannel peer){
+        this.peer = peer;
+        inbound = peer.outbound;
+        outbound = peer.inbound;
+    }
+
+    public LoopbackChannel getPeer(){
+        return peer;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setListener
+     |Abstract: Sets the callback run whenever the peer writes bytes for this end, reads bytes this end wrote(freeing
+     |          room to write more) or closes. It runs on the peer's thread and must be quick
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setListener(Runnable listener){
+        this.listener = listener;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: available
+     |Abstract: Bytes the peer has written that this end has not read yet
+     |Return: int, readable bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int available(){
+        return inbound.available();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Reads as many bytes as are available and fit into the buffer
+     |Return: int, bytes read, 0 if nothing is available, or -1 once the peer has closed and everything it wrote has
+     |        been read
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int read(ByteBuffer dst) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+
+        int n = inbound.read(dst);
+
+        if (n > 0){
+            peer.signal();//Room for the peer to write more
+        }
+        else if (!peer.open && (inbound.available() == 0)){
+            return -1;
+        }
+        return n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Writes as many bytes from the buffer as the peer's ring has room for
+     |Return: int, bytes written, 0 if the ring is full
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int write(ByteBuffer src) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+        if (!peer.open){
+            throw new IOException("The other end of the loopback connection is closed");
+        }
+
+        int n = outbound.write(src);
+
+        if (n > 0){
+            peer.signal();//Data for the peer to read
+        }
+        return n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Gathering write. Writes the buffers in order until one does not fit completely, and signals the peer
+     |          once for all of them
+     |Return: long, bytes written
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+        if (!peer.open){
+            throw new IOException("The other end of the loopback connection is closed");
+        }
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += outbound.write(srcs[i]);
+
+            if (srcs[i].hasRemaining()) {
+                break;//Ring is full
+            }
+        }
+
+        if (total > 0){
+            peer.signal();
+        }
+        return total;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException{
+        return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Closes this end. The peer can still read what was written before and then reads -1
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void close(){
+        if (open){
+            open = false;
+            peer.signal();
+        }
+    }
+
+    private void signal(){
+        Runnable current = listener;
+
+        if (current != null){
+            current.run();
+        }
+    }
+}
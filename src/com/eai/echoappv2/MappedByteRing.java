@@ -0,0 +1,143 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is the ByteRing laid out in a region of a memory-mapped file instead of
+ | the Java heap, so the writer and the reader may be in different processes. Head and tail are
+ | longs in the file, each on its own cache line, written with release and read with acquire
+ | ordering. Each side keeps a copy of the other side's counter and only reads the shared one
+ | again when the copy says the ring is full or empty
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+class MappedByteRing {
+
+    //Atomic access to longs of a direct buffer. Both processes map the file, so both see the same memory
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+    private final int headOffset;//Total bytes ever read. Written by the reader only
+    private final int tailOffset;//Total bytes ever written. Written by the writer only
+    private final int dataOffset;
+    private final int capacity;
+    private final int mask;
+    private long cachedHead;//Writer's copy of head, never ahead of the real one
+    private long cachedTail;//Reader's copy of tail, never ahead of the real one
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: MappedByteRing
+     |Abstract: Constructor for MappedByteRing object over a region of a mapped buffer. The counter offsets must be 8
+     |          byte aligned and the capacity a power of two. Attaching to a ring another process already uses picks up
+     |          its current counters
+     |Return: object MappedByteRing
+     \----------------------------------------------------------------------------------------------------------------*/
+    MappedByteRing(ByteBuffer buffer, int headOffset, int tailOffset, int dataOffset, int capacity){
+        if (Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("Ring capacity must be a power of two");
+        }
+        this.buffer = buffer;
+        this.headOffset = headOffset;
+        this.tailOffset = tailOffset;
+        this.dataOffset = dataOffset;
+        this.capacity = capacity;
+        mask = capacity - 1;
+
+        cachedHead = (long) LONGS.getAcquire(buffer, headOffset);
+        cachedTail = (long) LONGS.getAcquire(buffer, tailOffset);
+    }
+
+    int capacity(){
+        return capacity;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: available
+     |Abstract: Number of bytes written and not yet read. Exact on the reading side, a lower bound elsewhere
+     |Return: int, readable bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    int available(){
+        return (int) ((long) LONGS.getAcquire(buffer, tailOffset) - (long) LONGS.getOpaque(buffer, headOffset));
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Copies as many bytes from the source buffer as there is room for, in at most two pieces when the copy
+     |          wraps around the end of the region, then publishes them to the reader
+     |Return: int, bytes copied, 0 if the ring is full
+     \----------------------------------------------------------------------------------------------------------------*/
+    int write(ByteBuffer src){
+        long t = (long) LONGS.getOpaque(buffer, tailOffset);//Only this side writes it
+
+        if (t - cachedHead + src.remaining() > capacity){
+            cachedHead = (long) LONGS.getAcquire(buffer, headOffset);//Looks full, see what the reader has freed
+        }
+
+        int n = Math.min(capacity - (int) (t - cachedHead), src.remaining());
+
+        if (n == 0){
+            return 0;
+        }
+
+        int index = (int) t & mask;
+        int first = Math.min(n, capacity - index);//Bytes up to the end of the region
+
+        buffer.put(dataOffset + index, src, src.position(), first);
+        buffer.put(dataOffset, src, src.position() + first, n - first);
+        src.position(src.position() + n);
+
+        LONGS.setRelease(buffer, tailOffset, t + n);//The bytes above are visible before the new tail
+        return n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Copies as many available bytes as fit into the destination buffer, then releases the space to the writer
+     |Return: int, bytes copied, 0 if the ring is empty
+     \----------------------------------------------------------------------------------------------------------------*/
+    int read(ByteBuffer dst){
+        long h = (long) LONGS.getOpaque(buffer, headOffset);//Only this side writes it
+
+        if (cachedTail - h < dst.remaining()){
+            cachedTail = (long) LONGS.getAcquire(buffer, tailOffset);//Looks short, see what the writer has added
+        }
+
+        int n = Math.min((int) (cachedTail - h), dst.remaining());
+
+        if (n == 0){
+            return 0;
+        }
+
+        int index = (int) h & mask;
+        int first = Math.min(n, capacity - index);
+
+        dst.put(dst.position(), buffer, dataOffset + index, first);
+        dst.put(dst.position() + first, buffer, dataOffset, n - first);
+        dst.position(dst.position() + n);
+
+        LONGS.setRelease(buffer, headOffset, h + n);
+        return n;
+    }
+}
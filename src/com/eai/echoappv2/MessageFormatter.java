@@ -15,21 +15,62 @@
 /**---------------------------------------------------------------------------------------------
  VERSION HISTORY:
  1.0  - 03012015 - Initial Creation
+ 1.1  - 10192026 - BUSY response type for requests shed under overload
+ 1.2  - 10192026 - BROADCAST and JOIN message types and the DELIVERY frames pushed to broadcast recipients
+ 1.3  - 10192026 - BLOB message type and its descriptor
+ 1.4  - 10192026 - Validation allocates nothing: CRC32 reused, compared as numbers, hex built only for debug output
+ 1.5  - 10192026 - HELLO message type negotiating protocol version and capabilities, CRC32C as the checksum
+ 1.6  - 10192026 - Text PAYLOADs checked as UTF-8 eight bytes at a time, ASCII decoded by a plain copy
+ 1.7  - 10192026 - PUT, GET and DELETE message types for the server's key-value store, and the MISSING response
 
  \---------------------------------------------------------------------------------------------**/
 
 package com.eai.echoappv2;
 
-import java.nio.channels.SelectionKey;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Scanner;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 import java.util.zip.Checksum;
 
 
 public class MessageFormatter {
 
-    private final int cMAXMESSAGELENGTH = 8192;
+    //Message types(Server operations) defined by the ICD
+    public static final int TYPE_NOTHING = 1;//Server verifies and disregards the message
+    public static final int TYPE_ECHO = 2;//Server echoes the payload back to the client
+    public static final int TYPE_PRINT = 3;//Server prints the payload to its console
+    public static final int TYPE_BROADCAST = 4;//Server pushes the payload to every other client, or to one group
+    public static final int TYPE_BLOB = 5;//Server sends the file named by the payload, right after the response frame
+    public static final int TYPE_PUT = 6;//Server stores the value in the payload under the key in the payload
+    public static final int TYPE_GET = 7;//Server sends back the value stored under the key in the payload
+    public static final int TYPE_DELETE = 8;//Server removes the value stored under the key in the payload
+    public static final int TYPE_JOIN = 9;//Server moves the client into the group named by the payload
+    public static final int TYPE_HELLO = 0x10;//Client and server agree on the protocol version and capabilities
+    public static final int TYPE_MISSING = 0xFC;//Server response only. No value is stored under the key
+    public static final int TYPE_DELIVERY = 0xFD;//Server push only. A broadcast from another client, not a response
+    public static final int TYPE_BUSY = 0xFE;//Server response only. Server was overloaded and shed the request
+    public static final int TYPE_ERROR = 0xFF;//Server response only. Message was invalid or type unsupported
+
+    //Frame layout defined by the ICD: HEADER(type 2B, length 2B) + PAYLOAD + CRC32(4B)
+    public static final int HEADER_LENGTH = 4;
+    public static final int CRC_LENGTH = 4;
+    public static final int MAX_PAYLOAD_LENGTH = 8192;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH + CRC_LENGTH;
+    public static final int BLOB_DESCRIPTOR_LENGTH = 12;//PAYLOAD of a BLOB response: file length(8) and CRC32(4)
+
+    //HELLO PAYLOAD, request and response alike: version(2B), capability bits(4B), largest PAYLOAD(2B) and pipelining
+    // depth(2B). A client that sends no HELLO, or whose HELLO is answered with an ERROR by an older server, speaks
+    // version 1: CRC32 and the ICD maximum PAYLOAD
+    public static final int PROTOCOL_VERSION = 2;
+    public static final int HELLO_LENGTH = 10;
+    public static final int CAPABILITY_CRC32C = 0x1;//Frames carry a CRC32C(Castagnoli) in place of the CRC32
+
+    //PUT, GET and DELETE PAYLOAD: key length(1B), key, then for a PUT the value. Keys are 1 to 255 bytes of anything
+    public static final int MAX_KEY_LENGTH = 255;
+
+    private final int cMAXMESSAGELENGTH = MAX_PAYLOAD_LENGTH;
     private int CRC32Offset;
     private String message = "";
     private String expectedCRCHex = "";
@@ -38,9 +79,13 @@ public class MessageFormatter {
     private short messageLength;
     private long currentCRC32;
     private long expectedCRC;
+    private final CRC32 crc32OBJ = new CRC32();//Reset for every message validated
+    private final CRC32C crc32cOBJ = new CRC32C();//Used instead once CRC32C has been negotiated
+    private boolean crc32c;//Checksum of the frames formatted and validated from now on
     private byte[] msgByteArray = new byte[8192];
     private int messageAndHeaderLen;
     private Charset charset = Charset.forName("UTF-8");
+    private boolean verbose = true;//Debug output to the console while validating
 
     /*=============================================================================================================
                                             Method Definitions
@@ -122,7 +167,7 @@ public class MessageFormatter {
 
             System.out.println("You typed: " + input);
 
-            int msgLen = input.length();//Value of the current message length
+            int msgLen = input.getBytes(charset).length;//Encoded length of the current message, as sent on the wire
 
             //Check if length is within limits based on cMAXMESSAGELENGTH
             if (msgLen > cMAXMESSAGELENGTH) {
@@ -148,17 +193,16 @@ public class MessageFormatter {
      |a method generated CRC32. The bit shifting and masking ensures that data is written to the correct place
      |in the byteArray. User input is encoded using the system's default charset so that messages will have continuity
      |regardless of platform
-     |Return: void, Method performs all updates directly on the byteBuffer passed.
+     |Return: int, number of bytes of packetBytes used by the frame(HEADER + PAYLOAD + CRC32)
      \---------------------------------------------------------------------------------------------------------------*/
-    public void formatMessage(byte[] packetBytes){
+    public int formatMessage(byte[] packetBytes){
 
-        //Note: Already validated length of message from user
-        messageLength = (short)message.length();//Sets class variable messageLength to length of user input string
-
-
-        //Creates a byte array with the characters of message encoded implicitly with the default charset of the JVM
+        //Creates a byte array with the characters of message encoded with the predefined charset
         msgByteArray = message.getBytes(charset);
 
+        //Note: Already validated length of message from user
+        messageLength = (short)msgByteArray.length;//Length field counts encoded bytes, not characters
+
         //Packs first 4B with messageType and messageLength(HEADER). Casts data as bytes and packs into byte array
         // using bit shifting and masking to accomplish ICD requirements
         packetBytes[0] = (byte)((messageType>>8) & 0xFF);
@@ -181,6 +225,7 @@ public class MessageFormatter {
         packetBytes[CRC32Offset + 2] = (byte)((currentCRC32>>8) & 0xFF);
         packetBytes[CRC32Offset + 3] = (byte)((currentCRC32>>0) & 0xFF);
 
+        return CRC32Offset + CRC_LENGTH;
     }
 
     /**----------------------------------------------------------------------------------------------------------------
@@ -194,11 +239,12 @@ public class MessageFormatter {
         int messageType = 0;
 
         //Unpacks first 4B from packetBytes to int variables messageType & messageLength, respectively by left shifting
-        messageType |= packetBytes[0] <<8;
-        messageType |= packetBytes[1] <<0;
+        //Each byte is masked so that values above 0x7F are not sign extended into the upper bits
+        messageType |= (packetBytes[0] & 0xFF) <<8;
+        messageType |= (packetBytes[1] & 0xFF) <<0;
 
-        messageLength |= packetBytes[2] <<8;
-        messageLength |= packetBytes[3] <<0;
+        messageLength |= (packetBytes[2] & 0xFF) <<8;
+        messageLength |= (packetBytes[3] & 0xFF) <<0;
 
         //4B is the size of messageLength and messageType(HEADER).
         //4B plus the known messageLength gives us the remaining bytes for the int CRC32 entered by left shifting
@@ -208,10 +254,11 @@ public class MessageFormatter {
             System.out.print("Error! The expected Buffer length and computed length do not match");
         }
         else{
-            currentCRC32 |= packetBytes[CRC32Offset + 0] <<24;
-            currentCRC32 |= packetBytes[CRC32Offset + 1] <<16;
-            currentCRC32 |= packetBytes[CRC32Offset + 2] <<8;
-            currentCRC32 |= packetBytes[CRC32Offset + 3] <<0;
+            currentCRC32 = 0;
+            currentCRC32 |= (packetBytes[CRC32Offset + 0] & 0xFFL) <<24;
+            currentCRC32 |= (packetBytes[CRC32Offset + 1] & 0xFFL) <<16;
+            currentCRC32 |= (packetBytes[CRC32Offset + 2] & 0xFFL) <<8;
+            currentCRC32 |= (packetBytes[CRC32Offset + 3] & 0xFFL) <<0;
 
             //Scans the bytes in packetBytes for payload back into a byteArray to convert to string
             byte[] msgByteArray = new byte[messageLength];
@@ -252,46 +299,39 @@ public class MessageFormatter {
     public boolean sentMessageValidator(byte[] packetBytes, int bytesRead){
         messageLength = 0;
         messageType = 0;
+        expectedCRC = 0;
 
         //Unpacks first 4B from packetBytes to int variables messageType & messageLength, respectively by left shifting
-        messageType |= packetBytes[0] <<8;
-        messageType |= packetBytes[1] <<0;
+        messageType |= (packetBytes[0] & 0xFF) <<8;
+        messageType |= (packetBytes[1] & 0xFF) <<0;
 
-        messageLength |= packetBytes[2] <<8;
-        messageLength |= packetBytes[3] <<0;
+        messageLength |= (packetBytes[2] & 0xFF) <<8;
+        messageLength |= (packetBytes[3] & 0xFF) <<0;
 
         //4B is the size of messageLength and messageType(HEADER).
         //4B plus the known messageLength gives us the remaining bytes for the int CRC32 entered by left shifting
-        CRC32Offset = 4 + messageLength;//Header + known length of message
-
-        expectedCRC |= packetBytes[CRC32Offset + 0] <<24;
-        expectedCRC |= packetBytes[CRC32Offset + 1] <<16;
-        expectedCRC |= packetBytes[CRC32Offset + 2] <<8;
-        expectedCRC |= packetBytes[CRC32Offset + 3] <<0;
+        CRC32Offset = 4 + (messageLength & 0xFFFF);//Header + known length of message
 
         //Checks to make sure range is met and that array length is not bigger than the expected size per ICD
         // (8 bytes + however long the message is)
         if((CRC32Offset + 4) > bytesRead){
-            System.out.print("Error! The expected Byte array length and actual length do not match");
+            if (verbose) System.out.print("Error! The expected Byte array length and actual length do not match");
+            return false;
         }
         else {
-            messageAndHeaderLen = 4 + messageLength;//message(PDU) and HEADER(4 bytes) for CRC32 computation
-            byte[] tempPacketsBytes = new byte[messageAndHeaderLen];
-
-            for(int i = 0; i < tempPacketsBytes.length; i++){
-                tempPacketsBytes[i] = packetBytes[i];// Copy contents from one array temp to another to check CRC
-            }
-            //Get CRC32 from byte array in Hex format
-            expectedCRCHex = "0x";//Appends "0x" to beginning of string for proper formatting
+            expectedCRC |= (packetBytes[CRC32Offset + 0] & 0xFFL) <<24;
+            expectedCRC |= (packetBytes[CRC32Offset + 1] & 0xFFL) <<16;
+            expectedCRC |= (packetBytes[CRC32Offset + 2] & 0xFFL) <<8;
+            expectedCRC |= (packetBytes[CRC32Offset + 3] & 0xFFL) <<0;
 
-            //Loops through the last 4 bytes of the byte array to get the CRC32
-            for(int i =0; i < 4; i++) {
+            messageAndHeaderLen = CRC32Offset;//message(PDU) and HEADER(4 bytes) for CRC32 computation
 
-                String s = String.format("%02X", packetBytes[i + CRC32Offset]);//Gets the bytes in Hex format
-                expectedCRCHex = expectedCRCHex + s;//Concatenates the additional values in Hex format
+            //Get CRC32 from byte array in Hex format, only for the debug output
+            if (verbose) {
+                expectedCRCHex = String.format("0x%08X", expectedCRC);
             }
 
-            getCRC(tempPacketsBytes);//Compute a CRC32 over the bytes received for size of messageAndHeaderLen
+            getCRC(packetBytes);//Compute a CRC32 over the first messageAndHeaderLen bytes received, in place
 
             if (!checkCRC()){
                 return false;
@@ -305,25 +345,303 @@ public class MessageFormatter {
     }
 
     public String getSentMessageText(byte [] packetBytes){
-        //Set size of temporary array to exact size of total packet
-        byte[] tempPacketsBytes = new byte[messageLength];
+        //Decode the message bytes straight out of the packet, after the 4 byte HEADER. ASCII is copied, not decoded
+        message = Utf8.decode(packetBytes, 4, getSentMessageLength());
 
-        //
-        for (int i = 0; i < messageLength; i++) {
-            tempPacketsBytes[i] = packetBytes[i + 4];//Copy message bytes from one array to another
-        }
+        return message;
+    }
 
-        message = new String(tempPacketsBytes, charset);
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: isSentMessageTextValid
+     |Abstract: Checks that the PAYLOAD of the message last validated is well formed UTF-8, without decoding it or
+     |          allocating anything(see Utf8.isValid())
+     |Return: boolean, true if the PAYLOAD is valid UTF-8
+     \--------------------------------------------------------------------------------------------------------------*/
+    public boolean isSentMessageTextValid(byte[] packetBytes){
+        return Utf8.isValid(packetBytes, HEADER_LENGTH, getSentMessageLength());
+    }
 
-        return message;
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: isTextType
+     |Abstract: Message types whose PAYLOAD is text: a line to print, a group name or a blob name
+     |Return: boolean, true if the PAYLOAD of the type given must be valid UTF-8
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static boolean isTextType(int type){
+        return (type == TYPE_PRINT) || (type == TYPE_JOIN) || (type == TYPE_BLOB);
     }
 
     public int getSentMessageType(){
-        return messageType;
+        return messageType & 0xFFFF;
     }
 
     public int getSentMessageLength(){
-        return messageLength;
+        return messageLength & 0xFFFF;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: setVerbose
+     |Abstract: Turns the debug output printed while validating messages on or off. On by default
+     |Return: void, Method updates class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    public void setVerbose(boolean verbose){
+        this.verbose = verbose;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: setCrc32c
+     |Abstract: Picks the checksum formatMessage() packs and sentMessageValidator() checks: CRC32C if the connection
+     |          negotiated it with a HELLO, otherwise the CRC32 of the ICD
+     |Return: void, Method updates class variables
+     \--------------------------------------------------------------------------------------------------------------*/
+    public void setCrc32c(boolean crc32c){
+        this.crc32c = crc32c;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeFrame
+     |Abstract: Static counterpart of formatMessage() for programmatic callers. Packs the HEADER, the given payload
+     |          bytes and a CRC32 generated over HEADER and PAYLOAD into the ByteBuffer at its current position. Keeps
+     |          no state and prints nothing, so it can be shared by any number of threads and connections
+     |Return: int, number of bytes written into the ByteBuffer
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static int encodeFrame(int type, byte[] payload, int offset, int length, ByteBuffer dst){
+        return encodeFrame(type, payload, offset, length, dst, false);
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeFrame
+     |Abstract: encodeFrame() for a connection that negotiated its checksum, packing a CRC32C after the PAYLOAD in
+     |          place of the CRC32 if crc32c is true
+     |Return: int, number of bytes written into the ByteBuffer
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static int encodeFrame(int type, byte[] payload, int offset, int length, ByteBuffer dst, boolean crc32c){
+        if ((length < 0) || (length > MAX_PAYLOAD_LENGTH)){
+            throw new IllegalArgumentException("Payload of " + length + " bytes exceeds the ICD maximum of " +
+                    MAX_PAYLOAD_LENGTH);
+        }
+
+        int start = dst.position();//Frame begins at the current position of the buffer
+
+        dst.putShort((short) type);//HEADER: message type
+        dst.putShort((short) length);//HEADER: message length
+        dst.put(payload, offset, length);//PAYLOAD
+
+        dst.putInt((int) computeCRC(dst, start, HEADER_LENGTH + length, crc32c));//CRC32 over HEADER and PAYLOAD
+
+        return HEADER_LENGTH + length + CRC_LENGTH;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeFrame
+     |Abstract: Overload of encodeFrame() taking the PAYLOAD from length bytes of a buffer at offset, e.g. a value held
+     |          off the heap, copied straight into dst with no byte array in between. The positions of the PAYLOAD
+     |          buffer are left as they are
+     |Return: int, number of bytes written to the buffer
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static int encodeFrame(int type, ByteBuffer payload, int offset, int length, ByteBuffer dst, boolean crc32c){
+        if ((length < 0) || (length > MAX_PAYLOAD_LENGTH)){
+            throw new IllegalArgumentException("Payload of " + length + " bytes exceeds the ICD maximum of " +
+                    MAX_PAYLOAD_LENGTH);
+        }
+
+        int start = dst.position();//Frame begins at the current position of the buffer
+
+        dst.putShort((short) type);//HEADER: message type
+        dst.putShort((short) length);//HEADER: message length
+        dst.put(dst.position(), payload, offset, length);//PAYLOAD, absolute on both sides
+        dst.position(dst.position() + length);
+
+        dst.putInt((int) computeCRC(dst, start, HEADER_LENGTH + length, crc32c));//CRC32 over HEADER and PAYLOAD
+
+        return HEADER_LENGTH + length + CRC_LENGTH;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeFrame
+     |Abstract: Convenience overload of encodeFrame() which returns the frame in a new, exactly sized byte array
+     |Return: byte[], the complete frame
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static byte[] encodeFrame(int type, byte[] payload){
+        byte[] frame = new byte[HEADER_LENGTH + payload.length + CRC_LENGTH];
+
+        encodeFrame(type, payload, 0, payload.length, ByteBuffer.wrap(frame));
+
+        return frame;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeBroadcast
+     |Abstract: Builds the PAYLOAD of a BROADCAST request: the length of the group name in one byte, the group name and
+     |          the message. An empty group name broadcasts to every client. Recipients get this same PAYLOAD in a
+     |          DELIVERY frame and can take it apart with broadcastGroup() and broadcastMessageOffset()
+     |Return: byte[], the PAYLOAD
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static byte[] encodeBroadcast(String group, byte[] message){
+        byte[] name = group.getBytes(Charset.forName("UTF-8"));
+
+        if (name.length > 255){
+            throw new IllegalArgumentException("Group name of " + name.length + " bytes exceeds 255");
+        }
+
+        byte[] payload = new byte[1 + name.length + message.length];
+        payload[0] = (byte) name.length;
+        System.arraycopy(name, 0, payload, 1, name.length);
+        System.arraycopy(message, 0, payload, 1 + name.length, message.length);
+
+        return payload;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: broadcastGroup
+     |Abstract: Group name of a BROADCAST or DELIVERY PAYLOAD
+     |Return: String, the group name, empty for a broadcast to every client
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static String broadcastGroup(byte[] payload){
+        return new String(payload, 1, payload[0] & 0xFF, Charset.forName("UTF-8"));
+    }
+
+    public static int broadcastMessageOffset(byte[] payload){
+        return 1 + (payload[0] & 0xFF);
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeKeyValue
+     |Abstract: Builds the PAYLOAD of a PUT(key and value), GET or DELETE(key only, value null): the length of the key
+     |          in one byte, the key and the value. A GET is answered with the value as the PAYLOAD, a PUT and a DELETE
+     |          with an empty one, and a GET or DELETE of a key with nothing stored under it with a MISSING
+     |Return: byte[], the PAYLOAD
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static byte[] encodeKeyValue(byte[] key, byte[] value){
+        if ((key.length == 0) || (key.length > MAX_KEY_LENGTH)){
+            throw new IllegalArgumentException("Key of " + key.length + " bytes is not 1 to " + MAX_KEY_LENGTH);
+        }
+
+        int valueLength = (value == null) ? 0 : value.length;
+        byte[] payload = new byte[1 + key.length + valueLength];
+        payload[0] = (byte) key.length;
+        System.arraycopy(key, 0, payload, 1, key.length);
+        if (value != null) {
+            System.arraycopy(value, 0, payload, 1 + key.length, valueLength);
+        }
+
+        return payload;
+    }
+
+    public static boolean isKeyValueType(int type){
+        return (type == TYPE_PUT) || (type == TYPE_GET) || (type == TYPE_DELETE);
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeBlobDescriptor
+     |Abstract: Builds the PAYLOAD of a BLOB response: the length of the file in 8 bytes, then the CRC32 of the whole
+     |          file in 4. Exactly that many raw bytes of the file follow the response frame, outside any frame, since
+     |          a file can be far longer than a PAYLOAD
+     |Return: byte[], the PAYLOAD
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static byte[] encodeBlobDescriptor(long size, int crc){
+        ByteBuffer descriptor = ByteBuffer.allocate(BLOB_DESCRIPTOR_LENGTH);
+        descriptor.putLong(size);
+        descriptor.putInt(crc);
+
+        return descriptor.array();
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: encodeHello
+     |Abstract: Builds the PAYLOAD of a HELLO. A client offers the highest version it speaks, the capabilities it
+     |          supports, the largest PAYLOAD it takes(0 for the ICD maximum) and the pipelining depth it would like(0
+     |          for no preference); the server answers with what the connection uses from then on. The HELLO frames
+     |          themselves still carry a CRC32
+     |Return: byte[], the PAYLOAD
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static byte[] encodeHello(int version, int capabilities, int maxPayload, int pipelineDepth){
+        ByteBuffer hello = ByteBuffer.allocate(HELLO_LENGTH);
+        hello.putShort((short) version);
+        hello.putInt(capabilities);
+        hello.putShort((short) maxPayload);
+        hello.putShort((short) pipelineDepth);
+
+        return hello.array();
+    }
+
+    public static int helloVersion(byte[] hello, int offset){
+        return ByteBuffer.wrap(hello).getShort(offset) & 0xFFFF;
+    }
+
+    public static int helloCapabilities(byte[] hello, int offset){
+        return ByteBuffer.wrap(hello).getInt(offset + 2);
+    }
+
+    public static int helloMaxPayload(byte[] hello, int offset){
+        return ByteBuffer.wrap(hello).getShort(offset + 6) & 0xFFFF;
+    }
+
+    public static int helloPipelineDepth(byte[] hello, int offset){
+        return ByteBuffer.wrap(hello).getShort(offset + 8) & 0xFFFF;
+    }
+
+    public static long blobSize(byte[] descriptor){
+        return ByteBuffer.wrap(descriptor).getLong(0);
+    }
+
+    public static int blobCrc(byte[] descriptor){
+        return ByteBuffer.wrap(descriptor).getInt(8);
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: frameLength
+     |Abstract: Looks at the HEADER found at the current position of the ByteBuffer without moving the position and
+     |          works out how long the whole frame is. Used to pull pipelined frames out of a stream
+     |Return: int, length of the frame in bytes or -1 if the HEADER has not been fully received yet
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static int frameLength(ByteBuffer buffer){
+        if (buffer.remaining() < HEADER_LENGTH){
+            return -1;
+        }
+
+        int length = buffer.getShort(buffer.position() + 2) & 0xFFFF;//Unsigned message length field
+
+        return HEADER_LENGTH + length + CRC_LENGTH;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: isFrameValid
+     |Abstract: Generates a CRC32 over the HEADER and PAYLOAD of the frame starting at the given index and compares it
+     |          with the CRC32 the sender packed after the PAYLOAD. Does not move the position of the ByteBuffer
+     |Return: boolean, true if the CRC32 values match
+     \--------------------------------------------------------------------------------------------------------------*/
+    public static boolean isFrameValid(ByteBuffer buffer, int start, int frameLength){
+        return isFrameValid(buffer, start, frameLength, false);
+    }
+
+    public static boolean isFrameValid(ByteBuffer buffer, int start, int frameLength, boolean crc32c){
+        int crcOffset = start + frameLength - CRC_LENGTH;
+
+        long expected = buffer.getInt(crcOffset) & 0xFFFFFFFFL;//CRC32 packed by the sender
+
+        return computeCRC(buffer, start, frameLength - CRC_LENGTH, crc32c) == expected;
+    }
+
+    /**--------------------------------------------------------------------------------------------------------------
+     |Method: computeCRC
+     |Abstract: Generates a CRC32, or a CRC32C, over length bytes of the ByteBuffer starting at the given index,
+     |          without moving the position or limit of the ByteBuffer
+     |Return: long, unsigned CRC32 value
+     \--------------------------------------------------------------------------------------------------------------*/
+    private static long computeCRC(ByteBuffer buffer, int start, int length, boolean crc32c){
+        Checksum crc32OBJ = crc32c ? new CRC32C() : new CRC32();
+
+        if (buffer.hasArray()){
+            crc32OBJ.update(buffer.array(), buffer.arrayOffset() + start, length);
+        }
+        else {
+            ByteBuffer view = buffer.duplicate();//Independent position and limit over the same bytes
+            view.limit(start + length);
+            view.position(start);
+            crc32OBJ.update(view);
+        }
+
+        return crc32OBJ.getValue();
     }
 
     /*public long getSentMessageCRC(){
@@ -341,28 +659,37 @@ public class MessageFormatter {
         int numBytesToProcess = 0;
         numBytesToProcess = CRC32Offset;
 
-        CRC32 crc32OBJ = new CRC32(); //New Checksum object
-
-        //Generate a new CRC32 checksum for the HEADER(4b) and message
-        crc32OBJ.update(packetBytes, 0, numBytesToProcess);
-
-        currentCRC32 = (int)crc32OBJ.getValue(); //Convert the value of the check sum to a long type variable
+        //Generate a new CRC32(or CRC32C) checksum for the HEADER(4b) and message, with the same Checksum object for
+        // every message
+        if (crc32c) {
+            crc32cOBJ.reset();
+            crc32cOBJ.update(packetBytes, 0, numBytesToProcess);
+            currentCRC32 = crc32cOBJ.getValue();
+        }
+        else {
+            crc32OBJ.reset();
+            crc32OBJ.update(packetBytes, 0, numBytesToProcess);
+            currentCRC32 = crc32OBJ.getValue(); //Unsigned 32 bit value of the check sum held in a long type variable
+        }
 
-        System.out.print("**DEBUG** CRC in HEX = ");
-        currentCRCHex = String.format("0x%04X", currentCRC32);
-        System.out.println(currentCRCHex);
+        if (verbose) {
+            currentCRCHex = String.format("0x%08X", currentCRC32);//Same 8 digit format as expectedCRCHex
+            System.out.print("**DEBUG** CRC in HEX = ");
+            System.out.println(currentCRCHex);
+        }
     }
 
     private boolean checkCRC(){
         boolean isCorrectCRC;
 
        //If the expected CRC isn't equal to the current one that was just generated
-        if(currentCRCHex.compareToIgnoreCase(expectedCRCHex) != 0){
-            System.out.println("CRC32 values expected and actual received do not match. The message was not valid.");
+        if(currentCRC32 != expectedCRC){
+            if (verbose) System.out.println("CRC32 values expected and actual received do not match. " +
+                    "The message was not valid.");
             isCorrectCRC = false;
         }
         else{
-            System.out.println("CRC32 values expected and actual received match. The message is valid");
+            if (verbose) System.out.println("CRC32 values expected and actual received match. The message is valid");
             isCorrectCRC = true;
         }
 
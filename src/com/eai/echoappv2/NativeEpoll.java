@@ -0,0 +1,201 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class holds the Linux system calls behind EpollTransport: epoll, eventfd and the
+ | socket calls, with the constants and epoll_event layout of the Linux ABI. The calls themselves
+ | are bound by ForeignEpoll through the jdk.incubator.foreign module, which Java 17 only has as
+ | an incubator. That class sits in its own source root, src-epoll, and is looked up by name, so
+ | the sources in src compile and run without --add-modules. File descriptors pass as ints and
+ | memory as the address of a direct ByteBuffer. Each call returns what the system call does, -1
+ | on failure, with the cause in errno(). Loading this class fails with a LinkageError when
+ | ForeignEpoll was not built or cannot load(see there), or the system is not Linux on x86_64 or
+ | aarch64
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Calls bound by ForeignEpoll in src-epoll, so the default build needs no incubator module
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+
+
+final class NativeEpoll {
+
+    //Constants of the Linux ABI, the same on x86_64 and aarch64
+    static final int EPOLLIN = 0x1;
+    static final int EPOLLOUT = 0x4;
+    static final int EPOLLERR = 0x8;
+    static final int EPOLLHUP = 0x10;
+    static final int EPOLLRDHUP = 0x2000;
+    static final int EPOLLET = 1 << 31;
+    static final int EPOLL_CTL_ADD = 1;
+    static final int EPOLL_CTL_DEL = 2;
+    static final int O_NONBLOCK = 0x800;//Also SOCK_NONBLOCK and EFD_NONBLOCK
+    static final int O_CLOEXEC = 0x80000;//Also EPOLL_CLOEXEC, SOCK_CLOEXEC and EFD_CLOEXEC
+    static final int AF_INET = 2;
+    static final int SOCK_STREAM = 1;
+    static final int SOL_SOCKET = 1;
+    static final int SO_REUSEADDR = 2;
+    static final int SO_SNDBUF = 7;
+    static final int SO_RCVBUF = 8;
+    static final int IPPROTO_TCP = 6;
+    static final int TCP_NODELAY = 1;
+    static final int EINTR = 4;
+    static final int EAGAIN = 11;
+
+    //struct epoll_event is packed on x86_64: 4 bytes of events then 8 of data. Elsewhere the data is 8 byte aligned
+    static final int EVENT_SIZE;
+    static final int EVENT_DATA_OFFSET;
+
+    private static final String BINDINGS = "com.eai.echoappv2.ForeignEpoll";
+    private static final Calls CALLS;
+
+    static {
+        String arch = System.getProperty("os.arch");
+
+        if (!System.getProperty("os.name").startsWith("Linux")) {
+            throw new UnsupportedOperationException("epoll needs Linux, not " + System.getProperty("os.name"));
+        }
+        if (arch.equals("amd64") || arch.equals("x86_64")) {
+            EVENT_SIZE = 12;
+            EVENT_DATA_OFFSET = 4;
+        }
+        else if (arch.equals("aarch64")) {
+            EVENT_SIZE = 16;
+            EVENT_DATA_OFFSET = 8;
+        }
+        else {
+            throw new UnsupportedOperationException("The epoll_event layout of " + arch + " is not known");
+        }
+
+        CALLS = load();
+    }
+
+    private NativeEpoll(){
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: load
+     |Abstract: Creates the ForeignEpoll bindings by name. A class missing from the class path means src-epoll was not
+     |          built; failures of its own, such as the incubator module not being added, are passed on as they are
+     |Return: Calls, the bound system calls
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static Calls load(){
+        try {
+            return (Calls) Class.forName(BINDINGS).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException cnfe) {
+            throw new UnsupportedOperationException(BINDINGS + " was not built, compile src-epoll with --add-modules " +
+                    "jdk.incubator.foreign");
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UnsupportedOperationException(cause);
+        } catch (ReflectiveOperationException roe) {
+            throw new UnsupportedOperationException(roe);
+        }
+    }
+
+    static long address(ByteBuffer direct){
+        return CALLS.address(direct);
+    }
+
+    static int errno(){
+        return CALLS.errno();
+    }
+
+    static int epollCreate(){
+        return CALLS.epollCreate();
+    }
+
+    static int epollCtl(int epfd, int op, int fd, long eventAddress){
+        return CALLS.epollCtl(epfd, op, fd, eventAddress);
+    }
+
+    static int epollWait(int epfd, long eventsAddress, int maxEvents, int timeout){
+        return CALLS.epollWait(epfd, eventsAddress, maxEvents, timeout);
+    }
+
+    static int eventfd(){
+        return CALLS.eventfd();
+    }
+
+    static int socket(){
+        return CALLS.socket();
+    }
+
+    static int setsockopt(int fd, int level, int option, long valueAddress, int valueLength){
+        return CALLS.setsockopt(fd, level, option, valueAddress, valueLength);
+    }
+
+    static int bind(int fd, long socketAddress, int length){
+        return CALLS.bind(fd, socketAddress, length);
+    }
+
+    static int listen(int fd, int backlog){
+        return CALLS.listen(fd, backlog);
+    }
+
+    static int accept4(int fd, long socketAddress, long lengthAddress){
+        return CALLS.accept4(fd, socketAddress, lengthAddress);
+    }
+
+    static int getsockname(int fd, long socketAddress, long lengthAddress){
+        return CALLS.getsockname(fd, socketAddress, lengthAddress);
+    }
+
+    static long read(int fd, long address, long length){
+        return CALLS.read(fd, address, length);
+    }
+
+    static long write(int fd, long address, long length){
+        return CALLS.write(fd, address, length);
+    }
+
+    static int close(int fd){
+        return CALLS.close(fd);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Interface: Calls
+     |Abstract: The system calls as ForeignEpoll binds them. CALLS only ever holds that one class, so the JIT calls it
+     |          directly, as it would a static method
+     \----------------------------------------------------------------------------------------------------------------*/
+    interface Calls {
+        long address(ByteBuffer direct);
+        int errno();
+        int epollCreate();
+        int epollCtl(int epfd, int op, int fd, long eventAddress);
+        int epollWait(int epfd, long eventsAddress, int maxEvents, int timeout);
+        int eventfd();
+        int socket();
+        int setsockopt(int fd, int level, int option, long valueAddress, int valueLength);
+        int bind(int fd, long socketAddress, int length);
+        int listen(int fd, int backlog);
+        int accept4(int fd, long socketAddress, long lengthAddress);
+        int getsockname(int fd, long socketAddress, long lengthAddress);
+        long read(int fd, long address, long length);
+        long write(int fd, long address, long length);
+        int close(int fd);
+    }
+}
@@ -0,0 +1,570 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is the key-value store behind PUT, GET and DELETE requests. Every byte of
+ | it lives outside the Java heap, in direct buffers, so millions of entries are nothing to the
+ | garbage collector: there is no object per entry, only a few arrays per page. Entries are kept
+ | in chunks carved out of 1 MB pages, in size classes about a quarter apart(a slab allocator),
+ | each chunk holding a small header, the key and the value. A key is found through an open
+ | addressing hash table, itself a direct buffer of longs: the hash of the key and the chunk
+ | holding it, probed linearly and compacted by backward shifting on removal, so it never fills
+ | with tombstones. Pages are allocated as they are needed, up to the capacity given. Once it is
+ | reached, room for a new entry is made by CLOCK within the entry's size class: the hand passes
+ | over the chunks of the class, clearing the bit a GET or PUT set, and evicts the first entry
+ | not used since the hand last came by. A size class with no page at all takes one from the
+ | other classes in turn, evicting what was on it. The index stops growing at MAX_SLOTS, so the
+ | capacity is capped at the pages whose smallest chunks fill three quarters of that, about 6 GB,
+ | and a probe always ends at an empty slot. Used by the event loop thread only; the counters may
+ | be read from any thread
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Capacity capped so the entries always fit three quarters of the largest index
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+
+class OffHeapStore {
+
+    static final int PAGE_SIZE = 1024 * 1024;
+    static final int MAX_PAGES = 0x7FFF;//Chunk IDs hold the page in 15 bits and the chunk in 16
+
+    //Chunk: flags(1B), key length(1B), value length(2B), hash of the key(4B), key, value. A free chunk holds the ID of
+    // the next free chunk of its class in place of the hash
+    private static final int CHUNK_HEADER_LENGTH = 8;
+    private static final int IN_USE = 0x1;
+    private static final int REFERENCED = 0x2;//Set by a GET or PUT, cleared by the CLOCK hand passing
+    private static final int MIN_CHUNK = 64;
+
+    //Chunk sizes, each about a quarter above the last, up to the largest key and value a PUT can carry
+    static final int[] SIZES = chunkSizes();
+
+    private static final int INITIAL_SLOTS = 1 << 16;
+    private static final int MAX_SLOTS = 1 << 27;//Index of 1 GB; one buffer holds under 2 GB
+    private static final int CHUNKS_PER_PAGE = PAGE_SIZE / MIN_CHUNK;//Most entries one page can hold
+
+    //Eight bytes of a key in a byte array as one long, ordered as the pages are
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer[] pages;//Allocated as needed
+    private final int[] pageClass;//Size class each page is carved into
+    private int pageCount;
+
+    //Per size class: its pages, the head of its list of free chunks(-1 for none) and its CLOCK hand
+    private final int[][] classPages = new int[SIZES.length][];
+    private final int[] classPageCount = new int[SIZES.length];
+    private final int[] freeHead = new int[SIZES.length];
+    private final int[] handPage = new int[SIZES.length];//Index into classPages
+    private final int[] handChunk = new int[SIZES.length];
+    private int stealHand;//Next page a size class with no page takes
+
+    //Index: slot is the hash of the key in the upper 32 bits and the chunk ID plus one in the lower 32, 0 when empty
+    private ByteBuffer index;
+    private int mask;
+    private final int maxSlots;
+
+    //Where the value found by the last get() is
+    private ByteBuffer valuePage;
+    private int valueOffset;
+
+    //Written by the event loop only
+    private volatile int entries;
+    private volatile long evictions;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: OffHeapStore
+     |Abstract: Constructor for OffHeapStore object. Holds keys and values in up to capacityBytes of pages, at least one
+     |          page, and at most the pages the largest index can hold every entry of(see getCapacity()). The pages
+     |          and the index are allocated as entries arrive; the index grows to about eight bytes for every entry,
+     |          beyond the capacity
+     |Return: object OffHeapStore
+     \----------------------------------------------------------------------------------------------------------------*/
+    OffHeapStore(long capacityBytes){
+        this(capacityBytes, MAX_SLOTS);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: OffHeapStore
+     |Abstract: Constructor for OffHeapStore object whose index stops growing at maxSlots(a power of two) instead of
+     |          MAX_SLOTS, so a check can reach the limit without gigabytes of pages. The capacity is capped to the
+     |          pages whose chunks of the smallest class fill three quarters of the slots, and must come to a page
+     |Return: object OffHeapStore
+     \----------------------------------------------------------------------------------------------------------------*/
+    OffHeapStore(long capacityBytes, int maxSlots){
+        int indexedPages = maxSlots / 4 * 3 / CHUNKS_PER_PAGE;//Every chunk of them an entry, the index 3/4 full
+
+        if ((Integer.bitCount(maxSlots) != 1) || (indexedPages < 1)) {
+            throw new IllegalArgumentException("The index needs a power of two of slots, at least enough for the " +
+                    "entries of one page");
+        }
+
+        int maxPages = (int) Math.max(1, Math.min(capacityBytes / PAGE_SIZE, Math.min(MAX_PAGES, indexedPages)));
+
+        this.maxSlots = maxSlots;
+        pages = new ByteBuffer[maxPages];
+        pageClass = new int[maxPages];
+        Arrays.fill(freeHead, -1);
+        for (int c = 0; c < SIZES.length; c++) {
+            classPages[c] = new int[4];
+        }
+
+        index = ByteBuffer.allocateDirect(Math.min(INITIAL_SLOTS, maxSlots) * 8).order(ByteOrder.nativeOrder());
+        mask = Math.min(INITIAL_SLOTS, maxSlots) - 1;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: put
+     |Abstract: Stores valueLength bytes from valueOffset under the keyLength byte key at keyOffset, both in src,
+     |          replacing whatever the key held. A value that still fits the key's chunk is written over the old one;
+     |          otherwise the key moves to a chunk of the right size, which may evict another entry
+     |Return: void, modifies the store
+     \----------------------------------------------------------------------------------------------------------------*/
+    void put(byte[] src, int keyOffset, int keyLength, int valueOffset, int valueLength){
+        int sizeClass = classFor(CHUNK_HEADER_LENGTH + keyLength + valueLength);
+        int hash = hash(src, keyOffset, keyLength);
+        int slot = findSlot(src, keyOffset, keyLength, hash);
+
+        if (slot >= 0) {
+            int chunk = chunkAt(slot);
+            if (pageClass[chunk >>> 16] == sizeClass) {
+                writeChunk(chunk, hash, src, keyOffset, keyLength, valueOffset, valueLength);
+                return;
+            }
+            removeSlot(slot);
+            freeChunk(chunk);
+            entries--;
+        }
+
+        int chunk = allocateChunk(sizeClass);//May evict, and so move slots of the index
+        writeChunk(chunk, hash, src, keyOffset, keyLength, valueOffset, valueLength);
+        insert(hash, chunk);
+        entries++;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: get
+     |Abstract: Looks up the keyLength byte key at keyOffset in src and marks its entry as used. The value stays where
+     |          it is, in valuePage() at valueOffset(), until the next call that changes the store
+     |Return: int, length of the value, -1 if nothing is stored under the key
+     \----------------------------------------------------------------------------------------------------------------*/
+    int get(byte[] src, int keyOffset, int keyLength){
+        int slot = findSlot(src, keyOffset, keyLength, hash(src, keyOffset, keyLength));
+
+        if (slot < 0) {
+            return -1;
+        }
+
+        int chunk = chunkAt(slot);
+        ByteBuffer page = pages[chunk >>> 16];
+        int at = chunkOffset(chunk);
+
+        page.put(at, (byte) (page.get(at) | REFERENCED));
+        valuePage = page;
+        valueOffset = at + CHUNK_HEADER_LENGTH + keyLength;
+        return page.getShort(at + 2) & 0xFFFF;
+    }
+
+    ByteBuffer valuePage(){
+        return valuePage;
+    }
+
+    int valueOffset(){
+        return valueOffset;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: delete
+     |Abstract: Removes the entry of the keyLength byte key at keyOffset in src, freeing its chunk
+     |Return: boolean, true if there was one
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean delete(byte[] src, int keyOffset, int keyLength){
+        int slot = findSlot(src, keyOffset, keyLength, hash(src, keyOffset, keyLength));
+
+        if (slot < 0) {
+            return false;
+        }
+
+        int chunk = chunkAt(slot);
+        removeSlot(slot);
+        freeChunk(chunk);
+        entries--;
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: hash
+     |Abstract: Hashes a key eight bytes at a time through the mix of ConsistentHashRing. Also picks the backend of a
+     |          key in relay mode, so every request for one key goes to the same server
+     |Return: int, hash of the key
+     \----------------------------------------------------------------------------------------------------------------*/
+    static int hash(byte[] key, int offset, int length){
+        long hash = length;
+        int end = offset + length;
+        int i = offset;
+
+        for (; i + 8 <= end; i += 8) {
+            hash = ConsistentHashRing.mix(hash ^ (long) LONGS.get(key, i));
+        }
+
+        long tail = 0;
+        for (; i < end; i++) {
+            tail = (tail << 8) | (key[i] & 0xFF);
+        }
+        hash = ConsistentHashRing.mix(hash ^ tail ^ 0x9E3779B97F4A7C15L);//Golden ratio, so an empty tail still mixes
+
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: findSlot
+     |Abstract: Probes the index from the key's home slot for the key, comparing the hash first and the key bytes only
+     |          when it matches
+     |Return: int, slot holding the key, -1 if there is none
+     \----------------------------------------------------------------------------------------------------------------*/
+    private int findSlot(byte[] key, int offset, int length, int hash){
+        int slot = hash & mask;
+
+        while (true) {
+            long entry = index.getLong(slot << 3);
+
+            if (entry == 0) {
+                return -1;
+            }
+            if (((int) (entry >>> 32) == hash) && keyEquals((int) entry - 1, key, offset, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int chunk, byte[] key, int offset, int length){
+        ByteBuffer page = pages[chunk >>> 16];
+        int at = chunkOffset(chunk);
+
+        if ((page.get(at + 1) & 0xFF) != length) {
+            return false;
+        }
+
+        at += CHUNK_HEADER_LENGTH;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (page.getLong(at + i) != (long) LONGS.get(key, offset + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (page.get(at + i) != key[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: insert
+     |Abstract: Puts a chunk in the first empty slot from its home slot, doubling the index first if that would take it
+     |          over three quarters full. At maxSlots it is never that full: the capacity has no more chunks
+     |Return: void, modifies the index
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void insert(int hash, int chunk){
+        if ((entries + 1 > (mask + 1) / 4 * 3) && (mask + 1 < maxSlots)) {
+            grow();
+        }
+
+        int slot = hash & mask;
+        while (index.getLong(slot << 3) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index.putLong(slot << 3, ((long) hash << 32) | (chunk + 1));
+    }
+
+    private void grow(){
+        ByteBuffer old = index;
+        int slots = (mask + 1) * 2;
+
+        index = ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder());
+        mask = slots - 1;
+
+        for (int i = 0; i < old.capacity(); i += 8) {
+            long entry = old.getLong(i);
+            if (entry != 0) {
+                int slot = (int) (entry >>> 32) & mask;
+                while (index.getLong(slot << 3) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index.putLong(slot << 3, entry);
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: removeSlot
+     |Abstract: Empties a slot, then shifts back each entry after it in the probe run that would no longer be found from
+     |          its home slot, so lookups never need tombstones
+     |Return: void, modifies the index
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void removeSlot(int slot){
+        int hole = slot;
+        int next = slot;
+
+        while (true) {
+            next = (next + 1) & mask;
+            long entry = index.getLong(next << 3);
+
+            if (entry == 0) {
+                break;
+            }
+
+            int home = (int) (entry >>> 32) & mask;
+            //Move the entry into the hole unless its home lies cyclically after the hole, up to where it is
+            boolean stays = (next > hole) ? ((home > hole) && (home <= next)) : ((home > hole) || (home <= next));
+            if (!stays) {
+                index.putLong(hole << 3, entry);
+                hole = next;
+            }
+        }
+        index.putLong(hole << 3, 0);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: removeChunk
+     |Abstract: Removes the index slot pointing at a chunk, found from the hash kept in the chunk
+     |Return: void, modifies the index
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void removeChunk(int chunk){
+        int slot = pages[chunk >>> 16].getInt(chunkOffset(chunk) + 4) & mask;
+
+        while ((int) index.getLong(slot << 3) != chunk + 1) {
+            slot = (slot + 1) & mask;
+        }
+        removeSlot(slot);
+        entries--;
+        evictions++;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: allocateChunk
+     |Abstract: Takes a free chunk of the size class, carving a new page into the class while the capacity allows, then
+     |          evicting by CLOCK within the class, or taking a page from another class if the class has none
+     |Return: int, chunk ID
+     \----------------------------------------------------------------------------------------------------------------*/
+    private int allocateChunk(int sizeClass){
+        if (freeHead[sizeClass] == -1) {
+            if (pageCount < pages.length) {
+                addPage(pageCount++, sizeClass);
+            }
+            else if (classPageCount[sizeClass] > 0) {
+                return evict(sizeClass);
+            }
+            else {
+                stealPage(sizeClass);
+            }
+        }
+
+        int chunk = freeHead[sizeClass];
+        freeHead[sizeClass] = pages[chunk >>> 16].getInt(chunkOffset(chunk) + 4);
+        return chunk;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: evict
+     |Abstract: Moves the CLOCK hand of a size class, all of whose chunks are in use, over its chunks: one used since
+     |          the hand last passed has the mark cleared and is passed over, the first one not used is evicted. Ends
+     |          within two turns of the hand
+     |Return: int, ID of the chunk evicted, for the caller to reuse
+     \----------------------------------------------------------------------------------------------------------------*/
+    private int evict(int sizeClass){
+        int chunksPerPage = PAGE_SIZE / SIZES[sizeClass];
+
+        while (true) {
+            int page = classPages[sizeClass][handPage[sizeClass]];
+            int chunk = (page << 16) | handChunk[sizeClass];
+
+            if (++handChunk[sizeClass] == chunksPerPage) {
+                handChunk[sizeClass] = 0;
+                handPage[sizeClass] = (handPage[sizeClass] + 1) % classPageCount[sizeClass];
+            }
+
+            int at = chunkOffset(chunk);
+            int flags = pages[page].get(at);
+
+            if ((flags & REFERENCED) != 0) {
+                pages[page].put(at, (byte) (flags & ~REFERENCED));//A second chance
+            }
+            else {
+                removeChunk(chunk);
+                pages[page].put(at, (byte) 0);
+                return chunk;
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: stealPage
+     |Abstract: Gives a size class with no page the next page of another class, in turn: the entries on the page are
+     |          evicted, its free chunks taken off their list and the page carved again
+     |Return: void, modifies the store
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void stealPage(int sizeClass){
+        int page = stealHand;//Never one of the class's own, it has none
+        stealHand = (page + 1) % pageCount;
+
+        int victim = pageClass[page];
+        int chunkSize = SIZES[victim];
+
+        for (int at = 0; at + chunkSize <= PAGE_SIZE; at += chunkSize) {
+            if ((pages[page].get(at) & IN_USE) != 0) {
+                removeChunk((page << 16) | (at / chunkSize));
+            }
+        }
+
+        //Unlink the page's free chunks
+        int previous = -1;
+        for (int chunk = freeHead[victim]; chunk != -1; ) {
+            int next = pages[chunk >>> 16].getInt(chunkOffset(chunk) + 4);
+            if ((chunk >>> 16) != page) {
+                previous = chunk;
+            }
+            else if (previous == -1) {
+                freeHead[victim] = next;
+            }
+            else {
+                pages[previous >>> 16].putInt(chunkOffset(previous) + 4, next);
+            }
+            chunk = next;
+        }
+
+        int[] owned = classPages[victim];
+        int i = 0;
+        while (owned[i] != page) {
+            i++;
+        }
+        System.arraycopy(owned, i + 1, owned, i, classPageCount[victim] - i - 1);
+        classPageCount[victim]--;
+        handPage[victim] = 0;
+        handChunk[victim] = 0;
+
+        addPage(page, sizeClass);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: addPage
+     |Abstract: Carves a page into chunks of the size class and puts them all on its free list, lowest first
+     |Return: void, modifies the store
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void addPage(int page, int sizeClass){
+        if (pages[page] == null) {
+            pages[page] = ByteBuffer.allocateDirect(PAGE_SIZE).order(ByteOrder.nativeOrder());
+        }
+        pageClass[page] = sizeClass;
+
+        if (classPageCount[sizeClass] == classPages[sizeClass].length) {
+            classPages[sizeClass] = Arrays.copyOf(classPages[sizeClass], classPageCount[sizeClass] * 2);
+        }
+        classPages[sizeClass][classPageCount[sizeClass]++] = page;
+
+        int chunkSize = SIZES[sizeClass];
+        for (int chunk = PAGE_SIZE / chunkSize - 1; chunk >= 0; chunk--) {
+            pages[page].put(chunk * chunkSize, (byte) 0);
+            pages[page].putInt(chunk * chunkSize + 4, freeHead[sizeClass]);
+            freeHead[sizeClass] = (page << 16) | chunk;
+        }
+    }
+
+    private void freeChunk(int chunk){
+        ByteBuffer page = pages[chunk >>> 16];
+        int at = chunkOffset(chunk);
+        int sizeClass = pageClass[chunk >>> 16];
+
+        page.put(at, (byte) 0);
+        page.putInt(at + 4, freeHead[sizeClass]);
+        freeHead[sizeClass] = chunk;
+    }
+
+    private void writeChunk(int chunk, int hash, byte[] src, int keyOffset, int keyLength, int valueOffset,
+            int valueLength){
+        ByteBuffer page = pages[chunk >>> 16];
+        int at = chunkOffset(chunk);
+
+        page.put(at, (byte) (IN_USE | REFERENCED));
+        page.put(at + 1, (byte) keyLength);
+        page.putShort(at + 2, (short) valueLength);
+        page.putInt(at + 4, hash);
+        page.put(at + CHUNK_HEADER_LENGTH, src, keyOffset, keyLength);
+        page.put(at + CHUNK_HEADER_LENGTH + keyLength, src, valueOffset, valueLength);
+    }
+
+    private int chunkAt(int slot){
+        return (int) index.getLong(slot << 3) - 1;
+    }
+
+    private int chunkOffset(int chunk){
+        return (chunk & 0xFFFF) * SIZES[pageClass[chunk >>> 16]];
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: classFor
+     |Abstract: Smallest size class whose chunks hold the number of bytes given
+     |Return: int, size class
+     \----------------------------------------------------------------------------------------------------------------*/
+    static int classFor(int bytes){
+        int sizeClass = 0;
+        while (SIZES[sizeClass] < bytes) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static int[] chunkSizes(){
+        //A PUT PAYLOAD is the key length byte, the key and the value
+        int largest = (CHUNK_HEADER_LENGTH + MessageFormatter.MAX_PAYLOAD_LENGTH - 1 + 7) & ~7;
+        int[] sizes = new int[64];
+        int count = 0;
+
+        for (int size = MIN_CHUNK; size < largest; size = Math.max(size + 8, (size * 5 / 4 + 7) & ~7)) {
+            sizes[count++] = size;
+        }
+        sizes[count++] = largest;
+        return Arrays.copyOf(sizes, count);
+    }
+
+    public int getEntryCount(){
+        return entries;
+    }
+
+    public long getEvictionCount(){
+        return evictions;
+    }
+
+    public long getCapacity(){
+        return (long) pages.length * PAGE_SIZE;
+    }
+
+    public long getAllocatedBytes(){
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    public long getIndexBytes(){
+        return index.capacity();
+    }
+}
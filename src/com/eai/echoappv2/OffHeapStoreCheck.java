@@ -0,0 +1,164 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class checks OffHeapStore at the limit of its index. A store whose index may
+ | grow to only 65,536 slots is asked for 64 MB, so its capacity is capped to the pages whose
+ | smallest chunks fill three quarters of the slots. It is filled with entries of the smallest
+ | size class until every chunk is in use, then PUT, GET and DELETE requests for four times as
+ | many keys run against it, checked against a HashMap of what each key should hold. Every
+ | request must return, the index must never hold more entries than three quarters of its slots,
+ | and every key still stored must hold its latest value. Also checks the capacity a full size
+ | store is capped to. Exits with status 1 if anything is wrong
+ |
+ | Usage: OffHeapStoreCheck [operations]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.util.HashMap;
+import java.util.Random;
+
+
+public class OffHeapStoreCheck {
+
+    private static final int SLOTS = 1 << 16;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of OffHeapStoreCheck class. Runs the operations given against a store at
+     |          its index limit and exits with status 1 if any check fails
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]){
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        boolean passed = true;
+
+        //A full size store stops at the pages its largest index holds every entry of, not at the 32767 pages of IDs
+        long cappedCapacity = new OffHeapStore(32L * 1024 * 1024 * 1024).getCapacity();
+        passed &= check(cappedCapacity == 6144L * OffHeapStore.PAGE_SIZE,
+                "A 32 GB store is capped at " + (cappedCapacity >> 20) + " MB");
+
+        OffHeapStore store = new OffHeapStore(64 * 1024 * 1024, SLOTS);
+        passed &= check(store.getCapacity() == 3 * OffHeapStore.PAGE_SIZE,
+                "A 64 MB store with " + SLOTS + " slots is capped at " + (store.getCapacity() >> 20) + " MB");
+
+        HashMap<Integer, Integer> latest = new HashMap<Integer, Integer>();//Key number to the version last put
+        Random random = new Random(42);
+        byte[] request = new byte[1 + 255 + MessageFormatter.MAX_PAYLOAD_LENGTH];
+        int chunks = (int) (store.getCapacity() / OffHeapStore.SIZES[0]);
+        long started = System.nanoTime();
+
+        //Every chunk in use, the index as full as it may get
+        for (int key = 0; key < chunks; key++) {
+            int keyLength = encodeKey(request, key);
+            encodeValue(request, 1 + keyLength, 32, key);
+            store.put(request, 1, keyLength, 1 + keyLength, 32);
+            latest.put(key, key);
+        }
+        int mostEntries = store.getEntryCount();
+        passed &= check(mostEntries == SLOTS / 4 * 3, "Filling every chunk stored " + mostEntries + " entries");
+
+        for (int i = chunks; i < chunks + operations; i++) {
+            int key = random.nextInt(4 * chunks);
+            int keyLength = encodeKey(request, key);
+            int operation = random.nextInt(10);
+
+            if (operation < 6) {
+                //Header, key and value fit the smallest size class, so the index stays at the limit
+                int version = i;
+                int valueLength = 8 + random.nextInt(25);
+                encodeValue(request, 1 + keyLength, valueLength, version);
+                store.put(request, 1, keyLength, 1 + keyLength, valueLength);
+                latest.put(key, version);
+            }
+            else if (operation < 9) {
+                int valueLength = store.get(request, 1, keyLength);
+                if (valueLength >= 0) {
+                    passed &= check(isVersion(store, valueLength, latest.get(key)),
+                            "Key " + key + " does not hold the value last put");
+                }
+            }
+            else {
+                store.delete(request, 1, keyLength);
+                latest.remove(key);
+            }
+
+            mostEntries = Math.max(mostEntries, store.getEntryCount());
+            if (!passed) {
+                break;
+            }
+        }
+
+        passed &= check(mostEntries <= SLOTS / 4 * 3, "The index held " + mostEntries + " entries in " + SLOTS +
+                " slots");
+        passed &= check(store.getIndexBytes() == SLOTS * 8L, "The index grew to " + store.getIndexBytes() + " bytes");
+
+        System.out.println(String.format("%,d operations in %d ms, at most %,d entries, %,d evictions", operations,
+                (System.nanoTime() - started) / 1000000, mostEntries, store.getEvictionCount()));
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean check(boolean condition, String failure){
+        if (!condition) {
+            System.out.println(failure);
+        }
+        return condition;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: encodeKey
+     |Abstract: Writes the key length byte and a key of 8 to 24 bytes for the key number given, as a
+     |          PUT PAYLOAD starts, into the request
+     |Return: int, length of the key
+     \------------------------------------------------------------------------------------------------*/
+    private static int encodeKey(byte[] request, int key){
+        int keyLength = 8 + (key % 17);
+
+        for (int i = 0; i < keyLength; i++) {
+            request[1 + i] = (byte) (key >>> ((i % 4) * 8) ^ i);
+        }
+        request[0] = (byte) keyLength;
+        return keyLength;
+    }
+
+    private static void encodeValue(byte[] request, int offset, int length, int version){
+        for (int i = 0; i < length; i++) {
+            request[offset + i] = (byte) (version >>> ((i % 4) * 8));
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: isVersion
+     |Abstract: Checks that the value found by the last get() is the one encodeValue() makes for the
+     |          version given
+     |Return: boolean, true if it is
+     \------------------------------------------------------------------------------------------------*/
+    private static boolean isVersion(OffHeapStore store, int length, Integer version){
+        if (version == null) {
+            return false;//Deleted, yet found
+        }
+        for (int i = 0; i < length; i++) {
+            if (store.valuePage().get(store.valueOffset() + i) != (byte) (version >>> ((i % 4) * 8))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
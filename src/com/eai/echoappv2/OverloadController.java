@@ -0,0 +1,162 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class decides, for each valid request, whether the Echo Server handles it or
+ | sheds it with a BUSY response. It follows CoDel: the server reports how long each frame waited
+ | before being handled(its sojourn time), and only a wait that stays above the target for a whole
+ | interval counts as overload, so short bursts pass untouched. Under overload the lowest priority
+ | work goes first: "do nothing" requests(type 1) after one interval, "print" requests(type 3) too
+ | after a second. Echo requests are never shed. One sojourn below the target ends the overload.
+ | Called by the event loop only; the settings and counters may be read and changed from any thread
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.util.concurrent.TimeUnit;
+
+
+public class OverloadController {
+
+    public static final long DEFAULT_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);//CoDel's usual target
+    public static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);//CoDel's usual interval
+
+    public static final int LEVEL_NONE = 0;//Everything is handled
+    public static final int LEVEL_SHED_NOTHING = 1;//Type 1 requests are shed
+    public static final int LEVEL_SHED_PRINT = 2;//Type 1 and type 3 requests are shed
+
+    private volatile boolean enabled = true;
+    private volatile long targetNanos = DEFAULT_TARGET_NANOS;
+    private volatile long intervalNanos = DEFAULT_INTERVAL_NANOS;
+
+    private long firstAboveTime;//When the sojourn time went above the target, 0 while it is below
+    private volatile int level = LEVEL_NONE;
+
+    //Written by the event loop only, so a volatile increment cannot lose counts
+    private volatile long admitted;
+    private volatile long shedNothing;
+    private volatile long shedPrint;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: admit
+     |Abstract: Updates the overload level with the sojourn time of a frame and decides whether to handle it
+     |Return: boolean, true to handle the request, false to answer it with a BUSY response
+     \----------------------------------------------------------------------------------------------------------------*/
+    boolean admit(int messageType, long sojournNanos, long now){
+        if (!enabled || (sojournNanos < targetNanos)) {
+            firstAboveTime = 0;
+            level = LEVEL_NONE;
+        }
+        else if (firstAboveTime == 0) {
+            firstAboveTime = now;//Above target, overloaded only if it stays there for an interval
+        }
+        else {
+            long above = now - firstAboveTime;
+
+            level = (above >= 2 * intervalNanos) ? LEVEL_SHED_PRINT
+                    : (above >= intervalNanos) ? LEVEL_SHED_NOTHING : LEVEL_NONE;
+        }
+
+        if ((messageType == MessageFormatter.TYPE_NOTHING) && (level >= LEVEL_SHED_NOTHING)) {
+            shedNothing++;
+            return false;
+        }
+        if ((messageType == MessageFormatter.TYPE_PRINT) && (level >= LEVEL_SHED_PRINT)) {
+            shedPrint++;
+            return false;
+        }
+
+        admitted++;
+        return true;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setEnabled
+     |Abstract: Turns shedding on or off. While off every request is handled and the level stays at LEVEL_NONE
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setEnabled(boolean enabled){
+        this.enabled = enabled;
+    }
+
+    public long getTargetNanos(){
+        return targetNanos;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setTargetNanos
+     |Abstract: Sets the longest acceptable wait before a frame is handled. Lower reacts sooner and sheds more
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setTargetNanos(long targetNanos){
+        this.targetNanos = targetNanos;
+    }
+
+    public long getIntervalNanos(){
+        return intervalNanos;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setIntervalNanos
+     |Abstract: Sets how long the wait must stay above the target before each step of shedding. Should be longer than a
+     |          burst the server is expected to absorb
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void setIntervalNanos(long intervalNanos){
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getLevel
+     |Abstract: Current overload level, one of LEVEL_NONE, LEVEL_SHED_NOTHING or LEVEL_SHED_PRINT
+     |Return: int, overload level
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int getLevel(){
+        return level;
+    }
+
+    public long getAdmittedCount(){
+        return admitted;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getShedCount
+     |Abstract: Number of requests of the given type answered with BUSY so far. Only types 1 and 3 are ever shed
+     |Return: long, shed requests
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long getShedCount(int messageType){
+        if (messageType == MessageFormatter.TYPE_NOTHING) {
+            return shedNothing;
+        }
+        if (messageType == MessageFormatter.TYPE_PRINT) {
+            return shedPrint;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString(){
+        return "OverloadController[level=" + level + ", target=" + TimeUnit.NANOSECONDS.toMicros(targetNanos) +
+                "us, interval=" + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "ms, admitted=" + admitted +
+                ", shedType1=" + shedNothing + ", shedType3=" + shedPrint + "]";
+    }
+}
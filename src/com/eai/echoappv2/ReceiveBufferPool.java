@@ -0,0 +1,156 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class lends receive buffers to the connections of one event loop. Buffers come
+ | in a few size classes, from a small one enough for typical requests up to room for two
+ | maximum sized frames. A connection borrows a buffer for a read and gives it back as soon as no
+ | partial frame is left in it, so an idle connection holds no buffer at all. Each class keeps its
+ | returned buffers on a stack, so a busy connection usually gets back the buffer it just
+ | returned, still in cache. Unlike BufferPool it is used by the event loop thread only and takes
+ | no locks and allocates nothing once warm. The counters may be read from any thread
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+
+class ReceiveBufferPool {
+
+    //Size classes. The largest holds a maximum sized frame plus the start of the next pipelined one
+    static final int[] SIZES = {512, 2048, 8192, 2 * MessageFormatter.MAX_FRAME_LENGTH};
+    static final int LARGEST_CLASS = SIZES.length - 1;
+
+    private static final int DEFAULT_MAX_POOLED_BYTES = 4 * 1024 * 1024;//Per size class
+
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final int[] maxPooled;
+
+    //Written by the event loop only
+    private volatile long lentBytes;//Bytes in buffers connections hold
+    private volatile int lentBuffers;
+    private volatile long pooledBytes;//Bytes in buffers waiting here
+    private volatile long allocations;//Buffers ever allocated
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    ReceiveBufferPool(){
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: ReceiveBufferPool
+     |Abstract: Constructor for ReceiveBufferPool object. Each size class keeps returned buffers up to maxPooledBytes;
+     |          buffers returned beyond that are left to the garbage collector
+     |Return: object ReceiveBufferPool
+     \----------------------------------------------------------------------------------------------------------------*/
+    @SuppressWarnings({"unchecked", "rawtypes"})//Arrays of a generic type can only be created raw
+    ReceiveBufferPool(int maxPooledBytes){
+        free = new ArrayDeque[SIZES.length];
+        maxPooled = new int[SIZES.length];
+
+        for (int i = 0; i < SIZES.length; i++) {
+            maxPooled[i] = Math.max(1, maxPooledBytes / SIZES[i]);
+            free[i] = new ArrayDeque<ByteBuffer>(Math.min(maxPooled[i], 1024));
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: classFor
+     |Abstract: Smallest size class holding the number of bytes given
+     |Return: int, size class, LARGEST_CLASS if none is big enough
+     \----------------------------------------------------------------------------------------------------------------*/
+    static int classFor(int bytes){
+        for (int i = 0; i < LARGEST_CLASS; i++) {
+            if (SIZES[i] >= bytes) {
+                return i;
+            }
+        }
+        return LARGEST_CLASS;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: acquire
+     |Abstract: Lends a buffer of the size class given, the most recently returned one if there is one
+     |Return: ByteBuffer, a cleared buffer of SIZES[sizeClass] bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    ByteBuffer acquire(int sizeClass){
+        ByteBuffer buffer = free[sizeClass].pollLast();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(SIZES[sizeClass]);
+            allocations++;
+        }
+        else {
+            pooledBytes -= buffer.capacity();
+            buffer.clear();
+        }
+
+        lentBytes += buffer.capacity();
+        lentBuffers++;
+        return buffer;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: release
+     |Abstract: Takes back a buffer lent by acquire(). The caller must not use it afterwards
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void release(ByteBuffer buffer){
+        int sizeClass = classFor(buffer.capacity());
+
+        lentBytes -= buffer.capacity();
+        lentBuffers--;
+
+        if (free[sizeClass].size() < maxPooled[sizeClass]) {
+            free[sizeClass].addLast(buffer);
+            pooledBytes += buffer.capacity();
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: resize
+     |Abstract: Moves the bytes of a buffer in write mode into a buffer of another size class, which must hold them, and
+     |          returns the old one
+     |Return: ByteBuffer, the new buffer in write mode
+     \----------------------------------------------------------------------------------------------------------------*/
+    ByteBuffer resize(ByteBuffer buffer, int sizeClass){
+        ByteBuffer resized = acquire(sizeClass);
+
+        buffer.flip();
+        resized.put(buffer);
+        release(buffer);
+        return resized;
+    }
+
+    long getLentBytes(){
+        return lentBytes;
+    }
+
+    int getLentBuffers(){
+        return lentBuffers;
+    }
+
+    long getPooledBytes(){
+        return pooledBytes;
+    }
+
+    long getAllocations(){
+        return allocations;
+    }
+}
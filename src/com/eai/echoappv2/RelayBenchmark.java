@@ -0,0 +1,169 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class runs an Echo Server in relay mode in front of several backend Echo
+ | Servers, all in this process on localhost. An AsyncEchoClient with many connections pipelines
+ | echo requests with distinct payloads through the relay, once routed by connection and once by
+ | payload, and checks every response against its request. The throughput is printed next to
+ | that of one server answering directly, with the share of the requests each backend handled.
+ | Last, one backend is stopped under the payload keyed relay and the run repeated, to show its
+ | keys move to the others
+ |
+ | Usage: RelayBenchmark [backends] [clientConnections] [messages] [pipelineDepth]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+public class RelayBenchmark {
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of RelayBenchmark class. Starts the backends, then measures a direct server
+     |          and a relay keyed each way
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int backendCount = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int clientConnections = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        int messages = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+        int depth = (args.length > 3) ? Integer.parseInt(args[3]) : 256;
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        EchoServer[] backends = new EchoServer[backendCount];
+        Thread[] backendThreads = new Thread[backendCount];
+        ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+        for (int i = 0; i < backendCount; i++) {
+            backends[i] = new EchoServer(loopback, 0);
+            backends[i].setVerbose(false);
+            backendThreads[i] = new Thread(backends[i], "Backend-" + i);
+            backendThreads[i].start();
+            addresses.add(new InetSocketAddress(loopback, backends[i].getPort()));
+        }
+
+        System.out.println("backends=" + backendCount + " clientConnections=" + clientConnections + " messages=" +
+                messages + " depth=" + depth);
+
+        run("direct", Collections.singletonList(addresses.get(0)), clientConnections, messages / 10, depth, null);
+        System.out.println(run("direct", Collections.singletonList(addresses.get(0)), clientConnections, messages,
+                depth, null));
+
+        for (EchoServer.RelayKey key : EchoServer.RelayKey.values()) {
+            EchoServer relay = newRelay(addresses, key);
+            Thread relayThread = new Thread(relay, "Relay");
+            relayThread.start();
+            List<InetSocketAddress> relayAddress = Collections.singletonList(new InetSocketAddress(loopback,
+                    relay.getPort()));
+
+            run("warm up", relayAddress, clientConnections, messages / 10, depth, null);
+            System.out.println(run("relay/" + key.name().toLowerCase(), relayAddress, clientConnections, messages,
+                    depth, backends));
+
+            if (key == EchoServer.RelayKey.PAYLOAD) {
+                //A backend going away under the relay: its connections close and its keys move to the others
+                backendThreads[backendCount - 1].interrupt();
+                backendThreads[backendCount - 1].join();
+                Thread.sleep(200);
+
+                System.out.println(run("relay/payload, backend " + (backendCount - 1) + " stopped", relayAddress,
+                        clientConnections, messages, depth, backends));
+            }
+
+            relayThread.interrupt();
+            relayThread.join();
+        }
+
+        for (int i = 0; i < backendCount - 1; i++) {
+            backendThreads[i].interrupt();
+            backendThreads[i].join();
+        }
+    }
+
+    private static EchoServer newRelay(List<InetSocketAddress> backends, EchoServer.RelayKey key) throws Exception{
+        EchoServer relay = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        relay.setVerbose(false);
+        relay.relayTo(backends, EchoServer.DEFAULT_RELAY_CONNECTIONS, key);
+        return relay;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Sends the number of echo requests given, each with its own payload, keeping depth of
+     |          them in flight, and checks each response matches its request
+     |Return: String, the throughput, mismatches and errors, and each backend's share if backends are
+     |        given
+     \------------------------------------------------------------------------------------------------*/
+    private static String run(String name, List<InetSocketAddress> servers, int connections, int messages,
+            int depth, EchoServer[] backends) throws Exception{
+        long[] before = new long[(backends == null) ? 0 : backends.length];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = backends[i].getResponseCount();
+        }
+
+        AsyncEchoClient client = new AsyncEchoClient(servers, connections, AsyncEchoClient.DEFAULT_REQUEST_TIMEOUT_MS,
+                AsyncEchoClient.DEFAULT_BATCH_BYTES);
+        ArrayDeque<CompletableFuture<EchoResponse>> window = new ArrayDeque<CompletableFuture<EchoResponse>>();
+        ArrayDeque<String> sent = new ArrayDeque<String>();
+        int mismatches = 0;
+        int errors = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < messages + depth; i++) {
+            if ((window.size() == depth) || (i >= messages)) {
+                if (window.isEmpty()) {
+                    break;
+                }
+                EchoResponse response = window.pollFirst().get();
+                String expected = sent.pollFirst();
+
+                if (response.isError()) {
+                    errors++;
+                }
+                else if (!response.getText().equals(expected)) {
+                    mismatches++;
+                }
+            }
+            if (i < messages) {
+                String text = "request " + i;
+                sent.addLast(text);
+                window.addLast(client.send(MessageFormatter.TYPE_ECHO, text));
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        client.close();
+
+        StringBuilder result = new StringBuilder(String.format("%-36s %7.0f msg/s mismatches=%d errors=%d", name,
+                messages / seconds, mismatches, errors));
+        for (int i = 0; i < before.length; i++) {
+            result.append(String.format(" b%d=%.0f%%", i, 100.0 * (backends[i].getResponseCount() - before[i]) /
+                    messages));
+        }
+        return result.toString();
+    }
+}
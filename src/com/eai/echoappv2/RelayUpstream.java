@@ -0,0 +1,177 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is one connection from an Echo Server in relay mode to a backend Echo
+ | Server. It is registered with the relay's Selector like a client connection and pipelined:
+ | requests from any number of clients are queued on it back to back, each with a Slot that
+ | remembers which client it came from, and since the backend answers in order each response
+ | frame completes the oldest Slot. Frames go through unchanged in both directions, so the relay
+ | never encodes a frame or checks the CRC32 of a response. Used by the event loop thread only
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+
+class RelayUpstream {
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     | A response a client is owed, in the order of its requests. Filled in when the backend answers, or straight away
+     | for a response the relay makes itself while relayed ones are still outstanding
+     \----------------------------------------------------------------------------------------------------------------*/
+    static final class Slot {
+        final Connection client;
+        ByteBuffer response;//Complete frame, null until the backend answers
+
+        Slot(Connection client, ByteBuffer response){
+            this.client = client;
+            this.response = response;
+        }
+    }
+
+    private final int backend;//Index of the backend server in the relay's list
+    private final Connection connection;//Outbound queue and key of the socket to the backend
+    private final ByteBuffer inbound = ByteBuffer.allocate(2 * MessageFormatter.MAX_FRAME_LENGTH);
+    private final ArrayDeque<Slot> inFlight = new ArrayDeque<Slot>();
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: RelayUpstream
+     |Abstract: Constructor for RelayUpstream object. Connects to the backend, waiting for the connection, then makes the
+     |          socket non-blocking and registers it with the Selector for reads, with this object attached
+     |Return: object RelayUpstream
+     \----------------------------------------------------------------------------------------------------------------*/
+    RelayUpstream(int backend, InetSocketAddress address, Selector selector) throws IOException{
+        this.backend = backend;
+
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);//Responses are coalesced by the relay already
+        channel.configureBlocking(false);
+
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, this);
+        connection = new Connection(channel, key, "relay:" + address);
+    }
+
+    int getBackend(){
+        return backend;
+    }
+
+    Connection getConnection(){
+        return connection;
+    }
+
+    boolean isOpen(){
+        return connection.getChannel().isOpen();
+    }
+
+    int getInFlight(){
+        return inFlight.size();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: forward
+     |Abstract: Queues a complete request frame, as received, behind the requests already waiting for the backend. The
+     |          caller flushes the connection
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void forward(byte[] frame, Slot slot){
+        connection.queue(ByteBuffer.wrap(frame));
+        inFlight.addLast(slot);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: receive
+     |Abstract: Reads whatever the backend sent and copies each complete response frame, as is, into the oldest Slot in
+     |          flight, which is added to the list given. DELIVERY frames, broadcasts the backend pushes to all of its
+     |          clients, answer nothing and are dropped
+     |Return: int, bytes read, -1 if the backend closed the connection
+     \----------------------------------------------------------------------------------------------------------------*/
+    int receive(ArrayList<Slot> completed) throws IOException{
+        SocketChannel channel = (SocketChannel) connection.getChannel();
+        int total = 0;
+        int bytesRead;
+
+        while ((bytesRead = channel.read(inbound)) > 0) {
+            total += bytesRead;
+            inbound.flip();
+
+            int frameLength = MessageFormatter.frameLength(inbound);
+            while ((frameLength != -1) && (frameLength <= inbound.remaining())) {
+                if (frameLength > MessageFormatter.MAX_FRAME_LENGTH) {
+                    throw new IOException("Response of " + frameLength + " bytes exceeds the ICD maximum");
+                }
+
+                int type = inbound.getShort(inbound.position()) & 0xFFFF;
+                if (type == MessageFormatter.TYPE_DELIVERY) {
+                    inbound.position(inbound.position() + frameLength);
+                }
+                else {
+                    Slot slot = inFlight.pollFirst();
+                    if (slot == null) {
+                        throw new IOException("Unexpected response from " + connection.getDescription());
+                    }
+
+                    ByteBuffer response = ByteBuffer.allocate(frameLength);
+                    int end = inbound.limit();
+                    inbound.limit(inbound.position() + frameLength);
+                    response.put(inbound);
+                    inbound.limit(end);
+                    response.flip();
+
+                    slot.response = response;
+                    completed.add(slot);
+                }
+                frameLength = MessageFormatter.frameLength(inbound);
+            }
+
+            if (frameLength > MessageFormatter.MAX_FRAME_LENGTH) {
+                throw new IOException("Response of " + frameLength + " bytes exceeds the ICD maximum");
+            }
+            inbound.compact();
+        }
+        return (bytesRead == -1) ? -1 : total;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Closes the connection to the backend and hands back the Slots still waiting for it, oldest first, so
+     |          their clients can be answered some other way
+     |Return: ArrayDeque, the Slots in flight
+     \----------------------------------------------------------------------------------------------------------------*/
+    ArrayDeque<Slot> close(){
+        try {
+            connection.getKey().cancel();
+            connection.getChannel().close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        connection.clearOutbound();
+
+        ArrayDeque<Slot> lost = new ArrayDeque<Slot>(inFlight);
+        inFlight.clear();
+        return lost;
+    }
+}
@@ -0,0 +1,189 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class holds the JDK Flight Recorder events the Echo Server emits for each stage
+ | of a request: reading the frame, validating its CRC32, dispatching it and writing a response.
+ | Every event carries the connection ID, message type, payload length and its duration, and
+ | shows up under "Echo App" in JDK Mission Control. The events are recorded only while a
+ | recording with them enabled is running(-XX:StartFlightRecording or jcmd <pid> JFR.start), and
+ | then only for one request in every getSampleInterval(). Otherwise the server does no more than
+ | one check per frame. A threshold can be set per event in the recording settings as usual, e.g.
+ |   jcmd <pid> JFR.start com.eai.echoappv2.FrameWrite#threshold=100us
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+public class RequestEvents {
+
+    //Requests traced: one in this many, set with -Dechoapp.jfr.sample=N or setSampleInterval()
+    private static volatile int sampleInterval = Math.max(1, Integer.getInteger("echoapp.jfr.sample", 1));
+    private static int countdown;//Benign race if several servers share it, sampling only gets less even
+
+    //Only asked whether they are enabled, never committed
+    private static final FrameRead READ = new FrameRead();
+    private static final FrameValidate VALIDATE = new FrameValidate();
+    private static final FrameDispatch DISPATCH = new FrameDispatch();
+    private static final FrameWrite WRITE = new FrameWrite();
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Class: RequestEvent
+     |Abstract: The fields every stage records. Stack traces are left out, the stage already says where the time went
+     \----------------------------------------------------------------------------------------------------------------*/
+    @Category({"Echo App"})
+    @StackTrace(false)
+    abstract static class RequestEvent extends Event {
+        @Label("Connection ID")
+        long connectionId;
+
+        @Label("Message Type")
+        int messageType;
+
+        @Label("Payload Length")
+        @DataAmount
+        int payloadLength;
+
+        /**-------------------------------------------------------------------------------------------------------------
+         |Method: finish
+         |Abstract: Ends the event and commits it with the request's details if the recording wants it, e.g. it is over
+         |          the threshold
+         |Return: void
+         \------------------------------------------------------------------------------------------------------------*/
+        void finish(long connectionId, int messageType, int payloadLength){
+            end();
+
+            if (shouldCommit()) {
+                this.connectionId = connectionId;
+                this.messageType = messageType;
+                this.payloadLength = payloadLength;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.eai.echoappv2.FrameRead")
+    @Label("Frame Read")
+    @Description("Reading from the channel until the frame was complete; later frames of the same read only count " +
+            "the time since the frame before")
+    public static class FrameRead extends RequestEvent {
+    }
+
+    @Name("com.eai.echoappv2.FrameValidate")
+    @Label("Frame CRC32 Validation")
+    @Description("Checking the CRC32 of a received frame")
+    public static class FrameValidate extends RequestEvent {
+    }
+
+    @Name("com.eai.echoappv2.FrameDispatch")
+    @Label("Frame Dispatch")
+    @Description("Handling a valid request by its message type, including writing the response")
+    public static class FrameDispatch extends RequestEvent {
+    }
+
+    @Name("com.eai.echoappv2.FrameWrite")
+    @Label("Frame Write")
+    @Description("Encoding a response frame and writing it, or as much as the socket takes, to the channel")
+    public static class FrameWrite extends RequestEvent {
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    private RequestEvents(){
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: trace
+     |Abstract: Called by the event loop once per frame received to decide whether the stages of that request are timed.
+     |          False straight away unless a recording has one of the events enabled; then true for one frame in every
+     |          sample interval
+     |Return: boolean, true to create and commit events for this request
+     \----------------------------------------------------------------------------------------------------------------*/
+    static boolean trace(){
+        if (!READ.isEnabled() && !VALIDATE.isEnabled() && !DISPATCH.isEnabled() && !WRITE.isEnabled()) {
+            return false;
+        }
+        if (--countdown > 0) {
+            return false;
+        }
+        countdown = sampleInterval;
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: begin
+     |Abstract: Starts timing a stage of a traced request
+     |Return: RequestEvent, the event given, to finish() when the stage is done
+     \----------------------------------------------------------------------------------------------------------------*/
+    static RequestEvent begin(RequestEvent event){
+        event.begin();
+        return event;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: beginRead
+     |Abstract: Starts timing a read before it is known which request the bytes belong to or whether it will be traced,
+     |          so the event is only created while a recording has it enabled
+     |Return: FrameRead, the started event, or null if it is not enabled
+     \----------------------------------------------------------------------------------------------------------------*/
+    static FrameRead beginRead(){
+        if (!READ.isEnabled()) {
+            return null;
+        }
+
+        FrameRead event = new FrameRead();
+        event.begin();
+        return event;
+    }
+
+    public static int getSampleInterval(){
+        return sampleInterval;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setSampleInterval
+     |Abstract: Traces one request in every interval requests, 1 for every request. Takes effect on the next sample.
+     |          Safe to call from any thread
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public static void setSampleInterval(int interval){
+        if (interval < 1) {
+            throw new IllegalArgumentException("The sample interval must be at least 1");
+        }
+        sampleInterval = interval;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: payloadLength
+     |Abstract: Payload length from the header of a frame, before it has been validated
+     |Return: int, payload bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    static int payloadLength(byte[] frame){
+        return ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+    }
+
+    static int messageType(byte[] frame){
+        return ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+    }
+}
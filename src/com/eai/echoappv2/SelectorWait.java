@@ -0,0 +1,134 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class decides how an event loop waits for its Selector. BLOCKING sleeps in
+ | select() until a channel is ready, which is cheap but pays the kernel's wake up latency on
+ | every message. BUSY_SPIN never sleeps: it calls selectNow() again and again, keeping a core
+ | busy to notice a message microseconds sooner. ADAPTIVE spins for a while after the last
+ | message, then yields the processor for a while, then blocks in select(), so a busy loop gets
+ | spinning latency and an idle one gives its core back. Each event loop needs its own
+ | SelectorWait since it counts the loop's idle passes
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Selecting straight into a key handler instead of the selected-key set
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.function.Consumer;
+
+
+public class SelectorWait {
+
+    public enum Strategy {
+        BLOCKING, BUSY_SPIN, ADAPTIVE;
+
+        /**-------------------------------------------------------------------------------------------------------------
+         |Method: parse
+         |Abstract: Reads a strategy from a setting such as -Dechoapp.wait: blocking, spin or adaptive
+         |Return: Strategy, the matching strategy
+         \------------------------------------------------------------------------------------------------------------*/
+        public static Strategy parse(String name){
+            if (name.equalsIgnoreCase("spin") || name.equalsIgnoreCase("busy_spin")) {
+                return BUSY_SPIN;
+            }
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    public static final int DEFAULT_SPIN_PASSES = 10000;//Empty selectNow() calls spent spinning, about a millisecond
+    public static final int DEFAULT_YIELD_PASSES = 1000;//Empty selectNow() calls spent yielding after that
+
+    private final Strategy strategy;
+    private final int spinPasses;
+    private final int yieldPasses;
+    private int idlePasses;//selectNow() calls in a row that found nothing
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    public SelectorWait(Strategy strategy){
+        this(strategy, DEFAULT_SPIN_PASSES, DEFAULT_YIELD_PASSES);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: SelectorWait
+     |Abstract: Constructor for SelectorWait object. The pass counts only matter to ADAPTIVE: how many empty passes it
+     |          spins, then how many more it yields, before it blocks
+     |Return: object SelectorWait
+     \----------------------------------------------------------------------------------------------------------------*/
+    public SelectorWait(Strategy strategy, int spinPasses, int yieldPasses){
+        this.strategy = strategy;
+        this.spinPasses = spinPasses;
+        this.yieldPasses = yieldPasses;
+    }
+
+    public Strategy getStrategy(){
+        return strategy;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: select
+     |Abstract: Selects the ready keys the way the strategy says. A timeout of 0 or less means the caller has other work
+     |          queued, so every strategy only calls selectNow(). Otherwise BLOCKING waits up to timeout ms, BUSY_SPIN
+     |          returns straight after a short pause when nothing is ready, and ADAPTIVE does the same until the loop
+     |          has been idle long enough, then waits like BLOCKING. On a single processor spinning would only hold up
+     |          the thread that has work to do, so spinning yields instead
+     |Return: int, the number of keys selected, possibly 0
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int select(Selector selector, long timeout) throws IOException{
+        return select(selector, null, timeout);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: select
+     |Abstract: Same as select(selector, timeout), but each ready key is passed to the action as it is found instead of
+     |          being added to the Selector's selected-key set(a HashSet the caller would have to iterate and empty). A
+     |          null action uses the selected-key set
+     |Return: int, the number of keys passed to the action, possibly 0
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int select(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException{
+        if ((timeout <= 0) || (strategy == Strategy.BLOCKING)) {
+            return (timeout <= 0) ? selectNow(selector, action) : block(selector, action, timeout);
+        }
+
+        int selected = selectNow(selector, action);
+
+        if (selected > 0) {
+            idlePasses = 0;
+        }
+        else if ((strategy == Strategy.BUSY_SPIN) || (++idlePasses <= spinPasses)) {
+            SharedMemoryChannel.WaitStrategy.SPIN.idle();
+        }
+        else if (idlePasses <= spinPasses + yieldPasses) {
+            Thread.yield();
+        }
+        else {
+            selected = block(selector, action, timeout);//Idle long enough, let the kernel wake the loop
+            idlePasses = 0;
+        }
+        return selected;
+    }
+
+    private static int selectNow(Selector selector, Consumer<SelectionKey> action) throws IOException{
+        return (action == null) ? selector.selectNow() : selector.selectNow(action);
+    }
+
+    private static int block(Selector selector, Consumer<SelectionKey> action, long timeout) throws IOException{
+        return (action == null) ? selector.select(timeout) : selector.select(action, timeout);
+    }
+}
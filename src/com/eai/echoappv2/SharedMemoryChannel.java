@@ -0,0 +1,278 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class is one end of a connection through a memory-mapped file, normally under
+ | /dev/shm, for a client in another process on the same host. The file holds a MappedByteRing in
+ | each direction, so frames move between the processes without a socket or a system call. The
+ | server creates the file and the client opens it. Like a non-blocking SocketChannel, reads and
+ | writes move only what is available and never wait; nothing tells a side that data has arrived,
+ | so a side with nothing to do calls WaitStrategy.idle() and checks again
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class SharedMemoryChannel implements ByteChannel, GatheringByteChannel {
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Enum: WaitStrategy
+     |Abstract: What a side does between checks when it has nothing to read. SPIN keeps a core busy for the lowest
+     |          latency; PARK sleeps PARK_NANOS between checks, trading tens of microseconds for an idle core. On a
+     |          single processor spinning only delays the other side, so SPIN yields to it instead
+     \----------------------------------------------------------------------------------------------------------------*/
+    public enum WaitStrategy {
+        SPIN, PARK;
+
+        private static final boolean SINGLE_PROCESSOR = Runtime.getRuntime().availableProcessors() == 1;
+
+        public void idle(){
+            if ((this == SPIN) && SINGLE_PROCESSOR) {
+                Thread.yield();
+            }
+            else if (this == SPIN) {
+                Thread.onSpinWait();
+            }
+            else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    public static final long PARK_NANOS = 20000;//20 microseconds, about the timer resolution parking gets on Linux
+
+    private static final long MAGIC = 0x4541494543484F31L;//"EAIECHO1", written last once the file is ready
+
+    //File layout. Every counter sits on its own 64 byte cache line so the two processes do not share lines they write
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int CLOSED_OFFSET = 64;//Bit 0 set when the client closes, bit 1 when the server does
+    private static final int TO_SERVER_HEAD = 128;
+    private static final int TO_SERVER_TAIL = 192;
+    private static final int TO_CLIENT_HEAD = 256;
+    private static final int TO_CLIENT_TAIL = 320;
+    private static final int HEADER_LENGTH = 384;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final MappedByteRing inbound;
+    private final MappedByteRing outbound;
+    private final long closedBit;//This side's bit in the closed flags
+    private final long peerClosedBit;
+    private final boolean owner;//The server end created the file and removes it
+    private volatile boolean open = true;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    private SharedMemoryChannel(Path file, MappedByteBuffer buffer, int capacity, boolean server){
+        this.file = file;
+        this.buffer = buffer;
+        owner = server;
+
+        MappedByteRing toServer = new MappedByteRing(buffer, TO_SERVER_HEAD, TO_SERVER_TAIL, HEADER_LENGTH, capacity);
+        MappedByteRing toClient = new MappedByteRing(buffer, TO_CLIENT_HEAD, TO_CLIENT_TAIL, HEADER_LENGTH + capacity,
+                capacity);
+
+        inbound = server ? toServer : toClient;
+        outbound = server ? toClient : toServer;
+        closedBit = server ? 2 : 1;
+        peerClosedBit = server ? 1 : 2;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: create
+     |Abstract: Creates(or replaces) the file with a ring of the given capacity in each direction, rounded up to a power
+     |          of two, and returns the server's end. The file is removed when this end is closed
+     |Return: SharedMemoryChannel, the server end
+     \----------------------------------------------------------------------------------------------------------------*/
+    public static SharedMemoryChannel create(Path file, int capacity) throws IOException{
+        if ((capacity < 1) || (capacity > (1 << 29))){
+            throw new IllegalArgumentException("Ring capacity must be between 1 and 2^29 bytes");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity){
+            size <<= 1;
+        }
+
+        MappedByteBuffer buffer = map(file, HEADER_LENGTH + 2L * size, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer.putLong(CAPACITY_OFFSET, size);
+        MappedByteRing.LONGS.setRelease(buffer, MAGIC_OFFSET, MAGIC);//Client may attach from here on
+
+        return new SharedMemoryChannel(file, buffer, size, true);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: open
+     |Abstract: Opens a file made by create() and returns the client's end. Only one client may use a file at a time
+     |Return: SharedMemoryChannel, the client end
+     \----------------------------------------------------------------------------------------------------------------*/
+    public static SharedMemoryChannel open(Path file) throws IOException{
+        long fileSize = Files.size(file);
+
+        if (fileSize < HEADER_LENGTH){
+            throw new IOException(file + " is not an Echo App shared memory file");
+        }
+
+        MappedByteBuffer buffer = map(file, fileSize);
+
+        if ((long) MappedByteRing.LONGS.getAcquire(buffer, MAGIC_OFFSET) != MAGIC){
+            throw new IOException(file + " is not an Echo App shared memory file");
+        }
+        if (((long) MappedByteRing.LONGS.getAcquire(buffer, CLOSED_OFFSET) & 2) != 0){
+            throw new IOException("The Echo Server end of " + file + " is closed");
+        }
+
+        int capacity = (int) buffer.getLong(CAPACITY_OFFSET);
+        if (HEADER_LENGTH + 2L * capacity != fileSize){
+            throw new IOException(file + " does not match the ring capacity it records");
+        }
+
+        return new SharedMemoryChannel(file, buffer, capacity, false);
+    }
+
+    private static MappedByteBuffer map(Path file, long size, StandardOpenOption... extra) throws IOException{
+        StandardOpenOption[] options = new StandardOpenOption[extra.length + 2];
+        options[0] = StandardOpenOption.READ;
+        options[1] = StandardOpenOption.WRITE;
+        System.arraycopy(extra, 0, options, 2, extra.length);
+
+        FileChannel fileChannel = FileChannel.open(file, options);
+        try {
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        } finally {
+            fileChannel.close();//The mapping stays valid without the channel
+        }
+    }
+
+    public Path getFile(){
+        return file;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: available
+     |Abstract: Bytes the other side has written that this end has not read yet
+     |Return: int, readable bytes
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int available(){
+        return inbound.available();
+    }
+
+    public boolean isPeerClosed(){
+        return ((long) MappedByteRing.LONGS.getAcquire(buffer, CLOSED_OFFSET) & peerClosedBit) != 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Reads as many bytes as are available and fit into the buffer
+     |Return: int, bytes read, 0 if nothing is available, or -1 once the other side has closed and everything it wrote
+     |        has been read
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int read(ByteBuffer dst) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+
+        int n = inbound.read(dst);
+
+        if ((n == 0) && isPeerClosed() && (inbound.available() == 0)){
+            return -1;
+        }
+        return n;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Writes as many bytes from the buffer as the other side's ring has room for
+     |Return: int, bytes written, 0 if the ring is full
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int write(ByteBuffer src) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+        if (isPeerClosed()){
+            throw new IOException("The other end of " + file + " is closed");
+        }
+        return outbound.write(src);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Gathering write. Writes the buffers in order until one does not fit completely
+     |Return: long, bytes written
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        if (!open){
+            throw new ClosedChannelException();
+        }
+        if (isPeerClosed()){
+            throw new IOException("The other end of " + file + " is closed");
+        }
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += outbound.write(srcs[i]);
+
+            if (srcs[i].hasRemaining()) {
+                break;//Ring is full
+            }
+        }
+        return total;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException{
+        return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Closes this end. The other side can still read what was written before and then reads -1. The server
+     |          end also removes the file; a client that still has it mapped is not affected
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void close() throws IOException{
+        if (!open){
+            return;
+        }
+        open = false;
+
+        MappedByteRing.LONGS.getAndBitwiseOr(buffer, CLOSED_OFFSET, closedBit);
+
+        if (owner){
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures what TLS costs the Echo App compared to a plain connection. A
+ | quiet Echo Server with a plain and a TLS listener is started in this process and is measured
+ | for round trip latency(one request at a time), pipelined throughput through the AsyncEchoClient
+ | and the time taken by full versus resumed TLS handshakes. Without a key store argument a self
+ | signed one is generated with the JDK's keytool
+ |
+ | Usage: TlsBenchmark [messages] [payloadBytes] [keyStore.p12] [password]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+
+public class TlsBenchmark {
+
+    private static final int HANDSHAKES = 200;//Connections opened for each kind of handshake
+    private static final int PIPELINE_DEPTH = 256;//Requests in flight during the throughput run
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of TlsBenchmark class. Starts the server, warms each path up and prints the
+     |          latency, throughput and handshake results for plain and TLS connections side by side
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        int payloadBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        char[] password = ((args.length > 3) ? args[3] : "echoapp").toCharArray();
+        Path keyStore = (args.length > 2) ? Paths.get(args[2]) : generateKeyStore(password);
+
+        SSLContext serverContext = TlsChannel.createContext(keyStore, password);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        EchoServer server = new EchoServer(loopback, 0);
+        server.setVerbose(false);
+        server.listenTls(0, serverContext);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        InetSocketAddress plainAddress = new InetSocketAddress(loopback, server.getPort());
+        InetSocketAddress tlsAddress = new InetSocketAddress(loopback, server.getTlsPort());
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        byte[] request = MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, payload);
+
+        System.out.println("messages=" + messages + " payload=" + payloadBytes + "B protocol=" + TlsChannel.PROTOCOL);
+
+        //Round trip latency, one request at a time
+        SocketChannel plain = SocketChannel.open(plainAddress);
+        plain.socket().setTcpNoDelay(true);
+
+        SSLContext clientContext = TlsChannel.createContext(keyStore, password);
+        SSLSocket tls = openTlsSocket(clientContext, tlsAddress);
+
+        TransportLatencyBenchmark.measure(plain, request, messages / 10);//Warm up
+        measure(tls, request, messages / 10);
+
+        System.out.println("latency    plain " + TransportLatencyBenchmark.measure(plain, request, messages).summary());
+        System.out.println("latency    tls   " + measure(tls, request, messages).summary());
+
+        plain.close();
+        tls.close();
+
+        //Pipelined throughput through the client library
+        throughput(plainAddress, null, payload, messages / 10);//Warm up
+        throughput(tlsAddress, clientContext, payload, messages / 10);
+
+        System.out.println("throughput plain " + throughput(plainAddress, null, payload, messages));
+        System.out.println("throughput tls   " + throughput(tlsAddress, clientContext, payload, messages));
+
+        //Handshakes: a new client context has no session to offer, a reused one resumes its last session
+        handshakes(tlsAddress, keyStore, password, false, HANDSHAKES / 10);//Warm up
+        handshakes(tlsAddress, keyStore, password, true, HANDSHAKES / 10);
+
+        System.out.println("handshake  full    " + handshakes(tlsAddress, keyStore, password, false, HANDSHAKES)
+                .summary());
+        System.out.println("handshake  resumed " + handshakes(tlsAddress, keyStore, password, true, HANDSHAKES)
+                .summary());
+
+        serverThread.interrupt();
+        serverThread.join();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: generateKeyStore
+     |Abstract: Runs the JDK's keytool to create a temporary PKCS12 key store holding a self signed EC
+     |          certificate for localhost, deleted when the JVM exits
+     |Return: Path, the new key store
+     \------------------------------------------------------------------------------------------------*/
+    static Path generateKeyStore(char[] password) throws IOException, InterruptedException{
+        Path directory = Files.createTempDirectory("echoapp-tls");
+        Path keyStore = directory.resolve("echoapp.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        String pass = new String(password);
+
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "echoapp", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", pass, "-keypass", pass)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool could not create " + keyStore);
+        }
+
+        keyStore.toFile().deleteOnExit();
+        directory.toFile().deleteOnExit();
+        return keyStore;
+    }
+
+    private static SSLSocket openTlsSocket(SSLContext context, InetSocketAddress address) throws IOException{
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(address.getAddress(),
+                address.getPort());
+        socket.setEnabledProtocols(new String[] {TlsChannel.PROTOCOL});
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        return socket;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: The TLS counterpart of TransportLatencyBenchmark.measure(): sends the request the number
+     |          of times given over a blocking TLS socket, waiting for each response before sending the
+     |          next, and records every round trip
+     |Return: LatencyRecorder, the round trip times
+     \------------------------------------------------------------------------------------------------*/
+    static LatencyRecorder measure(SSLSocket socket, byte[] request, int messages) throws IOException{
+        LatencyRecorder recorder = new LatencyRecorder(messages);
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] response = new byte[MessageFormatter.MAX_FRAME_LENGTH];
+
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+
+            out.write(request);
+            out.flush();
+
+            in.readFully(response, 0, MessageFormatter.HEADER_LENGTH);
+            int payloadLength = ((response[2] & 0xFF) << 8) | (response[3] & 0xFF);
+            in.readFully(response, MessageFormatter.HEADER_LENGTH, payloadLength + MessageFormatter.CRC_LENGTH);
+
+            recorder.record(System.nanoTime() - start);
+        }
+        return recorder;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: throughput
+     |Abstract: Sends the number of echo requests given through an AsyncEchoClient with one connection,
+     |          keeping PIPELINE_DEPTH of them in flight, and times the run from the first request to the
+     |          last response. A null context gives a plain connection
+     |Return: String, requests per second and payload megabytes per second
+     \------------------------------------------------------------------------------------------------*/
+    private static String throughput(InetSocketAddress address, SSLContext context, byte[] payload, int messages)
+            throws Exception{
+        AsyncEchoClient client = new AsyncEchoClient(Collections.singletonList(address), 1,
+                AsyncEchoClient.DEFAULT_REQUEST_TIMEOUT_MS, AsyncEchoClient.DEFAULT_BATCH_BYTES, context);
+        ArrayDeque<CompletableFuture<EchoResponse>> window = new ArrayDeque<CompletableFuture<EchoResponse>>();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < messages; i++) {
+            if (window.size() == PIPELINE_DEPTH) {
+                window.pollFirst().get();
+            }
+            window.addLast(client.send(MessageFormatter.TYPE_ECHO, payload));
+        }
+        while (!window.isEmpty()) {
+            window.pollFirst().get();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        client.close();
+
+        double seconds = elapsed / 1e9;
+        return String.format("%.0f msg/s %.2f MB/s", messages / seconds, messages * (double) payload.length / 1e6
+                / seconds);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: handshakes
+     |Abstract: Opens the number of TLS connections given, one after another, and records how long each
+     |          handshake takes. With resume set every connection uses the same client context, so each
+     |          can resume the session of the one before it; otherwise each gets a new context and does
+     |          a full handshake
+     |Return: LatencyRecorder, the handshake times
+     \------------------------------------------------------------------------------------------------*/
+    private static LatencyRecorder handshakes(InetSocketAddress address, Path keyStore, char[] password,
+                                              boolean resume, int count) throws Exception{
+        LatencyRecorder recorder = new LatencyRecorder(count);
+        SSLContext shared = TlsChannel.createContext(keyStore, password);
+
+        for (int i = 0; i < count; i++) {
+            SSLContext context = resume ? shared : TlsChannel.createContext(keyStore, password);
+            SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(address.getAddress(),
+                    address.getPort());
+            socket.setEnabledProtocols(new String[] {TlsChannel.PROTOCOL});
+
+            long start = System.nanoTime();
+            socket.startHandshake();
+            recorder.record(System.nanoTime() - start);
+
+            //TLS 1.3 sends the session ticket after the handshake; one echo makes sure it has arrived
+            measure(socket, MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, new byte[1]), 1);
+            socket.close();
+        }
+        return recorder;
+    }
+}
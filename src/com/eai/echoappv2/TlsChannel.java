@@ -0,0 +1,516 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class wraps a non-blocking SocketChannel in TLS using an SSLEngine, so the Echo
+ | App's Selector based read/write path works unchanged over an encrypted connection. Reads
+ | return decrypted application bytes and writes take application bytes, with the same non-blocking
+ | contract as the socket underneath. The handshake is driven from read() and write(); the slow
+ | parts of it(the SSLEngine's delegated tasks) run on an Executor so they never stall the
+ | event loop, and a listener is told when they are done
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    public static final String PROTOCOL = "TLSv1.3";
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel socketChannel;
+    private final SSLEngine engine;
+    private final Executor taskExecutor;//Null runs delegated tasks on the calling thread
+    private volatile Runnable taskListener;//Told, on the executor's thread, when delegated tasks have finished
+    private final BufferPool netPool;
+    private final BufferPool appPool;
+    private ByteBuffer netIn;//Encrypted bytes read from the socket, kept in write mode
+    private ByteBuffer netOut;//Encrypted bytes waiting for the socket, kept in read mode
+    private ByteBuffer appIn;//Decrypted bytes not yet handed to the caller, kept in read mode
+    private volatile boolean tasksRunning;
+    private boolean awaitingData;//Last unwrap needed more bytes than the socket had
+    private boolean inboundClosed;
+    private boolean open = true;
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: TlsChannel
+     |Abstract: Constructor for TlsChannel object. The engine must already be in client or server mode. Delegated tasks
+     |          run on taskExecutor, or on the calling thread if it is null. Buffers for encrypted records come from
+     |          netPool and for decrypted records from appPool; both must hold at least the engine session's packet and
+     |          application buffer sizes. Starts the handshake, which then progresses as the channel is read and written
+     |Return: object TlsChannel
+     \----------------------------------------------------------------------------------------------------------------*/
+    TlsChannel(SocketChannel socketChannel, SSLEngine engine, Executor taskExecutor, BufferPool netPool,
+               BufferPool appPool) throws IOException{
+        this.socketChannel = socketChannel;
+        this.engine = engine;
+        this.taskExecutor = taskExecutor;
+        this.netPool = netPool;
+        this.appPool = appPool;
+
+        netIn = netPool.acquire();
+        netOut = netPool.acquire();
+        netOut.flip();//Empty, in read mode
+        appIn = appPool.acquire();
+        appIn.flip();
+
+        engine.beginHandshake();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: createPools
+     |Abstract: Creates the encrypted and decrypted record buffer pools sized for engines of the given context, each
+     |          keeping at most maxPooled buffers for reuse
+     |Return: BufferPool[], the network(encrypted) pool followed by the application(decrypted) pool
+     \----------------------------------------------------------------------------------------------------------------*/
+    static BufferPool[] createPools(SSLContext sslContext, int maxPooled){
+        SSLEngine prototype = sslContext.createSSLEngine();
+
+        return new BufferPool[] {
+                new BufferPool(prototype.getSession().getPacketBufferSize(), true, maxPooled),
+                new BufferPool(prototype.getSession().getApplicationBufferSize(), false, maxPooled)};
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: createContext
+     |Abstract: Builds a TLS 1.3 SSLContext from a PKCS12 key store. The same store is used for the server's key and
+     |          certificate and as the trust store, which suits a self signed server certificate shared with clients.
+     |          Either side may pass a store without a private key if it only needs to trust
+     |Return: SSLContext, initialized context
+     \----------------------------------------------------------------------------------------------------------------*/
+    public static SSLContext createContext(Path keyStorePath, char[] password) throws IOException,
+            GeneralSecurityException{
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+
+        InputStream in = Files.newInputStream(keyStorePath);
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+
+        SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
+        sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    SSLEngine getEngine(){
+        return engine;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: setTaskListener
+     |Abstract: Sets what is run, on the executor's thread, once delegated tasks handed to the executor have finished.
+     |          The owner must then read or flush the channel again to carry on with the handshake
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void setTaskListener(Runnable taskListener){
+        this.taskListener = taskListener;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isHandshakeComplete
+     |Abstract: Checks whether application data can flow. While false, writes take nothing and the caller should only
+     |          wait for reads, plus writability if hasPendingOutput() is true
+     |Return: boolean, true once the handshake has finished
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean isHandshakeComplete(){
+        return !tasksRunning && (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: hasPendingOutput
+     |Abstract: Encrypted bytes the socket has not taken yet. The caller must wait for writability and call flush()
+     |Return: boolean, true if output is buffered
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean hasPendingOutput(){
+        return netOut.hasRemaining();
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: hasBufferedInput
+     |Abstract: Data already taken off the socket but not yet returned by read(), e.g. because the caller's buffer was
+     |          full. The Selector will not report it, so the caller must read again without waiting
+     |Return: boolean, true if read() can return more without the socket becoming readable
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean hasBufferedInput(){
+        return appIn.hasRemaining() || ((netIn.position() > 0) && !awaitingData);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: read
+     |Abstract: Fills the buffer with decrypted bytes: first any left over from the last call, then by decrypting
+     |          records already read and finally by reading the socket, until the buffer is full or the socket has
+     |          nothing more. Drives the handshake first if it has not finished
+     |Return: int, bytes read, 0 if nothing is available yet, -1 once the peer has closed
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int read(ByteBuffer dst) throws IOException{
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+
+        int total = 0;
+
+        while (dst.hasRemaining()) {
+            if (appIn.hasRemaining()) {
+                total += drainAppIn(dst);
+                continue;
+            }
+            if (tasksRunning || inboundClosed) {
+                break;
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                if (!handshake()) {
+                    break;
+                }
+                continue;
+            }
+
+            SSLEngineResult result = unwrap();
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                if (!fillNetIn()) {
+                    break;
+                }
+            }
+            else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                inboundClosed = true;
+            }
+            else if ((result.bytesConsumed() == 0) && (result.bytesProduced() == 0)) {
+                break;//No progress possible
+            }
+        }
+
+        if ((total == 0) && inboundClosed) {
+            return -1;
+        }
+        return total;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Encrypts as much of the buffer as the socket will take. Takes nothing while the handshake is still
+     |          running or encrypted output from an earlier call is still waiting for the socket
+     |Return: int, application bytes taken from the buffer
+     \----------------------------------------------------------------------------------------------------------------*/
+    public int write(ByteBuffer src) throws IOException{
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException{
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: write
+     |Abstract: Gathering write. The SSLEngine packs bytes from several buffers into the same record, so many small
+     |          responses cost one record and one socket write instead of one each
+     |Return: long, application bytes taken from the buffers
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (!flush() || !isHandshakeComplete()) {
+            return 0;
+        }
+
+        long consumed = 0;
+
+        while (hasRemaining(srcs, offset, length)) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            consumed += result.bytesConsumed();
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            if (!flushNetOut()) {
+                break;//Socket is full; the rest waits for writability
+            }
+        }
+        return consumed;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: flush
+     |Abstract: Writes buffered encrypted output to the socket and, if that empties it, lets an unfinished handshake
+     |          carry on. Called by the event loop when the socket becomes writable
+     |Return: boolean, true if no encrypted output is left waiting
+     \----------------------------------------------------------------------------------------------------------------*/
+    public boolean flush() throws IOException{
+        if (!flushNetOut()) {
+            return false;
+        }
+        if (!tasksRunning && (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+            handshake();
+        }
+        return !netOut.hasRemaining();
+    }
+
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: close
+     |Abstract: Sends close_notify if the socket will take it without waiting, closes the socket and returns the
+     |          buffers to their pools
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void close() throws IOException{
+        if (!open) {
+            return;
+        }
+        open = false;
+
+        try {
+            engine.closeOutbound();
+            if (!tasksRunning) {
+                netOut.compact();
+                try {
+                    engine.wrap(EMPTY, netOut);
+                } finally {
+                    netOut.flip();
+                }
+                flushNetOut();
+            }
+        } catch (IOException ioe) {
+            //Best effort only, the socket is closed regardless
+        } finally {
+            socketChannel.close();
+
+            if (!tasksRunning) {
+                netPool.release(netIn);
+                netPool.release(netOut);
+                appPool.release(appIn);
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: handshake
+     |Abstract: Moves the handshake on as far as it can go without waiting: runs or hands off delegated tasks, sends
+     |          handshake records and reads the peer's
+     |Return: boolean, true if the handshake has finished, false if it is waiting for the socket or for tasks
+     \----------------------------------------------------------------------------------------------------------------*/
+    private boolean handshake() throws IOException{
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    return true;
+
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    if (tasksRunning) {
+                        return false;
+                    }
+                    break;
+
+                case NEED_WRAP:
+                    if (!flushNetOut()) {
+                        return false;
+                    }
+                    netOut.compact();
+                    SSLEngineResult wrapped;
+                    try {
+                        wrapped = engine.wrap(EMPTY, netOut);
+                    } finally {
+                        netOut.flip();
+                    }
+                    if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flushNetOut();
+                        throw new SSLException("TLS engine closed during the handshake");
+                    }
+                    if (!flushNetOut()) {
+                        return false;
+                    }
+                    break;
+
+                default://NEED_UNWRAP, NEED_UNWRAP_AGAIN
+                    SSLEngineResult unwrapped = unwrap();
+
+                    if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (!fillNetIn()) {
+                            return false;
+                        }
+                    }
+                    else if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        inboundClosed = true;
+                        return false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: runDelegatedTasks
+     |Abstract: Collects the SSLEngine's delegated tasks(key exchange, certificate checks). Without an executor they run
+     |          here; otherwise they run on the executor while the channel reports no progress, and the listener is
+     |          told when they are done so the owner can drive the handshake again
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    private void runDelegatedTasks(){
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable task;
+
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+
+        if (taskExecutor == null) {
+            for (Runnable t : tasks) {
+                t.run();
+            }
+            return;
+        }
+
+        tasksRunning = true;
+        taskExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (Runnable t : tasks) {
+                        t.run();
+                    }
+                } finally {
+                    tasksRunning = false;
+
+                    Runnable listener = taskListener;
+                    if (listener != null) {
+                        listener.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: unwrap
+     |Abstract: Decrypts the next record held in netIn into appIn
+     |Return: SSLEngineResult, the engine's result
+     \----------------------------------------------------------------------------------------------------------------*/
+    private SSLEngineResult unwrap() throws SSLException{
+        netIn.flip();
+        appIn.compact();
+        try {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                throw new SSLException("Decrypted record larger than the application buffer");
+            }
+            return result;
+        } finally {
+            appIn.flip();
+            netIn.compact();
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: fillNetIn
+     |Abstract: Reads encrypted bytes from the socket after the engine asked for more than netIn held
+     |Return: boolean, true if bytes were read, false if the socket had none(or reached end of stream)
+     \----------------------------------------------------------------------------------------------------------------*/
+    private boolean fillNetIn() throws IOException{
+        if (!netIn.hasRemaining()) {
+            throw new SSLException("TLS record larger than the network buffer");
+        }
+
+        int n = socketChannel.read(netIn);
+
+        if (n == -1) {
+            inboundClosed = true;
+            try {
+                engine.closeInbound();
+            } catch (SSLException se) {
+                //Peer closed without close_notify. Nothing more will arrive either way
+            }
+            return false;
+        }
+
+        awaitingData = (n == 0);
+        return n > 0;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: flushNetOut
+     |Abstract: Writes buffered encrypted bytes to the socket
+     |Return: boolean, true if all of them were written
+     \----------------------------------------------------------------------------------------------------------------*/
+    private boolean flushNetOut() throws IOException{
+        while (netOut.hasRemaining()) {
+            if (socketChannel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int drainAppIn(ByteBuffer dst){
+        int n = Math.min(appIn.remaining(), dst.remaining());
+
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        appIn.position(appIn.position() + n);
+
+        return n;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length){
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
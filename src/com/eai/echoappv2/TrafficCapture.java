@@ -0,0 +1,179 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class records every frame the Echo Server receives on a connection into a
+ | binary capture file that CaptureReplay can send again later. The event loop only copies each
+ | frame into a ByteRing; a background thread writes the ring to the file, so disk I/O never
+ | stalls the loop. If the writer falls behind and the ring is full, frames are dropped from the
+ | capture(not from the server) and counted.
+ |
+ | File format, big-endian:
+ |   MAGIC(8 bytes) start time in ms since the epoch(8 bytes)
+ |   then per frame: ns since the capture started(8 bytes) connection ID(8 bytes)
+ |                   frame length(2 bytes) frame(HEADER, PAYLOAD, CRC32 exactly as received)
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class TrafficCapture implements Runnable {
+
+    public static final long MAGIC = 0x4541494341503031L;//"EAICAP01"
+    public static final int FILE_HEADER_LENGTH = 16;
+    public static final int RECORD_HEADER_LENGTH = 18;
+
+    private static final int RING_CAPACITY = 8 * 1024 * 1024;//About a thousand maximum sized frames in flight to disk
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path path;
+    private final FileChannel file;
+    private final ByteRing ring = new ByteRing(RING_CAPACITY);
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);//Event loop only
+    private final long startNanos;
+    private final Thread writer;
+    private volatile boolean stopping;
+    private volatile long recorded;//Written by the event loop only
+    private volatile long dropped;//Written by the event loop only
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: TrafficCapture
+     |Abstract: Constructor for TrafficCapture object. Creates(or replaces) the capture file, writes its header and starts
+     |          the writer thread
+     |Return: object TrafficCapture
+     \----------------------------------------------------------------------------------------------------------------*/
+    TrafficCapture(Path path) throws IOException{
+        this.path = path;
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+        fileHeader.putLong(MAGIC).putLong(System.currentTimeMillis()).flip();
+        while (fileHeader.hasRemaining()) {
+            file.write(fileHeader);
+        }
+
+        startNanos = System.nanoTime();
+
+        writer = new Thread(this, "EchoServer-Capture");
+        writer.setDaemon(true);//Never keeps the application alive on its own
+        writer.start();
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: record
+     |Abstract: Called by the event loop for every frame received. Copies the record into the ring if all of it fits,
+     |          otherwise drops it. Never blocks and never allocates
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void record(long connectionId, byte[] frame, int length){
+        //Only this thread adds to the ring, so the free space seen here can only grow before the copy
+        if (ring.capacity() - ring.available() < RECORD_HEADER_LENGTH + length) {
+            dropped++;
+            return;
+        }
+
+        recordHeader.clear();
+        recordHeader.putLong(System.nanoTime() - startNanos).putLong(connectionId).putShort((short) length);
+        recordHeader.flip();
+
+        ring.write(recordHeader);
+        ring.write(frame, 0, length);
+        recorded++;
+    }
+
+    public long getRecordedCount(){
+        return recorded;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: getDroppedCount
+     |Abstract: Frames left out of the capture because the writer could not keep up. The server handled them normally
+     |Return: long, dropped frames
+     \----------------------------------------------------------------------------------------------------------------*/
+    public long getDroppedCount(){
+        return dropped;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Method run by the writer thread. Moves bytes from the ring to the file in large writes, sleeping briefly
+     |          whenever the ring is empty, until the capture is stopped and everything recorded has been written
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    public void run(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        try {
+            while (true) {
+                boolean finishing = stopping;//Read before draining, so nothing recorded before stop() is missed
+                int n = ring.read(buffer);
+
+                if ((buffer.position() > 0) && ((n == 0) || !buffer.hasRemaining())) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer);
+                    }
+                    buffer.clear();
+                }
+
+                if (n == 0) {
+                    if (finishing) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("Traffic capture to " + path + " failed");
+            ioe.printStackTrace();
+        }
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: stop
+     |Abstract: Waits for the writer to write everything recorded so far and closes the file. A frame the event loop is
+     |          recording at the same moment may be left out
+     |Return: void
+     \----------------------------------------------------------------------------------------------------------------*/
+    void stop() throws IOException{
+        stopping = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            file.close();
+        }
+    }
+}
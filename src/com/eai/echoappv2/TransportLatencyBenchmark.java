@@ -0,0 +1,230 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class compares the round trip latency of the transports an Echo Server can be
+ | reached through from the same host. A quiet Echo Server is started in this process and a
+ | blocking client sends echo requests one at a time over each transport, timing every round trip.
+ | The shared memory client waits for its responses with the same strategy(spin or park) as the
+ | server
+ |
+ | Usage: TransportLatencyBenchmark [messages] [payloadBytes] [unixSocketPath] [spin|park]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+ 1.1  - 10192026 - Shared memory transport
+ 1.2  - 10192026 - UDP transport
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+
+public class TransportLatencyBenchmark {
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of TransportLatencyBenchmark class. Starts the server, warms every transport
+     |          up and prints the latency distribution of each
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int payloadBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        Path socketPath = Paths.get((args.length > 2) ? args[2] : System.getProperty("java.io.tmpdir") +
+                "/echoapp-benchmark.sock");
+        SharedMemoryChannel.WaitStrategy wait = SharedMemoryChannel.WaitStrategy.valueOf(
+                ((args.length > 3) ? args[3] : "spin").toUpperCase());
+
+        //tmpfs keeps the ring in memory; any other file system would also write it back to disk
+        Path shmDirectory = Paths.get("/dev/shm");
+        Path shmFile = (Files.isDirectory(shmDirectory) ? shmDirectory : Paths.get(System.getProperty("java.io.tmpdir")))
+                .resolve("echoapp-benchmark.shm");
+
+        EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        server.setVerbose(false);
+        server.listenUnix(socketPath);
+        server.listenSharedMemory(shmFile, 2 * MessageFormatter.MAX_FRAME_LENGTH, wait);
+        server.listenDatagram(0);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        byte[] request = MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, payload);
+
+        SocketChannel tcp = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getPort()));
+        tcp.socket().setTcpNoDelay(true);
+
+        SocketChannel unix = SocketChannel.open(StandardProtocolFamily.UNIX);
+        unix.connect(UnixDomainSocketAddress.of(socketPath));
+
+        SharedMemoryChannel shm = SharedMemoryChannel.open(shmFile);
+
+        DatagramChannel udp = DatagramChannel.open();
+        udp.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getDatagramPort()));
+
+        System.out.println("messages=" + messages + " payload=" + payloadBytes + "B wait=" + wait);
+
+        //Warm every path up before measuring any, so none benefits from another's JIT work
+        measure(tcp, request, messages / 10);
+        measure(unix, request, messages / 10);
+        measure(shm, request, messages / 10, wait);
+        measure(udp, request, messages / 10);
+
+        System.out.println("tcp loopback  " + measure(tcp, request, messages).summary());
+        System.out.println("unix socket   " + measure(unix, request, messages).summary());
+        System.out.println("shared memory " + measure(shm, request, messages, wait).summary());
+        System.out.println("udp datagram  " + measure(udp, request, messages).summary());
+
+        tcp.close();
+        unix.close();
+        shm.close();
+        udp.close();
+        serverThread.interrupt();
+        serverThread.join();
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: Sends the request the number of times given over a blocking channel, waiting for each
+     |          response before sending the next, and records every round trip
+     |Return: LatencyRecorder, the round trip times
+     \------------------------------------------------------------------------------------------------*/
+    static LatencyRecorder measure(SocketChannel channel, byte[] request, int messages) throws IOException{
+        LatencyRecorder recorder = new LatencyRecorder(messages);
+        ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+        ByteBuffer responseBuffer = ByteBuffer.allocateDirect(MessageFormatter.MAX_FRAME_LENGTH);
+
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+
+            requestBuffer.clear();
+            while (requestBuffer.hasRemaining()) {
+                channel.write(requestBuffer);
+            }
+            readFrame(channel, responseBuffer);
+
+            recorder.record(System.nanoTime() - start);
+        }
+        return recorder;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: The shared memory counterpart of measure(): writes each request into the ring and
+     |          waits for the whole response with the given strategy before sending the next
+     |Return: LatencyRecorder, the round trip times
+     \------------------------------------------------------------------------------------------------*/
+    static LatencyRecorder measure(SharedMemoryChannel channel, byte[] request, int messages,
+                                   SharedMemoryChannel.WaitStrategy wait) throws IOException{
+        LatencyRecorder recorder = new LatencyRecorder(messages);
+        ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+        ByteBuffer responseBuffer = ByteBuffer.allocateDirect(MessageFormatter.MAX_FRAME_LENGTH);
+
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+
+            requestBuffer.clear();
+            while (requestBuffer.hasRemaining()) {
+                if (channel.write(requestBuffer) == 0) {
+                    wait.idle();//Ring full
+                }
+            }
+
+            responseBuffer.clear();
+            while (true) {
+                int n = channel.read(responseBuffer);
+
+                if (n == -1) {
+                    throw new IOException("The Echo Server closed the connection");
+                }
+                int frameLength = MessageFormatter.frameLength(responseBuffer.duplicate().flip());
+                if ((frameLength != -1) && (frameLength <= responseBuffer.position())) {
+                    break;
+                }
+                if (n == 0) {
+                    wait.idle();
+                }
+            }
+
+            recorder.record(System.nanoTime() - start);
+        }
+        return recorder;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: The UDP counterpart of measure(): sends each request as one datagram over a blocking
+     |          channel connected to the server and waits for the reply datagram. A datagram lost on
+     |          loopback would hang the run, which in practice does not happen at this rate
+     |Return: LatencyRecorder, the round trip times
+     \------------------------------------------------------------------------------------------------*/
+    static LatencyRecorder measure(DatagramChannel channel, byte[] request, int messages) throws IOException{
+        LatencyRecorder recorder = new LatencyRecorder(messages);
+        ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+        ByteBuffer responseBuffer = ByteBuffer.allocateDirect(MessageFormatter.MAX_FRAME_LENGTH);
+
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+
+            requestBuffer.clear();
+            channel.write(requestBuffer);
+
+            responseBuffer.clear();
+            channel.read(responseBuffer);
+
+            recorder.record(System.nanoTime() - start);
+        }
+        return recorder;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: readFrame
+     |Abstract: Reads from a blocking channel until one complete response frame is in the buffer
+     |Return: void, the buffer holds the frame from position 0
+     \------------------------------------------------------------------------------------------------*/
+    static void readFrame(SocketChannel channel, ByteBuffer buffer) throws IOException{
+        buffer.clear();
+
+        while (true) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("The Echo Server closed the connection");
+            }
+
+            buffer.flip();
+            int frameLength = MessageFormatter.frameLength(buffer);
+            if ((frameLength != -1) && (frameLength <= buffer.remaining())) {
+                return;
+            }
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class checks and decodes the text carried in a PAYLOAD. Bytes are tested eight
+ | at a time, as one long read straight out of the byte array, against the high bit of each
+ | byte(SIMD within a register), so a run of ASCII costs one load, OR and compare per eight bytes.
+ | Only the multi-byte sequences are looked at one byte at a time, checked against RFC 3629:
+ | no overlong forms, no surrogates, nothing above U+10FFFF. An ASCII PAYLOAD decodes into a
+ | String by a plain copy of its bytes(a Latin-1 compact String); only the rest go through the
+ | UTF-8 decoder. Nothing is allocated except the String itself
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+
+final class Utf8 {
+
+    //Eight bytes of a byte array at any index, aligned or not, as one long
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long HIGH_BITS = 0x8080808080808080L;//Set in a byte that is not ASCII
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    private Utf8(){
+        //Static methods only
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isAscii
+     |Abstract: Checks whether length bytes from offset are all ASCII, 32 bytes per step while there are that many, then
+     |          8, then one at a time
+     |Return: boolean, true if no byte has its high bit set
+     \----------------------------------------------------------------------------------------------------------------*/
+    static boolean isAscii(byte[] bytes, int offset, int length){
+        return asciiPrefix(bytes, offset, offset + length) == offset + length;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: isValid
+     |Abstract: Checks whether length bytes from offset are well formed UTF-8. Runs of ASCII are skipped eight bytes at
+     |          a time; each multi-byte sequence must have the continuation bytes its lead byte calls for, and must not
+     |          be an overlong form, a surrogate(U+D800 to U+DFFF) or above U+10FFFF
+     |Return: boolean, true if valid
+     \----------------------------------------------------------------------------------------------------------------*/
+    static boolean isValid(byte[] bytes, int offset, int length){
+        int end = offset + length;
+        int i = asciiPrefix(bytes, offset, end);
+
+        while (i < end) {
+            int lead = bytes[i] & 0xFF;
+
+            if (lead < 0x80) {
+                i = asciiPrefix(bytes, i + 1, end);//Back to eight at a time
+                continue;
+            }
+            else if (lead < 0xC2) {
+                return false;//A continuation byte without a lead, or an overlong two byte form
+            }
+            else if (lead < 0xE0) {
+                if ((i + 1 >= end) || !isContinuation(bytes[i + 1])) {
+                    return false;
+                }
+                i += 2;
+            }
+            else if (lead < 0xF0) {
+                if (i + 2 >= end) {
+                    return false;
+                }
+                int second = bytes[i + 1] & 0xFF;
+                if (!isContinuation(bytes[i + 1]) || !isContinuation(bytes[i + 2]) ||
+                        ((lead == 0xE0) && (second < 0xA0)) ||//Overlong
+                        ((lead == 0xED) && (second > 0x9F))) {//Surrogate
+                    return false;
+                }
+                i += 3;
+            }
+            else if (lead < 0xF5) {
+                if (i + 3 >= end) {
+                    return false;
+                }
+                int second = bytes[i + 1] & 0xFF;
+                if (!isContinuation(bytes[i + 1]) || !isContinuation(bytes[i + 2]) || !isContinuation(bytes[i + 3]) ||
+                        ((lead == 0xF0) && (second < 0x90)) ||//Overlong
+                        ((lead == 0xF4) && (second > 0x8F))) {//Above U+10FFFF
+                    return false;
+                }
+                i += 4;
+            }
+            else {
+                return false;//Above U+10FFFF
+            }
+        }
+        return true;
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: decode
+     |Abstract: Decodes length bytes of UTF-8 from offset into a String. ASCII is copied as it is into a Latin-1 String
+     |          with no decoding; anything else goes through the UTF-8 decoder, which replaces invalid sequences, so
+     |          callers that must refuse them check isValid() first
+     |Return: String, the text
+     \----------------------------------------------------------------------------------------------------------------*/
+    static String decode(byte[] bytes, int offset, int length){
+        if (isAscii(bytes, offset, length)) {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     |Method: asciiPrefix
+     |Abstract: Finds the end of the run of ASCII bytes starting at index i
+     |Return: int, index of the first byte from i that is not ASCII, end if there is none
+     \----------------------------------------------------------------------------------------------------------------*/
+    private static int asciiPrefix(byte[] bytes, int i, int end){
+        for (; i + 32 <= end; i += 32) {
+            long bits = (long) LONGS.get(bytes, i) | (long) LONGS.get(bytes, i + 8) |
+                    (long) LONGS.get(bytes, i + 16) | (long) LONGS.get(bytes, i + 24);
+            if ((bits & HIGH_BITS) != 0) {
+                break;//Found in the eight byte steps below
+            }
+        }
+        for (; i + 8 <= end; i += 8) {
+            long bits = (long) LONGS.get(bytes, i) & HIGH_BITS;
+            if (bits != 0) {
+                return i + (Long.numberOfTrailingZeros(bits) >>> 3);//Little endian, the lowest byte comes first
+            }
+        }
+        for (; i < end; i++) {
+            if (bytes[i] < 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isContinuation(byte b){
+        return (b & 0xC0) == 0x80;
+    }
+}
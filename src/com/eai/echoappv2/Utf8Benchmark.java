@@ -0,0 +1,164 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class compares the text handling of Utf8 with the JDK's for PAYLOADs of 64 B to
+ | 8 KB, in ASCII and in mixed text(about one two or three byte character in every sixteen).
+ | Validation by Utf8.isValid() is timed against a CharsetDecoder reporting malformed input,
+ | decoding into a reused CharBuffer, the usual way to check UTF-8 in the JDK; decoding by
+ | Utf8.decode() against new String(bytes, UTF_8). Each is run for a fixed time several times
+ | and the best time per PAYLOAD is printed, with the throughput
+ |
+ | Usage: Utf8Benchmark [millisPerRun] [runs]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+
+public class Utf8Benchmark {
+
+    private static final int[] SIZES = {64, 256, 1024, 4096, MessageFormatter.MAX_PAYLOAD_LENGTH};
+    private static final String MIXED = "The caf\u00e9 sells cr\u00e8me br\u00fbl\u00e9e for \u20ac4, na\u00efve ";
+
+    private static long sink;//Keeps the JIT from dropping work whose result is unused
+
+    /**-----------------------------------------------------------------------------------------------------------------
+     | One way of handling a PAYLOAD, timed by measure()
+     \----------------------------------------------------------------------------------------------------------------*/
+    private interface Operation {
+        long run(byte[] payload);
+    }
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of Utf8Benchmark class. Times each operation on each kind of text at each
+     |          size
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]){
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 200;
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+        final CharBuffer chars = CharBuffer.allocate(MessageFormatter.MAX_PAYLOAD_LENGTH);
+
+        Operation utf8Valid = new Operation() {
+            public long run(byte[] payload) {
+                return Utf8.isValid(payload, 0, payload.length) ? 1 : 0;
+            }
+        };
+        Operation decoderValid = new Operation() {
+            public long run(byte[] payload) {
+                decoder.reset();
+                chars.clear();
+                CoderResult result = decoder.decode(ByteBuffer.wrap(payload), chars, true);
+                return result.isError() ? 0 : 1;
+            }
+        };
+        Operation utf8Decode = new Operation() {
+            public long run(byte[] payload) {
+                return Utf8.decode(payload, 0, payload.length).length();
+            }
+        };
+        Operation stringDecode = new Operation() {
+            public long run(byte[] payload) {
+                return new String(payload, 0, payload.length, StandardCharsets.UTF_8).length();
+            }
+        };
+
+        System.out.println("millisPerRun=" + millis + " runs=" + runs + ", best ns per PAYLOAD(MB/s)");
+        System.out.println(String.format("%-6s %6s  %20s %20s  %20s %20s", "text", "bytes", "Utf8.isValid",
+                "CharsetDecoder", "Utf8.decode", "new String"));
+
+        for (String kind : new String[] {"ascii", "mixed"}) {
+            for (int size : SIZES) {
+                byte[] payload = text(kind.equals("ascii") ? "The quick brown fox jumps over the lazy dog. " : MIXED,
+                        size);
+
+                System.out.println(String.format("%-6s %6d  %20s %20s  %20s %20s", kind, size,
+                        measure(utf8Valid, payload, millis, runs), measure(decoderValid, payload, millis, runs),
+                        measure(utf8Decode, payload, millis, runs), measure(stringDecode, payload, millis, runs)));
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: text
+     |Abstract: Repeats the sample text to the size given in bytes, cut at a character boundary and
+     |          padded with spaces
+     |Return: byte[], valid UTF-8 of exactly size bytes
+     \------------------------------------------------------------------------------------------------*/
+    private static byte[] text(String sample, int size){
+        StringBuilder builder = new StringBuilder();
+        while (builder.toString().getBytes(StandardCharsets.UTF_8).length < size) {
+            builder.append(sample);
+        }
+
+        byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+        int end = size;
+        while ((bytes[end] & 0xC0) == 0x80) {
+            end--;//Do not cut a character in two
+        }
+
+        byte[] payload = new byte[size];
+        System.arraycopy(bytes, 0, payload, 0, end);
+        java.util.Arrays.fill(payload, end, size, (byte) ' ');
+        return payload;
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: Runs the operation on the PAYLOAD over and over for the time given, the number of
+     |          runs given, the first being a warm up
+     |Return: String, best time per PAYLOAD in ns and throughput in MB/s
+     \------------------------------------------------------------------------------------------------*/
+    private static String measure(Operation operation, byte[] payload, long millis, int runs){
+        double best = Double.MAX_VALUE;
+
+        for (int run = 0; run <= runs; run++) {
+            long deadline = System.nanoTime() + millis * 1000000L;
+            long start = System.nanoTime();
+            long count = 0;
+            long end;
+
+            do {
+                for (int i = 0; i < 256; i++) {
+                    sink += operation.run(payload);
+                }
+                count += 256;
+                end = System.nanoTime();
+            } while (end < deadline);
+
+            if (run > 0) {
+                best = Math.min(best, (double) (end - start) / count);
+            }
+        }
+        return String.format("%8.1f(%7.0f)", best, payload.length / best * 1e3);
+    }
+}
@@ -0,0 +1,154 @@
+/**------------------------------------------------------------------------------
+ | Author : Dontae Malone
+ | Company: EAI Design Services LLC
+ | Project: Simple Multiplexing TCP/IP Echo application with custom protocol
+ | Copyright (c) 2015 EAI Design Services LLC
+ ------------------------------------------------------------------------------ */
+/**---------------------------------------------------------------------------------------------
+ | Classification: UNCLASSIFIED
+ |
+ | Abstract: This class measures what each SelectorWait strategy does to round trip latency over
+ | TCP and what it costs in processor time. For each strategy a quiet Echo Server using it is
+ | started in this process, and a non-blocking client waiting for its responses with the same
+ | strategy sends echo requests one at a time, timing every round trip. The server thread's CPU
+ | time is reported next to the latency, since spinning buys its microseconds with a busy core.
+ | Spinning only pays off with a spare core for each spinning thread
+ |
+ | Usage: WaitStrategyBenchmark [messages] [payloadBytes]
+ |
+ \---------------------------------------------------------------------------------------------*/
+/**---------------------------------------------------------------------------------------------
+ VERSION HISTORY:
+ 1.0  - 10192026 - Initial Creation
+
+ \---------------------------------------------------------------------------------------------**/
+
+package com.eai.echoappv2;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+
+public class WaitStrategyBenchmark {
+
+    /*=============================================================================================================
+                                            Method Definitions
+    \=============================================================================================================*/
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: main
+     |Abstract: Main method of WaitStrategyBenchmark class. Runs every strategy in turn, warmed up first,
+     |          and prints its latency distribution and the server's CPU use
+     |Return: void, Main method
+     \------------------------------------------------------------------------------------------------*/
+    public static void main(String args[]) throws Exception{
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int payloadBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        byte[] request = MessageFormatter.encodeFrame(MessageFormatter.TYPE_ECHO, payload);
+
+        System.out.println("messages=" + messages + " payload=" + payloadBytes + "B processors=" +
+                Runtime.getRuntime().availableProcessors());
+
+        for (SelectorWait.Strategy strategy : SelectorWait.Strategy.values()) {
+            run(strategy, request, messages / 10);//Warm up
+            System.out.println(String.format("%-10s %s", strategy.name().toLowerCase(),
+                    run(strategy, request, messages)));
+        }
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: run
+     |Abstract: Starts a server with the strategy given, measures the round trips and stops the server
+     |Return: String, the latency summary and the server thread's CPU time per second of the run
+     \------------------------------------------------------------------------------------------------*/
+    private static String run(SelectorWait.Strategy strategy, byte[] request, int messages) throws Exception{
+        EchoServer server = new EchoServer(InetAddress.getLoopbackAddress(), 0);
+        server.setVerbose(false);
+        server.setWaitStrategy(strategy);
+
+        Thread serverThread = new Thread(server, "EchoServer");
+        serverThread.start();
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getPort()));
+        channel.socket().setTcpNoDelay(true);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getThreadCpuTime(serverThread.getId());
+        long start = System.nanoTime();
+
+        LatencyRecorder recorder = measure(channel, new SelectorWait(strategy), request, messages);
+
+        double cpuShare = (double) (threads.getThreadCpuTime(serverThread.getId()) - cpuStart) /
+                (System.nanoTime() - start);
+
+        channel.close();
+        serverThread.interrupt();
+        serverThread.join();
+
+        return recorder.summary() + String.format(" serverCpu=%.0f%%", 100 * cpuShare);
+    }
+
+    /**------------------------------------------------------------------------------------------------
+     |Method: measure
+     |Abstract: Sends the request the number of times given over a non-blocking socket, waiting for each
+     |          response through a Selector with the wait strategy given before sending the next, and
+     |          records every round trip
+     |Return: LatencyRecorder, the round trip times
+     \------------------------------------------------------------------------------------------------*/
+    static LatencyRecorder measure(SocketChannel channel, SelectorWait wait, byte[] request, int messages)
+            throws IOException{
+        LatencyRecorder recorder = new LatencyRecorder(messages);
+        ByteBuffer out = ByteBuffer.wrap(request);
+        ByteBuffer in = ByteBuffer.allocate(MessageFormatter.MAX_FRAME_LENGTH);
+        Selector selector = Selector.open();
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        try {
+            for (int i = 0; i < messages; i++) {
+                long start = System.nanoTime();
+
+                out.rewind();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+
+                in.clear();
+                int frameLength = -1;
+                while ((frameLength == -1) || (in.position() < frameLength)) {
+                    if (wait.select(selector, 1000) == 0) {
+                        continue;
+                    }
+                    selector.selectedKeys().clear();
+
+                    if (channel.read(in) < 0) {
+                        throw new IOException("The Echo Server closed the connection");
+                    }
+                    if ((frameLength == -1) && (in.position() >= MessageFormatter.HEADER_LENGTH)) {
+                        frameLength = MessageFormatter.HEADER_LENGTH + (in.getShort(2) & 0xFFFF) +
+                                MessageFormatter.CRC_LENGTH;
+                    }
+                }
+
+                recorder.record(System.nanoTime() - start);
+            }
+        } finally {
+            selector.close();
+            channel.configureBlocking(true);
+        }
+        return recorder;
+    }
+}